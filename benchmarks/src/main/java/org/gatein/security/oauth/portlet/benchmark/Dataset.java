@@ -0,0 +1,93 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.gatein.security.oauth.portlet.benchmark;
+
+/**
+ * Size of data returned by stubbed social networks. Data are generated deterministically, so all runs of benchmark
+ * render same markup
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+public enum Dataset {
+
+    // Usual user with few friends and short discussions
+    TYPICAL(10, 5, 3),
+
+    // Users with a lot of friends (Facebook allows max 5000 friends) and very long discussions
+    EXTREME(5000, 10, 500);
+
+    private static final String[] FIRST_NAMES = { "John", "Mary", "Peter", "Jana", "Zo\u00eb", "Ren\u00e9", "Ji\u0159\u00ed",
+            "Anna", "Mike", "Lucy", "Tom", "Eva" };
+    private static final String[] LAST_NAMES = { "Smith", "O'Brien", "M\u00fcller", "Nov\u00e1k", "Garc\u00eda", "Lee",
+            "Johnson", "Brown", "Dvo\u0159\u00e1k", "Taylor", "Wilson" };
+
+    private final int friendsCount;
+    private final int activitiesCount;
+    private final int commentsCount;
+
+    Dataset(int friendsCount, int activitiesCount, int commentsCount) {
+        this.friendsCount = friendsCount;
+        this.activitiesCount = activitiesCount;
+        this.commentsCount = commentsCount;
+    }
+
+    public int getFriendsCount() {
+        return friendsCount;
+    }
+
+    /**
+     * @return count of statuses or activities of single user
+     */
+    public int getActivitiesCount() {
+        return activitiesCount;
+    }
+
+    /**
+     * @return count of comments of single status or activity
+     */
+    public int getCommentsCount() {
+        return commentsCount;
+    }
+
+    public static String getFriendId(int index) {
+        return String.valueOf(100000 + index);
+    }
+
+    /**
+     * @return name of friend. Some names contain characters, which need to be escaped in HTML or encoded in JSON
+     */
+    public static String getFriendName(int index) {
+        return FIRST_NAMES[index % FIRST_NAMES.length] + " " + LAST_NAMES[(index / FIRST_NAMES.length) % LAST_NAMES.length] +
+                (index < FIRST_NAMES.length * LAST_NAMES.length ? "" : " " + index);
+    }
+
+    /**
+     * @return text of message with some markup, which needs to be escaped
+     */
+    public static String getMessage(String author, int index) {
+        return "Message " + index + " from " + author + " about <b>portals</b> & \"portlets\". " +
+                "Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do eiusmod tempor incididunt ut labore.";
+    }
+}
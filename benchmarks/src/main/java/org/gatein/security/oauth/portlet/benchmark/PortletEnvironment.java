@@ -0,0 +1,183 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.gatein.security.oauth.portlet.benchmark;
+
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.ListResourceBundle;
+import java.util.Map;
+import java.util.ResourceBundle;
+
+import javax.portlet.GenericPortlet;
+import javax.portlet.PortletConfig;
+import javax.portlet.PortletContext;
+import javax.portlet.PortletException;
+import javax.xml.XMLConstants;
+import javax.xml.namespace.QName;
+
+import org.exoplatform.container.ExoContainer;
+import org.exoplatform.container.ExoContainerContext;
+import org.gatein.security.oauth.common.OAuthConstants;
+import org.gatein.security.oauth.common.OAuthProviderType;
+import org.gatein.security.oauth.registry.OAuthProviderTypeRegistry;
+
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * Portal environment of benchmarked portlet. Components of portal container are Mockito mocks, so only components
+ * registered by benchmark are available to portlet
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+public class PortletEnvironment {
+
+    private final ExoContainer container = stub(ExoContainer.class);
+    private final Map<String, String> initParameters = new HashMap<String, String>();
+
+    public PortletEnvironment() {
+        OAuthProviderTypeRegistry registry = stub(OAuthProviderTypeRegistry.class);
+        for (String key : new String[] { OAuthConstants.OAUTH_PROVIDER_KEY_FACEBOOK, OAuthConstants.OAUTH_PROVIDER_KEY_GOOGLE,
+                OAuthConstants.OAUTH_PROVIDER_KEY_TWITTER }) {
+            OAuthProviderType<?> providerType = stub(OAuthProviderType.class);
+            when(providerType.getKey()).thenReturn(key);
+            doReturn(providerType).when(registry).getOAuthProvider(key);
+        }
+        registerComponent(OAuthProviderTypeRegistry.class, registry);
+    }
+
+
+    /**
+     * Create Mockito mock, which doesn't remember its invocations. Invocations of normal mocks are kept for verification,
+     * so their memory would grow with each render
+     */
+    public static <T> T stub(Class<T> type) {
+        return mock(type, withSettings().stubOnly());
+    }
+
+
+    /**
+     * Register component, which will be returned by portal container to portlet
+     */
+    public <T> PortletEnvironment registerComponent(Class<T> type, T component) {
+        doReturn(component).when(container).getComponentInstanceOfType(type);
+        return this;
+    }
+
+
+    public PortletEnvironment setInitParameter(String name, String value) {
+        initParameters.put(name, value);
+        return this;
+    }
+
+
+    /**
+     * Initialize portlet with components and init parameters of this environment
+     *
+     * @return initialized portlet
+     */
+    public <P extends GenericPortlet> P init(P portlet) throws PortletException {
+        ExoContainerContext.setCurrentContainer(container);
+        portlet.init(new StubPortletConfig(portlet.getClass().getSimpleName()));
+        return portlet;
+    }
+
+
+    private class StubPortletConfig implements PortletConfig {
+
+        private final String portletName;
+
+        private StubPortletConfig(String portletName) {
+            this.portletName = portletName;
+        }
+
+        @Override
+        public String getPortletName() {
+            return portletName;
+        }
+
+        @Override
+        public PortletContext getPortletContext() {
+            return null;
+        }
+
+        // Title is needed by GenericPortlet.render
+        @Override
+        public ResourceBundle getResourceBundle(Locale locale) {
+            return new ListResourceBundle() {
+
+                @Override
+                protected Object[][] getContents() {
+                    return new Object[][] { { "javax.portlet.title", portletName } };
+                }
+
+            };
+        }
+
+        @Override
+        public String getInitParameter(String name) {
+            return initParameters.get(name);
+        }
+
+        @Override
+        public Enumeration<String> getInitParameterNames() {
+            return Collections.enumeration(initParameters.keySet());
+        }
+
+        @Override
+        public Enumeration<String> getPublicRenderParameterNames() {
+            return Collections.enumeration(Collections.<String>emptyList());
+        }
+
+        @Override
+        public String getDefaultNamespace() {
+            return XMLConstants.NULL_NS_URI;
+        }
+
+        @Override
+        public Enumeration<QName> getPublishingEventQNames() {
+            return Collections.enumeration(Collections.<QName>emptyList());
+        }
+
+        @Override
+        public Enumeration<QName> getProcessingEventQNames() {
+            return Collections.enumeration(Collections.<QName>emptyList());
+        }
+
+        @Override
+        public Enumeration<Locale> getSupportedLocales() {
+            return Collections.enumeration(Collections.singletonList(Locale.ENGLISH));
+        }
+
+        @Override
+        public Map<String, String[]> getContainerRuntimeOptions() {
+            return Collections.emptyMap();
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.gatein.security.oauth.portlet.benchmark;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.portlet.PortletMode;
+import javax.portlet.PortletURL;
+import javax.portlet.ResourceURL;
+import javax.portlet.WindowState;
+
+/**
+ * Portlet URL with similar format as URLs generated by portal, so that rendering of URLs costs similar time
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+public class StubPortletURL implements PortletURL, ResourceURL {
+
+    private final String type;
+    private final Map<String, String[]> parameters = new LinkedHashMap<String, String[]>();
+
+    public StubPortletURL(String type) {
+        this.type = type;
+    }
+
+    @Override
+    public void setParameter(String name, String value) {
+        parameters.put(name, new String[] { value });
+    }
+
+    @Override
+    public void setParameter(String name, String[] values) {
+        parameters.put(name, values);
+    }
+
+    @Override
+    public void setParameters(Map<String, String[]> parameters) {
+        this.parameters.clear();
+        this.parameters.putAll(parameters);
+    }
+
+    @Override
+    public void setSecure(boolean secure) {
+    }
+
+    @Override
+    public Map<String, String[]> getParameterMap() {
+        return parameters;
+    }
+
+    @Override
+    public void write(Writer out) throws IOException {
+        out.write(toString());
+    }
+
+    @Override
+    public void write(Writer out, boolean escapeXML) throws IOException {
+        String url = toString();
+        out.write(escapeXML ? url.replace("&", "&amp;") : url);
+    }
+
+    @Override
+    public void addProperty(String key, String value) {
+    }
+
+    @Override
+    public void setProperty(String key, String value) {
+    }
+
+    @Override
+    public void setWindowState(WindowState windowState) {
+    }
+
+    @Override
+    public void setPortletMode(PortletMode portletMode) {
+    }
+
+    @Override
+    public PortletMode getPortletMode() {
+        return PortletMode.VIEW;
+    }
+
+    @Override
+    public WindowState getWindowState() {
+        return WindowState.NORMAL;
+    }
+
+    @Override
+    public void removePublicRenderParameter(String name) {
+        parameters.remove(name);
+    }
+
+    @Override
+    public void setResourceID(String resourceID) {
+    }
+
+    @Override
+    public String getCacheability() {
+        return ResourceURL.PAGE;
+    }
+
+    @Override
+    public void setCacheability(String cacheLevel) {
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder url = new StringBuilder("/portal/classic/social?portal:componentId=benchmarkPortlet&portal:type=").append(type);
+        for (Map.Entry<String, String[]> parameter : parameters.entrySet()) {
+            for (String value : parameter.getValue()) {
+                url.append('&').append(parameter.getKey()).append('=').append(value);
+            }
+        }
+        return url.toString();
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.gatein.security.oauth.portlet.benchmark;
+
+import java.security.Principal;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.portlet.PortalContext;
+import javax.portlet.PortletMode;
+import javax.portlet.PortletPreferences;
+import javax.portlet.PortletSession;
+import javax.portlet.RenderRequest;
+import javax.portlet.WindowState;
+import javax.servlet.http.Cookie;
+
+/**
+ * Render request of single portal user. Parameters could be changed between renders
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+public class StubRenderRequest implements RenderRequest {
+
+    private final String remoteUser;
+    private final StubPortletSession session;
+    private final Map<String, String[]> parameters = new HashMap<String, String[]>();
+    private final Map<String, Object> attributes = new HashMap<String, Object>();
+
+    public StubRenderRequest(String remoteUser, StubPortletSession session) {
+        this.remoteUser = remoteUser;
+        this.session = session;
+    }
+
+    public void setParameter(String name, String value) {
+        if (value == null) {
+            parameters.remove(name);
+        } else {
+            parameters.put(name, new String[] { value });
+        }
+    }
+
+    public void clearParameters() {
+        parameters.clear();
+    }
+
+    // Attributes live only during single request, so they must be cleared before request is reused
+    public void clearAttributes() {
+        attributes.clear();
+    }
+
+    @Override
+    public String getETag() {
+        return null;
+    }
+
+    @Override
+    public boolean isWindowStateAllowed(WindowState state) {
+        return true;
+    }
+
+    @Override
+    public boolean isPortletModeAllowed(PortletMode mode) {
+        return true;
+    }
+
+    @Override
+    public PortletMode getPortletMode() {
+        return PortletMode.VIEW;
+    }
+
+    @Override
+    public WindowState getWindowState() {
+        return WindowState.NORMAL;
+    }
+
+    @Override
+    public PortletPreferences getPreferences() {
+        return null;
+    }
+
+    @Override
+    public PortletSession getPortletSession() {
+        return session;
+    }
+
+    @Override
+    public PortletSession getPortletSession(boolean create) {
+        return session;
+    }
+
+    @Override
+    public String getProperty(String name) {
+        return null;
+    }
+
+    @Override
+    public Enumeration<String> getProperties(String name) {
+        return Collections.enumeration(Collections.<String>emptyList());
+    }
+
+    @Override
+    public Enumeration<String> getPropertyNames() {
+        return Collections.enumeration(Collections.<String>emptyList());
+    }
+
+    @Override
+    public PortalContext getPortalContext() {
+        return null;
+    }
+
+    @Override
+    public String getAuthType() {
+        return FORM_AUTH;
+    }
+
+    @Override
+    public String getContextPath() {
+        return "/gatein-social-portlets";
+    }
+
+    @Override
+    public String getRemoteUser() {
+        return remoteUser;
+    }
+
+    @Override
+    public Principal getUserPrincipal() {
+        return null;
+    }
+
+    @Override
+    public boolean isUserInRole(String role) {
+        return false;
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+        return attributes.get(name);
+    }
+
+    @Override
+    public Enumeration<String> getAttributeNames() {
+        return Collections.enumeration(attributes.keySet());
+    }
+
+    @Override
+    public String getParameter(String name) {
+        String[] values = parameters.get(name);
+        return values == null ? null : values[0];
+    }
+
+    @Override
+    public Enumeration<String> getParameterNames() {
+        return Collections.enumeration(parameters.keySet());
+    }
+
+    @Override
+    public String[] getParameterValues(String name) {
+        return parameters.get(name);
+    }
+
+    @Override
+    public Map<String, String[]> getParameterMap() {
+        return parameters;
+    }
+
+    @Override
+    public boolean isSecure() {
+        return false;
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+        attributes.put(name, value);
+    }
+
+    @Override
+    public void removeAttribute(String name) {
+        attributes.remove(name);
+    }
+
+    @Override
+    public String getRequestedSessionId() {
+        return session.getId();
+    }
+
+    @Override
+    public boolean isRequestedSessionIdValid() {
+        return true;
+    }
+
+    @Override
+    public String getResponseContentType() {
+        return "text/html";
+    }
+
+    @Override
+    public Enumeration<String> getResponseContentTypes() {
+        return Collections.enumeration(Collections.singletonList("text/html"));
+    }
+
+    @Override
+    public Locale getLocale() {
+        return Locale.ENGLISH;
+    }
+
+    @Override
+    public Enumeration<Locale> getLocales() {
+        return Collections.enumeration(Collections.singletonList(Locale.ENGLISH));
+    }
+
+    @Override
+    public String getScheme() {
+        return "http";
+    }
+
+    @Override
+    public String getServerName() {
+        return "localhost";
+    }
+
+    @Override
+    public int getServerPort() {
+        return 8080;
+    }
+
+    @Override
+    public String getWindowID() {
+        return "benchmarkWindow";
+    }
+
+    @Override
+    public Cookie[] getCookies() {
+        return new Cookie[0];
+    }
+
+    @Override
+    public Map<String, String[]> getPrivateParameterMap() {
+        return parameters;
+    }
+
+    @Override
+    public Map<String, String[]> getPublicParameterMap() {
+        return Collections.emptyMap();
+    }
+}
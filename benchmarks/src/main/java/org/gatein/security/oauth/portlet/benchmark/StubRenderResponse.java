@@ -0,0 +1,259 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.gatein.security.oauth.portlet.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.CharArrayWriter;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.Collection;
+import java.util.Locale;
+
+import javax.portlet.CacheControl;
+import javax.portlet.PortletMode;
+import javax.portlet.PortletURL;
+import javax.portlet.RenderResponse;
+import javax.portlet.ResourceURL;
+import javax.servlet.http.Cookie;
+
+import org.w3c.dom.DOMException;
+import org.w3c.dom.Element;
+
+/**
+ * Render response, which keeps markup in memory. Buffer is reused by all renders, so that the response itself doesn't
+ * allocate anything after warmup
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+public class StubRenderResponse implements RenderResponse {
+
+    private final CharArrayWriter markup = new CharArrayWriter(64 * 1024);
+    private final PrintWriter writer = new PrintWriter(markup) {
+
+        // Portlets close writer after render, but it's reused by next render
+        @Override
+        public void close() {
+            flush();
+        }
+
+    };
+    private final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    private final StubCacheControl cacheControl = new StubCacheControl();
+    private String contentType;
+
+    /**
+     * @return length of markup rendered since last reset
+     */
+    public int getMarkupLength() {
+        writer.flush();
+        return markup.size() + outputStream.size();
+    }
+
+    /**
+     * @return markup rendered since last reset
+     */
+    public String getMarkup() {
+        writer.flush();
+        return markup.toString() + outputStream.toString();
+    }
+
+    @Override
+    public void setTitle(String title) {
+    }
+
+    @Override
+    public void setNextPossiblePortletModes(Collection<PortletMode> portletModes) {
+    }
+
+    @Override
+    public void setContentType(String type) {
+        this.contentType = type;
+    }
+
+    @Override
+    public String getContentType() {
+        return contentType;
+    }
+
+    @Override
+    public String getCharacterEncoding() {
+        return "UTF-8";
+    }
+
+    @Override
+    public PrintWriter getWriter() {
+        return writer;
+    }
+
+    @Override
+    public Locale getLocale() {
+        return Locale.ENGLISH;
+    }
+
+    @Override
+    public void setBufferSize(int size) {
+    }
+
+    @Override
+    public int getBufferSize() {
+        return markup.size();
+    }
+
+    @Override
+    public void flushBuffer() {
+        writer.flush();
+    }
+
+    @Override
+    public void resetBuffer() {
+        writer.flush();
+        markup.reset();
+        outputStream.reset();
+    }
+
+    @Override
+    public boolean isCommitted() {
+        return false;
+    }
+
+    @Override
+    public void reset() {
+        resetBuffer();
+        contentType = null;
+        cacheControl.reset();
+    }
+
+    @Override
+    public OutputStream getPortletOutputStream() {
+        return outputStream;
+    }
+
+    @Override
+    public PortletURL createRenderURL() {
+        return new StubPortletURL("render");
+    }
+
+    @Override
+    public PortletURL createActionURL() {
+        return new StubPortletURL("action");
+    }
+
+    @Override
+    public ResourceURL createResourceURL() {
+        return new StubPortletURL("resource");
+    }
+
+    @Override
+    public CacheControl getCacheControl() {
+        return cacheControl;
+    }
+
+    @Override
+    public void addProperty(String key, String value) {
+    }
+
+    @Override
+    public void setProperty(String key, String value) {
+    }
+
+    @Override
+    public String encodeURL(String path) {
+        return path;
+    }
+
+    @Override
+    public String getNamespace() {
+        return "benchmarkPortlet_";
+    }
+
+    @Override
+    public void addProperty(Cookie cookie) {
+    }
+
+    @Override
+    public void addProperty(String key, Element element) {
+    }
+
+    @Override
+    public Element createElement(String tagName) throws DOMException {
+        throw new UnsupportedOperationException("DOM elements are not supported by benchmark response");
+    }
+
+
+    private static class StubCacheControl implements CacheControl {
+
+        private int expirationTime;
+        private boolean publicScope;
+        private String etag;
+        private boolean useCachedContent;
+
+        private void reset() {
+            expirationTime = 0;
+            publicScope = false;
+            etag = null;
+            useCachedContent = false;
+        }
+
+        @Override
+        public int getExpirationTime() {
+            return expirationTime;
+        }
+
+        @Override
+        public void setExpirationTime(int time) {
+            this.expirationTime = time;
+        }
+
+        @Override
+        public boolean isPublicScope() {
+            return publicScope;
+        }
+
+        @Override
+        public void setPublicScope(boolean publicScope) {
+            this.publicScope = publicScope;
+        }
+
+        @Override
+        public String getETag() {
+            return etag;
+        }
+
+        @Override
+        public void setETag(String token) {
+            this.etag = token;
+        }
+
+        @Override
+        public boolean useCachedContent() {
+            return useCachedContent;
+        }
+
+        @Override
+        public void setUseCachedContent(boolean useCachedContent) {
+            this.useCachedContent = useCachedContent;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.gatein.security.oauth.portlet.facebook;
+
+import java.util.concurrent.TimeUnit;
+
+import com.restfb.DefaultJsonMapper;
+import org.gatein.security.oauth.facebook.FacebookAccessTokenContext;
+import org.gatein.security.oauth.portlet.benchmark.Dataset;
+import org.gatein.security.oauth.portlet.benchmark.PortletEnvironment;
+import org.gatein.security.oauth.portlet.benchmark.StubPortletSession;
+import org.gatein.security.oauth.portlet.benchmark.StubRenderRequest;
+import org.gatein.security.oauth.portlet.benchmark.StubRenderResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import static org.gatein.security.oauth.portlet.benchmark.PortletEnvironment.stub;
+import static org.mockito.Mockito.when;
+
+/**
+ * Render of {@link FacebookFriendsPortlet} with Graph API replaced by {@link StubGraphApi}
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FacebookFriendsPortletBenchmark {
+
+    private static final String USERNAME = "john";
+
+    // Names of request parameters and session attributes used by portlet
+    private static final String PARAM_PAGE = "_page";
+    private static final String PARAM_PERSON_ID = "_personID";
+    private static final String PARAM_USER_FILTER = "_userFilter";
+
+    @Param({ "TYPICAL", "EXTREME" })
+    public Dataset dataset;
+
+    @Param({ "true", "false" })
+    public boolean rosterSnapshot;
+
+    private FacebookFriendsPortlet portlet;
+    private StubPortletSession session;
+    private StubRenderRequest request;
+    private StubRenderResponse response;
+    private FacebookAccessTokenContext accessToken;
+
+    @Setup
+    public void setup() throws Exception {
+        FacebookClientFactory facebookClientFactory = new FacebookClientFactory(new StubGraphApi(dataset), new DefaultJsonMapper());
+        portlet = new PortletEnvironment()
+                .registerComponent(FacebookClientFactory.class, facebookClientFactory)
+                .setInitParameter("rosterSnapshot", String.valueOf(rosterSnapshot))
+                .init(new FacebookFriendsPortlet());
+
+        accessToken = stub(FacebookAccessTokenContext.class);
+        when(accessToken.getAccessToken()).thenReturn("benchmarkAccessToken");
+        when(accessToken.isScopeAvailable("friends_status")).thenReturn(true);
+
+        session = new StubPortletSession();
+        request = new StubRenderRequest(USERNAME, session);
+        response = new StubRenderResponse();
+
+        // Load roster of friends, so that it's cached for benchmarks of warm render
+        portlet.handleRender(request, response, accessToken);
+    }
+
+    @TearDown
+    public void tearDown() {
+        portlet.destroy();
+    }
+
+
+    // Usual render of page of friends, which are already cached
+    @Benchmark
+    public int renderPage() throws Exception {
+        return render(null, null);
+    }
+
+
+    // First render after login or refresh of friends
+    @Benchmark
+    public int renderPageWithoutCachedFriends() throws Exception {
+        portlet.invalidateFriends(USERNAME);
+        return render(null, null);
+    }
+
+
+    @Benchmark
+    public int renderFilteredFriends() throws Exception {
+        return render(null, "an");
+    }
+
+
+    // Statuses of friend with all their likes and comments
+    @Benchmark
+    public int renderStatusesOfFriend() throws Exception {
+        return render(Dataset.getFriendId(0), null);
+    }
+
+
+    private int render(String personId, String filter) throws Exception {
+        request.clearParameters();
+        request.setParameter(PARAM_PAGE, "1");
+        request.setParameter(PARAM_PERSON_ID, personId);
+        if (filter != null) {
+            session.setAttribute(PARAM_USER_FILTER, filter);
+        } else {
+            session.removeAttribute(PARAM_USER_FILTER);
+        }
+
+        request.clearAttributes();
+        response.reset();
+        portlet.handleRender(request, response, accessToken);
+        return response.getMarkupLength();
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.gatein.security.oauth.portlet.facebook;
+
+import java.util.concurrent.TimeUnit;
+
+import com.restfb.DefaultJsonMapper;
+import org.gatein.security.oauth.facebook.FacebookAccessTokenContext;
+import org.gatein.security.oauth.portlet.benchmark.Dataset;
+import org.gatein.security.oauth.portlet.benchmark.PortletEnvironment;
+import org.gatein.security.oauth.portlet.benchmark.StubPortletSession;
+import org.gatein.security.oauth.portlet.benchmark.StubRenderRequest;
+import org.gatein.security.oauth.portlet.benchmark.StubRenderResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import static org.gatein.security.oauth.portlet.benchmark.PortletEnvironment.stub;
+import static org.mockito.Mockito.when;
+
+/**
+ * Render of form of {@link FacebookStatusUpdatePortlet} filled with values from previous attempt
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FacebookStatusUpdatePortletBenchmark {
+
+    private FacebookStatusUpdatePortlet portlet;
+    private StubRenderRequest request;
+    private StubRenderResponse response;
+    private FacebookAccessTokenContext accessToken;
+
+    @Setup
+    public void setup() throws Exception {
+        FacebookClientFactory facebookClientFactory = new FacebookClientFactory(new StubGraphApi(Dataset.TYPICAL), new DefaultJsonMapper());
+        portlet = new PortletEnvironment()
+                .registerComponent(FacebookClientFactory.class, facebookClientFactory)
+                .init(new FacebookStatusUpdatePortlet());
+
+        accessToken = stub(FacebookAccessTokenContext.class);
+        when(accessToken.getAccessToken()).thenReturn("benchmarkAccessToken");
+
+        // Values of form are remembered in session
+        StubPortletSession session = new StubPortletSession();
+        session.setAttribute("message", Dataset.getMessage(Dataset.getFriendName(0), 1));
+        session.setAttribute("link", "http://www.gatein.org/?source=facebook&portlet=status");
+        session.setAttribute("name", "GateIn <Portal>");
+
+        request = new StubRenderRequest("john", session);
+        response = new StubRenderResponse();
+    }
+
+    @TearDown
+    public void tearDown() {
+        portlet.destroy();
+    }
+
+
+    @Benchmark
+    public int renderForm() throws Exception {
+        request.clearAttributes();
+        response.reset();
+        portlet.handleRender(request, response, accessToken);
+        return response.getMarkupLength();
+    }
+}
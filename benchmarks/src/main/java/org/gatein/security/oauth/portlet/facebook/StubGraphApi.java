@@ -0,0 +1,334 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.gatein.security.oauth.portlet.facebook;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.restfb.BinaryAttachment;
+import com.restfb.WebRequestor;
+import com.restfb.json.JsonArray;
+import com.restfb.json.JsonObject;
+import org.gatein.security.oauth.portlet.benchmark.Dataset;
+
+/**
+ * In-memory Graph API with friends, statuses and comments generated from {@link Dataset}. It understands all requests
+ * sent by social portlets including batch requests with dependencies between calls. Calls in batch get ETag of their
+ * response and conditional calls with current ETag get empty response with status 304.
+ * <p>
+ * Responses are generated only once and then served from memory, so benchmarks measure mainly parsing of responses
+ * and rendering in portlets
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+public class StubGraphApi implements WebRequestor {
+
+    private static final String DEFAULT_GRAPH_URL = "https://graph.facebook.com/";
+    private static final String ME_ID = "1";
+    private static final String ME_NAME = "Benchmark User";
+    // Version prefix of links sent by Graph API
+    private static final String GRAPH_VERSION = "v2.0";
+    private static final String TIME = "2013-05-01T10:15:30+0000";
+
+    // Reference to result of other call in batch like "{result=page:$.data.*.id}"
+    private static final Pattern BATCH_RESULT_REFERENCE = Pattern.compile("\\{result=([^:]+):\\$\\.data\\.\\*\\.id\\}");
+
+    private final Dataset dataset;
+    private final String graphUrl;
+    private final Map<String, Response> responses = new ConcurrentHashMap<String, Response>();
+    private final AtomicInteger requestCount = new AtomicInteger();
+    private final AtomicInteger notModifiedCount = new AtomicInteger();
+
+    public StubGraphApi(Dataset dataset) {
+        this(dataset, DEFAULT_GRAPH_URL);
+    }
+
+
+    /**
+     * @param dataset data of users
+     * @param graphUrl base URL of Graph API, which is used in requests and in links to next pages
+     */
+    public StubGraphApi(Dataset dataset, String graphUrl) {
+        this.dataset = dataset;
+        this.graphUrl = graphUrl;
+    }
+
+
+    /**
+     * @return count of HTTP requests sent by portlets to Graph API
+     */
+    public int getRequestCount() {
+        return requestCount.get();
+    }
+
+
+    /**
+     * @return count of conditional calls in batch requests, which were answered without body, because ETag was current
+     */
+    public int getNotModifiedCount() {
+        return notModifiedCount.get();
+    }
+
+
+    @Override
+    public Response executeGet(String url) throws IOException {
+        requestCount.incrementAndGet();
+        Response response = responses.get(url);
+        if (response == null) {
+            int queryStart = url.indexOf('?');
+            String path = url.substring(graphUrl.length(), queryStart == -1 ? url.length() : queryStart);
+            response = route(path, parseParameters(queryStart == -1 ? "" : url.substring(queryStart + 1)));
+            responses.put(url, response);
+        }
+        return response;
+    }
+
+
+    @Override
+    public Response executePost(String url, String parameters) throws IOException {
+        requestCount.incrementAndGet();
+        String key = url + "?" + parameters;
+        Response response = responses.get(key);
+        if (response == null) {
+            Map<String, String> params = parseParameters(parameters);
+            if (params.containsKey("batch")) {
+                response = executeBatch(params.get("batch"));
+            } else {
+                // Publishing of status
+                response = new Response(200, new JsonObject().put("id", ME_ID + "_" + key.hashCode()).toString());
+            }
+            responses.put(key, response);
+        }
+        return response;
+    }
+
+
+    @Override
+    public Response executePost(String url, String parameters, BinaryAttachment... binaryAttachments) throws IOException {
+        return executePost(url, parameters);
+    }
+
+
+    private Response executeBatch(String batch) throws IOException {
+        JsonArray calls = new JsonArray(batch);
+        JsonArray results = new JsonArray();
+        Map<String, String> bodiesOfNamedCalls = new HashMap<String, String>();
+
+        for (int i=0 ; i<calls.length() ; i++) {
+            JsonObject call = calls.getJsonObject(i);
+            String relativeUrl = resolveReferences(call.getString("relative_url"), bodiesOfNamedCalls);
+
+            int queryStart = relativeUrl.indexOf('?');
+            String path = queryStart == -1 ? relativeUrl : relativeUrl.substring(0, queryStart);
+            Response response = route(path, parseParameters(queryStart == -1 ? "" : relativeUrl.substring(queryStart + 1)));
+
+            String name = call.optString("name", null);
+            if (name != null) {
+                bodiesOfNamedCalls.put(name, response.getBody());
+            }
+
+            JsonObject result = new JsonObject();
+            JsonArray headers = new JsonArray();
+            if (response.getStatusCode() == 200) {
+                String etag = "\"" + Integer.toHexString(response.getBody().hashCode()) + "\"";
+                headers.put(new JsonObject().put("name", "ETag").put("value", etag));
+                if (etag.equals(getHeader(call, "If-None-Match"))) {
+                    notModifiedCount.incrementAndGet();
+                    results.put(result.put("code", 304).put("headers", headers));
+                    continue;
+                }
+            }
+            results.put(result
+                    .put("code", response.getStatusCode())
+                    .put("headers", headers)
+                    .put("body", response.getBody()));
+        }
+
+        return new Response(200, results.toString());
+    }
+
+
+    private String getHeader(JsonObject call, String name) {
+        JsonArray headers = call.optJsonArray("headers");
+        for (int i=0 ; headers != null && i<headers.length() ; i++) {
+            JsonObject header = headers.getJsonObject(i);
+            if (name.equalsIgnoreCase(header.optString("name", null))) {
+                return header.optString("value", null);
+            }
+        }
+        return null;
+    }
+
+
+    // Replace references to results of previous calls with ids from their results
+    private String resolveReferences(String relativeUrl, Map<String, String> bodiesOfNamedCalls) {
+        Matcher matcher = BATCH_RESULT_REFERENCE.matcher(relativeUrl);
+        StringBuffer resolved = new StringBuffer();
+        while (matcher.find()) {
+            JsonArray data = new JsonObject(bodiesOfNamedCalls.get(matcher.group(1))).getJsonArray("data");
+            StringBuilder ids = new StringBuilder();
+            for (int i=0 ; i<data.length() ; i++) {
+                if (i > 0) {
+                    ids.append(',');
+                }
+                ids.append(data.getJsonObject(i).getString("id"));
+            }
+            matcher.appendReplacement(resolved, ids.toString());
+        }
+        matcher.appendTail(resolved);
+        return resolved.toString();
+    }
+
+
+    private Response route(String path, Map<String, String> params) {
+        if (path.startsWith(GRAPH_VERSION + "/")) {
+            path = path.substring(GRAPH_VERSION.length() + 1);
+        }
+        boolean withPicture = params.containsKey("fields") && params.get("fields").contains("picture");
+
+        if (path.length() == 0 && params.containsKey("ids")) {
+            JsonObject users = new JsonObject();
+            for (String id : params.get("ids").split(",")) {
+                users.put(id, createUser(id, getName(id), withPicture));
+            }
+            return new Response(200, users.toString());
+        } else if (path.equals("me")) {
+            return new Response(200, createUser(ME_ID, ME_NAME, withPicture).toString());
+        } else if (path.equals("me/friends") || path.equals(ME_ID + "/friends")) {
+            return new Response(200, createFriendsPage(params, withPicture).toString());
+        } else if (path.endsWith("/statuses")) {
+            String id = path.substring(0, path.indexOf('/'));
+            return new Response(200, createStatuses(id, getName(id)).toString());
+        } else if (path.indexOf('/') == -1 && getName(path) != null) {
+            return new Response(200, createUser(path, getName(path), withPicture).toString());
+        }
+
+        JsonObject error = new JsonObject()
+                .put("message", "Unsupported get request: " + path)
+                .put("type", "GraphMethodException")
+                .put("code", 100);
+        return new Response(400, new JsonObject().put("error", error).toString());
+    }
+
+
+    private JsonObject createFriendsPage(Map<String, String> params, boolean withPicture) {
+        int offset = params.containsKey("offset") ? Integer.parseInt(params.get("offset")) : 0;
+        int limit = params.containsKey("limit") ? Integer.parseInt(params.get("limit")) : 5000;
+        int end = Math.min(offset + limit, dataset.getFriendsCount());
+
+        JsonArray data = new JsonArray();
+        for (int i=offset ; i<end ; i++) {
+            data.put(createUser(Dataset.getFriendId(i), Dataset.getFriendName(i), withPicture));
+        }
+
+        JsonObject page = new JsonObject().put("data", data);
+        if (end < dataset.getFriendsCount()) {
+            // Like real Graph API, link contains version and id of user instead of "me"
+            String next = graphUrl + GRAPH_VERSION + "/" + ME_ID + "/friends?limit=" + limit + "&offset=" + end +
+                    (withPicture ? "&fields=id%2Cname%2Cpicture" : "");
+            page.put("paging", new JsonObject().put("next", next));
+        }
+        return page;
+    }
+
+
+    private JsonObject createUser(String id, String name, boolean withPicture) {
+        JsonObject user = new JsonObject()
+                .put("id", id)
+                .put("name", name);
+        if (withPicture) {
+            JsonObject pictureData = new JsonObject()
+                    .put("url", "https://fbcdn-profile-a.akamaihd.net/hprofile-ak-ash4/" + id + "_q.jpg")
+                    .put("is_silhouette", false);
+            user.put("picture", new JsonObject().put("data", pictureData));
+        }
+        return user;
+    }
+
+
+    private JsonObject createStatuses(String id, String name) {
+        JsonArray statuses = new JsonArray();
+        for (int i=0 ; i<dataset.getActivitiesCount() ; i++) {
+            JsonArray likes = new JsonArray();
+            JsonArray comments = new JsonArray();
+            for (int j=0 ; j<dataset.getCommentsCount() ; j++) {
+                int friendIndex = j % dataset.getFriendsCount();
+                JsonObject from = createUser(Dataset.getFriendId(friendIndex), Dataset.getFriendName(friendIndex), false);
+                if (j < 20) {
+                    likes.put(from);
+                }
+                comments.put(new JsonObject()
+                        .put("id", id + "_" + i + "_" + j)
+                        .put("from", from)
+                        .put("message", Dataset.getMessage(from.getString("name"), j))
+                        .put("created_time", TIME)
+                        .put("like_count", j % 7));
+            }
+
+            statuses.put(new JsonObject()
+                    .put("id", id + "_" + i)
+                    .put("from", createUser(id, name, false))
+                    .put("message", Dataset.getMessage(name, i))
+                    .put("updated_time", TIME)
+                    .put("likes", new JsonObject().put("data", likes))
+                    .put("comments", new JsonObject().put("data", comments)));
+        }
+        return new JsonObject().put("data", statuses);
+    }
+
+
+    private String getName(String id) {
+        if (ME_ID.equals(id)) {
+            return ME_NAME;
+        }
+
+        try {
+            int index = Integer.parseInt(id) - 100000;
+            return index >= 0 && index < dataset.getFriendsCount() ? Dataset.getFriendName(index) : null;
+        } catch (NumberFormatException nfe) {
+            return null;
+        }
+    }
+
+
+    private Map<String, String> parseParameters(String query) throws UnsupportedEncodingException {
+        Map<String, String> params = new HashMap<String, String>();
+        for (String param : query.split("&")) {
+            int separator = param.indexOf('=');
+            if (separator != -1) {
+                params.put(URLDecoder.decode(param.substring(0, separator), "UTF-8"),
+                        URLDecoder.decode(param.substring(separator + 1), "UTF-8"));
+            }
+        }
+        return params;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.gatein.security.oauth.portlet.google;
+
+import java.util.concurrent.TimeUnit;
+
+import com.google.api.client.googleapis.auth.oauth2.GoogleTokenResponse;
+import org.gatein.security.oauth.google.GoogleProcessor;
+import org.gatein.security.oauth.portlet.benchmark.Dataset;
+import org.gatein.security.oauth.portlet.benchmark.PortletEnvironment;
+import org.gatein.security.oauth.portlet.benchmark.StubPortletSession;
+import org.gatein.security.oauth.portlet.benchmark.StubRenderRequest;
+import org.gatein.security.oauth.portlet.benchmark.StubRenderResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import static org.gatein.security.oauth.portlet.benchmark.PortletEnvironment.stub;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.when;
+
+/**
+ * Render of {@link GoogleActivitiesPortlet} with Google+ replaced by {@link StubGoogleApi}. Comments of activities are
+ * obtained in parallel by threads of Google provider
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GoogleActivitiesPortletBenchmark {
+
+    @Param({ "TYPICAL", "EXTREME" })
+    public Dataset dataset;
+
+    private GoogleActivitiesPortlet portlet;
+    private StubRenderRequest request;
+    private StubRenderResponse response;
+    private GoogleTokenResponse accessToken;
+
+    @Setup
+    public void setup() throws Exception {
+        accessToken = new GoogleTokenResponse();
+        accessToken.setAccessToken("benchmarkAccessToken");
+
+        StubGoogleApi googleApi = new StubGoogleApi(dataset);
+        GoogleProcessor googleProcessor = stub(GoogleProcessor.class);
+        when(googleProcessor.getPlusService(any(GoogleTokenResponse.class))).thenReturn(googleApi.createPlusService());
+
+        portlet = new PortletEnvironment()
+                .registerComponent(GoogleProcessor.class, googleProcessor)
+                .init(new GoogleActivitiesPortlet());
+
+        request = new StubRenderRequest("john", new StubPortletSession());
+        response = new StubRenderResponse();
+    }
+
+    @TearDown
+    public void tearDown() {
+        portlet.destroy();
+    }
+
+
+    // Activities with all their comments
+    @Benchmark
+    public int renderActivities() throws Exception {
+        request.clearAttributes();
+        response.reset();
+        portlet.handleRender(request, response, accessToken);
+        return response.getMarkupLength();
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.gatein.security.oauth.portlet.google;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson.JacksonFactory;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.services.oauth2.Oauth2;
+import com.google.api.services.plus.Plus;
+import org.gatein.security.oauth.portlet.benchmark.Dataset;
+
+/**
+ * In-memory Google+ and OAuth2 userinfo API with people, activities and comments generated from {@link Dataset}.
+ * Real {@link Plus} and {@link Oauth2} clients are used on top of it, so benchmarks include parsing of JSON responses.
+ * <p>
+ * Responses are generated only once and then served from memory
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+public class StubGoogleApi extends MockHttpTransport {
+
+    private static final String APPLICATION_NAME = "gatein-social-portlet-benchmarks";
+
+    private final Dataset dataset;
+    private final JsonFactory jsonFactory = new JacksonFactory();
+    private final Map<String, byte[]> responses = new ConcurrentHashMap<String, byte[]>();
+    private final AtomicInteger requestCount = new AtomicInteger();
+
+    public StubGoogleApi(Dataset dataset) {
+        this.dataset = dataset;
+    }
+
+
+    public Plus createPlusService() {
+        return new Plus.Builder(this, jsonFactory, null).setApplicationName(APPLICATION_NAME).build();
+    }
+
+
+    public Oauth2 createOAuth2Service() {
+        return new Oauth2.Builder(this, jsonFactory, null).setApplicationName(APPLICATION_NAME).build();
+    }
+
+
+    /**
+     * @return count of HTTP requests sent by portlets to Google
+     */
+    public int getRequestCount() {
+        return requestCount.get();
+    }
+
+
+    @Override
+    public LowLevelHttpRequest buildRequest(String method, String url) throws IOException {
+        requestCount.incrementAndGet();
+        byte[] content = getResponse(url);
+        MockLowLevelHttpResponse response = new MockLowLevelHttpResponse()
+                .setContentType("application/json; charset=UTF-8")
+                .setContent(new ByteArrayInputStream(content))
+                .setContentLength(content.length);
+        return new MockLowLevelHttpRequest(url).setResponse(response);
+    }
+
+
+    /**
+     * @param url URL of GET request. Only path suffix and query parameters are important, so URL could point to any server
+     * @return JSON response in UTF-8
+     * @throws IOException if request is not supported
+     */
+    public byte[] getResponse(String url) throws IOException {
+        byte[] content = responses.get(url);
+        if (content == null) {
+            int queryStart = url.indexOf('?');
+            String path = queryStart == -1 ? url : url.substring(0, queryStart);
+            Map<String, String> params = parseParameters(queryStart == -1 ? "" : url.substring(queryStart + 1));
+            content = jsonFactory.toByteArray(route(path, params));
+            responses.put(url, content);
+        }
+        return content;
+    }
+
+
+    private Map<String, Object> route(String path, Map<String, String> params) throws IOException {
+        if (path.endsWith("/people/me/people/visible")) {
+            return createPeopleFeed(params);
+        } else if (path.endsWith("/people/me/activities/public")) {
+            return createActivityFeed(params);
+        } else if (path.endsWith("/comments")) {
+            String activityId = path.substring(0, path.lastIndexOf('/'));
+            return createCommentFeed(activityId.substring(activityId.lastIndexOf('/') + 1));
+        } else if (path.contains("userinfo")) {
+            return createUserinfo();
+        }
+        throw new IOException("Unsupported request: " + path);
+    }
+
+
+    private Map<String, Object> createPeopleFeed(Map<String, String> params) {
+        String pageToken = params.get("pageToken");
+        int offset = pageToken == null ? 0 : Integer.parseInt(pageToken.substring("page".length()));
+        int maxResults = params.containsKey("maxResults") ? Integer.parseInt(params.get("maxResults")) : 100;
+        int end = Math.min(offset + maxResults, dataset.getFriendsCount());
+
+        List<Object> items = new ArrayList<Object>();
+        for (int i=offset ; i<end ; i++) {
+            items.add(createPerson(i));
+        }
+
+        Map<String, Object> feed = new LinkedHashMap<String, Object>();
+        feed.put("kind", "plus#peopleFeed");
+        feed.put("totalItems", dataset.getFriendsCount());
+        if (end < dataset.getFriendsCount()) {
+            feed.put("nextPageToken", "page" + end);
+        }
+        feed.put("items", items);
+        return feed;
+    }
+
+
+    private Map<String, Object> createActivityFeed(Map<String, String> params) {
+        int maxResults = params.containsKey("maxResults") ? Integer.parseInt(params.get("maxResults")) : 20;
+
+        List<Object> items = new ArrayList<Object>();
+        for (int i=0 ; i<Math.min(maxResults, dataset.getActivitiesCount()) ; i++) {
+            Map<String, Object> object = new LinkedHashMap<String, Object>();
+            object.put("objectType", "note");
+            object.put("content", Dataset.getMessage("me", i));
+            object.put("plusoners", createCount(i * 3));
+            object.put("resharers", createCount(i));
+            object.put("replies", createCount(dataset.getCommentsCount()));
+
+            Map<String, Object> activity = new LinkedHashMap<String, Object>();
+            activity.put("kind", "plus#activity");
+            activity.put("id", "activity" + i);
+            activity.put("title", "Activity " + i + " about <portals> & \"portlets\"");
+            activity.put("url", "https://plus.google.com/104/posts/activity" + i);
+            activity.put("object", object);
+            items.add(activity);
+        }
+
+        Map<String, Object> feed = new LinkedHashMap<String, Object>();
+        feed.put("kind", "plus#activityFeed");
+        feed.put("items", items);
+        return feed;
+    }
+
+
+    private Map<String, Object> createCommentFeed(String activityId) {
+        List<Object> items = new ArrayList<Object>();
+        for (int i=0 ; i<dataset.getCommentsCount() ; i++) {
+            String author = Dataset.getFriendName(i % dataset.getFriendsCount());
+            Map<String, Object> actor = new LinkedHashMap<String, Object>();
+            actor.put("displayName", author);
+
+            // Content of comments is formatted by Google+
+            Map<String, Object> object = new LinkedHashMap<String, Object>();
+            object.put("objectType", "comment");
+            object.put("content", "<b>" + author + "</b> wrote comment " + i + " of activity " + activityId);
+
+            Map<String, Object> comment = new LinkedHashMap<String, Object>();
+            comment.put("kind", "plus#comment");
+            comment.put("id", activityId + "-" + i);
+            comment.put("actor", actor);
+            comment.put("object", object);
+            comment.put("plusoners", createCount(i % 7));
+            items.add(comment);
+        }
+
+        Map<String, Object> feed = new LinkedHashMap<String, Object>();
+        feed.put("kind", "plus#commentFeed");
+        feed.put("items", items);
+        return feed;
+    }
+
+
+    private Map<String, Object> createPerson(int index) {
+        String id = Dataset.getFriendId(index);
+        Map<String, Object> image = new HashMap<String, Object>();
+        image.put("url", "https://lh3.googleusercontent.com/" + id + "/photo.jpg?sz=50");
+
+        Map<String, Object> person = new LinkedHashMap<String, Object>();
+        person.put("kind", "plus#person");
+        person.put("id", id);
+        person.put("displayName", Dataset.getFriendName(index));
+        person.put("url", "https://plus.google.com/" + id);
+        person.put("image", image);
+        return person;
+    }
+
+
+    private Map<String, Object> createUserinfo() {
+        Map<String, Object> userinfo = new LinkedHashMap<String, Object>();
+        userinfo.put("id", "104");
+        userinfo.put("email", "john@example.com");
+        userinfo.put("verified_email", true);
+        userinfo.put("name", "Benchmark User");
+        userinfo.put("given_name", "Benchmark");
+        userinfo.put("family_name", "User");
+        userinfo.put("link", "https://plus.google.com/104");
+        userinfo.put("picture", "https://lh3.googleusercontent.com/104/photo.jpg");
+        userinfo.put("gender", "male");
+        userinfo.put("locale", "en");
+        return userinfo;
+    }
+
+
+    private Map<String, Object> createCount(int totalItems) {
+        Map<String, Object> count = new HashMap<String, Object>();
+        count.put("totalItems", totalItems);
+        return count;
+    }
+
+
+    private Map<String, String> parseParameters(String query) throws UnsupportedEncodingException {
+        Map<String, String> params = new HashMap<String, String>();
+        for (String param : query.split("&")) {
+            int separator = param.indexOf('=');
+            if (separator != -1) {
+                params.put(URLDecoder.decode(param.substring(0, separator), "UTF-8"),
+                        URLDecoder.decode(param.substring(separator + 1), "UTF-8"));
+            }
+        }
+        return params;
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.gatein.security.oauth.portlet.loadtest;
+
+import java.util.Random;
+
+/**
+ * Log-normal distribution of latency of responses. It's described by median and 99th percentile, so it has long tail
+ * like latencies of real social networks
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+public class LatencyDistribution {
+
+    // Quantile of standard normal distribution for 99th percentile
+    private static final double Z_99 = 2.326;
+
+    private final long median;
+    private final long percentile99;
+    private final double sigma;
+
+    /**
+     * @param median median latency in milliseconds
+     * @param percentile99 99th percentile of latency in milliseconds. It must not be lower than median
+     */
+    public LatencyDistribution(long median, long percentile99) {
+        if (median < 0 || percentile99 < median) {
+            throw new IllegalArgumentException("Invalid latency distribution. Median: " + median + ", 99th percentile: " + percentile99);
+        }
+        this.median = median;
+        this.percentile99 = percentile99;
+        this.sigma = median == 0 ? 0 : Math.log((double)percentile99 / median) / Z_99;
+    }
+
+
+    /**
+     * @param value distribution in format "median:percentile99" like "80:600" or just "median" for constant latency
+     */
+    public static LatencyDistribution parse(String value) {
+        int separator = value.indexOf(':');
+        if (separator == -1) {
+            long latency = Long.parseLong(value.trim());
+            return new LatencyDistribution(latency, latency);
+        }
+        return new LatencyDistribution(Long.parseLong(value.substring(0, separator).trim()),
+                Long.parseLong(value.substring(separator + 1).trim()));
+    }
+
+
+    /**
+     * @return random latency in milliseconds
+     */
+    public long sample(Random random) {
+        if (median == 0) {
+            return 0;
+        }
+        return Math.round(median * Math.exp(sigma * random.nextGaussian()));
+    }
+
+
+    @Override
+    public String toString() {
+        return "median " + median + " ms, p99 " + percentile99 + " ms";
+    }
+}
@@ -0,0 +1,568 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.gatein.security.oauth.portlet.loadtest;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.portlet.GenericPortlet;
+
+import com.google.api.client.googleapis.auth.oauth2.GoogleTokenResponse;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson.JacksonFactory;
+import com.google.api.services.plus.Plus;
+import com.restfb.DefaultJsonMapper;
+import org.exoplatform.services.cache.CacheService;
+import org.exoplatform.services.cache.ExoCache;
+import org.gatein.security.oauth.common.OAuthProviderType;
+import org.gatein.security.oauth.data.SocialNetworkService;
+import org.gatein.security.oauth.facebook.FacebookAccessTokenContext;
+import org.gatein.security.oauth.google.GoogleProcessor;
+import org.gatein.security.oauth.portlet.benchmark.Dataset;
+import org.gatein.security.oauth.portlet.benchmark.PortletEnvironment;
+import org.gatein.security.oauth.portlet.benchmark.StubPortletSession;
+import org.gatein.security.oauth.portlet.benchmark.StubRenderRequest;
+import org.gatein.security.oauth.portlet.benchmark.StubRenderResponse;
+import org.gatein.security.oauth.portlet.cache.SocialCacheFactory;
+import org.gatein.security.oauth.portlet.facebook.FacebookClientFactory;
+import org.gatein.security.oauth.portlet.facebook.FacebookFriendsPortlet;
+import org.gatein.security.oauth.portlet.google.GoogleActivitiesPortlet;
+import org.gatein.security.oauth.portlet.google.GoogleFriendsPortlet;
+import org.gatein.security.oauth.portlet.loadtest.StandInServer.Api;
+import org.gatein.security.oauth.portlet.twitter.TwitterPortlet;
+import org.gatein.security.oauth.twitter.TwitterAccessTokenContext;
+import org.gatein.security.oauth.twitter.TwitterProcessor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import twitter4j.Twitter;
+import twitter4j.TwitterFactory;
+import twitter4j.auth.AccessToken;
+import twitter4j.conf.ConfigurationBuilder;
+
+import static org.gatein.security.oauth.portlet.benchmark.PortletEnvironment.stub;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * End-to-end load test of social portlets. Simulates concurrent portal users, who are browsing through
+ * {@link FacebookFriendsPortlet}, {@link GoogleFriendsPortlet}, {@link GoogleActivitiesPortlet} and {@link TwitterPortlet}.
+ * Portlets use real clients of social networks, which are pointed to {@link StandInServer}.
+ * <p>
+ * Reports percentiles of render latency and count of outbound calls per render for each portlet. Options are passed
+ * as pairs "-name value". For example "-users 50 -duration 120 -latency 80:600 -twitter.rateLimit 15 -errorRate 0.01"
+ * <p>
+ * Cluster of portal nodes could be simulated with option "-nodes". Each node has its own instances of portlets and
+ * each render is sent to random node like by load balancer without session affinity. With "-clusteredCache true", caches
+ * of social data are shared by all nodes like replicated caches of clustered portal (Other components like thread
+ * pools and quotas are shared in single JVM anyway).
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+public class LoadDriver {
+
+    private static final String CONSUMER_KEY = "loadTestConsumerKey";
+    private static final String CONSUMER_SECRET = "loadTestConsumerSecret";
+    private static final String APPLICATION_NAME = "gatein-social-portlet-load-test";
+
+    // Names of request parameters used by portlets
+    private static final String PARAM_FACEBOOK_PAGE = "_page";
+    private static final String PARAM_FACEBOOK_PERSON_ID = "_personID";
+    private static final String PARAM_GOOGLE_PAGE = "page";
+
+    // How many pages user usually browses before he returns to first page
+    private static final int MAX_BROWSED_PAGES = 5;
+
+    private final StandInServer server;
+    private final Dataset dataset;
+    private final int users;
+    private final int nodes;
+    private final boolean clusteredCache;
+    private final List<Scenario> scenarios = new ArrayList<Scenario>();
+    private final Map<String, Object> accessTokens = new HashMap<String, Object>();
+
+    private volatile boolean measuring;
+    private volatile boolean running;
+
+    /**
+     * @param nodes count of simulated portal nodes
+     * @param clusteredCache if true, caches of portlets are shared by all nodes
+     */
+    public LoadDriver(StandInServer server, Dataset dataset, int users, int nodes, boolean clusteredCache) {
+        this.server = server;
+        this.dataset = dataset;
+        this.users = users;
+        this.nodes = nodes;
+        this.clusteredCache = clusteredCache;
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        int users = Integer.parseInt(getOption(options, "users", "20"));
+        Dataset dataset = Dataset.valueOf(getOption(options, "dataset", "TYPICAL").toUpperCase());
+
+        // Idle connections to stand-in server are kept by JVM, so that each render doesn't need to open new connections
+        System.setProperty("http.maxConnections", String.valueOf(users * 2));
+
+        StandInServer server = new StandInServer(dataset);
+        for (Api api : Api.values()) {
+            String prefix = api.name().toLowerCase() + ".";
+            server.getSettings(api)
+                    .setLatency(LatencyDistribution.parse(getOption(options, prefix + "latency", getOption(options, "latency", "80:600"))))
+                    .setErrorRate(Double.parseDouble(getOption(options, prefix + "errorRate", getOption(options, "errorRate", "0"))))
+                    .setRateLimit(Integer.parseInt(getOption(options, prefix + "rateLimit", getOption(options, "rateLimit", "0"))))
+                    .setRateLimitWindow(1000L * Integer.parseInt(getOption(options, prefix + "rateLimitWindow",
+                            getOption(options, "rateLimitWindow", "900"))));
+        }
+        server.start(Integer.parseInt(getOption(options, "port", "0")));
+
+        try {
+            int nodes = Integer.parseInt(getOption(options, "nodes", "1"));
+            boolean clusteredCache = Boolean.parseBoolean(getOption(options, "clusteredCache", "false"));
+            LoadDriver driver = new LoadDriver(server, dataset, users, nodes, clusteredCache);
+            driver.init(Arrays.asList(getOption(options, "portlets", "FacebookFriends,GoogleFriends,GoogleActivities,Twitter").split(",")));
+            driver.run(1000L * Integer.parseInt(getOption(options, "warmup", "10")), 1000L * Integer.parseInt(getOption(options, "duration", "60")),
+                    Long.parseLong(getOption(options, "thinkTime", "200")));
+
+            System.out.println("Dataset " + dataset + ", " + users + " users, " + nodes + " nodes with " +
+                    (clusteredCache ? "clustered" : "local") + " caches");
+            for (Api api : Api.values()) {
+                System.out.println(api + ": " + server.getSettings(api));
+            }
+            driver.printReport(System.out);
+        } finally {
+            server.stop();
+        }
+    }
+
+
+    /**
+     * Create access tokens of all users and initialize portlets with given names
+     *
+     * @param portletNames names of simulated portlets like "FacebookFriends" or "Twitter"
+     */
+    public void init(List<String> portletNames) throws Exception {
+        for (int i=0 ; i<users ; i++) {
+            String username = getUsername(i);
+
+            FacebookAccessTokenContext facebookToken = stub(FacebookAccessTokenContext.class);
+            when(facebookToken.getAccessToken()).thenReturn("facebook-" + username);
+            when(facebookToken.isScopeAvailable(any(String.class))).thenReturn(true);
+            accessTokens.put(Api.FACEBOOK + ":" + username, facebookToken);
+
+            GoogleTokenResponse googleToken = new GoogleTokenResponse();
+            googleToken.setAccessToken("google-" + username);
+            accessTokens.put(Api.GOOGLE + ":" + username, googleToken);
+
+            TwitterAccessTokenContext twitterToken = stub(TwitterAccessTokenContext.class);
+            when(twitterToken.getAccessToken()).thenReturn("twitter-" + username);
+            when(twitterToken.getAccessTokenSecret()).thenReturn("twitter-secret-" + username);
+            accessTokens.put(Api.TWITTER + ":" + username, twitterToken);
+        }
+
+        // All nodes use same clients of social networks, so calls of all nodes are counted together
+        SocialNetworkService socialNetworkService = createSocialNetworkService();
+        FacebookClientFactory facebookClientFactory = new FacebookClientFactory(
+                new RedirectingWebRequestor(server.getUrl(Api.FACEBOOK), users * 2), new DefaultJsonMapper());
+        GoogleProcessor googleProcessor = createGoogleProcessor();
+        TwitterProcessor twitterProcessor = createTwitterProcessor();
+        CacheService clusterCacheService = clusteredCache ? createClusterCacheService() : null;
+
+        PortletEnvironment[] environments = new PortletEnvironment[nodes];
+        for (int i=0 ; i<nodes ; i++) {
+            environments[i] = new PortletEnvironment()
+                    .registerComponent(SocialNetworkService.class, socialNetworkService)
+                    .registerComponent(FacebookClientFactory.class, facebookClientFactory)
+                    .registerComponent(GoogleProcessor.class, googleProcessor)
+                    .registerComponent(TwitterProcessor.class, twitterProcessor)
+                    .registerComponent(SocialCacheFactory.class, new SocialCacheFactory(clusterCacheService));
+        }
+
+        final int facebookPages = Math.min((dataset.getFriendsCount() - 1) / 10 + 1, MAX_BROWSED_PAGES);
+        final int googlePages = facebookPages;
+
+        if (portletNames.contains("FacebookFriends")) {
+            // User browses through pages of friends and sometimes he looks at statuses of some friend
+            scenarios.add(new Scenario("FacebookFriends", initPortlets(environments, FacebookFriendsPortlet.class), "facebook") {
+
+                @Override
+                void prepareRequest(StubRenderRequest request, StubPortletSession session, int iteration, Random random) {
+                    int page = iteration % facebookPages;
+                    request.setParameter(PARAM_FACEBOOK_PAGE, String.valueOf(page + 1));
+                    request.setParameter(PARAM_FACEBOOK_PERSON_ID, iteration % 5 == 4
+                            ? Dataset.getFriendId(Math.min(page * 10 + random.nextInt(10), dataset.getFriendsCount() - 1)) : null);
+                }
+
+            });
+        }
+        if (portletNames.contains("GoogleFriends")) {
+            // User clicks to "Next" until he reaches last browsed page and then he starts again from first page
+            scenarios.add(new Scenario("GoogleFriends", initPortlets(environments, GoogleFriendsPortlet.class), "google/people") {
+
+                @Override
+                void prepareRequest(StubRenderRequest request, StubPortletSession session, int iteration, Random random) {
+                    if (iteration % googlePages == 0) {
+                        session.clear();
+                        request.setParameter(PARAM_GOOGLE_PAGE, null);
+                    } else {
+                        request.setParameter(PARAM_GOOGLE_PAGE, "next");
+                    }
+                }
+
+            });
+        }
+        if (portletNames.contains("GoogleActivities")) {
+            scenarios.add(new Scenario("GoogleActivities", initPortlets(environments, GoogleActivitiesPortlet.class), "google/activities"));
+        }
+        if (portletNames.contains("Twitter")) {
+            scenarios.add(new Scenario("Twitter", initPortlets(environments, TwitterPortlet.class), "twitter"));
+        }
+        if (scenarios.isEmpty()) {
+            throw new IllegalArgumentException("No known portlet in " + portletNames);
+        }
+    }
+
+
+    /**
+     * Run simulated users. Renders and outbound calls are measured only after warmup
+     *
+     * @param warmup time of warmup in milliseconds
+     * @param duration time of measurement in milliseconds
+     * @param thinkTime mean time in milliseconds between renders of single user
+     */
+    public void run(long warmup, long duration, long thinkTime) throws InterruptedException {
+        running = true;
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i=0 ; i<users ; i++) {
+            Thread thread = new Thread(new VirtualUser(getUsername(i), thinkTime), "virtual-user-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+        }
+
+        Thread.sleep(warmup);
+        server.resetCallCounts();
+        measuring = true;
+        Thread.sleep(duration);
+        measuring = false;
+        running = false;
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (Scenario scenario : scenarios) {
+            for (GenericPortlet portlet : scenario.portlets) {
+                portlet.destroy();
+            }
+        }
+    }
+
+
+    public void printReport(PrintStream out) {
+        out.println(String.format("%-18s %9s %7s %9s %9s %9s %13s", "Portlet", "Renders", "Errors", "p50 (ms)", "p95 (ms)", "p99 (ms)", "Calls/render"));
+        for (Scenario scenario : scenarios) {
+            RenderStats stats = scenario.stats;
+            int renders = stats.getRenderCount();
+            long calls = 0;
+            for (String endpoint : scenario.endpoints) {
+                calls += server.getCallCount(endpoint);
+            }
+            out.println(String.format("%-18s %9d %7d %9.1f %9.1f %9.1f %13.2f", scenario.name, renders, stats.getErrorCount(),
+                    stats.getPercentile(50), stats.getPercentile(95), stats.getPercentile(99), renders == 0 ? 0.0 : (double)calls / renders));
+        }
+        out.println("Outbound calls: " + server.getCallCounts());
+    }
+
+
+    // Each node has its own instance of portlet
+    private static GenericPortlet[] initPortlets(PortletEnvironment[] environments, Class<? extends GenericPortlet> portletClass)
+            throws Exception {
+        GenericPortlet[] portlets = new GenericPortlet[environments.length];
+        for (int i=0 ; i<environments.length ; i++) {
+            portlets[i] = environments[i].init(portletClass.newInstance());
+        }
+        return portlets;
+    }
+
+
+    private SocialNetworkService createSocialNetworkService() {
+        return mock(SocialNetworkService.class, withSettings().stubOnly().defaultAnswer(new Answer<Object>() {
+
+            @Override
+            public Object answer(InvocationOnMock invocation) {
+                Object[] args = invocation.getArguments();
+                if (!"getOAuthAccessToken".equals(invocation.getMethod().getName())) {
+                    return null;
+                }
+                String key = ((OAuthProviderType<?>)args[0]).getKey();
+                return accessTokens.get(key.toUpperCase() + ":" + args[1]);
+            }
+
+        }));
+    }
+
+
+    private GoogleProcessor createGoogleProcessor() {
+        final HttpTransport transport = new NetHttpTransport();
+        final JsonFactory jsonFactory = new JacksonFactory();
+        final String rootUrl = server.getUrl(Api.GOOGLE);
+
+        GoogleProcessor googleProcessor = stub(GoogleProcessor.class);
+        when(googleProcessor.getPlusService(any(GoogleTokenResponse.class))).thenAnswer(new Answer<Plus>() {
+
+            @Override
+            public Plus answer(InvocationOnMock invocation) {
+                final GoogleTokenResponse accessToken = (GoogleTokenResponse)invocation.getArguments()[0];
+                HttpRequestInitializer initializer = new HttpRequestInitializer() {
+
+                    @Override
+                    public void initialize(HttpRequest request) throws IOException {
+                        request.getHeaders().setAuthorization("Bearer " + accessToken.getAccessToken());
+                    }
+
+                };
+                return new Plus.Builder(transport, jsonFactory, initializer)
+                        .setRootUrl(rootUrl)
+                        .setApplicationName(APPLICATION_NAME)
+                        .build();
+            }
+
+        });
+        return googleProcessor;
+    }
+
+
+    // Entries of each eXo cache are kept in single map used by all nodes, so they behave like synchronously replicated cache.
+    // Entries are not serialized, so only count of requests to social networks is simulated. Replication with Infinispan
+    // is tested by ClusteredSocialCacheTest
+    private CacheService createClusterCacheService() {
+        final ConcurrentMap<String, ExoCache<Serializable, Object>> caches = new ConcurrentHashMap<String, ExoCache<Serializable, Object>>();
+        CacheService cacheService = stub(CacheService.class);
+        when(cacheService.getCacheInstance(any(String.class))).thenAnswer(new Answer<ExoCache<Serializable, Object>>() {
+
+            @Override
+            public ExoCache<Serializable, Object> answer(InvocationOnMock invocation) {
+                String region = (String)invocation.getArguments()[0];
+                ExoCache<Serializable, Object> cache = caches.get(region);
+                if (cache == null) {
+                    caches.putIfAbsent(region, createClusterCache(region));
+                    cache = caches.get(region);
+                }
+                return cache;
+            }
+
+        });
+        return cacheService;
+    }
+
+
+    @SuppressWarnings("unchecked")
+    private static ExoCache<Serializable, Object> createClusterCache(final String region) {
+        final ConcurrentMap<Serializable, Object> entries = new ConcurrentHashMap<Serializable, Object>();
+        return mock(ExoCache.class, withSettings().stubOnly().defaultAnswer(new Answer<Object>() {
+
+            @Override
+            public Object answer(InvocationOnMock invocation) {
+                String method = invocation.getMethod().getName();
+                Object[] args = invocation.getArguments();
+                if ("get".equals(method)) {
+                    return entries.get(args[0]);
+                } else if ("put".equals(method)) {
+                    entries.put((Serializable)args[0], args[1]);
+                } else if ("remove".equals(method)) {
+                    return entries.remove(args[0]);
+                } else if ("clearCache".equals(method)) {
+                    entries.clear();
+                } else if ("getCacheSize".equals(method)) {
+                    return entries.size();
+                } else if ("getMaxSize".equals(method)) {
+                    return -1;
+                } else if ("getName".equals(method)) {
+                    return region;
+                }
+                return null;
+            }
+
+        }));
+    }
+
+
+    private TwitterProcessor createTwitterProcessor() {
+        final TwitterFactory twitterFactory = new TwitterFactory(new ConfigurationBuilder()
+                .setOAuthConsumerKey(CONSUMER_KEY)
+                .setOAuthConsumerSecret(CONSUMER_SECRET)
+                .setUseSSL(false)
+                .setRestBaseURL(server.getUrl(Api.TWITTER) + "1.1/")
+                .build());
+
+        TwitterProcessor twitterProcessor = stub(TwitterProcessor.class);
+        when(twitterProcessor.getAuthorizedTwitterInstance(any(TwitterAccessTokenContext.class))).thenAnswer(new Answer<Twitter>() {
+
+            @Override
+            public Twitter answer(InvocationOnMock invocation) {
+                TwitterAccessTokenContext accessToken = (TwitterAccessTokenContext)invocation.getArguments()[0];
+                return twitterFactory.getInstance(new AccessToken(accessToken.getAccessToken(), accessToken.getAccessTokenSecret()));
+            }
+
+        });
+        return twitterProcessor;
+    }
+
+
+    private static String getUsername(int index) {
+        return "user-" + index;
+    }
+
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<String, String>();
+        for (int i=0 ; i<args.length ; i+=2) {
+            if (!args[i].startsWith("-") || i + 1 == args.length) {
+                throw new IllegalArgumentException("Options must be passed as pairs \"-name value\". Invalid option: " + args[i]);
+            }
+            options.put(args[i].substring(1), args[i + 1]);
+        }
+        return options;
+    }
+
+
+    private static String getOption(Map<String, String> options, String name, String defaultValue) {
+        String value = options.get(name);
+        return value != null ? value : defaultValue;
+    }
+
+
+    /**
+     * Simulated portal user. He has his own portlet session for each portlet and renders portlets one after another
+     */
+    private class VirtualUser implements Runnable {
+
+        private final String username;
+        private final long thinkTime;
+        private final StubRenderRequest[] requests = new StubRenderRequest[scenarios.size()];
+        private final StubPortletSession[] sessions = new StubPortletSession[scenarios.size()];
+        private final StubRenderResponse response = new StubRenderResponse();
+
+        private VirtualUser(String username, long thinkTime) {
+            this.username = username;
+            this.thinkTime = thinkTime;
+            for (int i=0 ; i<scenarios.size() ; i++) {
+                sessions[i] = new StubPortletSession();
+                requests[i] = new StubRenderRequest(username, sessions[i]);
+            }
+        }
+
+        @Override
+        public void run() {
+            Random random = ThreadLocalRandom.current();
+
+            // Users don't start at same time
+            think(random.nextInt((int)Math.max(thinkTime, 1)));
+
+            for (int iteration=0 ; running ; iteration++) {
+                int index = iteration % scenarios.size();
+                Scenario scenario = scenarios.get(index);
+                scenario.prepareRequest(requests[index], sessions[index], iteration / scenarios.size(), random);
+                requests[index].clearAttributes();
+                response.reset();
+                GenericPortlet portlet = scenario.portlets[random.nextInt(scenario.portlets.length)];
+
+                boolean measured = measuring;
+                long start = System.nanoTime();
+                try {
+                    portlet.render(requests[index], response);
+                    if (measured) {
+                        scenario.stats.addRender(System.nanoTime() - start);
+                    }
+                } catch (Exception e) {
+                    if (measured) {
+                        scenario.stats.addError();
+                    }
+                }
+
+                // Exponential distribution of think time
+                think((long)(-thinkTime * Math.log(1 - random.nextDouble())));
+            }
+        }
+
+        private void think(long time) {
+            if (time > 0) {
+                try {
+                    Thread.sleep(time);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    running = false;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Render of single portlet by simulated user
+     */
+    private static class Scenario {
+
+        private final String name;
+        private final GenericPortlet[] portlets;
+        private final String[] endpoints;
+        private final RenderStats stats = new RenderStats();
+
+        /**
+         * @param name name of portlet in report
+         * @param portlets initialized instances of portlet on each node
+         * @param endpoints endpoints of {@link StandInServer} used only by this portlet
+         */
+        private Scenario(String name, GenericPortlet[] portlets, String... endpoints) {
+            this.name = name;
+            this.portlets = portlets;
+            this.endpoints = endpoints;
+        }
+
+        /**
+         * Prepare request parameters and session before render. Parameters of previous render are kept by default
+         *
+         * @param iteration how many times was portlet already rendered by user
+         */
+        void prepareRequest(StubRenderRequest request, StubPortletSession session, int iteration, Random random) {
+        }
+    }
+}
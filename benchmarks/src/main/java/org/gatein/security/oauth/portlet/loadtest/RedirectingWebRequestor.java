@@ -0,0 +1,59 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.gatein.security.oauth.portlet.loadtest;
+
+import java.io.IOException;
+
+import org.gatein.security.oauth.portlet.facebook.PooledWebRequestor;
+
+/**
+ * {@link PooledWebRequestor}, which sends requests for Facebook Graph API to {@link StandInServer} instead
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+public class RedirectingWebRequestor extends PooledWebRequestor {
+
+    private static final String GRAPH_URL = "https://graph.facebook.com/";
+
+    private final String targetUrl;
+
+    /**
+     * @param targetUrl URL used instead of "https://graph.facebook.com/"
+     * @param maxConnections max count of concurrently opened connections
+     */
+    public RedirectingWebRequestor(String targetUrl, int maxConnections) {
+        super(maxConnections, 10000, 30000);
+        this.targetUrl = targetUrl;
+    }
+
+
+    @Override
+    protected Response execute(String url, String postBody) throws IOException {
+        if (url.startsWith(GRAPH_URL)) {
+            url = targetUrl + url.substring(GRAPH_URL.length());
+        }
+        return super.execute(url, postBody);
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.gatein.security.oauth.portlet.loadtest;
+
+import java.util.Arrays;
+
+/**
+ * Latencies and errors of renders of single portlet
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+public class RenderStats {
+
+    private long[] latencies = new long[1024];
+    private int count;
+    private int errors;
+
+    /**
+     * @param latency latency of successful render in nanoseconds
+     */
+    public synchronized void addRender(long latency) {
+        if (count == latencies.length) {
+            latencies = Arrays.copyOf(latencies, count * 2);
+        }
+        latencies[count++] = latency;
+    }
+
+
+    public synchronized void addError() {
+        errors++;
+    }
+
+
+    /**
+     * @return count of all renders including failed renders
+     */
+    public synchronized int getRenderCount() {
+        return count + errors;
+    }
+
+
+    public synchronized int getErrorCount() {
+        return errors;
+    }
+
+
+    /**
+     * @param percentile percentile between 0 and 100
+     * @return latency of successful renders in milliseconds for given percentile or 0 if there wasn't successful render
+     */
+    public synchronized double getPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(latencies, count);
+        Arrays.sort(sorted);
+        int index = (int)Math.ceil(percentile / 100 * count) - 1;
+        return sorted[Math.max(index, 0)] / 1000000.0;
+    }
+}
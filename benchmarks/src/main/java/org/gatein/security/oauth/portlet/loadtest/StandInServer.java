@@ -0,0 +1,442 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.gatein.security.oauth.portlet.loadtest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.restfb.WebRequestor;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.gatein.security.oauth.portlet.benchmark.Dataset;
+import org.gatein.security.oauth.portlet.facebook.StubGraphApi;
+import org.gatein.security.oauth.portlet.google.StubGoogleApi;
+import org.gatein.security.oauth.portlet.twitter.StubTwitterApi;
+
+/**
+ * Local HTTP server, which stands in for Facebook Graph API, Google+ API and Twitter REST API. Real clients used by
+ * portlets could be pointed to it, so that whole HTTP stack is exercised during load tests.
+ * <p>
+ * Each API has configurable distribution of latency, rate of temporary errors and limit of requests per access token.
+ * Responses contain rate limit headers and errors have same format as errors of real social networks.
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+public class StandInServer {
+
+    private static final String ENCODING = "UTF-8";
+    private static final Pattern FACEBOOK_ACCESS_TOKEN = Pattern.compile("(?:^|&)access_token=([^&]*)");
+    private static final Pattern TWITTER_ACCESS_TOKEN = Pattern.compile("oauth_token=\"([^\"]*)\"");
+
+    public enum Api {
+        FACEBOOK,
+        GOOGLE,
+        TWITTER;
+
+        String getContextPath() {
+            return "/" + name().toLowerCase() + "/";
+        }
+    }
+
+    private final Dataset dataset;
+    private final Map<Api, ApiSettings> settings = new EnumMap<Api, ApiSettings>(Api.class);
+    private final Map<String, AtomicLong> callCounts = new ConcurrentHashMap<String, AtomicLong>();
+    private final Map<String, RateLimitWindow> rateLimitWindows = new ConcurrentHashMap<String, RateLimitWindow>();
+
+    private HttpServer server;
+    private ExecutorService executor;
+    private StubGraphApi graphApi;
+    // Count of calls answered with status 304 before last reset of call counts
+    private volatile int notModifiedBase;
+    private StubGoogleApi googleApi;
+    private StubTwitterApi twitterApi;
+
+    public StandInServer(Dataset dataset) {
+        this.dataset = dataset;
+        for (Api api : Api.values()) {
+            settings.put(api, new ApiSettings());
+        }
+    }
+
+
+    /**
+     * @return settings of given API, which could be changed even when server is running
+     */
+    public ApiSettings getSettings(Api api) {
+        return settings.get(api);
+    }
+
+
+    /**
+     * Start server on localhost
+     *
+     * @param port port or 0 for any free port
+     */
+    public synchronized void start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", port), 1024);
+
+        // Responses are delayed by sleeping, so each concurrent request needs its own thread
+        final AtomicInteger threadCounter = new AtomicInteger();
+        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "stand-in-server-" + threadCounter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+
+        });
+        server.setExecutor(executor);
+
+        graphApi = new StubGraphApi(dataset, getUrl(Api.FACEBOOK));
+        googleApi = new StubGoogleApi(dataset);
+        twitterApi = new StubTwitterApi(dataset);
+        for (Api api : Api.values()) {
+            server.createContext(api.getContextPath(), new ApiHandler(api));
+        }
+        server.start();
+    }
+
+
+    public synchronized void stop() {
+        if (server != null) {
+            server.stop(0);
+            executor.shutdownNow();
+            server = null;
+        }
+    }
+
+
+    /**
+     * @return base URL of given API. For example "http://localhost:8123/facebook/"
+     */
+    public String getUrl(Api api) {
+        return "http://localhost:" + server.getAddress().getPort() + api.getContextPath();
+    }
+
+
+    /**
+     * @return count of requests to given endpoint since start or since last reset. Endpoints are "facebook", "twitter",
+     * "google/people", "google/activities" and "google/userinfo"
+     */
+    public long getCallCount(String endpoint) {
+        AtomicLong count = callCounts.get(endpoint);
+        return count == null ? 0 : count.get();
+    }
+
+
+    /**
+     * @return count of requests for each endpoint
+     */
+    public Map<String, Long> getCallCounts() {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : callCounts.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().get());
+        }
+        // Conditional calls inside of Facebook batches are counted separately, because they are not separate HTTP requests
+        int notModified = graphApi.getNotModifiedCount() - notModifiedBase;
+        if (notModified > 0) {
+            result.put("facebook/notModified", (long)notModified);
+        }
+        return result;
+    }
+
+
+    public void resetCallCounts() {
+        callCounts.clear();
+        notModifiedBase = graphApi.getNotModifiedCount();
+    }
+
+
+    private void countCall(String endpoint) {
+        AtomicLong count = callCounts.get(endpoint);
+        if (count == null) {
+            AtomicLong newCount = new AtomicLong();
+            count = ((ConcurrentHashMap<String, AtomicLong>)callCounts).putIfAbsent(endpoint, newCount);
+            if (count == null) {
+                count = newCount;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+
+    private String getEndpoint(Api api, String path) {
+        if (api != Api.GOOGLE) {
+            return api.name().toLowerCase();
+        } else if (path.contains("/people/me/people/")) {
+            return "google/people";
+        } else if (path.contains("userinfo")) {
+            return "google/userinfo";
+        }
+        return "google/activities";
+    }
+
+
+    private StandInResponse respond(Api api, String path, String query, String method, String body) throws IOException {
+        String url = getUrl(api) + path;
+        switch (api) {
+            case FACEBOOK:
+                WebRequestor.Response response = "POST".equals(method)
+                        ? graphApi.executePost(url, body)
+                        : graphApi.executeGet(query == null ? url : url + "?" + query);
+                return new StandInResponse(response.getStatusCode(), response.getBody());
+            case GOOGLE:
+                return new StandInResponse(200, new String(googleApi.getResponse(query == null ? url : url + "?" + query), ENCODING));
+            default:
+                // Path contains version of REST API
+                return new StandInResponse(200, twitterApi.getResponse(path.substring(path.indexOf('/') + 1)));
+        }
+    }
+
+
+    private String getAccessToken(Api api, HttpExchange exchange, String query, String body) {
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        Matcher matcher;
+        switch (api) {
+            case FACEBOOK:
+                matcher = FACEBOOK_ACCESS_TOKEN.matcher(query != null ? query : body);
+                return matcher.find() ? matcher.group(1) : null;
+            case GOOGLE:
+                return authorization != null && authorization.startsWith("Bearer ") ? authorization.substring("Bearer ".length()) : null;
+            default:
+                matcher = TWITTER_ACCESS_TOKEN.matcher(authorization != null ? authorization : "");
+                return matcher.find() ? matcher.group(1) : null;
+        }
+    }
+
+
+    // Count request to limit of given access token, add rate limit headers and return false if limit is exceeded
+    private boolean checkRateLimit(Api api, String accessToken, ApiSettings apiSettings, Headers headers) {
+        if (apiSettings.rateLimit <= 0) {
+            return true;
+        }
+
+        String key = api + ":" + accessToken;
+        RateLimitWindow window = rateLimitWindows.get(key);
+        if (window == null) {
+            RateLimitWindow newWindow = new RateLimitWindow();
+            window = ((ConcurrentHashMap<String, RateLimitWindow>)rateLimitWindows).putIfAbsent(key, newWindow);
+            if (window == null) {
+                window = newWindow;
+            }
+        }
+
+        int count;
+        long reset;
+        synchronized (window) {
+            long now = System.currentTimeMillis();
+            if (now >= window.start + apiSettings.rateLimitWindow) {
+                window.start = now;
+                window.count = 0;
+            }
+            count = ++window.count;
+            reset = window.start + apiSettings.rateLimitWindow;
+        }
+
+        if (api == Api.TWITTER) {
+            headers.add("X-Rate-Limit-Limit", String.valueOf(apiSettings.rateLimit));
+            headers.add("X-Rate-Limit-Remaining", String.valueOf(Math.max(apiSettings.rateLimit - count, 0)));
+            headers.add("X-Rate-Limit-Reset", String.valueOf(reset / 1000));
+        } else if (api == Api.FACEBOOK) {
+            int usage = (int)Math.min(100L * count / apiSettings.rateLimit, 100);
+            headers.add("X-App-Usage", "{\"call_count\":" + usage + ",\"total_cputime\":" + usage / 2 + ",\"total_time\":" + usage / 2 + "}");
+        }
+        return count <= apiSettings.rateLimit;
+    }
+
+
+    private StandInResponse createRateLimitError(Api api) {
+        switch (api) {
+            case FACEBOOK:
+                return new StandInResponse(400, "{\"error\":{\"message\":\"(#17) User request limit reached\",\"type\":\"OAuthException\",\"code\":17}}");
+            case GOOGLE:
+                return new StandInResponse(403, "{\"error\":{\"errors\":[{\"domain\":\"usageLimits\",\"reason\":\"userRateLimitExceeded\"," +
+                        "\"message\":\"User Rate Limit Exceeded\"}],\"code\":403,\"message\":\"User Rate Limit Exceeded\"}}");
+            default:
+                return new StandInResponse(429, "{\"errors\":[{\"message\":\"Rate limit exceeded\",\"code\":88}]}");
+        }
+    }
+
+
+    private StandInResponse createTemporaryError(Api api) {
+        switch (api) {
+            case FACEBOOK:
+                return new StandInResponse(500, "{\"error\":{\"message\":\"An unexpected error has occurred. Please retry your request later.\"," +
+                        "\"type\":\"OAuthException\",\"code\":2}}");
+            case GOOGLE:
+                return new StandInResponse(503, "{\"error\":{\"errors\":[{\"domain\":\"global\",\"reason\":\"backendError\"," +
+                        "\"message\":\"Backend Error\"}],\"code\":503,\"message\":\"Backend Error\"}}");
+            default:
+                return new StandInResponse(503, "{\"errors\":[{\"message\":\"Over capacity\",\"code\":130}]}");
+        }
+    }
+
+
+    private static String readBody(HttpExchange exchange) throws IOException {
+        InputStream input = exchange.getRequestBody();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int count;
+        while ((count = input.read(buffer)) != -1) {
+            body.write(buffer, 0, count);
+        }
+        return body.toString(ENCODING);
+    }
+
+
+    private class ApiHandler implements HttpHandler {
+
+        private final Api api;
+
+        private ApiHandler(Api api) {
+            this.api = api;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                String path = exchange.getRequestURI().getRawPath().substring(api.getContextPath().length());
+                String query = exchange.getRequestURI().getRawQuery();
+                String body = readBody(exchange);
+                countCall(getEndpoint(api, path));
+
+                ApiSettings apiSettings = settings.get(api);
+                Random random = ThreadLocalRandom.current();
+                long latency = apiSettings.latency.sample(random);
+                if (latency > 0) {
+                    Thread.sleep(latency);
+                }
+
+                StandInResponse response;
+                if (!checkRateLimit(api, getAccessToken(api, exchange, query, body), apiSettings, exchange.getResponseHeaders())) {
+                    response = createRateLimitError(api);
+                } else if (random.nextDouble() < apiSettings.errorRate) {
+                    response = createTemporaryError(api);
+                } else {
+                    response = respond(api, path, query, exchange.getRequestMethod(), body);
+                }
+                send(exchange, response);
+            } catch (Exception e) {
+                send(exchange, new StandInResponse(500, "{\"error\":{\"message\":\"Stand-in server failed: " + e + "\"}}"));
+            } finally {
+                exchange.close();
+            }
+        }
+
+        private void send(HttpExchange exchange, StandInResponse response) throws IOException {
+            byte[] content = response.body.getBytes(ENCODING);
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+            exchange.sendResponseHeaders(response.status, content.length);
+            OutputStream output = exchange.getResponseBody();
+            output.write(content);
+            output.close();
+        }
+    }
+
+
+    /**
+     * Behavior of single API
+     */
+    public static class ApiSettings {
+
+        private volatile LatencyDistribution latency = new LatencyDistribution(0, 0);
+        private volatile double errorRate;
+        private volatile int rateLimit;
+        private volatile long rateLimitWindow = 15 * 60 * 1000L;
+
+        public ApiSettings setLatency(LatencyDistribution latency) {
+            this.latency = latency;
+            return this;
+        }
+
+        /**
+         * @param errorRate probability of temporary error of single request (0 - 1)
+         */
+        public ApiSettings setErrorRate(double errorRate) {
+            this.errorRate = errorRate;
+            return this;
+        }
+
+        /**
+         * @param rateLimit max count of requests with same access token in window or 0 if requests are not limited
+         */
+        public ApiSettings setRateLimit(int rateLimit) {
+            this.rateLimit = rateLimit;
+            return this;
+        }
+
+        /**
+         * @param rateLimitWindow length of rate limit window in milliseconds
+         */
+        public ApiSettings setRateLimitWindow(long rateLimitWindow) {
+            this.rateLimitWindow = rateLimitWindow;
+            return this;
+        }
+
+        @Override
+        public String toString() {
+            return "latency " + latency + ", error rate " + errorRate + ", rate limit " +
+                    (rateLimit > 0 ? rateLimit + " per " + rateLimitWindow / 1000 + " s" : "none");
+        }
+    }
+
+
+    private static class RateLimitWindow {
+        private long start;
+        private int count;
+    }
+
+
+    private static class StandInResponse {
+
+        private final int status;
+        private final String body;
+
+        private StandInResponse(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.gatein.security.oauth.portlet.twitter;
+
+import java.io.IOException;
+
+import org.gatein.security.oauth.portlet.benchmark.Dataset;
+
+/**
+ * In-memory Twitter REST API 1.1 with resources used by social portlets
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+public class StubTwitterApi {
+
+    private static final String CREATED_AT = "Wed May 01 10:15:30 +0000 2013";
+
+    private final String verifyCredentialsResponse;
+
+    public StubTwitterApi(Dataset dataset) {
+        String lastTweet = "{\"id\":331000000000000001,\"id_str\":\"331000000000000001\",\"created_at\":\"" + CREATED_AT + "\"," +
+                "\"text\":" + quote(Dataset.getMessage(Dataset.getFriendName(0), 1)) + ",\"source\":\"web\",\"truncated\":false}";
+
+        this.verifyCredentialsResponse = "{\"id\":1401881,\"id_str\":\"1401881\",\"name\":" + quote(Dataset.getFriendName(0)) + "," +
+                "\"screen_name\":\"benchmarkUser\",\"location\":\"Brno\",\"description\":\"\",\"url\":null,\"protected\":false," +
+                "\"followers_count\":" + dataset.getFriendsCount() + ",\"friends_count\":" + Math.min(dataset.getFriendsCount(), 2000) + "," +
+                "\"statuses_count\":1234,\"created_at\":\"" + CREATED_AT + "\"," +
+                "\"profile_image_url\":\"http://a0.twimg.com/profile_images/1401881/benchmark_normal.png\"," +
+                "\"profile_image_url_https\":\"https://si0.twimg.com/profile_images/1401881/benchmark_normal.png\"," +
+                "\"status\":" + lastTweet + "}";
+    }
+
+
+    /**
+     * @param path path of resource relative to base URL of REST API (for example "account/verify_credentials.json")
+     * @return JSON response
+     * @throws IOException if resource is not supported
+     */
+    public String getResponse(String path) throws IOException {
+        if (path.startsWith("account/verify_credentials.json")) {
+            return verifyCredentialsResponse;
+        }
+        throw new IOException("Unsupported request: " + path);
+    }
+
+
+    private static String quote(String text) {
+        return "\"" + text.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.gatein.security.oauth.portlet.twitter;
+
+import java.util.concurrent.TimeUnit;
+
+import org.gatein.security.oauth.portlet.benchmark.Dataset;
+import org.gatein.security.oauth.portlet.benchmark.PortletEnvironment;
+import org.gatein.security.oauth.portlet.benchmark.StubPortletSession;
+import org.gatein.security.oauth.portlet.benchmark.StubRenderRequest;
+import org.gatein.security.oauth.portlet.benchmark.StubRenderResponse;
+import org.gatein.security.oauth.twitter.TwitterAccessTokenContext;
+import org.gatein.security.oauth.twitter.TwitterProcessor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import twitter4j.Status;
+import twitter4j.Twitter;
+import twitter4j.User;
+
+import static org.gatein.security.oauth.portlet.benchmark.PortletEnvironment.stub;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.when;
+
+/**
+ * Render of {@link TwitterPortlet} with Twitter client replaced by Mockito stub
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TwitterPortletBenchmark {
+
+    private TwitterPortlet portlet;
+    private StubRenderRequest request;
+    private StubRenderResponse response;
+    private TwitterAccessTokenContext accessToken;
+
+    @Setup
+    public void setup() throws Exception {
+        Status lastTweet = stub(Status.class);
+        when(lastTweet.getText()).thenReturn(Dataset.getMessage(Dataset.getFriendName(0), 1));
+
+        User user = stub(User.class);
+        when(user.getScreenName()).thenReturn("benchmarkUser");
+        when(user.getName()).thenReturn(Dataset.getFriendName(0));
+        when(user.getStatusesCount()).thenReturn(1234);
+        when(user.getFriendsCount()).thenReturn(150);
+        when(user.getFollowersCount()).thenReturn(5000);
+        when(user.getStatus()).thenReturn(lastTweet);
+        when(user.getProfileImageURL()).thenReturn("https://si0.twimg.com/profile_images/1234/benchmark_normal.png");
+
+        Twitter twitter = stub(Twitter.class);
+        when(twitter.verifyCredentials()).thenReturn(user);
+
+        TwitterProcessor twitterProcessor = stub(TwitterProcessor.class);
+        when(twitterProcessor.getAuthorizedTwitterInstance(any(TwitterAccessTokenContext.class))).thenReturn(twitter);
+
+        portlet = new PortletEnvironment()
+                .registerComponent(TwitterProcessor.class, twitterProcessor)
+                .init(new TwitterPortlet());
+
+        accessToken = stub(TwitterAccessTokenContext.class);
+        request = new StubRenderRequest("john", new StubPortletSession());
+        response = new StubRenderResponse();
+    }
+
+    @TearDown
+    public void tearDown() {
+        portlet.destroy();
+    }
+
+
+    @Benchmark
+    public int renderUserInfo() throws Exception {
+        request.clearAttributes();
+        response.reset();
+        portlet.handleRender(request, response, accessToken);
+        return response.getMarkupLength();
+    }
+}
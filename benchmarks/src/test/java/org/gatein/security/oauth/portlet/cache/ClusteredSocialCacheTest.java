@@ -0,0 +1,126 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.security.oauth.portlet.cache;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.infinispan.Cache;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Clustered caches of two nodes backed by replicated Infinispan caches
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+public class ClusteredSocialCacheTest {
+
+    private static final String CACHE_NAME = "facebookFriends";
+    private static final String REGION = "gatein.social." + CACHE_NAME;
+
+    private static InfinispanCluster cluster;
+    private static SocialCache<ArrayList<String>> cache0;
+    private static SocialCache<ArrayList<String>> cache1;
+
+    @BeforeClass
+    public static void startCluster() {
+        cluster = new InfinispanCluster(2);
+        cache0 = new SocialCacheFactory(cluster.getCacheService(0)).createCache(CACHE_NAME, 100, 60000);
+        cache1 = new SocialCacheFactory(cluster.getCacheService(1)).createCache(CACHE_NAME, 100, 60000);
+    }
+
+    @AfterClass
+    public static void stopCluster() {
+        cluster.stop();
+    }
+
+
+    @Test
+    public void testValueObtainedOnOtherNode() {
+        cache0.put("john", "token1", friends("mary", "jack"));
+
+        long hits = cache1.getHitCount();
+        assertEquals(friends("mary", "jack"), cache1.get("john", "token1"));
+        assertEquals(hits + 1, cache1.getHitCount());
+        assertEquals(cache0.getExpirationTime("john", "token1"), cache1.getExpirationTime("john", "token1"));
+    }
+
+
+    @Test
+    public void testValueSerializedForOtherNode() {
+        ArrayList<String> friends = friends("root", "demo");
+        cache0.put("mary", "token1", friends);
+
+        // Node, which stored value, keeps the instance, other node has its copy received from cluster
+        assertTrue(cache0.get("mary", "token1") == friends);
+        ArrayList<String> copy = cache1.get("mary", "token1");
+        assertEquals(friends, copy);
+        assertNotSame(friends, copy);
+
+        Serializable stored = (Serializable)cluster.getCache(0, REGION).get("mary");
+        Serializable received = (Serializable)cluster.getCache(1, REGION).get("mary");
+        assertTrue(received instanceof AbstractSocialCache.CachedValue);
+        assertNotSame(stored, received);
+    }
+
+
+    @Test
+    public void testValueRemovedOnAllNodesWhenTokenChanged() {
+        cache0.put("jack", "token1", friends("john"));
+        assertNotNull(cache1.get("jack", "token1"));
+
+        // User obtained new token on node 1, so his value is removed on both nodes
+        assertNull(cache1.get("jack", "token2"));
+        for (int node=0 ; node<2 ; node++) {
+            Cache<Serializable, Object> infinispanCache = cluster.getCache(node, REGION);
+            assertFalse(infinispanCache.containsKey("jack"));
+        }
+        assertNull(cache0.getStale("jack", "token1"));
+    }
+
+
+    @Test
+    public void testValueInvalidatedOnOtherNode() {
+        cache1.put("demo", "token1", friends("mary"));
+        assertNotNull(cache0.get("demo", "token1"));
+
+        cache0.invalidate("demo");
+        assertNull(cache1.getStale("demo", "token1"));
+    }
+
+
+    private static ArrayList<String> friends(String... names) {
+        return new ArrayList<String>(Arrays.asList(names));
+    }
+}
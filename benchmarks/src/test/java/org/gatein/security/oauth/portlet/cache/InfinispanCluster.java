@@ -0,0 +1,159 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.security.oauth.portlet.cache;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.exoplatform.services.cache.CacheService;
+import org.exoplatform.services.cache.ExoCache;
+import org.infinispan.Cache;
+import org.infinispan.configuration.cache.CacheMode;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.configuration.global.GlobalConfigurationBuilder;
+import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import static org.gatein.security.oauth.portlet.benchmark.PortletEnvironment.stub;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * Cluster of embedded Infinispan nodes in one JVM, which are connected by JGroups over loopback. Each node has its own
+ * {@link CacheService}, whose eXo caches are thin delegates to synchronously replicated Infinispan caches of that node,
+ * so entries are marshalled and sent between nodes like in clustered portal.
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+public class InfinispanCluster {
+
+    private static final long JOIN_TIMEOUT = 30000;
+
+    private final List<EmbeddedCacheManager> nodes = new ArrayList<EmbeddedCacheManager>();
+
+    public InfinispanCluster(int nodeCount) {
+        for (int i=0 ; i<nodeCount ; i++) {
+            GlobalConfigurationBuilder global = GlobalConfigurationBuilder.defaultClusteredBuilder();
+            global.transport()
+                    .clusterName("gatein-social-test")
+                    .nodeName("node" + i)
+                    .addProperty("configurationFile", "jgroups-loopback.xml");
+            global.globalJmxStatistics().allowDuplicateDomains(true);
+
+            ConfigurationBuilder config = new ConfigurationBuilder();
+            config.clustering().cacheMode(CacheMode.REPL_SYNC);
+
+            nodes.add(new DefaultCacheManager(global.build(), config.build()));
+        }
+    }
+
+
+    /**
+     * @return cache service of given node
+     */
+    public CacheService getCacheService(final int node) {
+        CacheService cacheService = stub(CacheService.class);
+        when(cacheService.getCacheInstance(any(String.class))).thenAnswer(new Answer<ExoCache<Serializable, Object>>() {
+
+            @Override
+            public ExoCache<Serializable, Object> answer(InvocationOnMock invocation) {
+                return createExoCache(getCache(node, (String)invocation.getArguments()[0]));
+            }
+
+        });
+        return cacheService;
+    }
+
+
+    /**
+     * Cache is started on all nodes, so its entries are replicated to all of them
+     *
+     * @return Infinispan cache of given node
+     */
+    public Cache<Serializable, Object> getCache(int node, String region) {
+        List<Cache<Serializable, Object>> caches = new ArrayList<Cache<Serializable, Object>>();
+        for (EmbeddedCacheManager manager : nodes) {
+            caches.add(manager.<Serializable, Object>getCache(region));
+        }
+
+        long deadline = System.currentTimeMillis() + JOIN_TIMEOUT;
+        for (Cache<Serializable, Object> cache : caches) {
+            while (cache.getAdvancedCache().getRpcManager().getMembers().size() < nodes.size()) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IllegalStateException("Nodes didn't join cache " + region + " in " + JOIN_TIMEOUT + " ms");
+                }
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException(ie);
+                }
+            }
+        }
+        return caches.get(node);
+    }
+
+
+    public void stop() {
+        // Nodes are stopped in reverse order, so coordinator leaves last
+        for (int i=nodes.size() - 1 ; i>=0 ; i--) {
+            nodes.get(i).stop();
+        }
+    }
+
+
+    @SuppressWarnings("unchecked")
+    private static ExoCache<Serializable, Object> createExoCache(final Cache<Serializable, Object> cache) {
+        return mock(ExoCache.class, withSettings().stubOnly().defaultAnswer(new Answer<Object>() {
+
+            @Override
+            public Object answer(InvocationOnMock invocation) {
+                String method = invocation.getMethod().getName();
+                Object[] args = invocation.getArguments();
+                if ("get".equals(method)) {
+                    return cache.get(args[0]);
+                } else if ("put".equals(method)) {
+                    cache.put((Serializable)args[0], args[1]);
+                } else if ("remove".equals(method)) {
+                    return cache.remove(args[0]);
+                } else if ("clearCache".equals(method)) {
+                    cache.clear();
+                } else if ("getCacheSize".equals(method)) {
+                    return cache.size();
+                } else if ("getMaxSize".equals(method)) {
+                    return -1;
+                } else if ("getName".equals(method)) {
+                    return cache.getName();
+                }
+                return null;
+            }
+
+        }));
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.security.oauth.portlet.google;
+
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson.JacksonFactory;
+import com.google.api.services.plus.model.ActivityFeed;
+import com.google.api.services.plus.model.CommentFeed;
+import org.gatein.security.oauth.portlet.cache.InfinispanCluster;
+import org.gatein.security.oauth.portlet.cache.SocialCache;
+import org.gatein.security.oauth.portlet.cache.SocialCacheFactory;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+
+/**
+ * Google+ activities cached on one node and rendered on other node
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+public class ClusteredActivitiesTest {
+
+    private static final JsonFactory JSON_FACTORY = new JacksonFactory();
+
+    private static InfinispanCluster cluster;
+
+    @BeforeClass
+    public static void startCluster() {
+        cluster = new InfinispanCluster(2);
+    }
+
+    @AfterClass
+    public static void stopCluster() {
+        cluster.stop();
+    }
+
+
+    @Test
+    public void testActivitiesObtainedOnOtherNode() throws Exception {
+        SocialCache<CachedActivities> cache0 = new SocialCacheFactory(cluster.getCacheService(0)).createCache("googleActivities", 100, 60000);
+        SocialCache<CachedActivities> cache1 = new SocialCacheFactory(cluster.getCacheService(1)).createCache("googleActivities", 100, 60000);
+
+        ActivityFeed activityFeed = JSON_FACTORY.fromString("{\"kind\":\"plus#activityFeed\",\"items\":[" +
+                "{\"id\":\"a1\",\"title\":\"First\",\"url\":\"https://plus.google.com/a1\"," +
+                "\"object\":{\"plusoners\":{\"totalItems\":3},\"resharers\":{\"totalItems\":1}}}," +
+                "{\"id\":\"a2\",\"title\":\"Second\",\"url\":\"https://plus.google.com/a2\"," +
+                "\"object\":{\"plusoners\":{\"totalItems\":0},\"resharers\":{\"totalItems\":0}}}]}", ActivityFeed.class);
+        CommentFeed[] commentFeeds = new CommentFeed[] {
+                JSON_FACTORY.fromString("{\"items\":[{\"id\":\"c1\",\"actor\":{\"displayName\":\"Mary\"}," +
+                        "\"object\":{\"content\":\"Nice <b>photo</b>\"},\"plusoners\":{\"totalItems\":2}}]}", CommentFeed.class),
+                JSON_FACTORY.fromString("{\"items\":[]}", CommentFeed.class)
+        };
+        cache0.put("john", "token1", new CachedActivities(activityFeed, commentFeeds));
+
+        // Other node has only JSON of feeds, so they are parsed again
+        CachedActivities received = cache1.get("john", "token1");
+        assertNotNull(received);
+        ActivityFeed receivedFeed = received.getActivityFeed();
+        assertNotSame(activityFeed, receivedFeed);
+        assertEquals(2, receivedFeed.getItems().size());
+        assertEquals("Second", receivedFeed.getItems().get(1).getTitle());
+        assertEquals(Long.valueOf(3), receivedFeed.getItems().get(0).getObject().getPlusoners().getTotalItems());
+
+        CommentFeed receivedComments = received.getCommentFeed(0);
+        assertNotSame(commentFeeds[0], receivedComments);
+        assertEquals("Mary", receivedComments.getItems().get(0).getActor().getDisplayName());
+        assertEquals("Nice <b>photo</b>", receivedComments.getItems().get(0).getObject().getContent());
+        assertEquals(0, received.getCommentFeed(1).getItems().size());
+    }
+}
@@ -2,9 +2,14 @@ package org.gatein.security.oauth.portlet;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.Serializable;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
 
 import javax.portlet.ActionRequest;
 import javax.portlet.ActionResponse;
+import javax.portlet.CacheControl;
 import javax.portlet.GenericPortlet;
 import javax.portlet.PortletException;
 import javax.portlet.PortletRequest;
@@ -13,18 +18,39 @@ import javax.portlet.PortletURL;
 import javax.portlet.ProcessAction;
 import javax.portlet.RenderRequest;
 import javax.portlet.RenderResponse;
+import javax.portlet.ResourceRequest;
+import javax.portlet.ResourceResponse;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 
 import org.exoplatform.container.ExoContainer;
 import org.exoplatform.container.ExoContainerContext;
+import org.exoplatform.portal.application.PortalRequestContext;
 import org.exoplatform.portal.webui.util.Util;
 import org.gatein.common.logging.Logger;
 import org.gatein.common.logging.LoggerFactory;
 import org.gatein.security.oauth.common.OAuthConstants;
 import org.gatein.security.oauth.common.OAuthProviderType;
 import org.gatein.security.oauth.data.SocialNetworkService;
+import org.gatein.security.oauth.portlet.avatar.AvatarProxy;
+import org.gatein.security.oauth.portlet.cache.ExpiringCache;
+import org.gatein.security.oauth.portlet.cache.RosterStore;
+import org.gatein.security.oauth.portlet.cache.SocialCache;
+import org.gatein.security.oauth.portlet.cache.SocialCacheFactory;
+import org.gatein.security.oauth.portlet.concurrent.BackgroundRefresher;
+import org.gatein.security.oauth.portlet.concurrent.ProviderCall;
+import org.gatein.security.oauth.portlet.concurrent.ProviderExecutors;
+import org.gatein.security.oauth.portlet.concurrent.ProviderGuard;
+import org.gatein.security.oauth.portlet.concurrent.ProviderUnavailableException;
+import org.gatein.security.oauth.portlet.concurrent.RequestMemo;
+import org.gatein.security.oauth.portlet.concurrent.SingleFlight;
+import org.gatein.security.oauth.portlet.metrics.LatencyHistogram;
+import org.gatein.security.oauth.portlet.metrics.SocialMetrics;
+import org.gatein.security.oauth.portlet.quota.QuotaManager;
+import org.gatein.security.oauth.portlet.state.PortletState;
+import org.gatein.security.oauth.portlet.template.Template;
+import org.gatein.security.oauth.portlet.template.TemplateSet;
 import org.gatein.security.oauth.registry.OAuthProviderTypeRegistry;
 
 /**
@@ -34,11 +60,32 @@ public abstract class AbstractSocialPortlet<T> extends GenericPortlet {
 
     protected static final String ACTION_OAUTH_REDIRECT = "actionOAuthRedirect";
 
+    // Request attribute and attribute of portlet session with state of portlet window
+    private static final String ATTR_PORTLET_STATE = "socialPortletState";
+
     protected final Logger log = LoggerFactory.getLogger(getClass());
 
+    // Near-cache of access tokens shared by all social portlets on this cluster node, so that more portlets on same page
+    // don't need to read the token from identity store. Key is "providerKey:username"
+    private static final ExpiringCache<String, Object> accessTokenCache = new ExpiringCache<String, Object>("accessTokens",
+            Integer.getInteger("gatein.oauth.portlet.accessTokenCache.size", 5000),
+            Integer.getInteger("gatein.oauth.portlet.accessTokenCache.expiration", 30) * 1000L);
+
     private SocialNetworkService socialNetworkService;
     private OAuthProviderTypeRegistry oauthProviderTypeRegistry;
     private String portalName; // Difference between GateIn/JPP
+    private ExecutorService providerExecutor;
+    private ProviderGuard providerGuard;
+    private volatile BackgroundRefresher refresher;
+    private final BackgroundRefresher.Target refreshTarget = new RefreshTarget();
+    private QuotaManager quotaManager;
+    private SocialCacheFactory cacheFactory;
+    private final List<SocialCache<?>> caches = new CopyOnWriteArrayList<SocialCache<?>>();
+    // Null if roster store is not enabled or it's not available
+    private volatile RosterStore rosterStore;
+    private boolean rosterStoreAcquired;
+    private TemplateSet templates;
+    private LatencyHistogram renderHistogram;
 
 
     @Override
@@ -46,16 +93,62 @@ public abstract class AbstractSocialPortlet<T> extends GenericPortlet {
         ExoContainer container = ExoContainerContext.getCurrentContainer();
         this.socialNetworkService = (SocialNetworkService)container.getComponentInstanceOfType(SocialNetworkService.class);
         this.oauthProviderTypeRegistry = (OAuthProviderTypeRegistry)container.getComponentInstanceOfType(OAuthProviderTypeRegistry.class);
+        this.quotaManager = QuotaManager.getInstance(container);
+        this.cacheFactory = SocialCacheFactory.getInstance(container);
         this.portalName = getPortletConfig().getInitParameter("portalName");
         if (this.portalName == null) {
             this.portalName = "GateIn";
         }
 
         log.debug("PortalName from configuration: " + portalName);
+
+        // Templates are parsed only once during init
+        try {
+            this.templates = TemplateSet.load(getClass());
+        } catch (IOException ioe) {
+            throw new PortletException("Unable to load templates of portlet " + getClass().getName(), ioe);
+        }
+
+        // Metrics must be available before afterInit, so subclasses could obtain their histograms there
+        SocialMetrics.acquire();
+        SocialMetrics.registerCache(accessTokenCache);
+        this.renderHistogram = SocialMetrics.getRenderHistogram(getPortletName());
+
         afterInit(container);
     }
 
 
+    @Override
+    public void destroy() {
+        synchronized (this) {
+            if (providerExecutor != null) {
+                ProviderExecutors.release(getOAuthProvider().getKey());
+                providerExecutor = null;
+            }
+            if (providerGuard != null) {
+                ProviderExecutors.releaseGuard(getOAuthProvider().getKey());
+                providerGuard = null;
+            }
+            if (refresher != null) {
+                refresher.unregister(refreshTarget);
+                ProviderExecutors.releaseRefresher(getOAuthProvider().getKey());
+                refresher = null;
+            }
+            if (rosterStoreAcquired) {
+                RosterStore.release();
+                rosterStore = null;
+                rosterStoreAcquired = false;
+            }
+        }
+        for (SocialCache<?> cache : caches) {
+            SocialMetrics.unregisterCache(cache);
+        }
+        caches.clear();
+        SocialMetrics.release();
+        super.destroy();
+    }
+
+
     @Override
     public void processAction(ActionRequest request, ActionResponse response) throws PortletException,
             java.io.IOException {
@@ -66,7 +159,11 @@ public abstract class AbstractSocialPortlet<T> extends GenericPortlet {
             log.trace("Invoked  processAction with action: " + action);
         }
 
-        super.processAction(request, response);
+        try {
+            super.processAction(request, response);
+        } finally {
+            savePortletState(request);
+        }
 
         if (trace) {
             log.trace("Finished  processAction with action: " + action);
@@ -83,6 +180,14 @@ public abstract class AbstractSocialPortlet<T> extends GenericPortlet {
         // Redirect to start OAuth2 flow
         String reqContextPath = servletReq.getContextPath();
         OAuthProviderType<T> oauthProviderType = getOAuthProvider();
+
+        // Token will be changed after finish OAuth flow, so data obtained with current token are not needed anymore
+        invalidateAccessToken(aReq.getRemoteUser());
+        for (SocialCache<?> cache : caches) {
+            cache.invalidate(aReq.getRemoteUser());
+        }
+        removeRoster(aReq.getRemoteUser());
+
         String initOauthFlowURL = oauthProviderType.getInitOAuthURL(reqContextPath);
 
         // Attach custom scope
@@ -115,10 +220,37 @@ public abstract class AbstractSocialPortlet<T> extends GenericPortlet {
 
         T accessToken = getAccessTokenOrRedirectToObtainIt(username, oauthProviderType, response);
         if (accessToken != null) {
+            touchRefresher(username, accessToken);
+            if (isCachedContentValid(request, response, accessToken)) {
+                if (trace) {
+                    log.trace("Cached content is still valid. Skip handleRender");
+                }
+                return;
+            }
+
             if (trace) {
                 log.trace("Invoking handleRender with accessToken " + accessToken);
             }
-            handleRender(request, response, accessToken);
+            long startTime = System.nanoTime();
+            try {
+                handleRender(request, response, accessToken);
+            } catch (ProviderUnavailableException pue) {
+                // Provider is slow or down. Access token is probably fine, so it's kept in cache
+                recordError(pue);
+                renderDegraded(request, response, pue);
+            } catch (RuntimeException re) {
+                // Token could be revoked or expired, so read it again from identity store during next request
+                invalidateAccessToken(username);
+                recordError(re);
+                throw re;
+            } catch (PortletException pe) {
+                invalidateAccessToken(username);
+                recordError(pe);
+                throw pe;
+            } finally {
+                savePortletState(request);
+                renderHistogram.recordSince(startTime);
+            }
             if (trace) {
                 log.trace("Finished handleRender");
             }
@@ -126,6 +258,63 @@ public abstract class AbstractSocialPortlet<T> extends GenericPortlet {
     }
 
 
+    // Normally it shouldn't be needed to override this method in subclasses
+    @Override
+    public void serveResource(ResourceRequest request, ResourceResponse response) throws PortletException, IOException {
+        String username = request.getRemoteUser();
+        T accessToken = username == null ? null : getAccessToken(username, getOAuthProvider());
+
+        // Unlike in render phase, user can't be redirected to OAuth flow from resource request
+        if (accessToken == null) {
+            response.setProperty(ResourceResponse.HTTP_STATUS_CODE, String.valueOf(HttpServletResponse.SC_FORBIDDEN));
+            return;
+        }
+
+        touchRefresher(username, accessToken);
+        try {
+            handleResource(request, response, accessToken);
+        } catch (ProviderUnavailableException pue) {
+            recordError(pue);
+            response.setProperty(ResourceResponse.HTTP_STATUS_CODE, String.valueOf(HttpServletResponse.SC_SERVICE_UNAVAILABLE));
+        } catch (RuntimeException re) {
+            invalidateAccessToken(username);
+            recordError(re);
+            throw re;
+        } catch (PortletException pe) {
+            invalidateAccessToken(username);
+            recordError(pe);
+            throw pe;
+        } finally {
+            savePortletState(request);
+        }
+    }
+
+
+    // Set expiration and ETag of render output and check if portal could use its cached content instead of calling handleRender
+    private boolean isCachedContentValid(RenderRequest request, RenderResponse response, T accessToken) {
+        int expirationTime = getExpirationTime();
+        if (expirationTime == 0) {
+            return false;
+        }
+
+        CacheControl cacheControl = response.getCacheControl();
+        cacheControl.setPublicScope(false);
+        cacheControl.setExpirationTime(expirationTime);
+
+        String etag = computeETag(request, accessToken);
+        if (etag == null) {
+            return false;
+        }
+
+        cacheControl.setETag(etag);
+        if (etag.equals(request.getETag())) {
+            cacheControl.setUseCachedContent(true);
+            return true;
+        }
+        return false;
+    }
+
+
     // Intended to be used by subclasses
     protected final void writeAndFinishResponse(String content, RenderResponse response) throws IOException {
         PrintWriter writer = response.getWriter();
@@ -151,6 +340,334 @@ public abstract class AbstractSocialPortlet<T> extends GenericPortlet {
     }
 
 
+    /**
+     * Intended to be used by subclasses for rendering markup. Templates are loaded from file with same name as
+     * portlet class and suffix ".html" (See {@link TemplateSet#load(Class)})
+     *
+     * @param name name of template
+     * @param slotNames names of slots in order in which values are passed to {@link Template#render(java.io.Writer, Object...)}
+     * @return precompiled template
+     * @throws IllegalArgumentException if template has different slots
+     */
+    protected final Template getTemplate(String name, String... slotNames) {
+        Template template = templates.get(name);
+        template.checkSlotNames(slotNames);
+        return template;
+    }
+
+
+    // Helper method. Intended to be used by subclasses for reading numeric init parameters from portlet.xml
+    protected int getIntInitParameter(String paramName, int defaultValue) {
+        String paramValue = getPortletConfig().getInitParameter(paramName);
+        if (paramValue == null) {
+            return defaultValue;
+        }
+
+        try {
+            return Integer.parseInt(paramValue.trim());
+        } catch (NumberFormatException nfe) {
+            log.warn("Invalid value of init parameter " + paramName + ": " + paramValue + ". Using default value " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+
+    protected boolean getBooleanInitParameter(String paramName, boolean defaultValue) {
+        String paramValue = getPortletConfig().getInitParameter(paramName);
+        return paramValue == null ? defaultValue : Boolean.parseBoolean(paramValue.trim());
+    }
+
+
+    /**
+     * Intended to be used by subclasses, which need to send more requests to OAuth provider in parallel.
+     *
+     * @return thread pool shared by all portlets of same OAuth provider on this cluster node
+     */
+    protected final synchronized ExecutorService getProviderExecutor() {
+        if (providerExecutor == null) {
+            providerExecutor = ProviderExecutors.acquire(getOAuthProvider().getKey());
+        }
+        return providerExecutor;
+    }
+
+
+    /**
+     * Intended to be used by subclasses for all calls to OAuth provider done during render or resource request. Calls are
+     * bounded by timeout and they fail fast when provider is failing. {@link ProviderUnavailableException} thrown by
+     * guard is handled by this class, so subclasses don't need to catch it.
+     *
+     * @return guard shared by all portlets of same OAuth provider on this cluster node
+     */
+    protected final synchronized ProviderGuard getProviderGuard() {
+        if (providerGuard == null) {
+            providerGuard = ProviderExecutors.acquireGuard(getOAuthProvider().getKey());
+        }
+        return providerGuard;
+    }
+
+
+    /**
+     * @return quota of calls to OAuth providers registered in portal container or shared on this cluster node
+     */
+    protected final QuotaManager getQuotaManager() {
+        return quotaManager;
+    }
+
+
+    /**
+     * Execute call to OAuth provider with {@link #getProviderGuard()} after it obtained permission from quota of application
+     * and quota of given user
+     *
+     * @param username portal user on behalf of whom is call sent
+     * @param priority priority of call. Interactive calls could wait for quota, background calls are rejected immediately
+     * @param latencyHistogram histogram where latency of call is recorded
+     * @param call call to execute
+     * @return result of call
+     * @throws E exception thrown by call
+     * @throws ProviderUnavailableException if quota is exhausted or call was rejected by guard
+     */
+    protected final <V, E extends Exception> V callProvider(String username, QuotaManager.Priority priority,
+                                                            LatencyHistogram latencyHistogram, ProviderCall<V, E> call) throws E {
+        quotaManager.acquire(getOAuthProvider().getKey(), username, priority);
+        return getProviderGuard().call(latencyHistogram, call);
+    }
+
+
+    /**
+     * Intended to be used by subclasses for calls done during render or resource request, which could be done also by other
+     * social portlets on same page. Call is executed with {@link #callProvider(String, QuotaManager.Priority, LatencyHistogram, ProviderCall)}
+     * only if same call was not executed yet during current portal request (See {@link RequestMemo}) and same call of
+     * same user is not running in other request (See {@link SingleFlight}). Result could be shared by more portlets,
+     * so it must not be modified.
+     *
+     * @param username portal user on behalf of whom is call sent
+     * @param operation identification of call including all its parameters, which affect result (like "me?fields=id,name")
+     * @param latencyHistogram histogram where latency of call is recorded
+     * @param call call to execute
+     * @return result of call
+     * @throws E exception thrown by call
+     * @throws ProviderUnavailableException if quota is exhausted or call was rejected by guard
+     */
+    protected final <V, E extends Exception> V callProviderOnce(final String username, String operation,
+                                                                final LatencyHistogram latencyHistogram, final ProviderCall<V, E> call) throws E {
+        final ProviderCall<V, E> interactiveCall = new ProviderCall<V, E>() {
+
+            @Override
+            public V call() throws E {
+                return callProvider(username, QuotaManager.Priority.INTERACTIVE, latencyHistogram, call);
+            }
+
+        };
+        final String flightKey = username + ":" + operation;
+
+        RequestMemo memo = getRequestMemo();
+        if (memo == null) {
+            return SingleFlight.getInstance().execute(latencyHistogram.getName(), flightKey, interactiveCall);
+        }
+
+        return memo.call(getOAuthProvider().getKey(), username, operation, new ProviderCall<V, E>() {
+
+            @Override
+            public V call() throws E {
+                return SingleFlight.getInstance().execute(latencyHistogram.getName(), flightKey, interactiveCall);
+            }
+
+        });
+    }
+
+
+    /**
+     * Intended to be used by subclasses for loading of data missing in cache, which are not specific to current user
+     * (like public profiles of other users). Concurrent loads with same key on this cluster node are executed only once
+     * and other callers wait for result (See {@link SingleFlight}).
+     *
+     * @param operation type of loaded data like "pictures". Count of coalesced loads is recorded for each operation
+     * @param key identification of loaded data including all parameters, which affect result
+     * @param call call to execute. It should be executed with {@link #callProvider(String, QuotaManager.Priority, LatencyHistogram, ProviderCall)}
+     * @return result of call or of same call executed concurrently. It must not be modified
+     * @throws E exception thrown by call
+     */
+    protected final <V, E extends Exception> V loadOnce(String operation, String key, ProviderCall<V, E> call) throws E {
+        return SingleFlight.getInstance().execute(getOAuthProvider().getKey() + "." + operation, key, call);
+    }
+
+
+    /**
+     * Intended to be used by subclasses in {@link #afterInit(ExoContainer)} for creating caches of data obtained from
+     * OAuth provider. Cache is local or shared by whole cluster according to {@link SocialCacheFactory} of portal container.
+     * Statistics of cache are exposed over JMX and entries of user are removed when user starts OAuth flow to obtain new token.
+     *
+     * @param name name of cache, which identifies type of cached data
+     * @param maxSize default max number of entries on this cluster node
+     * @param timeToLive default time in milliseconds after which entry is expired
+     * @return new cache
+     */
+    protected final <V extends Serializable> SocialCache<V> createCache(String name, int maxSize, long timeToLive) {
+        SocialCache<V> cache = cacheFactory.createCache(name, maxSize, timeToLive);
+        caches.add(cache);
+        SocialMetrics.registerCache(cache);
+        return cache;
+    }
+
+
+    /**
+     * Intended to be called by subclasses in {@link #afterInit(ExoContainer)} if they want to keep data of active users fresh.
+     * Data are checked periodically with {@link #isRefreshNeeded(String, Object, long)} and they are refreshed in background
+     * with {@link #refreshData(String, Object)} by refresher shared by all portlets of same OAuth provider on this cluster node.
+     */
+    protected final synchronized void enableBackgroundRefresh() {
+        if (refresher == null) {
+            refresher = ProviderExecutors.acquireRefresher(getOAuthProvider().getKey());
+            refresher.register(refreshTarget);
+        }
+    }
+
+
+    /**
+     * Intended to be called by subclasses in {@link #afterInit(ExoContainer)} if they want to keep rosters of users (like
+     * all friends) on local disk across restarts (See {@link RosterStore}). Roster of user is removed when user starts
+     * OAuth flow to obtain new token.
+     *
+     * @param rosterClasses classes of rosters and of their fields, which could be deserialized from the store (See
+     *                      {@link RosterStore#allowClasses(Class[])})
+     */
+    protected final synchronized void enableRosterStore(Class<?>... rosterClasses) {
+        if (!rosterStoreAcquired) {
+            rosterStore = RosterStore.acquire();
+            rosterStoreAcquired = true;
+            if (rosterStore != null) {
+                rosterStore.allowClasses(rosterClasses);
+            }
+        }
+    }
+
+
+    /**
+     * @param username portal user
+     * @param accessToken current access token of user
+     * @return roster of given user saved by this portlet or null if there is no roster, it was saved with other access
+     * token or roster store is not enabled
+     */
+    protected final <V extends Serializable> V loadRoster(String username, String accessToken) {
+        RosterStore rosterStore = this.rosterStore;
+        return rosterStore != null ? rosterStore.<V>get(getRosterKey(username), accessToken) : null;
+    }
+
+
+    /**
+     * Save roster of given user, so it's available after restart of portal. Previous roster of user is replaced
+     *
+     * @param accessToken access token, with which roster was obtained
+     */
+    protected final void saveRoster(String username, String accessToken, Serializable roster) {
+        RosterStore rosterStore = this.rosterStore;
+        if (rosterStore != null) {
+            rosterStore.put(getRosterKey(username), accessToken, roster);
+        }
+    }
+
+
+    protected final void removeRoster(String username) {
+        RosterStore rosterStore = this.rosterStore;
+        if (rosterStore != null && username != null) {
+            rosterStore.remove(getRosterKey(username));
+        }
+    }
+
+
+    /**
+     * Intended to be used by subclasses during render instead of {@link SocialCache#get(String, String)} if background
+     * refresh is enabled. Expired value is returned immediately (if it's not expired for too long) and it's refreshed
+     * in background, so user doesn't need to wait for OAuth provider.
+     *
+     * @param cache cache with data of this portlet
+     * @param username current portal user
+     * @param accessToken current access token of user
+     * @return fresh value, expired value, which is just being refreshed, or null if value needs to be obtained by caller
+     */
+    protected final <V extends Serializable> V getFreshOrStale(SocialCache<V> cache, String username, String accessToken) {
+        V value = cache.get(username, accessToken);
+        BackgroundRefresher refresher = this.refresher;
+        if (value != null || refresher == null) {
+            return value;
+        }
+
+        long expirationTime = cache.getExpirationTime(username, accessToken);
+        if (expirationTime == 0 || System.currentTimeMillis() - expirationTime > refresher.getMaxStaleness()) {
+            return null;
+        }
+        value = cache.getStale(username, accessToken);
+        return value != null && refresher.requestRefresh(refreshTarget, username) ? value : null;
+    }
+
+
+    /**
+     * Intended to be used by subclasses, which serve expired data on their own. Data of current user will be refreshed
+     * in background with {@link #refreshData(String, Object)} as soon as possible.
+     *
+     * @param username current portal user
+     * @return false if refresh can't be scheduled because background refresh is not enabled or too many refreshes are pending
+     */
+    protected final boolean requestRefresh(String username) {
+        BackgroundRefresher refresher = this.refresher;
+        return refresher != null && refresher.requestRefresh(refreshTarget, username);
+    }
+
+
+    /**
+     * Helper for implementation of {@link #isRefreshNeeded(String, Object, long)}
+     *
+     * @return true if cache contains value obtained with given token, which expires within given time (or it's already expired)
+     */
+    protected final boolean isExpiring(SocialCache<?> cache, String username, String accessToken, long refreshAhead) {
+        long expirationTime = cache.getExpirationTime(username, accessToken);
+        return expirationTime != 0 && expirationTime - System.currentTimeMillis() <= refreshAhead;
+    }
+
+
+    /**
+     * Intended to be obtained by subclasses in {@link #afterInit(ExoContainer)} and used for recording latency of each
+     * call to OAuth provider
+     *
+     * @param operation name of operation of provider API like "people.list"
+     * @return histogram shared by all portlets of same OAuth provider on this cluster node
+     */
+    protected final LatencyHistogram getProviderCallHistogram(String operation) {
+        return SocialMetrics.getProviderCallHistogram(getOAuthProvider().getKey(), operation);
+    }
+
+
+    /**
+     * Intended to be used by subclasses for rendering pictures of users, so browser loads them from portal
+     *
+     * @param request current request
+     * @param pictureUrl URL of picture on social network or null
+     * @param size width and height of picture in pixels (See {@link AvatarProxy#SIZE_SMALL} and {@link AvatarProxy#SIZE_LARGE})
+     * @return URL of thumbnail served by this application
+     */
+    protected final String getAvatarUrl(PortletRequest request, String pictureUrl, int size) {
+        return AvatarProxy.createUrl(request.getContextPath(), pictureUrl, size);
+    }
+
+
+    // Intended to be used by subclasses for errors of OAuth provider, which are handled by subclass and not thrown
+    protected final void recordError(Throwable error) {
+        SocialMetrics.recordError(getOAuthProvider().getKey(), error);
+    }
+
+
+    /**
+     * Intended to be used and/or overriden by subclasses if needed
+     *
+     * @return memo of calls to OAuth providers shared by all portlets rendered within current portal request or null if
+     * there is no portal request (for example in background thread)
+     */
+    protected RequestMemo getRequestMemo() {
+        PortalRequestContext portalRequestContext = Util.getPortalRequestContext();
+        return portalRequestContext != null ? RequestMemo.getInstance(portalRequestContext.getRequest()) : null;
+    }
+
+
     // Intended to be used and/or overriden by subclasses if needed
     protected HttpServletRequest getServletRequest() {
         return Util.getPortalRequestContext().getRequest();
@@ -175,9 +692,107 @@ public abstract class AbstractSocialPortlet<T> extends GenericPortlet {
     }
 
 
+    /**
+     * State is loaded from portlet session only once per request. It's saved back to session at the end of request, but
+     * only if it was changed.
+     *
+     * @param request current request
+     * @param stateClass class of state used by this portlet
+     * @return state of current portlet window. New state is created if session doesn't contain any
+     */
+    protected final <S extends PortletState> S getPortletState(PortletRequest request, Class<S> stateClass) {
+        Object state = request.getAttribute(ATTR_PORTLET_STATE);
+        if (state == null) {
+            state = request.getPortletSession().getAttribute(ATTR_PORTLET_STATE);
+
+            // State could be of different class after redeployment of portlet
+            if (!stateClass.isInstance(state)) {
+                try {
+                    state = stateClass.newInstance();
+                } catch (Exception e) {
+                    throw new IllegalStateException("Unable to create portlet state " + stateClass.getName(), e);
+                }
+            }
+            request.setAttribute(ATTR_PORTLET_STATE, state);
+        }
+        return stateClass.cast(state);
+    }
+
+
+    /**
+     * @param username portal user
+     * @return access token of given user for OAuth provider of this portlet or null if user doesn't have any
+     */
+    protected final T getAccessToken(String username) {
+        return getAccessToken(username, getOAuthProvider());
+    }
+
+
+    /**
+     * Remove access token of given user from near-cache, so it will be read from identity store during next request. Intended
+     * to be used by subclasses when OAuth provider rejects the token
+     *
+     * @param username portal user
+     */
+    protected final void invalidateAccessToken(String username) {
+        if (username != null) {
+            accessTokenCache.invalidate(getOAuthProvider().getKey() + ":" + username);
+        }
+    }
+
+
+    // Rosters of more portlets of same provider are independent
+    private String getRosterKey(String username) {
+        return getPortletName() + ":" + username;
+    }
+
+
+    private void touchRefresher(String username, T accessToken) {
+        BackgroundRefresher refresher = this.refresher;
+        if (refresher != null) {
+            refresher.touch(username, accessToken);
+        }
+    }
+
+
+    // Setting of attribute triggers replication of session, so unchanged state is not set again
+    private void savePortletState(PortletRequest request) {
+        PortletState state = (PortletState)request.getAttribute(ATTR_PORTLET_STATE);
+        if (state != null && state.isDirty()) {
+            state.clearDirty();
+            request.getPortletSession().setAttribute(ATTR_PORTLET_STATE, state);
+        }
+    }
+
+
+    // Concurrent requests of same user read token from identity store only once
+    @SuppressWarnings("unchecked")
+    private T getAccessToken(final String username, final OAuthProviderType<T> oauthProviderType) {
+        final String cacheKey = oauthProviderType.getKey() + ":" + username;
+        T accessToken = (T)accessTokenCache.get(cacheKey);
+        if (accessToken == null) {
+            accessToken = SingleFlight.getInstance().execute(oauthProviderType.getKey() + ".accessToken", username, new ProviderCall<T, RuntimeException>() {
+
+                @Override
+                public T call() {
+                    T storedToken = socialNetworkService.getOAuthAccessToken(oauthProviderType, username);
+
+                    // Null is not cached, so that user is able to use the token immediately after he links his account
+                    if (storedToken != null) {
+                        accessTokenCache.put(cacheKey, storedToken);
+                    }
+                    return storedToken;
+                }
+
+            });
+        }
+        return accessToken;
+    }
+
+
     private T getAccessTokenOrRedirectToObtainIt(String username, OAuthProviderType<T> oauthProviderType, RenderResponse response)
             throws IOException {
-        T accessToken = socialNetworkService.getOAuthAccessToken(oauthProviderType, username);
+        T accessToken = getAccessToken(username, oauthProviderType);
 
         if (accessToken == null) {
             // Will be processed by method actionRedirectToOAuthFlow
@@ -208,6 +823,56 @@ public abstract class AbstractSocialPortlet<T> extends GenericPortlet {
     protected abstract OAuthProviderType<T> getOAuthProvider();
 
 
+    /**
+     * Subclass could override this to allow portal to cache output of {@link #handleRender(RenderRequest, RenderResponse, Object)}.
+     * Cached content is private for each user.
+     *
+     * @return time in seconds for which the render output is valid, -1 if it never expires or 0 if it shouldn't be cached
+     */
+    protected int getExpirationTime() {
+        return 0;
+    }
+
+
+    /**
+     * Subclass could override this to allow validation of expired content cached by portal. This method is called only
+     * if {@link #getExpirationTime()} is not 0 and it should be cheap, so it should use only cached data and never
+     * call OAuth provider. If returned ETag is same like ETag of cached content, the cached content is used and
+     * {@link #handleRender(RenderRequest, RenderResponse, Object)} is not called.
+     *
+     * @param request render request
+     * @param accessToken non-null accessToken
+     * @return ETag of content, which would be rendered for this request or null if it's not known without calling OAuth provider
+     */
+    protected String computeETag(RenderRequest request, T accessToken) {
+        return null;
+    }
+
+
+    /**
+     * Render lightweight fragment instead of content, which couldn't be rendered because OAuth provider is unavailable.
+     * Subclass could override this to render some content even without provider (for example from its caches).
+     *
+     * @param request render request
+     * @param response render response, which could already contain part of content
+     * @param cause reason why provider is unavailable
+     */
+    protected void renderDegraded(RenderRequest request, RenderResponse response, ProviderUnavailableException cause) throws IOException {
+        // Partially rendered content is dropped if it's still possible. Degraded fragment shouldn't be cached by portal
+        try {
+            response.resetBuffer();
+        } catch (IllegalStateException ise) {
+            log.trace("Response already committed. Degraded fragment is appended to partial content");
+        }
+        response.getCacheControl().setExpirationTime(0);
+        response.getCacheControl().setETag(null);
+
+        String providerName = getOAuthProvider().getFriendlyName();
+        writeAndFinishResponse("<div class=\"socialPortletUnavailable\">" + providerName + " is temporarily unavailable. " +
+                "Try to refresh the page later</div>", response);
+    }
+
+
     /**
      * Used to handle rendering. AccessToken is available via parameter, so subclass is able to perform some calls to OAuth
      * Provider (social network) and do some interesting stuff with it.
@@ -218,4 +883,61 @@ public abstract class AbstractSocialPortlet<T> extends GenericPortlet {
      */
     protected abstract void handleRender(RenderRequest request, RenderResponse response, T accessToken)
             throws PortletException, IOException;
+
+
+    /**
+     * Subclass, which enabled background refresh, should override this to check whether its cached data of active user
+     * need to be refreshed. It's called periodically from background thread, so it should use only cached data.
+     *
+     * @param username active portal user
+     * @param accessToken access token of user used in his last request
+     * @param refreshAhead time in milliseconds. Data expiring within this time should be refreshed
+     * @return true if data of user should be refreshed
+     */
+    protected boolean isRefreshNeeded(String username, T accessToken, long refreshAhead) {
+        return false;
+    }
+
+
+    /**
+     * Subclass, which enabled background refresh, should override this to obtain data of user from OAuth provider and save
+     * them to its caches. It's called from background thread, so calls to provider should have
+     * {@link QuotaManager.Priority#BACKGROUND} priority and they shouldn't rely on context of portal request.
+     *
+     * @param username active portal user
+     * @param accessToken access token of user used in his last request
+     */
+    protected void refreshData(String username, T accessToken) throws Exception {
+    }
+
+
+    /**
+     * Used to serve resources (for example fragments of markup requested by AJAX) of subclasses. By default resources
+     * are not supported.
+     *
+     * @param request resource request
+     * @param response resource response
+     * @param accessToken non-null accessToken, which could be used to perform operations in given OAuth provider (Social network)
+     */
+    protected void handleResource(ResourceRequest request, ResourceResponse response, T accessToken)
+            throws PortletException, IOException {
+        response.setProperty(ResourceResponse.HTTP_STATUS_CODE, String.valueOf(HttpServletResponse.SC_NOT_FOUND));
+    }
+
+
+    // Adapter between refresher shared by portlets of different types and this portlet
+    private class RefreshTarget implements BackgroundRefresher.Target {
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public boolean isRefreshNeeded(String username, Object accessToken, long refreshAhead) {
+            return AbstractSocialPortlet.this.isRefreshNeeded(username, (T)accessToken, refreshAhead);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void refresh(String username, Object accessToken) throws Exception {
+            refreshData(username, (T)accessToken);
+        }
+    }
 }
@@ -0,0 +1,140 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.gatein.security.oauth.portlet.avatar;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Creates URLs of {@link AvatarServlet} for pictures of users from social networks. URLs are signed, so the servlet
+ * fetches only pictures rendered by portlets and it can't be used as open proxy.
+ * <p>
+ * Key for signatures is configured with system property "gatein.oauth.portlet.avatar.secret". It must be same on all
+ * cluster nodes. Random key is generated if it's not configured, which is fine only for single node. Proxy could be
+ * disabled with system property "gatein.oauth.portlet.avatar.proxy=false", so browsers load pictures directly from
+ * social networks.
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+public class AvatarProxy {
+
+    // Size of pictures in lists of people
+    public static final int SIZE_SMALL = 50;
+
+    // Size of picture of user himself
+    public static final int SIZE_LARGE = 100;
+
+    static final int MIN_SIZE = 16;
+    static final int MAX_SIZE = 256;
+
+    private static final String SERVLET_PATH = "/avatar/";
+    private static final String ALGORITHM = "HmacSHA1";
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("gatein.oauth.portlet.avatar.proxy", "true"));
+    private static final SecretKeySpec KEY = createKey(System.getProperty("gatein.oauth.portlet.avatar.secret"));
+
+    private AvatarProxy() {}
+
+
+    /**
+     * @param contextPath context path of this web application
+     * @param imageUrl URL of picture on social network or null
+     * @param size width and height of thumbnail in pixels
+     * @return URL of thumbnail served by {@link AvatarServlet} or original URL if proxy is disabled. Null if image URL is null
+     */
+    public static String createUrl(String contextPath, String imageUrl, int size) {
+        if (imageUrl == null || !ENABLED || !(imageUrl.startsWith("http://") || imageUrl.startsWith("https://"))) {
+            return imageUrl;
+        }
+
+        size = Math.max(MIN_SIZE, Math.min(MAX_SIZE, size));
+        try {
+            return contextPath + SERVLET_PATH + size + "/" + sign(imageUrl, size) + "?url=" + URLEncoder.encode(imageUrl, "UTF-8");
+        } catch (UnsupportedEncodingException uee) {
+            throw new IllegalStateException(uee);
+        }
+    }
+
+
+    /**
+     * @return true if signature was created by {@link #createUrl(String, String, int)} for given picture and size
+     */
+    static boolean isSignatureValid(String imageUrl, int size, String signature) {
+        if (imageUrl == null || signature == null) {
+            return false;
+        }
+
+        // Constant-time comparison, so signature can't be guessed by measuring of response time
+        String expected = sign(imageUrl, size);
+        int difference = expected.length() ^ signature.length();
+        for (int i=0 ; i<Math.min(expected.length(), signature.length()) ; i++) {
+            difference |= expected.charAt(i) ^ signature.charAt(i);
+        }
+        return difference == 0;
+    }
+
+
+    private static String sign(String imageUrl, int size) {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(KEY);
+            byte[] digest = mac.doFinal((size + ":" + imageUrl).getBytes("UTF-8"));
+
+            // Half of HMAC is enough and it keeps URLs short
+            char[] result = new char[digest.length];
+            for (int i=0 ; i<digest.length / 2 ; i++) {
+                result[i * 2] = HEX_DIGITS[(digest[i] >> 4) & 0xF];
+                result[i * 2 + 1] = HEX_DIGITS[digest[i] & 0xF];
+            }
+            return new String(result);
+        } catch (GeneralSecurityException gse) {
+            throw new IllegalStateException(gse);
+        } catch (UnsupportedEncodingException uee) {
+            throw new IllegalStateException(uee);
+        }
+    }
+
+
+    private static SecretKeySpec createKey(String secret) {
+        byte[] key;
+        if (secret != null && secret.length() > 0) {
+            try {
+                key = secret.getBytes("UTF-8");
+            } catch (UnsupportedEncodingException uee) {
+                throw new IllegalStateException(uee);
+            }
+        } else {
+            key = new byte[20];
+            new SecureRandom().nextBytes(key);
+        }
+        return new SecretKeySpec(key, ALGORITHM);
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.gatein.security.oauth.portlet.avatar;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.gatein.common.logging.Logger;
+import org.gatein.common.logging.LoggerFactory;
+import org.gatein.security.oauth.portlet.concurrent.ProviderCall;
+import org.gatein.security.oauth.portlet.concurrent.SingleFlight;
+
+/**
+ * Serves thumbnails of pictures of users from social networks, so browser loads all pictures on the page from portal
+ * instead of sending requests to CDNs of social networks. Thumbnails are kept in {@link AvatarStore} and they are
+ * sent with long expiration and ETag, so browser usually doesn't need to ask for them again.
+ * <p>
+ * URLs are created by {@link AvatarProxy}. Path of URL contains size of thumbnail and signature. If picture can't be
+ * obtained and there is no stored thumbnail, browser is redirected to original picture.
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+public class AvatarServlet extends HttpServlet {
+
+    private static final Logger log = LoggerFactory.getLogger(AvatarServlet.class);
+
+    private static final String PARAM_URL = "url";
+    private static final String CONTENT_TYPE = "image/jpeg";
+
+    // Null if store couldn't be created. Thumbnails are then created for each request
+    private AvatarStore store;
+    private int maxAge;
+    private long refreshInterval;
+    private int fetchTimeout;
+    private int maxPictureSize;
+
+    @Override
+    public void init() throws ServletException {
+        String cacheDir = getInitParameter("cacheDir");
+        File dir = cacheDir == null || cacheDir.trim().length() == 0
+                ? new File(System.getProperty("java.io.tmpdir"), "gatein-social-avatars") : new File(cacheDir.trim());
+        int segmentSize = getIntInitParameter("segmentSize", 16) * 1024 * 1024;
+        int maxSegments = getIntInitParameter("maxSegments", 16);
+
+        this.maxAge = getIntInitParameter("maxAge", 604800);
+        this.refreshInterval = getIntInitParameter("refreshInterval", 86400) * 1000L;
+        this.fetchTimeout = getIntInitParameter("fetchTimeout", 5000);
+        this.maxPictureSize = getIntInitParameter("maxPictureSize", 1024 * 1024);
+
+        try {
+            this.store = new AvatarStore(dir, segmentSize, maxSegments);
+            log.debug("Initialized " + store);
+        } catch (IOException ioe) {
+            log.warn("Unable to create avatar store in " + dir + ". Thumbnails won't be cached", ioe);
+        }
+    }
+
+
+    @Override
+    public void destroy() {
+        if (store != null) {
+            store.close();
+        }
+        super.destroy();
+    }
+
+
+    // Path is "/{size}/{signature}"
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        String pictureUrl = request.getParameter(PARAM_URL);
+        String pathInfo = request.getPathInfo();
+        String[] pathParts = pathInfo == null ? new String[0] : pathInfo.split("/");
+        int size;
+        try {
+            size = pathParts.length == 3 ? Integer.parseInt(pathParts[1]) : -1;
+        } catch (NumberFormatException nfe) {
+            size = -1;
+        }
+
+        if (size < AvatarProxy.MIN_SIZE || size > AvatarProxy.MAX_SIZE || !AvatarProxy.isSignatureValid(pictureUrl, size, pathParts[2])) {
+            response.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return;
+        }
+
+        AvatarStore.Avatar avatar = getAvatar(pictureUrl, size);
+        if (avatar == null) {
+            response.sendRedirect(pictureUrl);
+            return;
+        }
+
+        String etag = "\"" + avatar.getHash() + "\"";
+        response.setHeader("Cache-Control", "public, max-age=" + maxAge);
+        response.setHeader("ETag", etag);
+        if (etag.equals(request.getHeader("If-None-Match"))) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        response.setContentType(CONTENT_TYPE);
+        response.setContentLength(avatar.getLength());
+        ByteBuffer content = avatar.getContent();
+        WritableByteChannel channel = Channels.newChannel(response.getOutputStream());
+        while (content.hasRemaining()) {
+            channel.write(content);
+        }
+    }
+
+
+    // Stored thumbnail is refreshed after refresh interval, but it's still used if picture can't be obtained. Browsers
+    // of more users usually ask for same picture at same time, so it's fetched only once
+    private AvatarStore.Avatar getAvatar(final String pictureUrl, final int size) {
+        final String key = size + ":" + pictureUrl;
+        AvatarStore.Avatar avatar = store == null ? null : store.get(key);
+        if (avatar != null && System.currentTimeMillis() - avatar.getStoreTime() < refreshInterval) {
+            return avatar;
+        }
+
+        try {
+            return SingleFlight.getInstance().execute("avatar", key, new ProviderCall<AvatarStore.Avatar, IOException>() {
+
+                @Override
+                public AvatarStore.Avatar call() throws IOException {
+                    byte[] thumbnail = Thumbnails.create(fetchPicture(pictureUrl), size);
+                    return store != null ? store.put(key, thumbnail) : AvatarStore.createUnstored(thumbnail);
+                }
+
+            });
+        } catch (IOException ioe) {
+            log.debug("Unable to obtain picture " + pictureUrl + ": " + ioe.getMessage());
+            return avatar;
+        }
+    }
+
+
+    private byte[] fetchPicture(String pictureUrl) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection)new URL(pictureUrl).openConnection();
+        connection.setConnectTimeout(fetchTimeout);
+        connection.setReadTimeout(fetchTimeout);
+        try {
+            int status = connection.getResponseCode();
+            String contentType = connection.getContentType();
+            if (status != HttpURLConnection.HTTP_OK || contentType == null || !contentType.startsWith("image/")) {
+                throw new IOException("Unexpected response " + status + " with content type " + contentType);
+            }
+            if (connection.getContentLength() > maxPictureSize) {
+                throw new IOException("Picture is bigger than " + maxPictureSize + " bytes");
+            }
+
+            InputStream input = connection.getInputStream();
+            try {
+                ByteArrayOutputStream result = new ByteArrayOutputStream(Math.max(connection.getContentLength(), 1024));
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = input.read(buffer)) != -1) {
+                    if (result.size() + read > maxPictureSize) {
+                        throw new IOException("Picture is bigger than " + maxPictureSize + " bytes");
+                    }
+                    result.write(buffer, 0, read);
+                }
+                return result.toByteArray();
+            } finally {
+                input.close();
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+
+    private int getIntInitParameter(String paramName, int defaultValue) {
+        String paramValue = getInitParameter(paramName);
+        if (paramValue == null) {
+            return defaultValue;
+        }
+
+        try {
+            return Integer.parseInt(paramValue.trim());
+        } catch (NumberFormatException nfe) {
+            log.warn("Invalid value of init parameter " + paramName + ": " + paramValue + ". Using default value " + defaultValue);
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,467 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.gatein.security.oauth.portlet.avatar;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.gatein.common.logging.Logger;
+import org.gatein.common.logging.LoggerFactory;
+
+/**
+ * Disk cache of avatar thumbnails. Thumbnails are appended to segment files of fixed size, which are mapped to memory,
+ * so thumbnails are served from page cache without copying them to heap. Identical thumbnails (for example default
+ * pictures of users without avatar) are stored only once, because they are indexed by hash of their content and each
+ * key just points to the hash.
+ * <p>
+ * Segments are written only by appending. When all segments are full, the oldest one is deleted together with all
+ * entries in it. Index is kept only in memory and it's rebuilt from segments after restart.
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+public class AvatarStore {
+
+    private static final Logger log = LoggerFactory.getLogger(AvatarStore.class);
+
+    private static final String SEGMENT_PREFIX = "avatars-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    // Record types. Zero marks end of written records, because new segment files are filled with zeros
+    private static final int RECORD_BLOB = 0x41564231;
+    private static final int RECORD_ALIAS = 0x41564131;
+
+    private static final int HASH_LENGTH = 20;
+    private static final int BLOB_HEADER_LENGTH = 4 + HASH_LENGTH + 4;
+    private static final int ALIAS_HEADER_LENGTH = 4 + HASH_LENGTH + 8 + 2;
+    private static final int MAX_KEY_LENGTH = 0xFFFF;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final File dir;
+    private final int segmentSize;
+    private final int maxSegments;
+
+    // Oldest segment is first
+    private final LinkedList<Segment> segments = new LinkedList<Segment>();
+    private final Map<String, Location> blobs = new HashMap<String, Location>();
+    private final Map<String, Alias> aliases = new HashMap<String, Alias>();
+    private long nextSegmentId;
+
+    /**
+     * @param dir directory with segment files. It's created if it doesn't exist
+     * @param segmentSize size of each segment in bytes
+     * @param maxSegments max count of segments. Max disk usage is segmentSize * maxSegments
+     * @throws IOException if directory can't be created or existing segments can't be mapped
+     */
+    public AvatarStore(File dir, int segmentSize, int maxSegments) throws IOException {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.maxSegments = Math.max(1, maxSegments);
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create directory " + dir);
+        }
+        recover();
+    }
+
+
+    /**
+     * @param key key of thumbnail (for example size and URL of original picture)
+     * @return stored thumbnail or null
+     */
+    public synchronized Avatar get(String key) {
+        Alias alias = aliases.get(key);
+        if (alias == null) {
+            return null;
+        }
+
+        // Content could be in older segment, which was already deleted
+        Location location = blobs.get(alias.hash);
+        if (location == null) {
+            aliases.remove(key);
+            return null;
+        }
+        return new Avatar(alias.hash, location.slice(), alias.storeTime);
+    }
+
+
+    /**
+     * Store thumbnail under given key. Content is written only if the same content is not stored yet.
+     *
+     * @param key key of thumbnail
+     * @param content content of thumbnail
+     * @return stored thumbnail. It's not backed by segment if it's too big to be stored
+     */
+    public synchronized Avatar put(String key, byte[] content) throws IOException {
+        String hash = hash(content);
+        long storeTime = System.currentTimeMillis();
+        byte[] keyBytes = key.getBytes("UTF-8");
+
+        int aliasLength = ALIAS_HEADER_LENGTH + keyBytes.length;
+        int blobLength = BLOB_HEADER_LENGTH + content.length;
+        if (keyBytes.length > MAX_KEY_LENGTH || aliasLength + blobLength > segmentSize) {
+            return createUnstored(content);
+        }
+
+        Location location = blobs.get(hash);
+        Segment segment = getWritableSegment(aliasLength + (location == null ? blobLength : 0));
+
+        // New segment could replace the oldest one, which contained the content
+        if (location != null && !blobs.containsKey(hash)) {
+            location = null;
+            segment = getWritableSegment(aliasLength + blobLength);
+        }
+
+        if (location == null) {
+            location = segment.writeBlob(hash, content);
+            blobs.put(hash, location);
+        }
+        segment.writeAlias(hash, storeTime, keyBytes);
+        aliases.put(key, new Alias(hash, storeTime, segment));
+
+        return new Avatar(hash, location.slice(), storeTime);
+    }
+
+
+    /**
+     * @return thumbnail with given content, which is not backed by any segment
+     */
+    static Avatar createUnstored(byte[] content) {
+        return new Avatar(hash(content), ByteBuffer.wrap(content).asReadOnlyBuffer(), System.currentTimeMillis());
+    }
+
+
+    /**
+     * Flush all segments to disk
+     */
+    public synchronized void close() {
+        for (Segment segment : segments) {
+            segment.buffer.force();
+        }
+        segments.clear();
+        blobs.clear();
+        aliases.clear();
+    }
+
+
+    /**
+     * @return count of stored keys
+     */
+    public synchronized int size() {
+        return aliases.size();
+    }
+
+
+    /**
+     * @return count of stored distinct thumbnails
+     */
+    public synchronized int getContentCount() {
+        return blobs.size();
+    }
+
+
+    @Override
+    public synchronized String toString() {
+        return new StringBuilder("AvatarStore [ dir=" + dir)
+                .append(", segments=" + segments.size())
+                .append(", keys=" + aliases.size())
+                .append(", contents=" + blobs.size())
+                .append(" ]").toString();
+    }
+
+
+    private Segment getWritableSegment(int recordLength) throws IOException {
+        Segment current = segments.isEmpty() ? null : segments.getLast();
+        if (current != null && current.remaining() >= recordLength) {
+            return current;
+        }
+
+        while (segments.size() >= maxSegments) {
+            deleteSegment(segments.removeFirst());
+        }
+        Segment segment = new Segment(new File(dir, SEGMENT_PREFIX + (nextSegmentId++) + SEGMENT_SUFFIX), segmentSize);
+        segments.add(segment);
+        return segment;
+    }
+
+
+    private void deleteSegment(Segment segment) {
+        for (Iterator<Location> it = blobs.values().iterator(); it.hasNext(); ) {
+            if (it.next().segment == segment) {
+                it.remove();
+            }
+        }
+        for (Iterator<Alias> it = aliases.values().iterator(); it.hasNext(); ) {
+            if (it.next().segment == segment) {
+                it.remove();
+            }
+        }
+
+        // Mapping stays valid until buffer is garbage collected, so thumbnails being sent could be still read
+        if (!segment.file.delete()) {
+            log.warn("Unable to delete segment " + segment.file);
+        }
+    }
+
+
+    // Rebuild index from existing segments. Incomplete record at the end of segment (after crash) is ignored
+    private void recover() throws IOException {
+        File[] files = dir.listFiles();
+        List<Long> ids = new ArrayList<Long>();
+        for (File file : files == null ? new File[0] : files) {
+            String name = file.getName();
+            if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                try {
+                    ids.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException nfe) {
+                    log.debug("Ignoring file " + file + " in avatar store");
+                }
+            }
+        }
+        Collections.sort(ids);
+
+        for (Long id : ids) {
+            Segment segment = new Segment(new File(dir, SEGMENT_PREFIX + id + SEGMENT_SUFFIX), segmentSize);
+            segments.add(segment);
+            segment.scan(blobs, aliases);
+            nextSegmentId = id + 1;
+        }
+        while (segments.size() > maxSegments) {
+            deleteSegment(segments.removeFirst());
+        }
+
+        if (!segments.isEmpty()) {
+            log.debug("Recovered " + this);
+        }
+    }
+
+
+    private static String hash(byte[] content) {
+        try {
+            return toHex(MessageDigest.getInstance("SHA-1").digest(content));
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new IllegalStateException(nsae);
+        }
+    }
+
+
+    private static String toHex(byte[] bytes) {
+        char[] result = new char[bytes.length * 2];
+        for (int i=0 ; i<bytes.length ; i++) {
+            result[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xF];
+            result[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xF];
+        }
+        return new String(result);
+    }
+
+
+    private static byte[] fromHex(String hex) {
+        byte[] result = new byte[hex.length() / 2];
+        for (int i=0 ; i<result.length ; i++) {
+            result[i] = (byte)Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return result;
+    }
+
+
+    /**
+     * Thumbnail returned by store. Content is read directly from mapped segment
+     */
+    public static class Avatar {
+
+        private final String hash;
+        private final ByteBuffer content;
+        private final long storeTime;
+
+        private Avatar(String hash, ByteBuffer content, long storeTime) {
+            this.hash = hash;
+            this.content = content;
+            this.storeTime = storeTime;
+        }
+
+        /**
+         * @return hash of content, which could be used as ETag
+         */
+        public String getHash() {
+            return hash;
+        }
+
+        /**
+         * @return read-only buffer with content. Each call returns new buffer, so it could be consumed by caller
+         */
+        public ByteBuffer getContent() {
+            return content.duplicate();
+        }
+
+        public int getLength() {
+            return content.remaining();
+        }
+
+        /**
+         * @return time in milliseconds when thumbnail was stored under its key
+         */
+        public long getStoreTime() {
+            return storeTime;
+        }
+    }
+
+
+    private static class Segment {
+
+        private final File file;
+        private final MappedByteBuffer buffer;
+        // Position where next record will be written. Records are written with absolute positions, so position of
+        // buffer itself is never changed
+        private int writePosition;
+
+        private Segment(File file, int size) throws IOException {
+            this.file = file;
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                if (raf.length() < size) {
+                    raf.setLength(size);
+                }
+                this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+            } finally {
+                raf.close();
+            }
+        }
+
+        private int remaining() {
+            return buffer.capacity() - writePosition;
+        }
+
+        // Type of record is written last, so record is not visible to recovery until it's complete
+        private Location writeBlob(String hash, byte[] content) {
+            int start = writePosition;
+            ByteBuffer target = buffer.duplicate();
+            target.position(start + 4);
+            target.put(fromHex(hash));
+            target.putInt(content.length);
+            target.put(content);
+            buffer.putInt(start, RECORD_BLOB);
+
+            writePosition = target.position();
+            return new Location(this, start + BLOB_HEADER_LENGTH, content.length);
+        }
+
+        private void writeAlias(String hash, long storeTime, byte[] key) {
+            int start = writePosition;
+            ByteBuffer target = buffer.duplicate();
+            target.position(start + 4);
+            target.put(fromHex(hash));
+            target.putLong(storeTime);
+            target.putShort((short)key.length);
+            target.put(key);
+            buffer.putInt(start, RECORD_ALIAS);
+
+            writePosition = target.position();
+        }
+
+        private void scan(Map<String, Location> blobs, Map<String, Alias> aliases) throws UnsupportedEncodingException {
+            ByteBuffer source = buffer.duplicate();
+            byte[] hashBytes = new byte[HASH_LENGTH];
+            int position = 0;
+            while (position + 4 <= source.capacity()) {
+                source.position(position);
+                int type = source.getInt();
+
+                if (type == RECORD_BLOB && source.remaining() >= BLOB_HEADER_LENGTH - 4) {
+                    source.get(hashBytes);
+                    int length = source.getInt();
+                    if (length < 0 || length > source.remaining()) {
+                        break;
+                    }
+                    blobs.put(toHex(hashBytes), new Location(this, source.position(), length));
+                    position = source.position() + length;
+                } else if (type == RECORD_ALIAS && source.remaining() >= ALIAS_HEADER_LENGTH - 4) {
+                    source.get(hashBytes);
+                    long storeTime = source.getLong();
+                    int keyLength = source.getShort() & 0xFFFF;
+                    if (keyLength > source.remaining()) {
+                        break;
+                    }
+                    byte[] key = new byte[keyLength];
+                    source.get(key);
+                    aliases.put(new String(key, "UTF-8"), new Alias(toHex(hashBytes), storeTime, this));
+                    position = source.position();
+                } else {
+                    break;
+                }
+            }
+            writePosition = position;
+        }
+    }
+
+
+    private static class Location {
+
+        private final Segment segment;
+        private final int offset;
+        private final int length;
+
+        private Location(Segment segment, int offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        private ByteBuffer slice() {
+            ByteBuffer result = segment.buffer.duplicate();
+            result.limit(offset + length);
+            result.position(offset);
+            return result.slice().asReadOnlyBuffer();
+        }
+    }
+
+
+    private static class Alias {
+
+        private final String hash;
+        private final long storeTime;
+        // Segment with the alias record
+        private final Segment segment;
+
+        private Alias(String hash, long storeTime, Segment segment) {
+            this.hash = hash;
+            this.storeTime = storeTime;
+            this.segment = segment;
+        }
+    }
+}
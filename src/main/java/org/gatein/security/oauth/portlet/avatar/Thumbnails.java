@@ -0,0 +1,115 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.gatein.security.oauth.portlet.avatar;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Creates square JPEG thumbnails of pictures. Picture is scaled to fill whole thumbnail and the rest is cropped, so
+ * all thumbnails of same size have same dimensions regardless of size of original picture.
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+class Thumbnails {
+
+    // Small compressed picture could declare huge dimensions, so pictures with more pixels are not decoded at all
+    private static final long MAX_PIXELS = 4096L * 4096L;
+
+    private Thumbnails() {}
+
+
+    /**
+     * @param picture content of original picture in any format supported by ImageIO
+     * @param size width and height of thumbnail in pixels
+     * @return content of thumbnail in JPEG format
+     * @throws IOException if picture can't be decoded or it's too big
+     */
+    static byte[] create(byte[] picture, int size) throws IOException {
+        BufferedImage original = decode(picture);
+
+        int width = original.getWidth();
+        int height = original.getHeight();
+        double scale = (double)size / Math.min(width, height);
+        int scaledWidth = (int)Math.round(width * scale);
+        int scaledHeight = (int)Math.round(height * scale);
+
+        // JPEG doesn't support transparency, so transparent pixels are white
+        BufferedImage thumbnail = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = thumbnail.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.setColor(Color.WHITE);
+            graphics.fillRect(0, 0, size, size);
+            graphics.drawImage(original, (size - scaledWidth) / 2, (size - scaledHeight) / 2, scaledWidth, scaledHeight, null);
+        } finally {
+            graphics.dispose();
+        }
+
+        ByteArrayOutputStream result = new ByteArrayOutputStream(size * size / 4);
+        if (!ImageIO.write(thumbnail, "jpg", result)) {
+            throw new IOException("JPEG writer is not available");
+        }
+        return result.toByteArray();
+    }
+
+
+    private static BufferedImage decode(byte[] picture) throws IOException {
+        ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(picture));
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                throw new IOException("Unsupported format of picture");
+            }
+
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                // Dimensions are read only from header of picture
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                if ((long)width * height > MAX_PIXELS) {
+                    throw new IOException("Picture " + width + "x" + height + " has more than " + MAX_PIXELS + " pixels");
+                }
+                return reader.read(0);
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            input.close();
+        }
+    }
+}
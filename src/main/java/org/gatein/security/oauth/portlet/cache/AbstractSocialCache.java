@@ -0,0 +1,174 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.gatein.security.oauth.portlet.cache;
+
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Base of {@link SocialCache} implementations. Values are stored together with their expiration and fingerprint of
+ * access token, so stores of subclasses don't need to support time-to-live of single entries. Access tokens themselves
+ * are never stored, because entries of clustered cache are sent to other nodes.
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+abstract class AbstractSocialCache<V extends Serializable> implements SocialCache<V> {
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final String name;
+    private final long timeToLive;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    AbstractSocialCache(String name, long timeToLive) {
+        this.name = name;
+        this.timeToLive = timeToLive;
+    }
+
+
+    @Override
+    public V get(String username, String accessToken) {
+        CachedValue<V> cached = load(username);
+        if (cached != null && !cached.tokenFingerprint.equals(fingerprint(accessToken))) {
+            // User has new token, so value obtained with previous one is removed on all cluster nodes
+            remove(username);
+            cached = null;
+        }
+
+        if (cached == null || cached.isExpired()) {
+            missCount.incrementAndGet();
+            return null;
+        }
+        hitCount.incrementAndGet();
+        return cached.value;
+    }
+
+
+    @Override
+    public V getStale(String username, String accessToken) {
+        CachedValue<V> cached = load(username);
+        return cached != null && cached.tokenFingerprint.equals(fingerprint(accessToken)) ? cached.value : null;
+    }
+
+
+    @Override
+    public long getExpirationTime(String username, String accessToken) {
+        CachedValue<V> cached = load(username);
+        return cached != null && cached.tokenFingerprint.equals(fingerprint(accessToken)) ? cached.expiration : 0;
+    }
+
+
+    @Override
+    public void put(String username, String accessToken, V value) {
+        put(username, accessToken, value, timeToLive);
+    }
+
+
+    @Override
+    public void put(String username, String accessToken, V value, long timeToLive) {
+        store(username, new CachedValue<V>(value, fingerprint(accessToken), System.currentTimeMillis() + timeToLive), timeToLive);
+    }
+
+
+    @Override
+    public void invalidate(String username) {
+        remove(username);
+    }
+
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
+    @Override
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    @Override
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+
+    /**
+     * @return stored value even if it's expired or null
+     */
+    abstract CachedValue<V> load(String username);
+
+    abstract void store(String username, CachedValue<V> value, long timeToLive);
+
+    abstract void remove(String username);
+
+
+    // Fingerprint is computed for each lookup, so it must be cheap compared to call of social network
+    static String fingerprint(String accessToken) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(accessToken.getBytes("UTF-8"));
+            char[] result = new char[digest.length * 2];
+            for (int i=0 ; i<digest.length ; i++) {
+                result[i * 2] = HEX_DIGITS[(digest[i] >> 4) & 0xF];
+                result[i * 2 + 1] = HEX_DIGITS[digest[i] & 0xF];
+            }
+            return new String(result);
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new IllegalStateException(nsae);
+        } catch (UnsupportedEncodingException uee) {
+            throw new IllegalStateException(uee);
+        }
+    }
+
+
+    static class CachedValue<V extends Serializable> implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final V value;
+        private final String tokenFingerprint;
+        // Wall-clock time, so it's meaningful on all cluster nodes
+        private final long expiration;
+
+        private CachedValue(V value, String tokenFingerprint, long expiration) {
+            this.value = value;
+            this.tokenFingerprint = tokenFingerprint;
+            this.expiration = expiration;
+        }
+
+        private boolean isExpired() {
+            return System.currentTimeMillis() > expiration;
+        }
+    }
+}
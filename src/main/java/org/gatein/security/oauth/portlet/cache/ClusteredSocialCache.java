@@ -0,0 +1,93 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.gatein.security.oauth.portlet.cache;
+
+import java.io.Serializable;
+
+import org.exoplatform.services.cache.ExoCache;
+
+/**
+ * {@link SocialCache} backed by cache of eXo cache service, which is distributed or replicated by Infinispan in clustered
+ * portal. Data obtained from social network on one node are used by all nodes, so each node doesn't need to send same
+ * requests again.
+ * <p>
+ * Size of cache and max time for which expired entries are kept (live time) are configured for the eXo cache in portal
+ * configuration. Time-to-live of this cache is stored in each entry, so it should be shorter than live time of eXo cache.
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+class ClusteredSocialCache<V extends Serializable> extends AbstractSocialCache<V> {
+
+    private final ExoCache<Serializable, CachedValue<V>> entries;
+
+    ClusteredSocialCache(String name, long timeToLive, ExoCache<Serializable, CachedValue<V>> entries) {
+        super(name, timeToLive);
+        this.entries = entries;
+    }
+
+
+    @Override
+    CachedValue<V> load(String username) {
+        return entries.get(username);
+    }
+
+    // eXo cache doesn't support time-to-live of single entries, so expiration is checked only by caller
+    @Override
+    void store(String username, CachedValue<V> value, long timeToLive) {
+        entries.put(username, value);
+    }
+
+    @Override
+    void remove(String username) {
+        entries.remove(username);
+    }
+
+
+    @Override
+    public int getMaxSize() {
+        return entries.getMaxSize();
+    }
+
+    @Override
+    public int size() {
+        return entries.getCacheSize();
+    }
+
+    // Evictions are done by Infinispan and they are not counted
+    @Override
+    public long getEvictionCount() {
+        return 0;
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder("ClusteredSocialCache [ name=" + getName())
+                .append(", exoCache=" + entries.getName())
+                .append(", size=" + size())
+                .append(", hits=" + getHitCount())
+                .append(", misses=" + getMissCount())
+                .append(" ]").toString();
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.gatein.security.oauth.portlet.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Simple in-memory cache with bounded size, LRU eviction and time-to-live of entries. It's thread-safe, so single instance
+ * could be shared by all requests on this cluster node.
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+public class ExpiringCache<K, V> implements MonitoredCache {
+
+    private final String name;
+    private final int maxSize;
+    private final long timeToLive;
+
+    // Access-ordered, so the eldest entry is always the least recently used one
+    private final Map<K, CacheEntry<V>> entries;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    /**
+     * @param name name of cache used for logging
+     * @param maxSize max number of entries. Least recently used entry is evicted if cache is full
+     * @param timeToLive default time in milliseconds after which entry is expired
+     */
+    public ExpiringCache(String name, final int maxSize, long timeToLive) {
+        this.name = name;
+        this.maxSize = maxSize;
+        this.timeToLive = timeToLive;
+        this.entries = new LinkedHashMap<K, CacheEntry<V>>(16, 0.75f, true) {
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, CacheEntry<V>> eldest) {
+                if (size() > maxSize) {
+                    evictionCount.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+
+        };
+    }
+
+
+    /**
+     * @return cached value or null if value is not in cache or it's already expired
+     */
+    public V get(K key) {
+        CacheEntry<V> entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+        }
+
+        if (entry == null || entry.isExpired()) {
+            missCount.incrementAndGet();
+            return null;
+        } else {
+            hitCount.incrementAndGet();
+            return entry.value;
+        }
+    }
+
+
+    /**
+     * Expired entries are kept in cache until they are evicted or replaced, so they could be used as base for computing
+     * new value (for example for incremental update of previous value).
+     *
+     * @return cached value even if it's already expired or null if value is not in cache
+     */
+    public V getStale(K key) {
+        CacheEntry<V> entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+        }
+        return entry == null ? null : entry.value;
+    }
+
+
+    public void put(K key, V value) {
+        put(key, value, timeToLive);
+    }
+
+
+    /**
+     * Save value with its own time-to-live instead of the default one of this cache
+     *
+     * @param timeToLive time in milliseconds after which entry is expired
+     */
+    public void put(K key, V value, long timeToLive) {
+        CacheEntry<V> entry = new CacheEntry<V>(value, System.currentTimeMillis() + timeToLive);
+        synchronized (entries) {
+            entries.put(key, entry);
+        }
+    }
+
+
+    public void invalidate(K key) {
+        synchronized (entries) {
+            entries.remove(key);
+        }
+    }
+
+
+    public void invalidateAll() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
+    @Override
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    @Override
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    @Override
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder("ExpiringCache [ name=" + name)
+                .append(", size=" + size())
+                .append(", maxSize=" + maxSize)
+                .append(", hits=" + getHitCount())
+                .append(", misses=" + getMissCount())
+                .append(", evictions=" + getEvictionCount())
+                .append(" ]").toString();
+    }
+
+
+    private static class CacheEntry<V> {
+
+        private final V value;
+        private final long expiration;
+
+        private CacheEntry(V value, long expiration) {
+            this.value = value;
+            this.expiration = expiration;
+        }
+
+        private boolean isExpired() {
+            return System.currentTimeMillis() > expiration;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.gatein.security.oauth.portlet.cache;
+
+import java.io.Serializable;
+
+/**
+ * {@link SocialCache} kept in memory of this cluster node. Each node obtains its own data from social networks.
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+class LocalSocialCache<V extends Serializable> extends AbstractSocialCache<V> {
+
+    private final ExpiringCache<String, CachedValue<V>> entries;
+
+    LocalSocialCache(String name, int maxSize, long timeToLive) {
+        super(name, timeToLive);
+        this.entries = new ExpiringCache<String, CachedValue<V>>(name, maxSize, timeToLive);
+    }
+
+
+    // Expiration is checked by caller, so expired entries are loaded too
+    @Override
+    CachedValue<V> load(String username) {
+        return entries.getStale(username);
+    }
+
+    @Override
+    void store(String username, CachedValue<V> value, long timeToLive) {
+        entries.put(username, value, timeToLive);
+    }
+
+    @Override
+    void remove(String username) {
+        entries.invalidate(username);
+    }
+
+
+    @Override
+    public int getMaxSize() {
+        return entries.getMaxSize();
+    }
+
+    @Override
+    public int size() {
+        return entries.size();
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return entries.getEvictionCount();
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder("LocalSocialCache [ name=" + getName())
+                .append(", size=" + size())
+                .append(", maxSize=" + getMaxSize())
+                .append(", hits=" + getHitCount())
+                .append(", misses=" + getMissCount())
+                .append(", evictions=" + getEvictionCount())
+                .append(" ]").toString();
+    }
+}
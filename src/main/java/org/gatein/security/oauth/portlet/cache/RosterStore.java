@@ -0,0 +1,650 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.gatein.security.oauth.portlet.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.zip.CRC32;
+
+import org.gatein.common.logging.Logger;
+import org.gatein.common.logging.LoggerFactory;
+
+/**
+ * Persistent store of rosters (friends of users), which keeps them on local disk of cluster node across restarts, so
+ * portlets could render them immediately after restart and synchronize them incrementally with OAuth provider.
+ * <p>
+ * Values are serialized and appended as records to log segments of fixed max size. Index of latest record of each key
+ * is kept only in memory and it's rebuilt by scanning of segments during start. Each record has checksum, so incomplete
+ * record at the end of segment (after crash) is ignored. When count of segments exceeds its max, records of the oldest
+ * segment, which are still latest for their key, are copied to the newest segment and the oldest segment is deleted.
+ * <p>
+ * Store is shared by all portlets on this cluster node. It's opened when first portlet acquires it with {@link #acquire()}
+ * and it's closed when last portlet releases it. It could be configured with system properties
+ * "gatein.oauth.portlet.roster.store" (false disables the store), "gatein.oauth.portlet.roster.dir" (directory
+ * "social-rosters" in data directory of portal by default), "gatein.oauth.portlet.roster.segmentSize" (megabytes)
+ * and "gatein.oauth.portlet.roster.maxSegments"
+ * <p>
+ * Each roster is stored with fingerprint of access token, with which it was obtained (like in {@link SocialCache}), so
+ * roster of previous account of user is never returned after user obtained token for other account.
+ * <p>
+ * Rosters contain friends of users, so directory and segments are readable only by owner. Only classes allowed with
+ * {@link #allowClasses(Class[])} and few basic JDK classes could be deserialized from segments.
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+public class RosterStore {
+
+    private static final Logger log = LoggerFactory.getLogger(RosterStore.class);
+
+    private static final int DEFAULT_SEGMENT_SIZE = 16;
+    private static final int DEFAULT_MAX_SEGMENTS = 8;
+
+    private static final String SEGMENT_PREFIX = "rosters-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private static final int RECORD_MAGIC = 0x52535431;
+    // Magic, length of key, length of value (-1 for removed value) and time of storing
+    private static final int HEADER_LENGTH = 4 + 4 + 4 + 8;
+    private static final int CHECKSUM_LENGTH = 4;
+    private static final int MAX_KEY_LENGTH = 1024;
+
+    // JDK classes used by fields of rosters
+    private static final Set<String> JDK_CLASSES = new HashSet<String>(Arrays.asList(
+            "java.lang.String", "java.lang.Number", "java.lang.Integer", "java.lang.Long", "java.lang.Boolean",
+            "java.util.HashMap", "java.util.LinkedHashMap", "[Ljava.lang.String;", "[I", "[J", "[B",
+            StoredRoster.class.getName()));
+
+    private static RosterStore instance;
+    private static int referenceCount;
+
+    private final File dir;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final Set<String> allowedClasses = new CopyOnWriteArraySet<String>();
+
+    // Oldest segment is first
+    private final LinkedList<Segment> segments = new LinkedList<Segment>();
+    private final Map<String, Location> index = new HashMap<String, Location>();
+    private long nextSegmentId;
+    private boolean closed;
+
+    /**
+     * @param dir directory with segment files. It's created if it doesn't exist
+     * @param segmentSize max size of each segment in bytes
+     * @param maxSegments max count of segments
+     * @throws IOException if directory can't be created or existing segments can't be read
+     */
+    public RosterStore(File dir, int segmentSize, int maxSegments) throws IOException {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.maxSegments = Math.max(2, maxSegments);
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create directory " + dir);
+        }
+        // Directory could be created by other account, which can't be trusted then
+        restrictToOwner(dir);
+        recover();
+    }
+
+
+    /**
+     * Obtain store shared by all portlets on this cluster node. Every call should be paired with {@link #release()}
+     *
+     * @return shared store or null if store is disabled or it can't be opened
+     */
+    public static synchronized RosterStore acquire() {
+        if (referenceCount == 0) {
+            instance = open();
+        }
+        referenceCount++;
+        return instance;
+    }
+
+
+    public static synchronized void release() {
+        if (referenceCount == 0 || --referenceCount > 0) {
+            return;
+        }
+        if (instance != null) {
+            instance.close();
+            instance = null;
+        }
+    }
+
+
+    /**
+     * Allow deserialization of given classes. Portlets should allow classes of their rosters and all classes of fields
+     * of rosters (including superclasses), which are not basic JDK classes
+     */
+    public void allowClasses(Class<?>... classes) {
+        for (Class<?> clazz : classes) {
+            allowedClasses.add(clazz.getName());
+        }
+    }
+
+
+    /**
+     * @param key key of roster (for example provider and username)
+     * @param accessToken current access token of user
+     * @return stored roster or null if there is no roster for given key, it was obtained with other access token or
+     * it can't be read (for example because its class was changed since it was stored)
+     */
+    public <V extends Serializable> V get(String key, String accessToken) {
+        StoredRoster stored = read(key);
+        if (stored == null) {
+            return null;
+        }
+        if (!stored.tokenFingerprint.equals(AbstractSocialCache.fingerprint(accessToken))) {
+            // User has new token, which could be for other account
+            remove(key);
+            return null;
+        }
+        return this.<V>cast(stored.roster);
+    }
+
+
+    private StoredRoster read(String key) {
+        byte[] value;
+        synchronized (this) {
+            Location location = index.get(key);
+            if (location == null) {
+                return null;
+            }
+
+            try {
+                value = location.segment.read(location.offset + HEADER_LENGTH + location.keyLength, location.valueLength);
+            } catch (IOException ioe) {
+                log.debug("Unable to read roster " + key + ": " + ioe.getMessage());
+                return null;
+            }
+        }
+
+        try {
+            return deserialize(value);
+        } catch (Exception e) {
+            if (e instanceof InvalidClassException) {
+                log.warn("Roster " + key + " contains class, which is not allowed: " + e.getMessage());
+            } else {
+                log.debug("Unable to deserialize roster " + key + ": " + e.getMessage());
+            }
+            synchronized (this) {
+                index.remove(key);
+            }
+            return null;
+        }
+    }
+
+
+    /**
+     * Append new version of roster. Roster, which is bigger than segment, is not stored and previous version is removed
+     *
+     * @param key key of roster
+     * @param accessToken access token, with which roster was obtained
+     * @param value roster
+     */
+    public void put(String key, String accessToken, Serializable value) {
+        byte[] serialized;
+        try {
+            serialized = serialize(new StoredRoster(AbstractSocialCache.fingerprint(accessToken), value));
+        } catch (IOException ioe) {
+            log.warn("Unable to serialize roster " + key, ioe);
+            return;
+        }
+
+        append(key, serialized);
+    }
+
+
+    public void remove(String key) {
+        synchronized (this) {
+            if (!index.containsKey(key)) {
+                return;
+            }
+        }
+        append(key, null);
+    }
+
+
+    /**
+     * Flush all segments to disk and close them
+     */
+    public synchronized void close() {
+        for (Segment segment : segments) {
+            segment.close(true);
+        }
+        segments.clear();
+        index.clear();
+        closed = true;
+    }
+
+
+    /**
+     * @return count of stored rosters
+     */
+    public synchronized int size() {
+        return index.size();
+    }
+
+
+    @Override
+    public synchronized String toString() {
+        long length = 0;
+        for (Segment segment : segments) {
+            length += segment.length;
+        }
+        return new StringBuilder("RosterStore [ dir=" + dir)
+                .append(", segments=" + segments.size())
+                .append(", rosters=" + index.size())
+                .append(", bytes=" + length)
+                .append(" ]").toString();
+    }
+
+
+    private static RosterStore open() {
+        if (!Boolean.parseBoolean(System.getProperty("gatein.oauth.portlet.roster.store", "true"))) {
+            return null;
+        }
+
+        String dirName = System.getProperty("gatein.oauth.portlet.roster.dir");
+        File dir = dirName != null && dirName.length() > 0 ? new File(dirName) : new File(getDataDir(), "social-rosters");
+        int segmentSize = Integer.getInteger("gatein.oauth.portlet.roster.segmentSize", DEFAULT_SEGMENT_SIZE) * 1024 * 1024;
+        int maxSegments = Integer.getInteger("gatein.oauth.portlet.roster.maxSegments", DEFAULT_MAX_SEGMENTS);
+        try {
+            RosterStore store = new RosterStore(dir, segmentSize, maxSegments);
+            log.debug("Opened " + store);
+            return store;
+        } catch (IOException ioe) {
+            log.warn("Unable to open roster store in " + dir + ". Rosters won't be persisted", ioe);
+            return null;
+        }
+    }
+
+
+    // Shared temporary directory is not used, because other local accounts could write to it
+    private static File getDataDir() {
+        String dataDir = System.getProperty("gatein.data.dir");
+        if (dataDir != null && dataDir.length() > 0) {
+            return new File(dataDir);
+        }
+        dataDir = System.getProperty("jboss.server.data.dir");
+        if (dataDir != null && dataDir.length() > 0) {
+            return new File(dataDir, "gatein");
+        }
+        return new File(System.getProperty("user.home"), ".gatein");
+    }
+
+
+    // Permissions can't be restricted this way on Windows, where directory inherits permissions of its parent
+    private static void restrictToOwner(File file) throws IOException {
+        if (File.separatorChar == '\\') {
+            return;
+        }
+
+        boolean restricted = file.setReadable(false, false) && file.setReadable(true, true)
+                && file.setWritable(false, false) && file.setWritable(true, true)
+                && file.setExecutable(false, false) && (!file.isDirectory() || file.setExecutable(true, true));
+        if (!restricted) {
+            throw new IOException("Unable to restrict permissions of " + file + " to its owner");
+        }
+    }
+
+
+    // Null value removes the key
+    private synchronized void append(String key, byte[] value) {
+        if (closed) {
+            return;
+        }
+
+        try {
+            byte[] record = createRecord(key, value, System.currentTimeMillis());
+            if (record == null) {
+                return;
+            }
+            if (record.length > segmentSize) {
+                log.debug("Roster " + key + " with " + value.length + " bytes is too big to be stored");
+                if (!index.containsKey(key)) {
+                    return;
+                }
+                record = createRecord(key, null, System.currentTimeMillis());
+            }
+            write(key, record);
+            while (segments.size() > maxSegments) {
+                compactOldestSegment();
+            }
+        } catch (IOException ioe) {
+            // Roster will be obtained again from provider
+            log.warn("Unable to store roster " + key + ": " + ioe.getMessage());
+            index.remove(key);
+        }
+    }
+
+
+    private void write(String key, byte[] record) throws IOException {
+        Segment segment = segments.isEmpty() ? null : segments.getLast();
+        if (segment == null || segment.length + record.length > segmentSize) {
+            segment = new Segment(new File(dir, SEGMENT_PREFIX + (nextSegmentId++) + SEGMENT_SUFFIX));
+            segments.add(segment);
+        }
+
+        long offset = segment.append(record);
+        ByteBuffer header = ByteBuffer.wrap(record);
+        header.getInt();
+        int keyLength = header.getInt();
+        int valueLength = header.getInt();
+        if (valueLength < 0) {
+            index.remove(key);
+        } else {
+            index.put(key, new Location(segment, offset, keyLength, valueLength));
+        }
+    }
+
+
+    // Latest records from the oldest segment are moved to the newest one. If the newest segment is full too, they are dropped
+    private void compactOldestSegment() throws IOException {
+        Segment oldest = segments.removeFirst();
+        List<String> keys = new ArrayList<String>();
+        for (Map.Entry<String, Location> entry : index.entrySet()) {
+            if (entry.getValue().segment == oldest) {
+                keys.add(entry.getKey());
+            }
+        }
+
+        int moved = 0;
+        for (String key : keys) {
+            Location location = index.get(key);
+            byte[] record = oldest.read(location.offset, HEADER_LENGTH + location.keyLength + location.valueLength + CHECKSUM_LENGTH);
+            if (segments.getLast().length + record.length > segmentSize) {
+                index.remove(key);
+            } else {
+                write(key, record);
+                moved++;
+            }
+        }
+
+        oldest.close(false);
+        if (!oldest.file.delete()) {
+            log.warn("Unable to delete segment " + oldest.file);
+        }
+        if (log.isTraceEnabled()) {
+            log.trace("Compacted segment " + oldest.file + ". Moved " + moved + " of " + keys.size() + " rosters");
+        }
+    }
+
+
+    // Rebuild index from existing segments. Records after first invalid record of segment are ignored
+    private void recover() throws IOException {
+        File[] files = dir.listFiles();
+        List<Long> ids = new ArrayList<Long>();
+        for (File file : files == null ? new File[0] : files) {
+            String name = file.getName();
+            if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                try {
+                    ids.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException nfe) {
+                    log.debug("Ignoring file " + file + " in roster store");
+                }
+            }
+        }
+        Collections.sort(ids);
+
+        for (Long id : ids) {
+            Segment segment = new Segment(new File(dir, SEGMENT_PREFIX + id + SEGMENT_SUFFIX));
+            segments.add(segment);
+            scan(segment);
+            nextSegmentId = id + 1;
+        }
+
+        if (!segments.isEmpty()) {
+            log.debug("Recovered " + this);
+        }
+    }
+
+
+    private void scan(Segment segment) throws IOException {
+        long offset = 0;
+        while (offset + HEADER_LENGTH + CHECKSUM_LENGTH <= segment.length) {
+            ByteBuffer header = ByteBuffer.wrap(segment.read(offset, HEADER_LENGTH));
+            int magic = header.getInt();
+            int keyLength = header.getInt();
+            int valueLength = header.getInt();
+
+            // Corrupted lengths could overflow int, so record is treated as torn end of log before it's read
+            long recordLength = (long)HEADER_LENGTH + keyLength + Math.max(valueLength, 0) + CHECKSUM_LENGTH;
+            if (magic != RECORD_MAGIC || keyLength <= 0 || keyLength > MAX_KEY_LENGTH || valueLength < -1
+                    || recordLength > segmentSize || offset + recordLength > segment.length) {
+                break;
+            }
+
+            byte[] record = segment.read(offset, (int)recordLength);
+            if (getChecksum(record) != ByteBuffer.wrap(record, record.length - CHECKSUM_LENGTH, CHECKSUM_LENGTH).getInt()) {
+                break;
+            }
+
+            String key = new String(record, HEADER_LENGTH, keyLength, "UTF-8");
+            if (valueLength < 0) {
+                index.remove(key);
+            } else {
+                index.put(key, new Location(segment, offset, keyLength, valueLength));
+            }
+            offset += recordLength;
+        }
+
+        // Next records will be appended after the last valid record
+        if (offset < segment.length) {
+            log.debug("Ignoring " + (segment.length - offset) + " bytes at the end of " + segment.file);
+            segment.truncate(offset);
+        }
+    }
+
+
+    private static byte[] createRecord(String key, byte[] value, long storeTime) throws IOException {
+        byte[] keyBytes = key.getBytes("UTF-8");
+        if (keyBytes.length > MAX_KEY_LENGTH) {
+            log.debug("Key " + key + " is too long");
+            return null;
+        }
+
+        int valueLength = value == null ? 0 : value.length;
+        ByteBuffer record = ByteBuffer.allocate(HEADER_LENGTH + keyBytes.length + valueLength + CHECKSUM_LENGTH);
+        record.putInt(RECORD_MAGIC)
+                .putInt(keyBytes.length)
+                .putInt(value == null ? -1 : value.length)
+                .putLong(storeTime)
+                .put(keyBytes);
+        if (value != null) {
+            record.put(value);
+        }
+        record.putInt(getChecksum(record.array()));
+        return record.array();
+    }
+
+
+    // Checksum of whole record except checksum itself
+    private static int getChecksum(byte[] record) {
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, record.length - CHECKSUM_LENGTH);
+        return (int)crc.getValue();
+    }
+
+
+    private static byte[] serialize(Serializable value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+        ObjectOutputStream output = new ObjectOutputStream(bytes);
+        output.writeObject(value);
+        output.close();
+        return bytes.toByteArray();
+    }
+
+
+    // ClassCastException is handled like any other failure of deserialization
+    private StoredRoster deserialize(byte[] value) throws IOException, ClassNotFoundException {
+        ObjectInputStream input = new RosterInputStream(new ByteArrayInputStream(value));
+        try {
+            return (StoredRoster)input.readObject();
+        } finally {
+            input.close();
+        }
+    }
+
+
+    // Caller knows type of its roster
+    @SuppressWarnings("unchecked")
+    private <V extends Serializable> V cast(Serializable roster) {
+        return (V)roster;
+    }
+
+
+    // Access token itself is not stored
+    private static class StoredRoster implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String tokenFingerprint;
+        private final Serializable roster;
+
+        private StoredRoster(String tokenFingerprint, Serializable roster) {
+            this.tokenFingerprint = tokenFingerprint;
+            this.roster = roster;
+        }
+    }
+
+
+    // Segments could be modified by somebody else than portal, so only classes of rosters are deserialized
+    private class RosterInputStream extends ObjectInputStream {
+
+        private RosterInputStream(InputStream input) throws IOException {
+            super(input);
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            if (!JDK_CLASSES.contains(desc.getName()) && !allowedClasses.contains(desc.getName())) {
+                throw new InvalidClassException(desc.getName(), "Class is not allowed in roster store");
+            }
+            return super.resolveClass(desc);
+        }
+
+        @Override
+        protected Class<?> resolveProxyClass(String[] interfaces) throws IOException {
+            throw new InvalidClassException("Proxy classes are not allowed in roster store");
+        }
+    }
+
+
+    private static class Segment {
+
+        private final File file;
+        private final RandomAccessFile raf;
+        private final FileChannel channel;
+        private long length;
+
+        private Segment(File file) throws IOException {
+            this.file = file;
+            this.raf = new RandomAccessFile(file, "rw");
+            try {
+                restrictToOwner(file);
+            } catch (IOException ioe) {
+                raf.close();
+                throw ioe;
+            }
+            this.channel = raf.getChannel();
+            this.length = channel.size();
+        }
+
+        private long append(byte[] record) throws IOException {
+            long offset = length;
+            ByteBuffer buffer = ByteBuffer.wrap(record);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, offset + buffer.position());
+            }
+            length += record.length;
+            return offset;
+        }
+
+        private byte[] read(long offset, int count) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(count);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position()) < 0) {
+                    throw new IOException("Unexpected end of " + file);
+                }
+            }
+            return buffer.array();
+        }
+
+        private void truncate(long newLength) throws IOException {
+            channel.truncate(newLength);
+            length = newLength;
+        }
+
+        private void close(boolean force) {
+            try {
+                if (force) {
+                    channel.force(false);
+                }
+                raf.close();
+            } catch (IOException ioe) {
+                log.debug("Unable to close segment " + file + ": " + ioe.getMessage());
+            }
+        }
+    }
+
+
+    private static class Location {
+
+        private final Segment segment;
+        private final long offset;
+        private final int keyLength;
+        private final int valueLength;
+
+        private Location(Segment segment, long offset, int keyLength, int valueLength) {
+            this.segment = segment;
+            this.offset = offset;
+            this.keyLength = keyLength;
+            this.valueLength = valueLength;
+        }
+    }
+}
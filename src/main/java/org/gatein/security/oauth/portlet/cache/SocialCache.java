@@ -0,0 +1,80 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.gatein.security.oauth.portlet.cache;
+
+import java.io.Serializable;
+
+/**
+ * Cache of data obtained from social network on behalf of portal users (friends, activities, profiles etc.). Each entry
+ * belongs to single portal user and it's valid only for access token, with which it was obtained. When user obtains new
+ * token (for example with different scope), his entries are ignored and removed on all cluster nodes.
+ * <p>
+ * Expired entries could be still available through {@link #getStale(String, String)}, so they could be rendered
+ * when social network is unavailable or used as base for incremental update of data.
+ * <p>
+ * Instances are created by {@link SocialCacheFactory}, which decides whether cache is local for this cluster node or
+ * shared by whole cluster.
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+public interface SocialCache<V extends Serializable> extends MonitoredCache {
+
+    /**
+     * @param username portal user
+     * @param accessToken current access token of user
+     * @return value, which is not expired yet, or null
+     */
+    V get(String username, String accessToken);
+
+    /**
+     * @return value even if it's already expired or null if there is no value obtained with given access token
+     */
+    V getStale(String username, String accessToken);
+
+    /**
+     * @return wall-clock time in milliseconds when value expires (or expired) or 0 if there is no value obtained with
+     * given access token
+     */
+    long getExpirationTime(String username, String accessToken);
+
+    /**
+     * Save value with default time-to-live of this cache
+     */
+    void put(String username, String accessToken, V value);
+
+    /**
+     * Save value with its own time-to-live
+     *
+     * @param timeToLive time in milliseconds after which value is expired
+     */
+    void put(String username, String accessToken, V value, long timeToLive);
+
+    void invalidate(String username);
+
+    /**
+     * @return default time-to-live of entries in milliseconds
+     */
+    long getTimeToLive();
+}
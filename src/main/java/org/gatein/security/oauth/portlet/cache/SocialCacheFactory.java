@@ -0,0 +1,122 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.gatein.security.oauth.portlet.cache;
+
+import java.io.Serializable;
+
+import org.exoplatform.container.ExoContainer;
+import org.exoplatform.services.cache.CacheService;
+import org.exoplatform.services.cache.ExoCache;
+import org.gatein.common.logging.Logger;
+import org.gatein.common.logging.LoggerFactory;
+
+/**
+ * Factory for {@link SocialCache} instances. Factory without {@link CacheService} creates caches local for this cluster
+ * node. Factory with cache service creates caches backed by eXo caches with name "gatein.social.{cacheName}", which are
+ * shared by all nodes of clustered portal.
+ * <p>
+ * Clustered caches are used by default if system property "gatein.oauth.portlet.cache.clustered" is true. Size and
+ * time-to-live of each type of data could be overridden for all portlets with system properties
+ * "gatein.oauth.portlet.cache.{cacheName}.maxSize" and "gatein.oauth.portlet.cache.{cacheName}.timeToLive" (seconds)
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+public class SocialCacheFactory {
+
+    private static final Logger log = LoggerFactory.getLogger(SocialCacheFactory.class);
+
+    private static final SocialCacheFactory DEFAULT_INSTANCE = new SocialCacheFactory();
+
+    // Null if caches are local
+    private final CacheService cacheService;
+
+    /**
+     * Create factory of local caches
+     */
+    public SocialCacheFactory() {
+        this(null);
+    }
+
+    /**
+     * @param cacheService service providing clustered caches or null if caches should be local
+     */
+    public SocialCacheFactory(CacheService cacheService) {
+        this.cacheService = cacheService;
+    }
+
+
+    /**
+     * @param container portal container
+     * @return factory registered as component in given container, factory of clustered caches if they are enabled or
+     * factory of local caches
+     */
+    public static SocialCacheFactory getInstance(ExoContainer container) {
+        SocialCacheFactory factory = (SocialCacheFactory)container.getComponentInstanceOfType(SocialCacheFactory.class);
+        if (factory != null) {
+            return factory;
+        }
+
+        if (Boolean.getBoolean("gatein.oauth.portlet.cache.clustered")) {
+            CacheService cacheService = (CacheService)container.getComponentInstanceOfType(CacheService.class);
+            if (cacheService != null) {
+                return new SocialCacheFactory(cacheService);
+            }
+            log.warn("Clustered caches are enabled, but CacheService is not available. Local caches will be used");
+        }
+        return DEFAULT_INSTANCE;
+    }
+
+
+    /**
+     * @param name name of cache, which identifies type of cached data (like "facebookFriends")
+     * @param maxSize default max number of entries. It's ignored by clustered cache
+     * @param timeToLive default time in milliseconds after which entry is expired
+     * @return new cache
+     */
+    public <V extends Serializable> SocialCache<V> createCache(String name, int maxSize, long timeToLive) {
+        String propertyPrefix = "gatein.oauth.portlet.cache." + name;
+        maxSize = Integer.getInteger(propertyPrefix + ".maxSize", maxSize);
+        Long configuredTimeToLive = Long.getLong(propertyPrefix + ".timeToLive");
+        if (configuredTimeToLive != null) {
+            timeToLive = configuredTimeToLive * 1000L;
+        }
+
+        SocialCache<V> cache;
+        if (cacheService != null) {
+            ExoCache<Serializable, AbstractSocialCache.CachedValue<V>> exoCache = cacheService.getCacheInstance("gatein.social." + name);
+            cache = new ClusteredSocialCache<V>(name, timeToLive, exoCache);
+        } else {
+            cache = new LocalSocialCache<V>(name, maxSize, timeToLive);
+        }
+
+        log.debug("Created cache " + cache + " with time-to-live " + timeToLive + " ms");
+        return cache;
+    }
+
+
+    public boolean isClustered() {
+        return cacheService != null;
+    }
+}
@@ -0,0 +1,395 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.gatein.security.oauth.portlet.concurrent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.gatein.common.logging.Logger;
+import org.gatein.common.logging.LoggerFactory;
+import org.gatein.security.oauth.portlet.metrics.SocialMetrics;
+
+/**
+ * Refreshes data of active portal users obtained from single OAuth provider before they expire, so renders find them in
+ * cache. Portlets register themselves as {@link Target} and they report each request of user with {@link #touch(String, Object)}.
+ * Users, who didn't send any request for some time, are not refreshed anymore.
+ * <p>
+ * Refresher periodically asks each target whether data of active users expire soon and schedules their refresh with
+ * random delay (jitter), so refreshes of users, who came at same time, are spread over time. Count of pending refreshes
+ * is bounded and users with most requests in recent time are refreshed first, so less active users wait for next round
+ * when pool is busy.
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+public class BackgroundRefresher {
+
+    private static final Logger log = LoggerFactory.getLogger(BackgroundRefresher.class);
+
+    // Count of pending refreshes for each worker thread
+    private static final int PENDING_PER_THREAD = 4;
+
+    /**
+     * Data of portlet, which could be refreshed in background
+     */
+    public interface Target {
+
+        /**
+         * @param username active portal user
+         * @param accessToken access token of user used in last request
+         * @param refreshAhead time in milliseconds. Data, which expire within this time, should be refreshed
+         * @return true if data of user are expired or they will expire soon. It should use only cached data
+         */
+        boolean isRefreshNeeded(String username, Object accessToken, long refreshAhead);
+
+        /**
+         * Obtain data of user from OAuth provider and save them to cache. Calls to provider should have background priority
+         */
+        void refresh(String username, Object accessToken) throws Exception;
+    }
+
+    private final String providerKey;
+    private final int maxUsers;
+    private final long activeTime;
+    private final long refreshAhead;
+    private final int jitter;
+    private final long maxStaleness;
+
+    private final ConcurrentMap<String, ActiveUser> users = new ConcurrentHashMap<String, ActiveUser>();
+    private final List<Target> targets = new CopyOnWriteArrayList<Target>();
+    private final ScheduledThreadPoolExecutor executor;
+    private final Semaphore pendingRefreshes;
+    // Used only by scheduling thread
+    private final Random random = new Random();
+
+    private final AtomicLong refreshCount = new AtomicLong();
+    private final AtomicLong failureCount = new AtomicLong();
+    private final AtomicLong postponedCount = new AtomicLong();
+
+    /**
+     * @param providerKey key of OAuth provider
+     * @param threads count of threads, which execute refreshes
+     * @param maxUsers max count of tracked active users
+     * @param activeTime time in milliseconds after last request, for which user is considered as active
+     * @param interval time in milliseconds between checks of data of active users
+     * @param refreshAhead data expiring within this time in milliseconds are refreshed
+     * @param jitter max random delay of refresh in milliseconds
+     * @param maxStaleness max time in milliseconds after expiration, for which expired data could be rendered while they
+     *                     are refreshed
+     */
+    public BackgroundRefresher(final String providerKey, int threads, int maxUsers, long activeTime, long interval,
+                               long refreshAhead, int jitter, long maxStaleness) {
+        this.providerKey = providerKey;
+        this.maxUsers = maxUsers;
+        this.activeTime = activeTime;
+        this.refreshAhead = refreshAhead;
+        this.jitter = jitter;
+        this.maxStaleness = maxStaleness;
+        this.pendingRefreshes = new Semaphore(threads * PENDING_PER_THREAD);
+
+        // One more thread for scheduling, so it's not delayed by slow refreshes
+        this.executor = new ScheduledThreadPoolExecutor(threads + 1, new ThreadFactory() {
+
+            private final AtomicInteger counter = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "gatein-social-" + providerKey.toLowerCase(Locale.ENGLISH) + "-refresh-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+
+        });
+        this.executor.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                // Exception would cancel all next runs
+                try {
+                    scheduleRefreshes();
+                } catch (RuntimeException re) {
+                    log.warn("Scheduling of refreshes for provider " + providerKey + " failed", re);
+                }
+            }
+
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+
+    public void register(Target target) {
+        targets.add(target);
+    }
+
+
+    public void unregister(Target target) {
+        targets.remove(target);
+    }
+
+
+    /**
+     * Record request of user, so his data will be refreshed in background while he is active
+     *
+     * @param username portal user
+     * @param accessToken current access token of user for this provider. It's kept only in memory of this cluster node
+     */
+    public void touch(String username, Object accessToken) {
+        long now = System.currentTimeMillis();
+        ActiveUser user = users.get(username);
+        if (user == null) {
+            // Less active users are removed during next scheduling
+            if (users.size() >= maxUsers) {
+                return;
+            }
+            ActiveUser newUser = new ActiveUser(username);
+            user = users.putIfAbsent(username, newUser);
+            if (user == null) {
+                user = newUser;
+            }
+        }
+        user.touch(accessToken, now, activeTime);
+    }
+
+
+    /**
+     * Refresh data of given target for active user as soon as possible. It should be called when render used expired data.
+     *
+     * @return true if refresh is scheduled or it's already running, false if user is not active or there are too many
+     * pending refreshes
+     */
+    public boolean requestRefresh(Target target, String username) {
+        ActiveUser user = users.get(username);
+        if (user == null) {
+            return false;
+        }
+        if (user.isRefreshing(target)) {
+            return true;
+        }
+        return scheduleRefresh(user, target, 0);
+    }
+
+
+    /**
+     * @return max time in milliseconds after expiration, for which expired data could be rendered while they are refreshed
+     */
+    public long getMaxStaleness() {
+        return maxStaleness;
+    }
+
+    public int getActiveUserCount() {
+        return users.size();
+    }
+
+    /**
+     * @return count of successfully finished refreshes
+     */
+    public long getRefreshCount() {
+        return refreshCount.get();
+    }
+
+    public long getFailureCount() {
+        return failureCount.get();
+    }
+
+    /**
+     * @return count of users, whose check was postponed to next round because too many refreshes were pending
+     */
+    public long getPostponedCount() {
+        return postponedCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder("BackgroundRefresher [ provider=" + providerKey)
+                .append(", activeUsers=" + getActiveUserCount())
+                .append(", refreshes=" + getRefreshCount())
+                .append(", failures=" + getFailureCount())
+                .append(", postponed=" + getPostponedCount())
+                .append(" ]").toString();
+    }
+
+
+    void shutdown() {
+        executor.shutdownNow();
+        users.clear();
+    }
+
+
+    private void scheduleRefreshes() {
+        long now = System.currentTimeMillis();
+
+        // Score is computed only once, so it's not changed during sorting
+        List<ScoredUser> candidates = new ArrayList<ScoredUser>(users.size());
+        for (Iterator<ActiveUser> it = users.values().iterator(); it.hasNext(); ) {
+            ActiveUser user = it.next();
+            if (now - user.lastSeen > activeTime) {
+                it.remove();
+            } else {
+                candidates.add(new ScoredUser(user, user.getScore(now, activeTime)));
+            }
+        }
+        ScoredUser[] sorted = candidates.toArray(new ScoredUser[candidates.size()]);
+        Arrays.sort(sorted);
+
+        // Make space for new users by removing the least active ones
+        int count = sorted.length;
+        if (count >= maxUsers) {
+            count = maxUsers - maxUsers / 10;
+            for (int i=count ; i<sorted.length ; i++) {
+                users.remove(sorted[i].user.username);
+            }
+        }
+
+        for (int i=0 ; i<count ; i++) {
+            ActiveUser user = sorted[i].user;
+            for (Target target : targets) {
+                if (user.isRefreshing(target) || !target.isRefreshNeeded(user.username, user.accessToken, refreshAhead)) {
+                    continue;
+                }
+                if (!scheduleRefresh(user, target, jitter > 0 ? random.nextInt(jitter) : 0)) {
+                    // Pool is busy. Remaining users will be checked again in next round
+                    postponedCount.addAndGet(count - i);
+                    return;
+                }
+            }
+        }
+    }
+
+
+    private boolean scheduleRefresh(final ActiveUser user, final Target target, long delay) {
+        if (!pendingRefreshes.tryAcquire()) {
+            return false;
+        }
+        if (!user.startRefresh(target)) {
+            pendingRefreshes.release();
+            return true;
+        }
+
+        final Object accessToken = user.accessToken;
+        Runnable refreshTask = new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    target.refresh(user.username, accessToken);
+                    refreshCount.incrementAndGet();
+                } catch (ProviderUnavailableException pue) {
+                    log.trace("Refresh of data of user " + user.username + " skipped: " + pue.getMessage());
+                } catch (Exception e) {
+                    failureCount.incrementAndGet();
+                    SocialMetrics.recordError(providerKey, e);
+                    log.debug("Refresh of data of user " + user.username + " failed: " + e.getMessage());
+                } finally {
+                    user.finishRefresh(target);
+                    pendingRefreshes.release();
+                }
+            }
+
+        };
+
+        try {
+            executor.schedule(refreshTask, delay, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (RejectedExecutionException ree) {
+            user.finishRefresh(target);
+            pendingRefreshes.release();
+            return false;
+        }
+    }
+
+
+    private static class ActiveUser {
+
+        private final String username;
+        private volatile Object accessToken;
+        private volatile long lastSeen;
+
+        // Count of requests, which decays exponentially with time
+        private double score;
+        private long scoreTime;
+
+        private final Set<Target> refreshing = new HashSet<Target>();
+
+        private ActiveUser(String username) {
+            this.username = username;
+        }
+
+        private synchronized void touch(Object accessToken, long now, long activeTime) {
+            this.score = getScore(now, activeTime) + 1;
+            this.scoreTime = now;
+            this.accessToken = accessToken;
+            this.lastSeen = now;
+        }
+
+        // Score is halved in each quarter of active time
+        private synchronized double getScore(long now, long activeTime) {
+            return score * Math.pow(0.5, (now - scoreTime) * 4.0 / activeTime);
+        }
+
+        private synchronized boolean isRefreshing(Target target) {
+            return refreshing.contains(target);
+        }
+
+        private synchronized boolean startRefresh(Target target) {
+            return refreshing.add(target);
+        }
+
+        private synchronized void finishRefresh(Target target) {
+            refreshing.remove(target);
+        }
+    }
+
+
+    // Users with higher score are sorted first
+    private static class ScoredUser implements Comparable<ScoredUser> {
+
+        private final ActiveUser user;
+        private final double score;
+
+        private ScoredUser(ActiveUser user, double score) {
+            this.user = user;
+            this.score = score;
+        }
+
+        @Override
+        public int compareTo(ScoredUser other) {
+            return Double.compare(other.score, score);
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.gatein.security.oauth.portlet.concurrent;
+
+import org.gatein.common.logging.Logger;
+import org.gatein.common.logging.LoggerFactory;
+
+/**
+ * Circuit breaker, which stops calls to OAuth provider when too many of recent calls failed. Outcomes of last calls are
+ * kept in sliding window. When ratio of failures in full window reaches threshold, breaker is opened and calls are
+ * rejected immediately. After open time, breaker lets single trial call through. Breaker is closed again if trial call
+ * succeeds, otherwise it's opened for another period.
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+public class CircuitBreaker {
+
+    private static final Logger log = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final String name;
+    private final int failureRateThreshold;
+    private final long openTime;
+
+    // Ring buffer with outcomes of last calls. True means failure
+    private final boolean[] outcomes;
+    private int nextIndex;
+    private int recordedCount;
+    private int failureCount;
+
+    private State state = State.CLOSED;
+    private long openedAt;
+    private boolean trialCallRunning;
+
+    /**
+     * @param name name used for logging
+     * @param windowSize count of last calls used for computing failure rate
+     * @param failureRateThreshold percentage of failed calls (1 - 100), which opens the breaker
+     * @param openTime time in milliseconds for which all calls are rejected after breaker is opened
+     */
+    public CircuitBreaker(String name, int windowSize, int failureRateThreshold, long openTime) {
+        this.name = name;
+        this.outcomes = new boolean[windowSize];
+        this.failureRateThreshold = failureRateThreshold;
+        this.openTime = openTime;
+    }
+
+
+    /**
+     * Every permitted call must be followed by {@link #onSuccess()}, {@link #onFailure()} or {@link #releasePermission()}
+     *
+     * @return true if call is permitted
+     */
+    public synchronized boolean tryAcquirePermission() {
+        if (state == State.CLOSED) {
+            return true;
+        }
+
+        if (state == State.OPEN) {
+            if (System.currentTimeMillis() - openedAt < openTime) {
+                return false;
+            }
+            state = State.HALF_OPEN;
+            trialCallRunning = false;
+            log.debug("Circuit breaker " + name + " is half-open");
+        }
+
+        if (trialCallRunning) {
+            return false;
+        }
+        trialCallRunning = true;
+        return true;
+    }
+
+
+    /**
+     * Permitted call was not executed at all (for example because there was no free thread for it)
+     */
+    public synchronized void releasePermission() {
+        trialCallRunning = false;
+    }
+
+
+    public synchronized void onSuccess() {
+        if (state == State.HALF_OPEN) {
+            state = State.CLOSED;
+            resetWindow();
+            log.info("Circuit breaker " + name + " is closed. Calls are permitted again");
+        } else if (state == State.CLOSED) {
+            record(false);
+        }
+    }
+
+
+    public synchronized void onFailure() {
+        if (state == State.HALF_OPEN) {
+            open();
+        } else if (state == State.CLOSED) {
+            record(true);
+            if (recordedCount == outcomes.length && failureCount * 100 >= failureRateThreshold * recordedCount) {
+                open();
+            }
+        }
+    }
+
+
+    public synchronized State getState() {
+        return state;
+    }
+
+
+    /**
+     * @return percentage of failures among last calls or -1 if window is not full yet
+     */
+    public synchronized int getFailureRate() {
+        return recordedCount < outcomes.length ? -1 : failureCount * 100 / recordedCount;
+    }
+
+
+    private void open() {
+        state = State.OPEN;
+        openedAt = System.currentTimeMillis();
+        trialCallRunning = false;
+        resetWindow();
+        log.warn("Circuit breaker " + name + " is open. Calls are rejected for " + openTime + " ms");
+    }
+
+
+    private void record(boolean failure) {
+        if (recordedCount == outcomes.length) {
+            if (outcomes[nextIndex]) {
+                failureCount--;
+            }
+        } else {
+            recordedCount++;
+        }
+
+        outcomes[nextIndex] = failure;
+        if (failure) {
+            failureCount++;
+        }
+        nextIndex = (nextIndex + 1) % outcomes.length;
+    }
+
+
+    private void resetWindow() {
+        nextIndex = 0;
+        recordedCount = 0;
+        failureCount = 0;
+    }
+
+
+    @Override
+    public String toString() {
+        return "CircuitBreaker [ name=" + name + ", state=" + getState() + ", failureRate=" + getFailureRate() + " ]";
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.gatein.security.oauth.portlet.concurrent;
+
+/**
+ * Single call to OAuth provider executed by {@link ProviderGuard}
+ *
+ * @param <V> type of result
+ * @param <E> type of checked exception thrown by call. {@link RuntimeException} if call doesn't throw checked exceptions
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+public abstract class ProviderCall<V, E extends Exception> {
+
+    public abstract V call() throws E;
+
+
+    /**
+     * Subclass could override this to recognize errors caused by user (for example revoked access token or insufficient
+     * scope). Such errors mean that provider is working, so they don't open circuit breaker
+     *
+     * @param error error thrown by {@link #call()}
+     * @return true if error is caused by user and not by failure of provider
+     */
+    public boolean isUserError(Exception error) {
+        return false;
+    }
+}
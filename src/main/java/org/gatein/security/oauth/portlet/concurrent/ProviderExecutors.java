@@ -0,0 +1,249 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.gatein.security.oauth.portlet.concurrent;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.gatein.common.logging.Logger;
+import org.gatein.common.logging.LoggerFactory;
+
+/**
+ * Registry of thread pools used for sending requests to OAuth providers (social networks) in parallel. There is single
+ * bounded pool for each OAuth provider on this cluster node, which is shared by all portlets of this provider.
+ * <p>
+ * Pool is created when first portlet acquires it and it's shut down when last portlet releases it (usually during
+ * undeployment of portlet application). Size of pool could be configured with system properties
+ * "gatein.oauth.portlet.{providerKey}.threads" and "gatein.oauth.portlet.{providerKey}.queueSize"
+ * <p>
+ * Registry also contains {@link ProviderGuard} for each OAuth provider, which is acquired and released in same way.
+ * It could be configured with system properties "gatein.oauth.portlet.{providerKey}.maxConcurrentCalls",
+ * "gatein.oauth.portlet.{providerKey}.callTimeout" (milliseconds), "gatein.oauth.portlet.{providerKey}.breakerWindowSize"
+ * (count of last calls), "gatein.oauth.portlet.{providerKey}.breakerFailureRate" (percentage) and
+ * "gatein.oauth.portlet.{providerKey}.breakerOpenTime" (milliseconds)
+ * <p>
+ * Refresher of data of active users ({@link BackgroundRefresher}) is shared in same way. It could be configured with system
+ * properties "gatein.oauth.portlet.{providerKey}.refreshThreads", "gatein.oauth.portlet.{providerKey}.refreshMaxUsers",
+ * "gatein.oauth.portlet.{providerKey}.refreshActiveTime" (seconds), "gatein.oauth.portlet.{providerKey}.refreshInterval"
+ * (seconds), "gatein.oauth.portlet.{providerKey}.refreshAhead" (seconds), "gatein.oauth.portlet.{providerKey}.refreshJitter"
+ * (milliseconds) and "gatein.oauth.portlet.{providerKey}.maxStaleness" (seconds)
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+public class ProviderExecutors {
+
+    private static final Logger log = LoggerFactory.getLogger(ProviderExecutors.class);
+
+    private static final int DEFAULT_THREADS = 20;
+    private static final int DEFAULT_QUEUE_SIZE = 100;
+    private static final int DEFAULT_MAX_CONCURRENT_CALLS = 50;
+    private static final int DEFAULT_CALL_TIMEOUT = 10000;
+    private static final int DEFAULT_BREAKER_WINDOW_SIZE = 20;
+    private static final int DEFAULT_BREAKER_FAILURE_RATE = 50;
+    private static final int DEFAULT_BREAKER_OPEN_TIME = 30000;
+    private static final int DEFAULT_REFRESH_THREADS = 2;
+    private static final int DEFAULT_REFRESH_MAX_USERS = 1000;
+    private static final int DEFAULT_REFRESH_ACTIVE_TIME = 1800;
+    private static final int DEFAULT_REFRESH_INTERVAL = 10;
+    private static final int DEFAULT_REFRESH_AHEAD = 30;
+    private static final int DEFAULT_REFRESH_JITTER = 5000;
+    private static final int DEFAULT_MAX_STALENESS = 600;
+
+    private static final Map<String, ExecutorService> executors = new HashMap<String, ExecutorService>();
+    private static final Map<String, Integer> referenceCounts = new HashMap<String, Integer>();
+    private static final Map<String, ProviderGuard> guards = new HashMap<String, ProviderGuard>();
+    private static final Map<String, Integer> guardReferenceCounts = new HashMap<String, Integer>();
+    private static final Map<String, BackgroundRefresher> refreshers = new HashMap<String, BackgroundRefresher>();
+    private static final Map<String, Integer> refresherReferenceCounts = new HashMap<String, Integer>();
+
+    private ProviderExecutors() {}
+
+
+    /**
+     * Obtain pool for given OAuth provider. Every call should be paired with {@link #release(String)}
+     *
+     * @param providerKey key of OAuth provider
+     * @return shared pool for this provider
+     */
+    public static synchronized ExecutorService acquire(String providerKey) {
+        ExecutorService executor = executors.get(providerKey);
+        if (executor == null) {
+            executor = createExecutor(providerKey);
+            executors.put(providerKey, executor);
+            referenceCounts.put(providerKey, 0);
+        }
+        referenceCounts.put(providerKey, referenceCounts.get(providerKey) + 1);
+        return executor;
+    }
+
+
+    public static synchronized void release(String providerKey) {
+        Integer referenceCount = referenceCounts.get(providerKey);
+        if (referenceCount == null) {
+            return;
+        }
+
+        if (referenceCount > 1) {
+            referenceCounts.put(providerKey, referenceCount - 1);
+        } else {
+            referenceCounts.remove(providerKey);
+            executors.remove(providerKey).shutdownNow();
+            log.debug("Thread pool for provider " + providerKey + " has been shut down");
+        }
+    }
+
+
+    /**
+     * Obtain guard for calls to given OAuth provider. Every call should be paired with {@link #releaseGuard(String)}
+     *
+     * @param providerKey key of OAuth provider
+     * @return shared guard for this provider
+     */
+    public static synchronized ProviderGuard acquireGuard(String providerKey) {
+        ProviderGuard guard = guards.get(providerKey);
+        if (guard == null) {
+            guard = createGuard(providerKey);
+            guards.put(providerKey, guard);
+            guardReferenceCounts.put(providerKey, 0);
+        }
+        guardReferenceCounts.put(providerKey, guardReferenceCounts.get(providerKey) + 1);
+        return guard;
+    }
+
+
+    public static synchronized void releaseGuard(String providerKey) {
+        Integer referenceCount = guardReferenceCounts.get(providerKey);
+        if (referenceCount == null) {
+            return;
+        }
+
+        if (referenceCount > 1) {
+            guardReferenceCounts.put(providerKey, referenceCount - 1);
+        } else {
+            guardReferenceCounts.remove(providerKey);
+            guards.remove(providerKey).shutdown();
+            log.debug("Guard for provider " + providerKey + " has been shut down");
+        }
+    }
+
+
+    /**
+     * Obtain refresher of data obtained from given OAuth provider. Every call should be paired with {@link #releaseRefresher(String)}
+     *
+     * @param providerKey key of OAuth provider
+     * @return shared refresher for this provider
+     */
+    public static synchronized BackgroundRefresher acquireRefresher(String providerKey) {
+        BackgroundRefresher refresher = refreshers.get(providerKey);
+        if (refresher == null) {
+            refresher = createRefresher(providerKey);
+            refreshers.put(providerKey, refresher);
+            refresherReferenceCounts.put(providerKey, 0);
+        }
+        refresherReferenceCounts.put(providerKey, refresherReferenceCounts.get(providerKey) + 1);
+        return refresher;
+    }
+
+
+    public static synchronized void releaseRefresher(String providerKey) {
+        Integer referenceCount = refresherReferenceCounts.get(providerKey);
+        if (referenceCount == null) {
+            return;
+        }
+
+        if (referenceCount > 1) {
+            refresherReferenceCounts.put(providerKey, referenceCount - 1);
+        } else {
+            refresherReferenceCounts.remove(providerKey);
+            refreshers.remove(providerKey).shutdown();
+            log.debug("Background refresher for provider " + providerKey + " has been shut down");
+        }
+    }
+
+
+    private static ProviderGuard createGuard(String providerKey) {
+        String propertyPrefix = "gatein.oauth.portlet." + providerKey.toLowerCase(Locale.ENGLISH);
+        int maxConcurrentCalls = Integer.getInteger(propertyPrefix + ".maxConcurrentCalls", DEFAULT_MAX_CONCURRENT_CALLS);
+        int callTimeout = Integer.getInteger(propertyPrefix + ".callTimeout", DEFAULT_CALL_TIMEOUT);
+        int windowSize = Integer.getInteger(propertyPrefix + ".breakerWindowSize", DEFAULT_BREAKER_WINDOW_SIZE);
+        int failureRate = Integer.getInteger(propertyPrefix + ".breakerFailureRate", DEFAULT_BREAKER_FAILURE_RATE);
+        int openTime = Integer.getInteger(propertyPrefix + ".breakerOpenTime", DEFAULT_BREAKER_OPEN_TIME);
+
+        CircuitBreaker circuitBreaker = new CircuitBreaker(providerKey, windowSize, failureRate, openTime);
+        log.debug("Created guard for provider " + providerKey + " with " + maxConcurrentCalls + " concurrent calls, timeout " +
+                callTimeout + " ms and circuit breaker opened by " + failureRate + "% of failures in " + windowSize + " calls");
+        return new ProviderGuard(providerKey, maxConcurrentCalls, callTimeout, circuitBreaker);
+    }
+
+
+    private static BackgroundRefresher createRefresher(String providerKey) {
+        String propertyPrefix = "gatein.oauth.portlet." + providerKey.toLowerCase(Locale.ENGLISH);
+        int threads = Integer.getInteger(propertyPrefix + ".refreshThreads", DEFAULT_REFRESH_THREADS);
+        int maxUsers = Integer.getInteger(propertyPrefix + ".refreshMaxUsers", DEFAULT_REFRESH_MAX_USERS);
+        int activeTime = Integer.getInteger(propertyPrefix + ".refreshActiveTime", DEFAULT_REFRESH_ACTIVE_TIME);
+        int interval = Integer.getInteger(propertyPrefix + ".refreshInterval", DEFAULT_REFRESH_INTERVAL);
+        int refreshAhead = Integer.getInteger(propertyPrefix + ".refreshAhead", DEFAULT_REFRESH_AHEAD);
+        int jitter = Integer.getInteger(propertyPrefix + ".refreshJitter", DEFAULT_REFRESH_JITTER);
+        int maxStaleness = Integer.getInteger(propertyPrefix + ".maxStaleness", DEFAULT_MAX_STALENESS);
+
+        log.debug("Created background refresher for provider " + providerKey + " with " + threads + " threads, which refreshes data of " +
+                maxUsers + " users expiring in " + refreshAhead + " seconds");
+        return new BackgroundRefresher(providerKey, threads, maxUsers, activeTime * 1000L, interval * 1000L, refreshAhead * 1000L,
+                jitter, maxStaleness * 1000L);
+    }
+
+
+    private static ExecutorService createExecutor(final String providerKey) {
+        String propertyPrefix = "gatein.oauth.portlet." + providerKey.toLowerCase(Locale.ENGLISH);
+        int threads = Integer.getInteger(propertyPrefix + ".threads", DEFAULT_THREADS);
+        int queueSize = Integer.getInteger(propertyPrefix + ".queueSize", DEFAULT_QUEUE_SIZE);
+
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+
+            private final AtomicInteger counter = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "gatein-social-" + providerKey.toLowerCase(Locale.ENGLISH) + "-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+
+        // If pool is saturated, request will be sent by calling thread, which is same as without parallelism
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+
+        log.debug("Created thread pool for provider " + providerKey + " with " + threads + " threads and queue size " + queueSize);
+        return executor;
+    }
+}
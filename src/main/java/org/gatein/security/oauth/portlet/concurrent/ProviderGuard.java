@@ -0,0 +1,172 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.gatein.security.oauth.portlet.concurrent;
+
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.gatein.security.oauth.portlet.metrics.LatencyHistogram;
+
+/**
+ * Execution layer for calls to single OAuth provider, which protects threads of portal from slow or failing provider.
+ * Calls are executed by bounded thread pool of the provider (bulkhead), while the calling thread waits for result only
+ * for limited time. Circuit breaker rejects all calls immediately when too many recent calls failed or timed out.
+ * <p>
+ * In all these cases {@link ProviderUnavailableException} is thrown. Calls are executed in different thread, so they
+ * shouldn't rely on thread-local context of portal request.
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+public class ProviderGuard {
+
+    private final String providerKey;
+    private final long callTimeout;
+    private final CircuitBreaker circuitBreaker;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * @param providerKey key of OAuth provider
+     * @param maxConcurrentCalls max count of calls running concurrently. Other calls are rejected
+     * @param callTimeout time in milliseconds after which caller stops waiting for result of call
+     * @param circuitBreaker circuit breaker of this provider
+     */
+    public ProviderGuard(final String providerKey, int maxConcurrentCalls, long callTimeout, CircuitBreaker circuitBreaker) {
+        this.providerKey = providerKey;
+        this.callTimeout = callTimeout;
+        this.circuitBreaker = circuitBreaker;
+
+        // No queue, so call is rejected immediately if all threads are busy
+        this.executor = new ThreadPoolExecutor(maxConcurrentCalls, maxConcurrentCalls, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new ThreadFactory() {
+
+            private final AtomicInteger counter = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "gatein-social-" + providerKey.toLowerCase(Locale.ENGLISH) + "-call-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+
+    /**
+     * Execute call to provider and wait for its result
+     *
+     * @param latencyHistogram histogram where latency of call is recorded (including failed calls)
+     * @param call call to execute
+     * @return result of call
+     * @throws E exception thrown by call
+     * @throws ProviderUnavailableException if call was rejected or it timed out
+     */
+    public <V, E extends Exception> V call(LatencyHistogram latencyHistogram, final ProviderCall<V, E> call) throws E {
+        if (!circuitBreaker.tryAcquirePermission()) {
+            throw new ProviderUnavailableException(providerKey, ProviderUnavailableException.Reason.CIRCUIT_OPEN);
+        }
+
+        long startTime = System.nanoTime();
+        Future<V> future;
+        try {
+            future = executor.submit(new Callable<V>() {
+
+                @Override
+                public V call() throws Exception {
+                    return call.call();
+                }
+
+            });
+        } catch (RejectedExecutionException ree) {
+            circuitBreaker.releasePermission();
+            throw new ProviderUnavailableException(providerKey, ProviderUnavailableException.Reason.BULKHEAD_FULL);
+        }
+
+        try {
+            V result = future.get(callTimeout, TimeUnit.MILLISECONDS);
+            circuitBreaker.onSuccess();
+            return result;
+        } catch (TimeoutException te) {
+            future.cancel(true);
+            circuitBreaker.onFailure();
+            throw new ProviderUnavailableException(providerKey, ProviderUnavailableException.Reason.TIMEOUT);
+        } catch (InterruptedException ie) {
+            future.cancel(true);
+            circuitBreaker.releasePermission();
+            Thread.currentThread().interrupt();
+            throw new ProviderUnavailableException(providerKey, ProviderUnavailableException.Reason.INTERRUPTED);
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof Exception && call.isUserError((Exception)cause)) {
+                circuitBreaker.onSuccess();
+            } else {
+                circuitBreaker.onFailure();
+            }
+            throw this.<E>rethrow(cause);
+        } finally {
+            latencyHistogram.recordSince(startTime);
+        }
+    }
+
+
+    /**
+     * @return true if calls are currently rejected by circuit breaker
+     */
+    public boolean isCircuitOpen() {
+        return circuitBreaker.getState() == CircuitBreaker.State.OPEN;
+    }
+
+
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+
+    // Call could throw only E or unchecked exceptions
+    @SuppressWarnings("unchecked")
+    private <E extends Exception> E rethrow(Throwable cause) throws E {
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException)cause;
+        } else if (cause instanceof Error) {
+            throw (Error)cause;
+        }
+        throw (E)cause;
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.gatein.security.oauth.portlet.concurrent;
+
+/**
+ * Thrown by {@link ProviderGuard} or by quota manager when call to OAuth provider was not executed or it didn't finish in time
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+public class ProviderUnavailableException extends RuntimeException {
+
+    public enum Reason {
+        CIRCUIT_OPEN,
+        BULKHEAD_FULL,
+        TIMEOUT,
+        INTERRUPTED,
+        QUOTA_EXCEEDED
+    }
+
+    private final String providerKey;
+    private final Reason reason;
+
+    public ProviderUnavailableException(String providerKey, Reason reason) {
+        super("Call to provider " + providerKey + " failed: " + reason);
+        this.providerKey = providerKey;
+        this.reason = reason;
+    }
+
+
+    public String getProviderKey() {
+        return providerKey;
+    }
+
+    public Reason getReason() {
+        return reason;
+    }
+}
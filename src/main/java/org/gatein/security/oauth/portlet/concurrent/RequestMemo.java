@@ -0,0 +1,190 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.gatein.security.oauth.portlet.concurrent;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Results of calls to OAuth providers done during single portal request. All social portlets on the page are rendered
+ * within same portal request, so identical call of more portlets (for example info about current user) is sent to provider
+ * only once and other portlets use its result. If portlets are rendered in parallel, they wait for call, which is
+ * already running.
+ * <p>
+ * Failed calls are not remembered, so each portlet could handle failure in its own way. Results are shared by more
+ * portlets, so they must not be modified.
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+public class RequestMemo {
+
+    // Attribute of portal request
+    private static final String ATTR_REQUEST_MEMO = RequestMemo.class.getName();
+
+    private final ConcurrentMap<String, Future<Object>> results = new ConcurrentHashMap<String, Future<Object>>();
+    private final AtomicInteger hitCount = new AtomicInteger();
+
+    /**
+     * @param request current portal request
+     * @return memo of given request. It's created during first call
+     */
+    public static RequestMemo getInstance(HttpServletRequest request) {
+        RequestMemo memo = (RequestMemo)request.getAttribute(ATTR_REQUEST_MEMO);
+        if (memo == null) {
+            // Portlets rendered in parallel could create more memos. Only deduplication of some calls is lost then
+            memo = new RequestMemo();
+            request.setAttribute(ATTR_REQUEST_MEMO, memo);
+        }
+        return memo;
+    }
+
+
+    /**
+     * Execute call unless same call was already executed during this request
+     *
+     * @param providerKey key of OAuth provider
+     * @param username portal user on behalf of whom is call sent
+     * @param operation identification of call including all its parameters, which affect result (like "me?fields=id,name")
+     * @param call call to execute. It's executed by calling thread
+     * @return result of this call or of same call executed before
+     * @throws E exception thrown by call. Concurrent callers of same call obtain same exception
+     */
+    public <V, E extends Exception> V call(String providerKey, String username, String operation, final ProviderCall<V, E> call) throws E {
+        String key = getKey(providerKey, username, operation);
+        FutureTask<Object> task = new FutureTask<Object>(new Callable<Object>() {
+
+            @Override
+            public Object call() throws Exception {
+                return call.call();
+            }
+
+        });
+
+        Future<Object> result = results.putIfAbsent(key, task);
+        if (result == null) {
+            result = task;
+            task.run();
+        } else {
+            hitCount.incrementAndGet();
+        }
+
+        try {
+            return this.<V>cast(result.get());
+        } catch (ExecutionException ee) {
+            results.remove(key, result);
+            throw this.<E>rethrow(ee.getCause());
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new ProviderUnavailableException(providerKey, ProviderUnavailableException.Reason.INTERRUPTED);
+        }
+    }
+
+
+    /**
+     * Result of call, which could be obtained without blocking. It's useful for calls, which are normally sent together
+     * with other calls (for example in batch request)
+     *
+     * @return result of finished call or null if call was not executed during this request or it's still running
+     */
+    public <V> V peek(String providerKey, String username, String operation) {
+        Future<Object> result = results.get(getKey(providerKey, username, operation));
+        if (result == null || !result.isDone()) {
+            return null;
+        }
+
+        try {
+            V value = this.<V>cast(result.get());
+            hitCount.incrementAndGet();
+            return value;
+        } catch (ExecutionException ee) {
+            return null;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+
+    /**
+     * Remember result of call executed in other way than with {@link #call(String, String, String, ProviderCall)}
+     */
+    public void put(String providerKey, String username, String operation, Object value) {
+        FutureTask<Object> task = new FutureTask<Object>(new Runnable() {
+
+            @Override
+            public void run() {
+            }
+
+        }, value);
+        task.run();
+        results.put(getKey(providerKey, username, operation), task);
+    }
+
+
+    /**
+     * @return count of calls, which were not sent because their result was already available
+     */
+    public int getHitCount() {
+        return hitCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder("RequestMemo [ results=" + results.size())
+                .append(", hits=" + getHitCount())
+                .append(" ]").toString();
+    }
+
+
+    private static String getKey(String providerKey, String username, String operation) {
+        return providerKey + ":" + username + ":" + operation;
+    }
+
+
+    // Caller knows type of result of its operation
+    @SuppressWarnings("unchecked")
+    private <V> V cast(Object value) {
+        return (V)value;
+    }
+
+
+    // Call could throw only E or unchecked exceptions
+    @SuppressWarnings("unchecked")
+    private <E extends Exception> E rethrow(Throwable cause) throws E {
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException)cause;
+        } else if (cause instanceof Error) {
+            throw (Error)cause;
+        }
+        throw (E)cause;
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.gatein.security.oauth.portlet.concurrent;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.gatein.security.oauth.portlet.metrics.SocialMetrics;
+
+/**
+ * Coalesces concurrent identical loads on this cluster node. When more threads miss same data in cache at same time
+ * (for example many users open popular page or user opens more windows), only the first thread calls OAuth provider
+ * and other threads wait for its result instead of sending same call again.
+ * <p>
+ * Calls in flight are kept in striped maps, so threads loading different keys don't block each other. Call is removed
+ * when it's finished, so it doesn't cache anything and failure of call is obtained only by threads, which were waiting
+ * for it. Call should be bounded by timeout (like calls executed by {@link ProviderGuard}), because waiting threads
+ * don't have their own timeout. Count of executed and coalesced calls is recorded in {@link SocialMetrics}.
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+public class SingleFlight {
+
+    // Must be power of two
+    private static final int STRIPE_COUNT = 32;
+
+    private static final SingleFlight INSTANCE = new SingleFlight();
+
+    private final Stripe[] stripes = new Stripe[STRIPE_COUNT];
+
+    private SingleFlight() {
+        for (int i=0 ; i<STRIPE_COUNT ; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+
+    /**
+     * @return instance shared by all portlets on this cluster node
+     */
+    public static SingleFlight getInstance() {
+        return INSTANCE;
+    }
+
+
+    /**
+     * Execute call unless same call is already running. Call must not execute other call with same name and key.
+     *
+     * @param name type of loaded data used in metrics (For example "FACEBOOK.pictures")
+     * @param key identification of loaded data including all parameters, which affect result (For example username
+     *            and operation for data of user or only ids for public data)
+     * @param call call to execute. It's executed by calling thread if same call is not running
+     * @return result of this call or of same call executed concurrently by other thread
+     * @throws E exception thrown by call. Concurrent callers of same call obtain same exception
+     */
+    public <V, E extends Exception> V execute(String name, String key, final ProviderCall<V, E> call) throws E {
+        String flightKey = name + ":" + key;
+        Stripe stripe = getStripe(flightKey);
+
+        FutureTask<Object> task;
+        boolean leader = false;
+        synchronized (stripe) {
+            task = stripe.calls.get(flightKey);
+            if (task == null) {
+                task = new FutureTask<Object>(new Callable<Object>() {
+
+                    @Override
+                    public Object call() throws Exception {
+                        return call.call();
+                    }
+
+                });
+                stripe.calls.put(flightKey, task);
+                leader = true;
+            }
+        }
+
+        if (leader) {
+            try {
+                task.run();
+            } finally {
+                synchronized (stripe) {
+                    stripe.calls.remove(flightKey);
+                }
+            }
+        }
+        SocialMetrics.recordSingleFlight(name, !leader);
+
+        try {
+            return this.<V>cast(task.get());
+        } catch (ExecutionException ee) {
+            throw this.<E>rethrow(ee.getCause());
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new ProviderUnavailableException(name, ProviderUnavailableException.Reason.INTERRUPTED);
+        }
+    }
+
+
+    /**
+     * @return count of calls, which are running now
+     */
+    public int getInFlightCount() {
+        int count = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                count += stripe.calls.size();
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return "SingleFlight [ inFlight=" + getInFlightCount() + " ]";
+    }
+
+
+    // Spread higher bits of hash, because only lower bits are used for choosing of stripe
+    private Stripe getStripe(String flightKey) {
+        int hash = flightKey.hashCode();
+        hash ^= (hash >>> 16);
+        return stripes[hash & (STRIPE_COUNT - 1)];
+    }
+
+
+    // Caller knows type of result of its call
+    @SuppressWarnings("unchecked")
+    private <V> V cast(Object value) {
+        return (V)value;
+    }
+
+
+    // Call could throw only E or unchecked exceptions
+    @SuppressWarnings("unchecked")
+    private <E extends Exception> E rethrow(Throwable cause) throws E {
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException)cause;
+        } else if (cause instanceof Error) {
+            throw (Error)cause;
+        }
+        throw (E)cause;
+    }
+
+
+    private static class Stripe {
+
+        private final Map<String, FutureTask<Object>> calls = new HashMap<String, FutureTask<Object>>();
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.gatein.security.oauth.portlet.facebook;
+
+import com.restfb.exception.FacebookOAuthException;
+import org.gatein.security.oauth.common.OAuthConstants;
+import org.gatein.security.oauth.portlet.concurrent.ProviderCall;
+import org.gatein.security.oauth.portlet.quota.QuotaManager;
+
+/**
+ * Call to Facebook Graph API. Errors of restfb are unchecked and {@link FacebookOAuthException} (invalid token, insufficient
+ * scope) is caused by user. When Facebook refuses call because of request limit, quota of application or user is blocked
+ * for some time.
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+abstract class FacebookCall<V> extends ProviderCall<V, RuntimeException> {
+
+    // Facebook doesn't report when limit will be reset
+    private static final int RATE_LIMIT_BACKOFF = 60;
+
+    private static final int APP_RATE_LIMIT_ERROR = 4;
+    private static final int USER_RATE_LIMIT_ERROR = 17;
+
+    private final QuotaManager quotaManager;
+    private final String username;
+
+    /**
+     * @param quotaManager quota manager, which is notified about exceeded request limit
+     * @param username portal user on behalf of whom is call sent
+     */
+    FacebookCall(QuotaManager quotaManager, String username) {
+        this.quotaManager = quotaManager;
+        this.username = username;
+    }
+
+
+    abstract V execute();
+
+
+    @Override
+    public final V call() {
+        try {
+            return execute();
+        } catch (FacebookOAuthException foe) {
+            Integer errorCode = foe.getErrorCode();
+            if (errorCode != null && errorCode == APP_RATE_LIMIT_ERROR) {
+                quotaManager.onRateLimited(OAuthConstants.OAUTH_PROVIDER_KEY_FACEBOOK, null, RATE_LIMIT_BACKOFF);
+            } else if (errorCode != null && errorCode == USER_RATE_LIMIT_ERROR) {
+                quotaManager.onRateLimited(OAuthConstants.OAUTH_PROVIDER_KEY_FACEBOOK, username, RATE_LIMIT_BACKOFF);
+            }
+            throw foe;
+        }
+    }
+
+
+    @Override
+    public boolean isUserError(Exception error) {
+        return error instanceof FacebookOAuthException;
+    }
+}
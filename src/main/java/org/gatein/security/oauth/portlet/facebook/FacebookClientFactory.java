@@ -0,0 +1,96 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.gatein.security.oauth.portlet.facebook;
+
+import com.restfb.DefaultFacebookClient;
+import com.restfb.DefaultJsonMapper;
+import com.restfb.FacebookClient;
+import com.restfb.JsonMapper;
+import com.restfb.WebRequestor;
+import org.exoplatform.container.ExoContainer;
+
+/**
+ * Factory for {@link FacebookClient} instances. All clients created by single factory share same {@link WebRequestor}
+ * (and so same pool of HTTP connections) and same {@link JsonMapper}, so creating client for each request is cheap.
+ * <p>
+ * Default instance could be configured with system properties "gatein.oauth.portlet.facebook.maxConnections",
+ * "gatein.oauth.portlet.facebook.connectTimeout" and "gatein.oauth.portlet.facebook.readTimeout"
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+public class FacebookClientFactory {
+
+    private static final FacebookClientFactory DEFAULT_INSTANCE = new FacebookClientFactory(
+            new PooledWebRequestor(Integer.getInteger("gatein.oauth.portlet.facebook.maxConnections", 20),
+                    Integer.getInteger("gatein.oauth.portlet.facebook.connectTimeout", 5000),
+                    Integer.getInteger("gatein.oauth.portlet.facebook.readTimeout", 20000)),
+            new DefaultJsonMapper());
+
+    private final WebRequestor webRequestor;
+    private final JsonMapper jsonMapper;
+
+    public FacebookClientFactory(WebRequestor webRequestor, JsonMapper jsonMapper) {
+        this.webRequestor = webRequestor;
+        this.jsonMapper = jsonMapper;
+    }
+
+
+    /**
+     * @return factory shared on this cluster node
+     */
+    public static FacebookClientFactory getInstance() {
+        return DEFAULT_INSTANCE;
+    }
+
+
+    /**
+     * @param container portal container
+     * @return factory registered as component in given container (For example factory with custom {@link WebRequestor})
+     * or factory shared on this cluster node if container doesn't contain any factory
+     */
+    public static FacebookClientFactory getInstance(ExoContainer container) {
+        FacebookClientFactory factory = (FacebookClientFactory)container.getComponentInstanceOfType(FacebookClientFactory.class);
+        return factory != null ? factory : DEFAULT_INSTANCE;
+    }
+
+
+    /**
+     * @param accessToken Facebook access token
+     * @return lightweight client, which sends requests on behalf of owner of given access token
+     */
+    public FacebookClient createClient(String accessToken) {
+        return new DefaultFacebookClient(accessToken, webRequestor, jsonMapper);
+    }
+
+
+    public WebRequestor getWebRequestor() {
+        return webRequestor;
+    }
+
+
+    public JsonMapper getJsonMapper() {
+        return jsonMapper;
+    }
+}
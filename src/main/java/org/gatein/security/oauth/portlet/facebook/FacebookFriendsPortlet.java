@@ -27,22 +27,22 @@ package org.gatein.security.oauth.portlet.facebook;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 import javax.portlet.ActionRequest;
 import javax.portlet.ActionResponse;
-import javax.portlet.PortletSession;
 import javax.portlet.PortletURL;
 import javax.portlet.ProcessAction;
 import javax.portlet.RenderRequest;
 import javax.portlet.RenderResponse;
 
 import com.restfb.Connection;
-import com.restfb.DefaultFacebookClient;
 import com.restfb.FacebookClient;
 import com.restfb.Parameter;
-import com.restfb.json.JsonObject;
 import com.restfb.types.Comment;
+import com.restfb.types.FacebookType;
 import com.restfb.types.NamedFacebookType;
 import com.restfb.types.StatusMessage;
 import org.exoplatform.container.ExoContainer;
@@ -50,38 +50,102 @@ import org.gatein.security.oauth.common.OAuthConstants;
 import org.gatein.security.oauth.common.OAuthProviderType;
 import org.gatein.security.oauth.facebook.FacebookAccessTokenContext;
 import org.gatein.security.oauth.portlet.AbstractSocialPortlet;
+import org.gatein.security.oauth.portlet.avatar.AvatarProxy;
+import org.gatein.security.oauth.portlet.cache.SocialCache;
+import org.gatein.security.oauth.portlet.concurrent.ProviderCall;
+import org.gatein.security.oauth.portlet.concurrent.RequestMemo;
+import org.gatein.security.oauth.portlet.metrics.LatencyHistogram;
+import org.gatein.security.oauth.portlet.quota.QuotaManager;
+import org.gatein.security.oauth.portlet.template.Template;
 
 /**
  * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
  */
 public class FacebookFriendsPortlet extends AbstractSocialPortlet<FacebookAccessTokenContext> {
 
-    private static final String ATTR_FRIENDS_COUNT = "friendsCount";
     private static final String PARAM_PAGE = "_page";
     private static final String PARAM_PERSON_ID = "_personID";
     private static final String PARAM_USER_FILTER = "_userFilter";
 
     private static final int ITEMS_PER_PAGE = 10;
+    private static final int MAX_FILTER_RESULTS = 50;
+    private static final int ROSTER_PAGE_SIZE = 500;
+
+    // Key of "me" in memo of portal request
+    private static final String OPERATION_ME = "me?fields=id,name,picture";
 
     private static final String ACTION_USER_FILTER = "_actionUserFilter";
     private static final String BUTTON_TRIGGER_FILTER = "triggerFilter";
     private static final String BUTTON_CANCEL_FILTER = "cancelFilter";
+    private static final String ACTION_REFRESH_FRIENDS = "_actionRefreshFriends";
+
+    // Portlet instance is shared on cluster node, so the cache is shared among all portal users on this node (or whole cluster)
+    private SocialCache<FriendsRoster> friendsCache;
+    private FacebookClientFactory facebookClientFactory;
+    private int expirationTime;
+    private boolean rosterSnapshot;
+    private long rosterMaxAge;
+    private LatencyHistogram batchCalls;
+
+    private Template personTemplate;
+    private Template statusMessageTemplate;
+    private Template commentTemplate;
 
     @ProcessAction(name = ACTION_USER_FILTER)
     public void actionTriggerFilter(ActionRequest aReq, ActionResponse aResp) throws IOException {
+        FriendsViewState state = getPortletState(aReq, FriendsViewState.class);
         if (aReq.getParameter(BUTTON_TRIGGER_FILTER) != null) {
 
             // User pressed 'Submit filter'
-            getParameterAndSaveItToSession(PARAM_USER_FILTER, aReq, aReq.getPortletSession());
+            String filter = aReq.getParameter(PARAM_USER_FILTER);
+            if (filter != null) {
+                state.setFilter(filter);
+            }
         } else {
 
             // User pressed 'Cancel filter'
-            aReq.getPortletSession().removeAttribute(PARAM_USER_FILTER);
+            state.setFilter(null);
         }
     }
 
+    @ProcessAction(name = ACTION_REFRESH_FRIENDS)
+    public void actionRefreshFriends(ActionRequest aReq, ActionResponse aResp) throws IOException {
+        invalidateFriends(aReq.getRemoteUser());
+    }
+
     @Override
     protected void afterInit(ExoContainer container) {
+        this.facebookClientFactory = FacebookClientFactory.getInstance(container);
+        this.expirationTime = getIntInitParameter("renderExpiration", 60);
+        this.rosterSnapshot = getBooleanInitParameter("rosterSnapshot", true);
+        this.rosterMaxAge = getIntInitParameter("rosterMaxAge", 86400) * 1000L;
+        this.personTemplate = getTemplate("person", "pictureUrl", "detailUrl", "name");
+        this.statusMessageTemplate = getTemplate("statusMessage", "message", "time", "likesCount", "likers");
+        this.commentTemplate = getTemplate("comment", "from", "message", "time", "likesCount");
+        this.batchCalls = getProviderCallHistogram("batch");
+
+        int cacheSize = getIntInitParameter("friendsCacheSize", 1000);
+        int cacheExpiration = getIntInitParameter("friendsCacheExpiration", 300);
+        this.friendsCache = createCache("facebookFriends", cacheSize, cacheExpiration * 1000L);
+        log.debug("Initialized cache of facebook friends: " + friendsCache);
+        enableBackgroundRefresh();
+        enableRosterStore(FriendsRoster.class, UserWithPicture.class, UserWithPicture.Picture.class, UserWithPicture.Data.class,
+                NamedFacebookType.class, FacebookType.class);
+    }
+
+    /**
+     * Remove cached friends of given portal user, so they will be obtained again from Facebook during next render. Roster
+     * saved on disk is kept, so only changed pages of friends are obtained
+     *
+     * @param username portal user
+     */
+    public void invalidateFriends(String username) {
+        friendsCache.invalidate(username);
+        FacebookAccessTokenContext accessToken = getAccessToken(username);
+        FriendsRoster storedRoster = accessToken != null ? this.<FriendsRoster>loadRoster(username, accessToken.getAccessToken()) : null;
+        if (storedRoster != null) {
+            saveRoster(username, accessToken.getAccessToken(), storedRoster.expire());
+        }
     }
 
     @Override
@@ -90,34 +154,144 @@ public class FacebookFriendsPortlet extends AbstractSocialPortlet<FacebookAccess
     }
 
 
+    @Override
+    protected int getExpirationTime() {
+        return expirationTime;
+    }
+
+
+    // Content can be validated only if we display list of friends (not statuses of selected friend) and friends are cached
+    @Override
+    protected String computeETag(RenderRequest request, FacebookAccessTokenContext accessToken) {
+        if (request.getParameter(PARAM_PERSON_ID) != null) {
+            return null;
+        }
+
+        String username = request.getRemoteUser();
+        FriendsRoster roster = friendsCache.get(username, accessToken.getAccessToken());
+        if (roster == null) {
+            return null;
+        }
+
+        FriendsViewState state = getPortletState(request, FriendsViewState.class);
+        String page = request.getParameter(PARAM_PAGE);
+        if (page == null) {
+            page = String.valueOf(state.getCurrentPage());
+        }
+        String filter = state.getFilter();
+
+        int hash = 31 * username.hashCode() + accessToken.getAccessToken().hashCode();
+        hash = 31 * hash + (filter == null ? 0 : filter.hashCode());
+        return "\"" + Integer.toHexString(hash) + "-" + Integer.toHexString(roster.getVersion()) + "-" + page + "\"";
+    }
+
+
     @Override
     protected void handleRender(RenderRequest request, RenderResponse response, FacebookAccessTokenContext accessToken) throws IOException {
-        PortletSession session = request.getPortletSession();
+        FriendsViewState state = getPortletState(request, FriendsViewState.class);
         PrintWriter out = response.getWriter();
+        String username = request.getRemoteUser();
+        String filter = state.getFilter();
+        String friendId = request.getParameter(PARAM_PERSON_ID);
+        int currentPage = getCurrentPage(request, state);
+
+        FacebookClient facebookClient = facebookClientFactory.createClient(accessToken.getAccessToken());
+        FriendsRoster roster = getFreshOrStale(friendsCache, username, accessToken.getAccessToken());
 
-        FacebookClient facebookClient = new DefaultFacebookClient(accessToken.getAccessToken());
+        // Collect all Graph API calls needed for this render, so they could be sent to Facebook in single batch request
+        GraphBatch batch = new GraphBatch(facebookClient);
 
-        // Obtain info about "me" including picture and render them
-        UserWithPicture me = facebookClient.fetchObject("me", UserWithPicture.class, Parameter.with("fields", "id,name,picture"));
-        renderPerson(response, out, me);
+        RosterSync rosterSync = null;
+        if (roster == null) {
+            // Roster saved before restart is rendered while it's synchronized in background
+            FriendsRoster storedRoster = loadRoster(username, accessToken.getAccessToken());
+            if (storedRoster != null && System.currentTimeMillis() - storedRoster.getSyncTime() < rosterMaxAge
+                    && requestRefresh(username)) {
+                roster = storedRoster;
+            } else {
+                rosterSync = createRosterSync(username, facebookClient, QuotaManager.Priority.INTERACTIVE);
+                rosterSync.register(batch, getPreviousRoster(username, accessToken.getAccessToken(), storedRoster));
+            }
+        }
+
+        // Info about me could be already obtained by other portlet on same page
+        RequestMemo memo = getRequestMemo();
+        UserWithPicture me = roster != null ? roster.getMe() : null;
+        if (me == null && memo != null) {
+            me = memo.peek(OAuthConstants.OAUTH_PROVIDER_KEY_FACEBOOK, username, OPERATION_ME);
+        }
+        GraphBatch.Result<UserWithPicture> meResult = null;
+        if (me == null) {
+            meResult = batch.fetchObject("me", "me", UserWithPicture.class, Parameter.with("fields", "id,name,picture"));
+        }
+
+        // Pictures are not in roster if snapshot mode is disabled
+        List<String> idsOfFriendsToDisplay = null;
+        GraphBatch.Result<Connection<NamedFacebookType>> pageResult = null;
+        GraphBatch.Result<Map<String, UserWithPicture>> picturesResult = null;
+        if (roster != null) {
+            idsOfFriendsToDisplay = getIdsOfFriendsToDisplay(roster, filter, currentPage);
+
+            // Pictures alone are fetched after batch, so same pictures requested concurrently by more users are fetched once
+            if (!roster.hasPictures() && idsOfFriendsToDisplay.size() > 0 && (meResult != null || friendId != null)) {
+                picturesResult = batch.fetchObjects("pictures", idsOfFriendsToDisplay, UserWithPicture.class, Parameter.with("fields", "id,name,picture"));
+            }
+        } else if (!rosterSnapshot && filter == null) {
+            // Ids of friends on current page are not known yet, so Facebook will use them from result of "page" call
+            pageResult = batch.fetchConnection("page", "me/friends", NamedFacebookType.class,
+                    Parameter.with("offset", (currentPage - 1) * ITEMS_PER_PAGE), Parameter.with("limit", ITEMS_PER_PAGE));
+            picturesResult = batch.fetchObjectsOf("pictures", "page", "$.data.*.id", UserWithPicture.class, Parameter.with("fields", "id,name,picture"));
+        }
+
+        GraphBatch.Result<Connection<StatusMessage>> statusesResult = null;
+        GraphBatch.Result<NamedFacebookType> friendResult = null;
+        if (friendId != null) {
+            statusesResult = batch.fetchConnection("statuses", friendId + "/statuses", StatusMessage.class, Parameter.with("limit", 5));
+            if (roster == null || roster.getName(friendId) == null) {
+                friendResult = batch.fetchObject("friend", friendId, NamedFacebookType.class, Parameter.with("fields", "id,name"));
+            }
+        }
+
+        if (!batch.isEmpty()) {
+            executeBatch(username, batch, QuotaManager.Priority.INTERACTIVE);
+        }
+
+        if (meResult != null) {
+            me = meResult.get();
+            if (memo != null) {
+                memo.put(OAuthConstants.OAUTH_PROVIDER_KEY_FACEBOOK, username, OPERATION_ME, me);
+            }
+        }
+        if (rosterSync != null) {
+            roster = completeRosterSync(username, accessToken.getAccessToken(), rosterSync, rosterSnapshot ? me : null);
+        }
+        if (pageResult != null) {
+            idsOfFriendsToDisplay = new ArrayList<String>();
+            for (NamedFacebookType friend : pageResult.get().getData()) {
+                idsOfFriendsToDisplay.add(friend.getId());
+            }
+        } else if (idsOfFriendsToDisplay == null) {
+            idsOfFriendsToDisplay = getIdsOfFriendsToDisplay(roster, filter, currentPage);
+        }
+
+        // Render info about "me" including picture
+        renderPerson(request, response, out, me.getId(), me.getName(), me.getPictureUrl());
         out.println("<hr>");
 
         out.println("<table border><tr><td width=\"50%\" style=\"vertical-align: top\">");
         out.println("<h3>My friends</h3>");
 
-        String filter = (String)session.getAttribute(PARAM_USER_FILTER);
-        List<String> idsOfFriendsToDisplay;
-        if (filter != null) {
-            idsOfFriendsToDisplay = getIdsOfFilteredFriends(filter, facebookClient);
-        } else {
-            idsOfFriendsToDisplay = getIdsOfPaginatedFriends(request, response, session, facebookClient, out);
+        // Pagination is skipped if user filtering is enabled
+        if (filter == null) {
+            renderPagination(response, roster, currentPage, out);
         }
 
         // Render form with user filter
         PortletURL userFilterURL = response.createActionURL();
         userFilterURL.setParameter(ActionRequest.ACTION_NAME, ACTION_USER_FILTER);
         out.println("<form action=\"" + userFilterURL + "\" method=\"POST\">");
-        String tmp = filter==null ? "" : " value=\"" + filter + "\"";
+        // Filter is typed by user, so it must be escaped
+        String tmp = filter==null ? "" : " value=\"" + Template.escape(filter) + "\"";
         out.println("Filter: <input name=\"" + PARAM_USER_FILTER + "\"" + tmp + " />");
         out.println("<input type=\"submit\" name=\"" + BUTTON_TRIGGER_FILTER + "\" value=\"Submit Filter\" />");
         out.println("<input type=\"submit\" name=\"" + BUTTON_CANCEL_FILTER + "\" value=\"Cancel Filter\" /><br>");
@@ -126,29 +300,58 @@ public class FacebookFriendsPortlet extends AbstractSocialPortlet<FacebookAccess
         out.println("<br><br><hr><br>");
 
         // Render friends with their pictures
-        if (idsOfFriendsToDisplay.size() > 0) {
-            // Fetch all required friends with obtained ids
-            JsonObject friendsResult = facebookClient.fetchObjects(idsOfFriendsToDisplay, JsonObject.class, Parameter.with("fields", "id,name,picture"));
-
+        if (roster.hasPictures()) {
             for (String id : idsOfFriendsToDisplay) {
-                JsonObject current = friendsResult.getJsonObject(id);
-                UserWithPicture friend = facebookClient.getJsonMapper().toJavaObject(current.toString(), UserWithPicture.class);
-
-                renderPerson(response, out, friend);
+                renderPerson(request, response, out, id, roster.getName(id), roster.getPictureUrl(id));
                 out.println("<br>");
             }
+        } else if (idsOfFriendsToDisplay.size() > 0) {
+            // Filtered friends were not known before roster was loaded, so their pictures are fetched in separate request
+            // (unless they were fetched in batch)
+            Map<String, UserWithPicture> pictures = picturesResult != null ? picturesResult.get()
+                    : batchFetchPictures(username, facebookClient, idsOfFriendsToDisplay);
+
+            for (String id : idsOfFriendsToDisplay) {
+                UserWithPicture friend = pictures.get(id);
+                if (friend != null) {
+                    renderPerson(request, response, out, friend.getId(), friend.getName(), friend.getPictureUrl());
+                    out.println("<br>");
+                }
+            }
         }
         out.println("</td><td style=\"vertical-align: top\">");
 
         // Render
-        String friendId = request.getParameter(PARAM_PERSON_ID);
         if (friendId != null) {
-            displayStatusOfPerson(friendId, out, facebookClient, me, accessToken, response);
+            String friendName = friendResult != null ? friendResult.get().getName() : roster.getName(friendId);
+            displayStatusOfPerson(friendId, friendName, statusesResult.get().getData(), out, me, accessToken, response);
         }
         out.println("</td></tr></table>");
     }
 
 
+    @Override
+    protected boolean isRefreshNeeded(String username, FacebookAccessTokenContext accessToken, long refreshAhead) {
+        return isExpiring(friendsCache, username, accessToken.getAccessToken(), refreshAhead);
+    }
+
+
+    // Roster is loaded in same way like during render, so next render doesn't need to call Facebook at all
+    @Override
+    protected void refreshData(String username, FacebookAccessTokenContext accessToken) {
+        FacebookClient facebookClient = facebookClientFactory.createClient(accessToken.getAccessToken());
+        GraphBatch batch = new GraphBatch(facebookClient);
+        RosterSync rosterSync = createRosterSync(username, facebookClient, QuotaManager.Priority.BACKGROUND);
+        rosterSync.register(batch, getPreviousRoster(username, accessToken.getAccessToken(), null));
+        GraphBatch.Result<UserWithPicture> meResult = rosterSnapshot
+                ? batch.fetchObject("me", "me", UserWithPicture.class, Parameter.with("fields", "id,name,picture"))
+                : null;
+
+        executeBatch(username, batch, QuotaManager.Priority.BACKGROUND);
+        completeRosterSync(username, accessToken.getAccessToken(), rosterSync, meResult != null ? meResult.get() : null);
+    }
+
+
     private String getLikersText(List<NamedFacebookType> likers) {
         StringBuilder builder = new StringBuilder();
         for (NamedFacebookType like : likers) {
@@ -158,33 +361,34 @@ public class FacebookFriendsPortlet extends AbstractSocialPortlet<FacebookAccess
     }
 
 
-    private List<String> getIdsOfPaginatedFriends(RenderRequest request, RenderResponse response, PortletSession session,
-                                                  FacebookClient facebookClient, PrintWriter out) {
-        // Count total number of friends
-        Integer friendsCount = (Integer)session.getAttribute(ATTR_FRIENDS_COUNT);
-        if (friendsCount == null) {
-            Connection<NamedFacebookType> myFriends = facebookClient.fetchConnection("me/friends", NamedFacebookType.class);
-            friendsCount = myFriends.getData().size();
-            session.setAttribute(ATTR_FRIENDS_COUNT, friendsCount);
-        }
-
-        // Obtain number of current page
-        Integer currentPage;
+    // Obtain number of current page
+    private int getCurrentPage(RenderRequest request, FriendsViewState state) {
         if (request.getParameter(PARAM_PAGE) != null) {
-            currentPage = Integer.parseInt(request.getParameter(PARAM_PAGE));
-            session.setAttribute(PARAM_PAGE, currentPage);
-        } else {
-            currentPage = (Integer)session.getAttribute(PARAM_PAGE);
+            state.setCurrentPage(Integer.parseInt(request.getParameter(PARAM_PAGE)));
         }
-        if (currentPage == null) {
-            currentPage = 1;
+        return state.getCurrentPage();
+    }
+
+
+    private List<String> getIdsOfFriendsToDisplay(FriendsRoster roster, String filter, int currentPage) {
+        if (filter != null) {
+            return roster.search(filter, MAX_FILTER_RESULTS);
         }
 
-        Integer pageCount = ((friendsCount-1) / ITEMS_PER_PAGE) + 1;
-        Integer indexStart = (currentPage - 1) * ITEMS_PER_PAGE;
-        List<NamedFacebookType> friendsToDisplay = facebookClient.fetchConnection("me/friends", NamedFacebookType.class, Parameter.with("offset", indexStart), Parameter.with("limit", ITEMS_PER_PAGE)).getData();
+        // Page is sliced from cached roster, so it's consistent with count of friends
+        int indexStart = (currentPage - 1) * ITEMS_PER_PAGE;
+        return roster.getIds(indexStart, indexStart + ITEMS_PER_PAGE);
+    }
+
 
-        out.println("Count of friends: " + friendsCount + "<br>");
+    private void renderPagination(RenderResponse response, FriendsRoster roster, int currentPage, PrintWriter out) {
+        // Count total number of friends
+        int friendsCount = roster.size();
+        int pageCount = ((friendsCount-1) / ITEMS_PER_PAGE) + 1;
+
+        PortletURL refreshURL = response.createActionURL();
+        refreshURL.setParameter(ActionRequest.ACTION_NAME, ACTION_REFRESH_FRIENDS);
+        out.println("Count of friends: " + friendsCount + " <a style=\"color: blue;\" href=\"" + refreshURL + "\">Refresh</a><br>");
         out.println("Current page: " + currentPage + "<br>");
         out.println("Select page: ");
         for (int i=1 ; i<=pageCount ; i++) {
@@ -192,37 +396,85 @@ public class FacebookFriendsPortlet extends AbstractSocialPortlet<FacebookAccess
             url.setParameter(PARAM_PAGE,  String.valueOf(i));
             out.print("<a style=\"color: blue;\" href=\"" + url + "\">" + i + "</a> ");
         }
+    }
+
+
+    // Snapshot contains pictures of all friends and info about me, so pages could be rendered without requests to Facebook
+    private RosterSync createRosterSync(final String username, FacebookClient facebookClient, final QuotaManager.Priority priority) {
+        return new RosterSync(facebookClient, new RosterSync.BatchExecutor() {
+
+            @Override
+            public void execute(GraphBatch batch) {
+                executeBatch(username, batch, priority);
+            }
+
+        }, rosterSnapshot, ROSTER_PAGE_SIZE);
+    }
+
+
+    // Expired roster from cache already has index of names, so it's preferred to roster saved on disk
+    private FriendsRoster getPreviousRoster(String username, String accessToken, FriendsRoster storedRoster) {
+        FriendsRoster roster = friendsCache.getStale(username, accessToken);
+        if (roster == null) {
+            roster = storedRoster != null ? storedRoster : this.<FriendsRoster>loadRoster(username, accessToken);
+        }
+        return roster;
+    }
+
 
-        // Collect IDS of friends to display
-        List<String> ids = new ArrayList<String>();
-        for (NamedFacebookType current : friendsToDisplay) {
-            ids.add(current.getId());
+    // Pictures are public, so concurrent fetches of same friends by more users are coalesced regardless of user
+    private Map<String, UserWithPicture> batchFetchPictures(final String username, final FacebookClient facebookClient, final List<String> ids) {
+        List<String> sortedIds = new ArrayList<String>(ids);
+        Collections.sort(sortedIds);
+        StringBuilder key = new StringBuilder();
+        for (String id : sortedIds) {
+            key.append(id).append(',');
         }
 
-        return ids;
+        return loadOnce("pictures", key.toString(), new ProviderCall<Map<String, UserWithPicture>, RuntimeException>() {
+
+            @Override
+            public Map<String, UserWithPicture> call() {
+                GraphBatch batch = new GraphBatch(facebookClient);
+                GraphBatch.Result<Map<String, UserWithPicture>> result = batch.fetchObjects("pictures", ids, UserWithPicture.class, Parameter.with("fields", "id,name,picture"));
+                executeBatch(username, batch, QuotaManager.Priority.INTERACTIVE);
+                return result.get();
+            }
+
+        });
     }
 
 
-    // Pagination is skipped if user filtering is enabled
-    private List<String> getIdsOfFilteredFriends(String filter, FacebookClient facebookClient) {
-        // Not good to obtain all friends within each request, but we don't have better way atm (limitation of facebook search api...)
-        // TODO: Cache it?
-        Connection<NamedFacebookType> connection = facebookClient.fetchConnection("me/friends", NamedFacebookType.class);
-        List<NamedFacebookType> allFriends = connection.getData();
-        List<String> result = new ArrayList<String>();
-        for (NamedFacebookType current : allFriends) {
-            if (current.getName().contains(filter)) {
-                result.add(current.getId());
+    private void executeBatch(String username, final GraphBatch batch, QuotaManager.Priority priority) {
+        callProvider(username, priority, batchCalls, new FacebookCall<Void>(getQuotaManager(), username) {
+
+            @Override
+            public Void execute() {
+                batch.execute();
+                return null;
             }
-        }
-        return result;
+
+        });
     }
 
 
-    private void displayStatusOfPerson(String friendId, PrintWriter out, FacebookClient facebookClient, NamedFacebookType me, FacebookAccessTokenContext accessTokenContext, RenderResponse response) {
-        Connection<StatusMessage> statusMessageConnection = facebookClient.fetchConnection(friendId + "/statuses", StatusMessage.class, Parameter.with("limit", 5));
-        List<StatusMessage> statuses = statusMessageConnection.getData();
+    // Create roster from all friends of current user, cache it and save it to disk. We need all friends because of limitation
+    // of facebook search api, but they are cached together with index of their names
+    private FriendsRoster completeRosterSync(String username, String accessToken, RosterSync rosterSync, UserWithPicture me) {
+        FriendsRoster roster = rosterSync.complete(me);
+        friendsCache.put(username, accessToken, roster);
+        saveRoster(username, accessToken, roster);
+
+        if (log.isDebugEnabled()) {
+            log.debug("Loaded " + roster.size() + " facebook friends of user " + username + " (changed pages: " + rosterSync.getChangedPages() +
+                    ", unchanged pages: " + rosterSync.getUnchangedPages() + "). Cache: " + friendsCache);
+        }
+        return roster;
+    }
+
 
+    private void displayStatusOfPerson(String friendId, String friendName, List<StatusMessage> statuses, PrintWriter out,
+                                       NamedFacebookType me, FacebookAccessTokenContext accessTokenContext, RenderResponse response) throws IOException {
         if (statuses.size() == 0) {
             // Different scope is needed for me and different for my friends
             String neededScope = friendId.equals(me.getId()) ? "user_status" : "friends_status";
@@ -239,19 +491,16 @@ public class FacebookFriendsPortlet extends AbstractSocialPortlet<FacebookAccess
                 out.println("Click <a style=\"color: blue;\" href=\"" + actionURL + "\">here</a> to fix it<br>");
             }
         } else {
-            NamedFacebookType currentFriendToDisplay = facebookClient.fetchObject(friendId, NamedFacebookType.class, Parameter.with("fields", "id,name"));
-            out.println("<h3>" + currentFriendToDisplay.getName() + "</h3>");
+            out.print("<h3>");
+            Template.escape(out, friendName);
+            out.println("</h3>");
             for (StatusMessage statusMessage : statuses) {
-                out.println("<b>Status message: </b>" + statusMessage.getMessage() + "<br>");
-                out.println("<div style=\"font-size: 13px;\">");
-                out.println("Time: " + statusMessage.getUpdatedTime() + " - ");
-                out.println("<img src=\"TODO:some-thumbs-picture.gif\" alt=\"Likes: " + statusMessage.getLikes().size() + "\" title=\"" + getLikersText(statusMessage.getLikes()) + "\" /></div><br><hr>");
+                statusMessageTemplate.render(out, statusMessage.getMessage(), statusMessage.getUpdatedTime(),
+                        statusMessage.getLikes().size(), getLikersText(statusMessage.getLikes()));
 
                 List<Comment> comments = statusMessage.getComments();
-                out.println("<b>Comments: </b><br>");
                 for (Comment comment : comments) {
-                    out.println("<i>" + comment.getFrom().getName() + "</i>: " + comment.getMessage() + "<br>");
-                    out.println("<div style=\"font-size: 11px;\">Time: " + comment.getCreatedTime() + " - Likes: " + comment.getLikeCount() + "</div><br>");
+                    commentTemplate.render(out, comment.getFrom().getName(), comment.getMessage(), comment.getCreatedTime(), comment.getLikeCount());
                 }
                 out.println("<br><br><hr>");
             }
@@ -259,9 +508,9 @@ public class FacebookFriendsPortlet extends AbstractSocialPortlet<FacebookAccess
     }
 
 
-    private void renderPerson(RenderResponse response, PrintWriter out, UserWithPicture personToRender) {
+    private void renderPerson(RenderRequest request, RenderResponse response, PrintWriter out, String id, String name, String pictureUrl) throws IOException {
         PortletURL myUrlForPersonDetail = response.createRenderURL();
-        myUrlForPersonDetail.setParameter(PARAM_PERSON_ID, personToRender.getId());
-        out.println("<img src=\"" + personToRender.getPicture().getData().getUrl() + "\" /><a style=\"color: blue;\" href=\"" + myUrlForPersonDetail + "\">" + personToRender.getName() + "</a><br>");
+        myUrlForPersonDetail.setParameter(PARAM_PERSON_ID, id);
+        personTemplate.render(out, getAvatarUrl(request, pictureUrl, AvatarProxy.SIZE_SMALL), myUrlForPersonDetail, name);
     }
 }
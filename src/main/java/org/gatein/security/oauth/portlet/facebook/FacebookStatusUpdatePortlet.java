@@ -24,20 +24,27 @@
 
 package org.gatein.security.oauth.portlet.facebook;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.portlet.ActionRequest;
 import javax.portlet.ActionResponse;
-import javax.portlet.PortletSession;
+import javax.portlet.MimeResponse;
+import javax.portlet.PortletException;
 import javax.portlet.PortletURL;
 import javax.portlet.ProcessAction;
 import javax.portlet.RenderRequest;
 import javax.portlet.RenderResponse;
+import javax.portlet.ResourceRequest;
+import javax.portlet.ResourceResponse;
+import javax.portlet.ResourceURL;
+import javax.servlet.http.HttpServletResponse;
 
-import com.restfb.DefaultFacebookClient;
 import com.restfb.FacebookClient;
 import com.restfb.Parameter;
 import com.restfb.exception.FacebookOAuthException;
@@ -47,6 +54,10 @@ import org.gatein.security.oauth.common.OAuthConstants;
 import org.gatein.security.oauth.common.OAuthProviderType;
 import org.gatein.security.oauth.facebook.FacebookAccessTokenContext;
 import org.gatein.security.oauth.portlet.AbstractSocialPortlet;
+import org.gatein.security.oauth.portlet.concurrent.ProviderUnavailableException;
+import org.gatein.security.oauth.portlet.metrics.LatencyHistogram;
+import org.gatein.security.oauth.portlet.quota.QuotaManager;
+import org.gatein.security.oauth.portlet.template.Template;
 
 /**
  * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
@@ -56,19 +67,55 @@ public class FacebookStatusUpdatePortlet extends AbstractSocialPortlet<FacebookA
     private static final String ACTION_UPDATE_STATUS = "_updateStatus";
     private static final String ACTION_BACK = "_backToForm";
 
-    private static final String ATTR_FB_ACCESS_TOKEN = "AttributeFacebookAccessToken";
     private static final String RENDER_PARAM_STATUS = "renderParamStatus";
     private static final String RENDER_PARAM_ERROR_MESSAGE = "renderParamErrorMessage";
+    private static final String RENDER_PARAM_PUBLISH_TASK = "renderParamPublishTask";
+
+    private static final String INSUFFICIENT_SCOPE_ERROR = "The user hasn't authorized the application to perform this action";
+    private static final int PUBLISH_POLL_INTERVAL = 2000;
 
     private enum Status {
         SUCCESS,
+        PUBLISH_PENDING,
         NOT_SPECIFIED_MESSAGE_OR_LINK,
         FACEBOOK_ERROR_INSUFFICIENT_SCOPE,
         FACEBOOK_ERROR_OTHER
     }
 
+    private FacebookClientFactory facebookClientFactory;
+    private LatencyHistogram publishCalls;
+
+    // Null if messages are published synchronously in action phase
+    private PublishQueue publishQueue;
+
+    private Template inputTemplate;
+
     @Override
     protected void afterInit(ExoContainer container) {
+        this.facebookClientFactory = FacebookClientFactory.getInstance(container);
+        this.inputTemplate = getTemplate("input", "label", "name", "value", "requiredMark");
+        this.publishCalls = getProviderCallHistogram("publish");
+
+        if (getBooleanInitParameter("asyncPublish", true)) {
+            String journalDir = getPortletConfig().getInitParameter("publishJournalDir");
+            this.publishQueue = new PublishQueue(facebookClientFactory, publishCalls, getQuotaManager(),
+                    getIntInitParameter("publishQueueSize", 100),
+                    getIntInitParameter("publishThreads", 2),
+                    getIntInitParameter("publishMaxAttempts", 5),
+                    getIntInitParameter("publishRetryDelay", 1000),
+                    getIntInitParameter("publishMaxAge", 3600) * 1000L,
+                    getIntInitParameter("publishResultExpiration", 600) * 1000L,
+                    journalDir == null || journalDir.trim().length() == 0 ? null : new File(journalDir.trim()));
+            log.debug("Messages will be published to Facebook asynchronously");
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if (publishQueue != null) {
+            publishQueue.shutdown();
+        }
+        super.destroy();
     }
 
     @Override
@@ -80,28 +127,24 @@ public class FacebookStatusUpdatePortlet extends AbstractSocialPortlet<FacebookA
     @Override
     protected void handleRender(RenderRequest request, RenderResponse response, FacebookAccessTokenContext accessToken) throws IOException {
         PrintWriter out = response.getWriter();
-        PortletSession session = request.getPortletSession();
+        StatusFormState state = getPortletState(request, StatusFormState.class);
 
         // Process status
         String statusParam = request.getParameter(RENDER_PARAM_STATUS);
         if (statusParam != null) {
             Status status = Status.valueOf(statusParam);
-            if (status == Status.SUCCESS) {
-                out.println("Your message has been successfully published on your Facebook wall!<br>");
-            } else if (status == Status.NOT_SPECIFIED_MESSAGE_OR_LINK) {
-                out.println("Either message or link needs to be specified!<br>");
-            } else if (status == Status.FACEBOOK_ERROR_INSUFFICIENT_SCOPE) {
-                String neededScope = "publish_stream";
-                out.println("You have insufficient privileges (Facebook scope) to publish message on your FB wall. Your access token need to have scope: <b>" + neededScope + "</b><br>");
-
-                // Create URL for start OAuth2 flow with custom scope added
-                PortletURL actionURL = response.createActionURL();
-                actionURL.setParameter(ActionRequest.ACTION_NAME, AbstractSocialPortlet.ACTION_OAUTH_REDIRECT);
-                actionURL.setParameter(OAuthConstants.PARAM_CUSTOM_SCOPE, neededScope);
-                out.println("Click <a style=\"color: blue;\" href=\"" + actionURL + "\">here</a> to fix it<br>");
-            } else if (status == Status.FACEBOOK_ERROR_OTHER) {
-                String errorMessage = request.getParameter(RENDER_PARAM_ERROR_MESSAGE);
-                out.println("Error occured during facebook processing. Error details: " + errorMessage + "<br>");
+            if (status == Status.PUBLISH_PENDING) {
+                // Status of message is polled until it's published or publishing fails
+                String taskId = request.getParameter(RENDER_PARAM_PUBLISH_TASK);
+                ResourceURL statusURL = response.createResourceURL();
+                statusURL.setParameter(RENDER_PARAM_PUBLISH_TASK, taskId);
+
+                out.println("<div id=\"" + response.getNamespace() + "publishStatus\">");
+                renderPublishStatus(request.getRemoteUser(), taskId, response, out);
+                out.println("</div>");
+                renderPollingScript(response.getNamespace(), statusURL, out);
+            } else {
+                renderStatus(status, request.getParameter(RENDER_PARAM_ERROR_MESSAGE), response, out);
             }
 
             PortletURL backURL = response.createActionURL();
@@ -118,63 +161,80 @@ public class FacebookStatusUpdatePortlet extends AbstractSocialPortlet<FacebookA
         out.println("<div style=\"font-size: 13px;\">Either message or link are required fields</div><br>");
         out.println("<form method=\"POST\" action=\"" + url + "\">");
         out.println("<table>");
-        out.println(renderInput("message", true, session));
+        renderInput("message", true, state, out);
         out.println("<tr><td></td><td></td></tr>");
         out.println("<tr><td colspan=2><div style=\"font-size: 13px;\">Other parameters, which are important only if you want to publish some link</div></td></tr>");
-        out.println(renderInput("link", true, session));
-        out.println(renderInput("picture", false, session));
-        out.println(renderInput("name", false, session));
-        out.println(renderInput("caption", false, session));
-        out.println(renderInput("description", false, session));
+        renderInput("link", true, state, out);
+        renderInput("picture", false, state, out);
+        renderInput("name", false, state, out);
+        renderInput("caption", false, state, out);
+        renderInput("description", false, state, out);
         out.println("</table>");
         out.println("<input type=\"submit\" value=\"submit\" />");
         out.println("</form>");
-
-        // Save FB AccessToken to session, so it could be used in actionUpdateStatus
-        request.getPortletSession().setAttribute(ATTR_FB_ACCESS_TOKEN, accessToken);
     }
 
 
     @ProcessAction(name = ACTION_UPDATE_STATUS)
     public void actionUpdateStatus(ActionRequest aReq, ActionResponse aResp) throws IOException {
-        PortletSession session = aReq.getPortletSession();
+        StatusFormState state = getPortletState(aReq, StatusFormState.class);
 
-        String message = getParameterAndSaveItToSession("message", aReq, session);
-        String link = getParameterAndSaveItToSession("link", aReq, session);
-        String picture = getParameterAndSaveItToSession("picture", aReq, session);
-        String name = getParameterAndSaveItToSession("name", aReq, session);
-        String caption = getParameterAndSaveItToSession("caption", aReq, session);
-        String description = getParameterAndSaveItToSession("description", aReq, session);
+        Map<String, String> messageParams = new LinkedHashMap<String, String>();
+        for (String paramName : StatusFormState.FIELDS) {
+            String paramValue = aReq.getParameter(paramName);
+            if (paramValue != null) {
+                state.setValue(paramName, paramValue);
+            } else {
+                paramValue = state.getValue(paramName);
+            }
+            if (paramValue != null) {
+                messageParams.put(paramName, paramValue);
+            }
+        }
 
-        if (isEmpty(message) && isEmpty(link)) {
+        if (isEmpty(messageParams.get("message")) && isEmpty(messageParams.get("link"))) {
             aResp.setRenderParameter(RENDER_PARAM_STATUS, Status.NOT_SPECIFIED_MESSAGE_OR_LINK.name());
             return;
         }
 
         if (log.isTraceEnabled()) {
-            StringBuilder builder = new StringBuilder("message=" + message)
-                    .append(", link=" + link)
-                    .append(", picture=" + picture)
-                    .append(", name=" + name)
-                    .append(", caption=" + caption)
-                    .append(", description=" + description);
-            log.trace(builder.toString());
+            log.trace(messageParams.toString());
         }
 
-        // Obtain accessToken from portlet session
-        FacebookAccessTokenContext accessTokenContext = (FacebookAccessTokenContext)aReq.getPortletSession().getAttribute(ATTR_FB_ACCESS_TOKEN);
+        // Token is obtained from near-cache, so it doesn't need to be kept in session
+        FacebookAccessTokenContext accessTokenContext = getAccessToken(aReq.getRemoteUser());
+        if (accessTokenContext == null) {
+            aResp.setRenderParameter(RENDER_PARAM_STATUS, Status.FACEBOOK_ERROR_OTHER.name());
+            aResp.setRenderParameter(RENDER_PARAM_ERROR_MESSAGE, "Your Facebook account is not linked with portal account");
+            return;
+        }
 
-        FacebookClient facebookClient = new DefaultFacebookClient(accessTokenContext.getAccessToken());
-        List<Parameter> params = new ArrayList<Parameter>();
-        appendParam(params, "message", message);
-        appendParam(params, "link", link);
-        appendParam(params, "picture", picture);
-        appendParam(params, "name", name);
-        appendParam(params, "caption", caption);
-        appendParam(params, "description", description);
+        // Message is published in background and user can see its status later. It's published synchronously if queue is full
+        if (publishQueue != null) {
+            String taskId = publishQueue.submit(aReq.getRemoteUser(), accessTokenContext.getAccessToken(), messageParams);
+            if (taskId != null) {
+                aResp.setRenderParameter(RENDER_PARAM_STATUS, Status.PUBLISH_PENDING.name());
+                aResp.setRenderParameter(RENDER_PARAM_PUBLISH_TASK, taskId);
+                return;
+            }
+        }
+
+        final FacebookClient facebookClient = facebookClientFactory.createClient(accessTokenContext.getAccessToken());
+        final List<Parameter> params = new ArrayList<Parameter>();
+        for (Map.Entry<String, String> messageParam : messageParams.entrySet()) {
+            params.add(Parameter.with(messageParam.getKey(), messageParam.getValue()));
+        }
 
         try {
-            FacebookType publishMessageResponse = facebookClient.publish("me/feed", FacebookType.class, params.toArray(new Parameter[] {}));
+            FacebookType publishMessageResponse = callProvider(aReq.getRemoteUser(), QuotaManager.Priority.INTERACTIVE, publishCalls,
+                    new FacebookCall<FacebookType>(getQuotaManager(), aReq.getRemoteUser()) {
+
+                @Override
+                public FacebookType execute() {
+                    return facebookClient.publish("me/feed", FacebookType.class, params.toArray(new Parameter[] {}));
+                }
+
+            });
             if (publishMessageResponse.getId() != null) {
                 log.debug("Message published successfully to Facebook profile of user " + aReq.getRemoteUser() + " with ID " + publishMessageResponse.getId());
                 aResp.setRenderParameter(RENDER_PARAM_STATUS, Status.SUCCESS.name());
@@ -182,12 +242,20 @@ public class FacebookStatusUpdatePortlet extends AbstractSocialPortlet<FacebookA
         } catch (FacebookOAuthException foe) {
             String exMessage = foe.getErrorCode() + " - " + foe.getErrorType() + " - " + foe.getErrorMessage();
             log.warn(exMessage);
-            if (foe.getErrorMessage().contains("The user hasn't authorized the application to perform this action")) {
+            recordError(foe);
+            invalidateAccessToken(aReq.getRemoteUser());
+            if (foe.getErrorMessage().contains(INSUFFICIENT_SCOPE_ERROR)) {
                 aResp.setRenderParameter(RENDER_PARAM_STATUS, Status.FACEBOOK_ERROR_INSUFFICIENT_SCOPE.name());
             } else {
                 aResp.setRenderParameter(RENDER_PARAM_STATUS, Status.FACEBOOK_ERROR_OTHER.name());
                 aResp.setRenderParameter(RENDER_PARAM_ERROR_MESSAGE, exMessage);
             }
+        } catch (ProviderUnavailableException pue) {
+            // Message could be still published if call timed out
+            log.warn(pue.getMessage());
+            recordError(pue);
+            aResp.setRenderParameter(RENDER_PARAM_STATUS, Status.FACEBOOK_ERROR_OTHER.name());
+            aResp.setRenderParameter(RENDER_PARAM_ERROR_MESSAGE, "Facebook is temporarily unavailable. Check your wall before publishing message again");
         }
 
     }
@@ -196,34 +264,103 @@ public class FacebookStatusUpdatePortlet extends AbstractSocialPortlet<FacebookA
     public void actionBack(ActionRequest aReq, ActionResponse aResp) throws IOException {
         aResp.removePublicRenderParameter(RENDER_PARAM_STATUS);
         aResp.removePublicRenderParameter(RENDER_PARAM_ERROR_MESSAGE);
+        aResp.removePublicRenderParameter(RENDER_PARAM_PUBLISH_TASK);
     }
 
 
-    private String renderInput(String inputName, boolean required, PortletSession session) {
-        String label = inputName.substring(0, 1).toUpperCase() + inputName.substring(1);
-        StringBuilder result = new StringBuilder("<tr><td>" + label + ": </td><td><input name=\"").
-                append(inputName + "\"");
+    // Serve current status of message published in background
+    @Override
+    protected void handleResource(ResourceRequest request, ResourceResponse response, FacebookAccessTokenContext accessToken)
+            throws PortletException, IOException {
+        String taskId = request.getParameter(RENDER_PARAM_PUBLISH_TASK);
+        if (publishQueue == null || taskId == null) {
+            response.setProperty(ResourceResponse.HTTP_STATUS_CODE, String.valueOf(HttpServletResponse.SC_NOT_FOUND));
+            return;
+        }
+
+        response.setContentType("text/html");
+        renderPublishStatus(request.getRemoteUser(), taskId, response, response.getWriter());
+    }
 
-        // Try to read value from session
-        String value = (String)session.getAttribute(inputName);
-        if (value != null) {
-            result.append(" value=\"" + value + "\"");
+
+    private void renderPublishStatus(String username, String taskId, MimeResponse response, PrintWriter out) {
+        // Users can see only status of their own messages
+        PublishQueue.PublishTask task = publishQueue == null || taskId == null ? null : publishQueue.getTask(taskId);
+        if (task == null || !task.getUsername().equals(username)) {
+            out.println("Status of your message is not available anymore<br>");
+            return;
         }
 
-        result.append(" />");
-        if (required) {
-            result = result.append(" *");
+        switch (task.getStatus()) {
+            case PENDING:
+                out.println("<span id=\"" + response.getNamespace() + "publishPending\">Your message is being published on your Facebook wall...</span><br>");
+                break;
+            case PUBLISHED:
+                renderStatus(Status.SUCCESS, null, response, out);
+                break;
+            case FAILED:
+                String errorMessage = task.getErrorMessage();
+                if (task.isOAuthError()) {
+                    invalidateAccessToken(username);
+                }
+                if (errorMessage != null && errorMessage.contains(INSUFFICIENT_SCOPE_ERROR)) {
+                    renderStatus(Status.FACEBOOK_ERROR_INSUFFICIENT_SCOPE, null, response, out);
+                } else {
+                    renderStatus(Status.FACEBOOK_ERROR_OTHER, errorMessage, response, out);
+                }
+                break;
         }
-        return result.append("</td></tr>").toString();
     }
 
-    private boolean isEmpty(String message) {
-        return message == null || message.length() == 0;
-    }
 
-    private void appendParam(List<Parameter> params, String paramName, String paramValue) {
-        if (paramValue != null) {
-            params.add(Parameter.with(paramName, paramValue));
+    private void renderStatus(Status status, String errorMessage, MimeResponse response, PrintWriter out) {
+        if (status == Status.SUCCESS) {
+            out.println("Your message has been successfully published on your Facebook wall!<br>");
+        } else if (status == Status.NOT_SPECIFIED_MESSAGE_OR_LINK) {
+            out.println("Either message or link needs to be specified!<br>");
+        } else if (status == Status.FACEBOOK_ERROR_INSUFFICIENT_SCOPE) {
+            String neededScope = "publish_stream";
+            out.println("You have insufficient privileges (Facebook scope) to publish message on your FB wall. Your access token need to have scope: <b>" + neededScope + "</b><br>");
+
+            // Create URL for start OAuth2 flow with custom scope added
+            PortletURL actionURL = response.createActionURL();
+            actionURL.setParameter(ActionRequest.ACTION_NAME, AbstractSocialPortlet.ACTION_OAUTH_REDIRECT);
+            actionURL.setParameter(OAuthConstants.PARAM_CUSTOM_SCOPE, neededScope);
+            out.println("Click <a style=\"color: blue;\" href=\"" + actionURL + "\">here</a> to fix it<br>");
+        } else if (status == Status.FACEBOOK_ERROR_OTHER) {
+            out.println("Error occured during facebook processing. Error details: " + Template.escape(errorMessage) + "<br>");
         }
     }
+
+
+    // Poll status of message until it's not pending anymore
+    private void renderPollingScript(String namespace, ResourceURL statusURL, PrintWriter writer) {
+        writer.println("<script type=\"text/javascript\">");
+        writer.println("function " + namespace + "pollStatus() {");
+        writer.println("  if (!document.getElementById(\"" + namespace + "publishPending\")) return;");
+        writer.println("  var xhr = window.XMLHttpRequest ? new XMLHttpRequest() : new ActiveXObject(\"Microsoft.XMLHTTP\");");
+        writer.println("  xhr.onreadystatechange = function() {");
+        writer.println("    if (xhr.readyState != 4 || xhr.status != 200) return;");
+        writer.println("    document.getElementById(\"" + namespace + "publishStatus\").innerHTML = xhr.responseText;");
+        writer.println("    setTimeout(" + namespace + "pollStatus, " + PUBLISH_POLL_INTERVAL + ");");
+        writer.println("  };");
+        writer.println("  xhr.open(\"GET\", \"" + statusURL + "\", true);");
+        writer.println("  xhr.send(null);");
+        writer.println("}");
+        writer.println("setTimeout(" + namespace + "pollStatus, " + PUBLISH_POLL_INTERVAL + ");");
+        writer.println("</script>");
+    }
+
+
+    private void renderInput(String inputName, boolean required, StatusFormState state, PrintWriter out) throws IOException {
+        String label = inputName.substring(0, 1).toUpperCase() + inputName.substring(1);
+
+        // Last submitted value
+        String value = state.getValue(inputName);
+        inputTemplate.render(out, label, inputName, value, required ? " *" : null);
+    }
+
+    private boolean isEmpty(String message) {
+        return message == null || message.length() == 0;
+    }
 }
@@ -43,6 +43,7 @@ import org.gatein.security.oauth.data.SocialNetworkService;
 import org.gatein.security.oauth.facebook.FacebookAccessTokenContext;
 import org.gatein.security.oauth.facebook.GateInFacebookProcessor;
 import org.gatein.security.oauth.portlet.AbstractSocialPortlet;
+import org.gatein.security.oauth.portlet.metrics.LatencyHistogram;
 import org.gatein.security.oauth.social.FacebookPrincipal;
 
 /**
@@ -53,10 +54,12 @@ import org.gatein.security.oauth.social.FacebookPrincipal;
 public class FacebookUserInfoPortlet extends AbstractSocialPortlet<FacebookAccessTokenContext> {
 
     private GateInFacebookProcessor gtnFacebookProcessor;
+    private LatencyHistogram meCalls;
 
     @Override
     protected void afterInit(ExoContainer container) {
         this.gtnFacebookProcessor = (GateInFacebookProcessor)container.getComponentInstanceOfType(GateInFacebookProcessor.class);
+        this.meCalls = getProviderCallHistogram("me");
     }
 
     @Override
@@ -66,8 +69,16 @@ public class FacebookUserInfoPortlet extends AbstractSocialPortlet<FacebookAcces
 
 
     @Override
-    protected void handleRender(RenderRequest request, RenderResponse response, FacebookAccessTokenContext accessToken) throws IOException {
-        FacebookPrincipal principal = gtnFacebookProcessor.getPrincipal(accessToken.getAccessToken());
+    protected void handleRender(RenderRequest request, RenderResponse response, final FacebookAccessTokenContext accessToken) throws IOException {
+        FacebookPrincipal principal = callProviderOnce(request.getRemoteUser(), "principal", meCalls,
+                new FacebookCall<FacebookPrincipal>(getQuotaManager(), request.getRemoteUser()) {
+
+            @Override
+            public FacebookPrincipal execute() {
+                return gtnFacebookProcessor.getPrincipal(accessToken.getAccessToken());
+            }
+
+        });
         writeAndFinishResponse(principal.toString(), response);
     }
 }
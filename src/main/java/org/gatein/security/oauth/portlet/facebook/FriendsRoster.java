@@ -0,0 +1,336 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.gatein.security.oauth.portlet.facebook;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.restfb.types.NamedFacebookType;
+import org.gatein.security.oauth.portlet.search.NameIndex;
+
+/**
+ * Compact snapshot of all friends of single Facebook user together with index of their names. Index is created lazily
+ * during first search.
+ * <p>
+ * Snapshot could be created with pictures of friends and with info about the user himself. In that case, the page with
+ * friends could be rendered just from this snapshot without any request to Facebook.
+ * <p>
+ * Roster remembers URL and ETag of each page of friends, from which it was created, so it could be synchronized with
+ * Facebook incrementally (See {@link RosterSync}).
+ * <p>
+ * Roster could be sent to other cluster nodes or saved to disk. Index is not sent with it, but it's created again on
+ * the node, which needs it.
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+class FriendsRoster implements Serializable {
+
+    private static final long serialVersionUID = 2L;
+
+    private final String[] ids;
+    private final String[] names;
+    // Null if roster was created without pictures
+    private final String[] pictureUrls;
+    private final Map<String, Integer> positionsById;
+
+    // Info about the user himself. Null if roster was created without it
+    private final UserWithPicture me;
+
+    // Relative URL, ETag and position of first friend of each page
+    private final String[] pageUrls;
+    private final String[] pageETags;
+    private final int[] pageStarts;
+    private final long syncTime;
+
+    private final int version;
+    private transient NameIndex nameIndex;
+
+    private FriendsRoster(Builder builder, UserWithPicture me, FriendsRoster previousRoster) {
+        int size = builder.ids.size();
+        this.ids = builder.ids.toArray(new String[size]);
+        this.names = builder.names.toArray(new String[size]);
+        this.pictureUrls = builder.pictureUrls != null && size > 0 ? builder.pictureUrls.toArray(new String[size]) : null;
+        this.positionsById = new HashMap<String, Integer>(size * 4 / 3 + 1);
+        this.me = me;
+        this.pageUrls = builder.pageUrls.toArray(new String[builder.pageUrls.size()]);
+        this.pageETags = builder.pageETags.toArray(new String[builder.pageETags.size()]);
+        this.pageStarts = new int[builder.pageStarts.size()];
+        for (int i=0 ; i<pageStarts.length ; i++) {
+            pageStarts[i] = builder.pageStarts.get(i);
+        }
+        this.syncTime = System.currentTimeMillis();
+
+        for (int i=0 ; i<size ; i++) {
+            positionsById.put(ids[i], i);
+        }
+        this.version = computeVersion();
+
+        NameIndex previousIndex = previousRoster == null ? null : previousRoster.getIndexIfCreated();
+        if (previousIndex != null) {
+            // Previous roster could still be used by other requests, so its index is not changed
+            NameIndex index = new NameIndex(previousIndex);
+            index.sync(getNamesById());
+            this.nameIndex = index;
+        }
+    }
+
+
+    // Copy with different time of synchronization
+    private FriendsRoster(FriendsRoster roster, long syncTime) {
+        this.ids = roster.ids;
+        this.names = roster.names;
+        this.pictureUrls = roster.pictureUrls;
+        this.positionsById = roster.positionsById;
+        this.me = roster.me;
+        this.pageUrls = roster.pageUrls;
+        this.pageETags = roster.pageETags;
+        this.pageStarts = roster.pageStarts;
+        this.syncTime = syncTime;
+        this.version = roster.version;
+    }
+
+
+    int size() {
+        return ids.length;
+    }
+
+
+    /**
+     * @return ids of friends on given positions (from start inclusive to end exclusive)
+     */
+    List<String> getIds(int start, int end) {
+        List<String> result = new ArrayList<String>();
+        for (int i=Math.max(0, start) ; i<Math.min(end, ids.length) ; i++) {
+            result.add(ids[i]);
+        }
+        return result;
+    }
+
+
+    boolean hasPictures() {
+        return pictureUrls != null || ids.length == 0;
+    }
+
+
+    /**
+     * @return name of friend or user himself with given id or null if it's unknown
+     */
+    String getName(String id) {
+        if (me != null && id.equals(me.getId())) {
+            return me.getName();
+        }
+        Integer position = positionsById.get(id);
+        return position == null ? null : names[position];
+    }
+
+
+    /**
+     * @return picture URL of friend or user himself with given id or null if it's unknown
+     */
+    String getPictureUrl(String id) {
+        if (me != null && id.equals(me.getId())) {
+            return me.getPictureUrl();
+        }
+        Integer position = positionsById.get(id);
+        return position == null || pictureUrls == null ? null : pictureUrls[position];
+    }
+
+
+    UserWithPicture getMe() {
+        return me;
+    }
+
+
+    /**
+     * @return hash of all friends, which could be used for checking if friends were changed
+     */
+    int getVersion() {
+        return version;
+    }
+
+
+    /**
+     * @return count of pages of friends obtained from Facebook. It's zero for roster without any friends
+     */
+    int getPageCount() {
+        return pageUrls.length;
+    }
+
+
+    /**
+     * @return URL of given page relative to Graph API
+     */
+    String getPageUrl(int page) {
+        return pageUrls[page];
+    }
+
+
+    /**
+     * @return ETag of given page or null if Facebook didn't send it
+     */
+    String getPageETag(int page) {
+        return pageETags[page];
+    }
+
+
+    /**
+     * @return time in milliseconds when roster was obtained from Facebook
+     */
+    long getSyncTime() {
+        return syncTime;
+    }
+
+
+    /**
+     * @return copy of this roster, which looks like it was never synchronized
+     */
+    FriendsRoster expire() {
+        return new FriendsRoster(this, 0);
+    }
+
+
+    /**
+     * @return ids of friends whose name contains given filter ordered by relevance
+     */
+    List<String> search(String filter, int maxResults) {
+        return getIndex().search(filter, maxResults);
+    }
+
+
+    private synchronized NameIndex getIndex() {
+        if (nameIndex == null) {
+            NameIndex index = new NameIndex();
+            index.sync(getNamesById());
+            nameIndex = index;
+        }
+        return nameIndex;
+    }
+
+
+    private synchronized NameIndex getIndexIfCreated() {
+        return nameIndex;
+    }
+
+
+    private int computeVersion() {
+        int result = 1;
+        for (int i=0 ; i<ids.length ; i++) {
+            result = 31 * result + hashCode(ids[i]);
+            result = 31 * result + hashCode(names[i]);
+            if (pictureUrls != null) {
+                result = 31 * result + hashCode(pictureUrls[i]);
+            }
+        }
+        if (me != null) {
+            result = 31 * result + hashCode(me.getName());
+            result = 31 * result + hashCode(me.getPictureUrl());
+        }
+        return result;
+    }
+
+
+    private static int hashCode(String str) {
+        return str == null ? 0 : str.hashCode();
+    }
+
+
+    private Map<String, String> getNamesById() {
+        Map<String, String> result = new LinkedHashMap<String, String>();
+        for (int i=0 ; i<ids.length ; i++) {
+            result.put(ids[i], names[i]);
+        }
+        return result;
+    }
+
+
+    /**
+     * Collects pages of friends in their order. Unchanged page could be copied from previous roster of same user
+     */
+    static class Builder {
+
+        private final List<String> ids = new ArrayList<String>();
+        private final List<String> names = new ArrayList<String>();
+        // Null if roster is created without pictures
+        private final List<String> pictureUrls;
+        private final List<String> pageUrls = new ArrayList<String>();
+        private final List<String> pageETags = new ArrayList<String>();
+        private final List<Integer> pageStarts = new ArrayList<Integer>();
+
+        Builder(boolean withPictures) {
+            this.pictureUrls = withPictures ? new ArrayList<String>() : null;
+        }
+
+
+        /**
+         * @param pageUrl URL of page relative to Graph API
+         * @param etag ETag of page or null
+         * @param friends friends on page. They should be instances of {@link UserWithPicture} if builder is with pictures
+         */
+        void addPage(String pageUrl, String etag, List<? extends NamedFacebookType> friends) {
+            pageUrls.add(pageUrl);
+            pageETags.add(etag);
+            pageStarts.add(ids.size());
+            for (NamedFacebookType friend : friends) {
+                ids.add(friend.getId());
+                names.add(friend.getName());
+                if (pictureUrls != null) {
+                    pictureUrls.add(friend instanceof UserWithPicture ? ((UserWithPicture)friend).getPictureUrl() : null);
+                }
+            }
+        }
+
+
+        /**
+         * Copy unchanged page from previous roster, which must be created with or without pictures like this builder
+         */
+        void copyPage(FriendsRoster roster, int page) {
+            pageUrls.add(roster.pageUrls[page]);
+            pageETags.add(roster.pageETags[page]);
+            pageStarts.add(ids.size());
+            int end = page + 1 < roster.pageStarts.length ? roster.pageStarts[page + 1] : roster.ids.length;
+            for (int i=roster.pageStarts[page] ; i<end ; i++) {
+                ids.add(roster.ids[i]);
+                names.add(roster.names[i]);
+                if (pictureUrls != null) {
+                    pictureUrls.add(roster.pictureUrls != null ? roster.pictureUrls[i] : null);
+                }
+            }
+        }
+
+
+        /**
+         * @param me user himself or null
+         * @param previousRoster previous (expired) roster of same user or null. If it's available, its index is updated
+         *                       incrementally instead of creating new index
+         */
+        FriendsRoster build(UserWithPicture me, FriendsRoster previousRoster) {
+            return new FriendsRoster(this, me, previousRoster);
+        }
+    }
+}
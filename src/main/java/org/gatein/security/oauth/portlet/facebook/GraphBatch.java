@@ -0,0 +1,391 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.gatein.security.oauth.portlet.facebook;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.restfb.Connection;
+import com.restfb.FacebookClient;
+import com.restfb.Parameter;
+import com.restfb.batch.BatchHeader;
+import com.restfb.batch.BatchRequest;
+import com.restfb.batch.BatchResponse;
+import com.restfb.exception.FacebookException;
+import com.restfb.exception.FacebookGraphException;
+import com.restfb.exception.FacebookOAuthException;
+import com.restfb.json.JsonException;
+import com.restfb.json.JsonObject;
+
+/**
+ * Collects Graph API calls needed for single render and sends them to Facebook as one batch request, so that whole
+ * render costs single round-trip instead of one round-trip per call.
+ * <p>
+ * Calls are registered before {@link #execute()} and each of them returns {@link Result}, whose value is available
+ * after execution. Call could depend on result of other call from same batch (See {@link #fetchObjectsOf})
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+public class GraphBatch {
+
+    private final FacebookClient facebookClient;
+    private final List<BatchRequest> requests = new ArrayList<BatchRequest>();
+    private final List<Result<?>> results = new ArrayList<Result<?>>();
+    private boolean executed;
+
+    public GraphBatch(FacebookClient facebookClient) {
+        this.facebookClient = facebookClient;
+    }
+
+
+    /**
+     * Register call for single object. Equivalent of {@link FacebookClient#fetchObject(String, Class, Parameter...)}
+     */
+    public <T> Result<T> fetchObject(String name, String object, final Class<T> objectType, Parameter... parameters) {
+        return add(name, object, null, parameters, new BatchHeader[0], new Result<T>(name) {
+
+            @Override
+            T parse(String body) {
+                return facebookClient.getJsonMapper().toJavaObject(body, objectType);
+            }
+
+        });
+    }
+
+
+    /**
+     * Register call for connection. Equivalent of {@link FacebookClient#fetchConnection(String, Class, Parameter...)}.
+     * Returned connection could be iterated to obtain next pages, which are fetched outside of this batch
+     */
+    public <T> Result<Connection<T>> fetchConnection(String name, String connection, final Class<T> connectionType, Parameter... parameters) {
+        return add(name, connection, null, parameters, new BatchHeader[0], new Result<Connection<T>>(name) {
+
+            @Override
+            Connection<T> parse(String body) {
+                return new Connection<T>(facebookClient, body, connectionType);
+            }
+
+        });
+    }
+
+
+    /**
+     * Register call for more objects with given ids. Equivalent of {@link FacebookClient#fetchObjects(List, Class, Parameter...)}
+     *
+     * @return result with map of obtained objects where key is id of object
+     */
+    public <T> Result<Map<String, T>> fetchObjects(String name, List<String> ids, Class<T> objectType, Parameter... parameters) {
+        StringBuilder relativeUrl = new StringBuilder("?ids=");
+        for (Iterator<String> it = ids.iterator() ; it.hasNext() ; ) {
+            relativeUrl.append(it.next());
+            if (it.hasNext()) {
+                relativeUrl.append(",");
+            }
+        }
+        return add(name, relativeUrl.toString(), null, parameters, new BatchHeader[0], createObjectsResult(name, objectType));
+    }
+
+
+    /**
+     * Register call for more objects, whose ids are obtained from result of other call of this batch. Facebook
+     * substitutes ids on server side, so both calls are still sent in single round-trip.
+     *
+     * @param name name of this call
+     * @param dependsOn name of call, from whose result will be ids obtained. It must be registered before this call
+     * @param idsPath JSONPath expression for obtaining ids from result of dependsOn call (For example "$.data.*.id")
+     * @param objectType type of objects
+     * @param parameters other parameters of this call
+     * @return result with map of obtained objects where key is id of object
+     */
+    public <T> Result<Map<String, T>> fetchObjectsOf(String name, String dependsOn, String idsPath, Class<T> objectType, Parameter... parameters) {
+        String relativeUrl = "?ids={result=" + dependsOn + ":" + idsPath + "}";
+        return add(name, relativeUrl, dependsOn, parameters, new BatchHeader[0], createObjectsResult(name, objectType));
+    }
+
+
+    /**
+     * Register call for single page of connection. Page is requested conditionally if ETag of its previous version is
+     * known, so Facebook doesn't send unchanged page again.
+     *
+     * @param name name of this call
+     * @param relativeUrl URL of page relative to Graph API including all parameters (For example "me/friends?limit=500")
+     * @param connectionType type of objects in connection
+     * @param etag ETag of previous version of page or null
+     * @return result with page
+     */
+    public <T> Result<Page<T>> fetchPage(String name, final String relativeUrl, final Class<T> connectionType, String etag) {
+        BatchHeader[] headers = etag != null ? new BatchHeader[] { new BatchHeader("If-None-Match", etag) } : new BatchHeader[0];
+        return add(name, relativeUrl, null, new Parameter[0], headers, new Result<Page<T>>(name) {
+
+            @Override
+            Page<T> parse(BatchResponse response) {
+                String responseETag = null;
+                if (response.getHeaders() != null) {
+                    for (BatchHeader header : response.getHeaders()) {
+                        if ("ETag".equalsIgnoreCase(header.getName())) {
+                            responseETag = header.getValue();
+                        }
+                    }
+                }
+
+                if (response.getCode() != null && response.getCode() == 304) {
+                    return new Page<T>(null, responseETag, null);
+                }
+                return response.getBody() != null ? createPage(response.getBody(), responseETag) : null;
+            }
+
+            @Override
+            Page<T> parse(String body) {
+                return createPage(body, null);
+            }
+
+            private Page<T> createPage(String body, String responseETag) {
+                Connection<T> connection = new Connection<T>(facebookClient, body, connectionType);
+                return new Page<T>(connection.getData(), responseETag, getRelativeUrl(connection.getNextPageUrl(), relativeUrl));
+            }
+
+        });
+    }
+
+
+    public boolean isEmpty() {
+        return requests.isEmpty();
+    }
+
+
+    /**
+     * Send all registered calls to Facebook in single batch request. Errors of particular calls are not thrown from this
+     * method, but from {@link Result#get()} of corresponding call. Batch without any calls is not sent at all.
+     *
+     * @throws FacebookException if whole batch request failed
+     */
+    public void execute() {
+        if (executed) {
+            throw new IllegalStateException("Batch already executed");
+        }
+        executed = true;
+
+        if (requests.isEmpty()) {
+            return;
+        }
+
+        List<BatchResponse> responses = facebookClient.executeBatch(requests.toArray(new BatchRequest[requests.size()]));
+        for (int i=0 ; i<results.size() ; i++) {
+            BatchResponse response = i < responses.size() ? responses.get(i) : null;
+            results.get(i).complete(response);
+        }
+    }
+
+
+    private <R> Result<R> add(String name, String relativeUrl, String dependsOn, Parameter[] parameters, BatchHeader[] headers,
+                              Result<R> result) {
+        if (executed) {
+            throw new IllegalStateException("Batch already executed");
+        }
+
+        BatchRequest.BatchRequestBuilder builder = new BatchRequest.BatchRequestBuilder(relativeUrl)
+                .name(name)
+                .parameters(parameters)
+                .headers(headers);
+        if (dependsOn != null) {
+            builder.dependsOn(dependsOn);
+        }
+
+        requests.add(builder.build());
+        results.add(result);
+        return result;
+    }
+
+
+    // Link to next page is absolute and it could contain access token, which must not be saved with page. Facebook
+    // could use different path in the link (version prefix, id of user instead of "me"), so only its parameters are used
+    private static String getRelativeUrl(String nextPageUrl, String relativeUrl) {
+        if (nextPageUrl == null) {
+            return null;
+        }
+
+        int nextQueryStart = nextPageUrl.indexOf('?');
+        if (nextQueryStart == -1) {
+            throw new FacebookGraphException("BatchException", "Unexpected link to next page " + nextPageUrl, null);
+        }
+
+        int queryStart = relativeUrl.indexOf('?');
+        StringBuilder result = new StringBuilder(queryStart == -1 ? relativeUrl : relativeUrl.substring(0, queryStart));
+        char separator = '?';
+        for (String param : nextPageUrl.substring(nextQueryStart + 1).split("&")) {
+            if (param.length() > 0 && !param.startsWith("access_token=")) {
+                result.append(separator).append(param);
+                separator = '&';
+            }
+        }
+        return result.toString();
+    }
+
+
+    private <T> Result<Map<String, T>> createObjectsResult(String name, final Class<T> objectType) {
+        return new Result<Map<String, T>>(name) {
+
+            @Override
+            Map<String, T> parse(String body) {
+                JsonObject json = new JsonObject(body);
+                Map<String, T> objects = new HashMap<String, T>();
+                for (Iterator<?> it = json.keys() ; it.hasNext() ; ) {
+                    String id = (String)it.next();
+                    objects.put(id, facebookClient.getJsonMapper().toJavaObject(json.getJsonObject(id).toString(), objectType));
+                }
+                return objects;
+            }
+
+        };
+    }
+
+
+    /**
+     * Result of single call from batch
+     */
+    public abstract static class Result<T> {
+
+        private final String name;
+        private boolean completed;
+        private T value;
+        private FacebookException error;
+
+        private Result(String name) {
+            this.name = name;
+        }
+
+
+        /**
+         * @return value obtained from Facebook
+         * @throws IllegalStateException if batch was not executed yet
+         * @throws FacebookException if this call failed on Facebook side
+         */
+        public T get() {
+            if (!completed) {
+                throw new IllegalStateException("Batch with call " + name + " was not executed yet");
+            }
+            if (error != null) {
+                throw error;
+            }
+            return value;
+        }
+
+
+        abstract T parse(String body);
+
+
+        // Subclass could override this if it needs headers or status of response
+        T parse(BatchResponse response) {
+            return response.getBody() != null ? parse(response.getBody()) : null;
+        }
+
+
+        private void complete(BatchResponse response) {
+            completed = true;
+
+            if (response == null) {
+                error = new FacebookGraphException("BatchException", "No response for call " + name + " of batch request", null);
+            } else if (response.getCode() != null && response.getCode() >= 400) {
+                error = createError(response);
+            } else {
+                try {
+                    value = parse(response);
+                } catch (FacebookException fe) {
+                    error = fe;
+                }
+            }
+        }
+
+
+        // Error of single call has same format as error of regular Graph API request
+        private FacebookException createError(BatchResponse response) {
+            String type = "BatchException";
+            String message = "Call " + name + " of batch request failed with status " + response.getCode();
+            Integer errorCode = null;
+            if (response.getBody() != null) {
+                try {
+                    JsonObject errorJson = new JsonObject(response.getBody()).getJsonObject("error");
+                    type = errorJson.optString("type", type);
+                    message = errorJson.optString("message", message);
+                    errorCode = errorJson.has("code") ? errorJson.getInt("code") : null;
+                } catch (JsonException je) {
+                    // Keep generic error if body is not JSON with error
+                }
+            }
+
+            if ("OAuthException".equals(type)) {
+                return new FacebookOAuthException(type, message, errorCode, response.getCode());
+            } else {
+                return new FacebookGraphException(type, message, response.getCode());
+            }
+        }
+    }
+
+
+    /**
+     * Single page of connection obtained with {@link #fetchPage(String, String, Class, String)}
+     */
+    public static class Page<T> {
+
+        private final List<T> data;
+        private final String etag;
+        private final String nextPageUrl;
+
+        private Page(List<T> data, String etag, String nextPageUrl) {
+            this.data = data;
+            this.etag = etag;
+            this.nextPageUrl = nextPageUrl;
+        }
+
+        /**
+         * @return true if page was not changed since version with ETag sent in request. Page doesn't have any data then
+         */
+        public boolean isNotModified() {
+            return data == null;
+        }
+
+        public List<T> getData() {
+            return data;
+        }
+
+        /**
+         * @return ETag of this version of page or null if Facebook didn't send it
+         */
+        public String getETag() {
+            return etag;
+        }
+
+        /**
+         * @return URL of next page relative to Graph API without access token or null if this is the last page. It's
+         * null for page, which was not modified
+         */
+        public String getNextPageUrl() {
+            return nextPageUrl;
+        }
+    }
+}
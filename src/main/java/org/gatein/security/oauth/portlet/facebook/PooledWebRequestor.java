@@ -0,0 +1,161 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.gatein.security.oauth.portlet.facebook;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import com.restfb.BinaryAttachment;
+import com.restfb.DefaultWebRequestor;
+import com.restfb.WebRequestor;
+
+/**
+ * Thread-safe {@link WebRequestor}, which could be shared by all Facebook clients on this cluster node.
+ * <p>
+ * Unlike {@link DefaultWebRequestor} it doesn't disconnect connections after reading response, so underlying sockets
+ * are returned to keep-alive cache of JVM and reused by next requests to Facebook. Count of concurrent connections is limited.
+ * Note that count of idle connections kept by JVM for single host is driven by system property "http.maxConnections",
+ * which should be at least the same as maxConnections of this requestor.
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+public class PooledWebRequestor implements WebRequestor {
+
+    private static final String ENCODING = "UTF-8";
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Semaphore connectionPermits;
+    private final int connectTimeout;
+    private final int readTimeout;
+
+    // Used only for rare requests with binary attachments
+    private final WebRequestor multipartRequestor = new DefaultWebRequestor();
+
+    /**
+     * @param maxConnections max count of concurrently opened connections
+     * @param connectTimeout timeout in milliseconds for connecting to Facebook and for waiting to free connection
+     * @param readTimeout timeout in milliseconds for reading response
+     */
+    public PooledWebRequestor(int maxConnections, int connectTimeout, int readTimeout) {
+        this.connectionPermits = new Semaphore(maxConnections);
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+    }
+
+
+    @Override
+    public Response executeGet(String url) throws IOException {
+        return execute(url, null);
+    }
+
+
+    @Override
+    public Response executePost(String url, String parameters) throws IOException {
+        return execute(url, parameters == null ? "" : parameters);
+    }
+
+
+    @Override
+    public Response executePost(String url, String parameters, BinaryAttachment... binaryAttachments) throws IOException {
+        if (binaryAttachments == null || binaryAttachments.length == 0) {
+            return executePost(url, parameters);
+        }
+        return multipartRequestor.executePost(url, parameters, binaryAttachments);
+    }
+
+
+    // Send GET request if postBody is null. Otherwise send POST request with postBody
+    protected Response execute(String url, String postBody) throws IOException {
+        acquireConnectionPermit();
+        try {
+            HttpURLConnection connection = (HttpURLConnection)new URL(url).openConnection();
+            connection.setConnectTimeout(connectTimeout);
+            connection.setReadTimeout(readTimeout);
+            connection.setUseCaches(false);
+            connection.setRequestProperty("Accept-Encoding", "gzip");
+
+            if (postBody != null) {
+                byte[] body = postBody.getBytes(ENCODING);
+                connection.setRequestMethod("POST");
+                connection.setDoOutput(true);
+                connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded; charset=" + ENCODING);
+                connection.setFixedLengthStreamingMode(body.length);
+
+                OutputStream out = connection.getOutputStream();
+                try {
+                    out.write(body);
+                } finally {
+                    out.close();
+                }
+            }
+
+            int statusCode = connection.getResponseCode();
+            InputStream in = statusCode >= HttpURLConnection.HTTP_BAD_REQUEST ? connection.getErrorStream() : connection.getInputStream();
+            return new Response(statusCode, readBody(in, "gzip".equalsIgnoreCase(connection.getContentEncoding())));
+        } finally {
+            connectionPermits.release();
+        }
+    }
+
+
+    private void acquireConnectionPermit() throws IOException {
+        try {
+            if (!connectionPermits.tryAcquire(connectTimeout, TimeUnit.MILLISECONDS)) {
+                throw new IOException("Timeout when waiting for free connection to Facebook");
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted when waiting for free connection to Facebook");
+        }
+    }
+
+
+    // Whole body needs to be read and stream needs to be closed, so that the connection could be reused
+    private String readBody(InputStream in, boolean gzipped) throws IOException {
+        if (in == null) {
+            return null;
+        }
+
+        try {
+            InputStream bodyStream = gzipped ? new GZIPInputStream(in) : in;
+            ByteArrayOutputStream result = new ByteArrayOutputStream();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int count;
+            while ((count = bodyStream.read(buffer)) != -1) {
+                result.write(buffer, 0, count);
+            }
+            return result.toString(ENCODING);
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,491 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.gatein.security.oauth.portlet.facebook;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.restfb.Parameter;
+import com.restfb.exception.FacebookException;
+import com.restfb.exception.FacebookGraphException;
+import com.restfb.exception.FacebookNetworkException;
+import com.restfb.exception.FacebookOAuthException;
+import com.restfb.types.FacebookType;
+import org.gatein.common.logging.Logger;
+import org.gatein.common.logging.LoggerFactory;
+import org.gatein.security.oauth.common.OAuthConstants;
+import org.gatein.security.oauth.portlet.cache.ExpiringCache;
+import org.gatein.security.oauth.portlet.concurrent.ProviderUnavailableException;
+import org.gatein.security.oauth.portlet.metrics.LatencyHistogram;
+import org.gatein.security.oauth.portlet.metrics.SocialMetrics;
+import org.gatein.security.oauth.portlet.quota.QuotaManager;
+
+/**
+ * Bounded queue of messages, which are published to Facebook walls in background. Failed publishing is retried with
+ * exponential backoff if the error is temporary (network error, error on Facebook side or request limit). Message, which
+ * can't be published because quota of calls is exhausted, is postponed until it's older than max age.
+ * <p>
+ * Queued messages could be optionally saved to journal directory, so they are published even after restart of server.
+ * Journal contains access tokens of users, so the directory and its files are readable only by account of portal and
+ * only classes of tasks are deserialized from them.
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+class PublishQueue {
+
+    private static final Logger log = LoggerFactory.getLogger(PublishQueue.class);
+
+    private static final String JOURNAL_SUFFIX = ".task";
+    private static final long MAX_BACKOFF = 60000;
+
+    // Facebook error codes of temporary errors (unknown error, service unavailable, application and user request limit)
+    private static final int[] TEMPORARY_ERROR_CODES = { 1, 2, 4, 17, 341 };
+
+    // Classes used by fields of tasks. LinkedHashMap and Enum are superclasses of field types, which are resolved too
+    private static final Set<String> JOURNAL_CLASSES = new HashSet<String>(Arrays.asList(
+            PublishTask.class.getName(), PublishStatus.class.getName(), "java.lang.Enum", "java.lang.String",
+            "java.util.HashMap", "java.util.LinkedHashMap"));
+
+    private final FacebookClientFactory facebookClientFactory;
+    private final LatencyHistogram publishCalls;
+    private final QuotaManager quotaManager;
+    private final int capacity;
+    private final int maxAttempts;
+    private final long initialBackoff;
+    private final long maxAge;
+    private final File journalDir;
+
+    private final ScheduledThreadPoolExecutor executor;
+    private final AtomicInteger queuedCount = new AtomicInteger();
+
+    // Tasks waiting for publishing and recently finished tasks, so that users could see result of them
+    private final Map<String, PublishTask> pendingTasks = new ConcurrentHashMap<String, PublishTask>();
+    private final ExpiringCache<String, PublishTask> finishedTasks;
+
+    /**
+     * @param facebookClientFactory factory for clients used to publish messages
+     * @param publishCalls histogram for recording latency of publishing
+     * @param quotaManager quota of Facebook calls. Messages are published with background priority
+     * @param capacity max count of messages waiting for publishing
+     * @param threads count of threads publishing messages
+     * @param maxAttempts max count of attempts to publish single message
+     * @param initialBackoff delay in milliseconds before first retry. Delay is doubled with each next retry
+     * @param maxAge time in milliseconds after submit, for which message could be postponed because of exhausted quota
+     * @param finishedTaskExpiration time in milliseconds for which result of publishing is available
+     * @param journalDir directory where queued messages are saved or null if journal is disabled. Journal is disabled
+     *                   too if the directory can't be created or restricted to its owner
+     */
+    PublishQueue(FacebookClientFactory facebookClientFactory, LatencyHistogram publishCalls, QuotaManager quotaManager, int capacity,
+                 int threads, int maxAttempts, long initialBackoff, long maxAge, long finishedTaskExpiration, File journalDir) {
+        this.facebookClientFactory = facebookClientFactory;
+        this.publishCalls = publishCalls;
+        this.quotaManager = quotaManager;
+        this.capacity = capacity;
+        this.maxAttempts = maxAttempts;
+        this.initialBackoff = initialBackoff;
+        this.maxAge = maxAge;
+        this.journalDir = journalDir != null && createJournalDir(journalDir) ? journalDir : null;
+        this.finishedTasks = new ExpiringCache<String, PublishTask>("facebookPublishResults", capacity * 10, finishedTaskExpiration);
+        SocialMetrics.registerCache(finishedTasks);
+
+        final AtomicInteger threadCounter = new AtomicInteger();
+        this.executor = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "gatein-social-facebook-publish-" + threadCounter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+
+        });
+
+        if (this.journalDir != null) {
+            recoverJournal();
+        }
+    }
+
+
+    /**
+     * Add message to the queue
+     *
+     * @param username portal user
+     * @param accessToken Facebook access token of portal user
+     * @param params parameters of message (message, link, picture etc)
+     * @return id of task, which could be used to obtain result of publishing, or null if queue is full
+     */
+    String submit(String username, String accessToken, Map<String, String> params) {
+        if (queuedCount.incrementAndGet() > capacity) {
+            queuedCount.decrementAndGet();
+            log.warn("Queue for publishing to Facebook is full. Count of queued messages: " + capacity);
+            return null;
+        }
+
+        PublishTask task = new PublishTask(UUID.randomUUID().toString(), username, accessToken, params);
+        pendingTasks.put(task.id, task);
+        saveToJournal(task);
+        schedule(task, 0);
+        return task.id;
+    }
+
+
+    /**
+     * @return task with given id or null if task doesn't exist or its result already expired
+     */
+    PublishTask getTask(String taskId) {
+        PublishTask task = pendingTasks.get(taskId);
+        return task != null ? task : finishedTasks.get(taskId);
+    }
+
+
+    /**
+     * Stop publishing. Messages, which were not published yet, stay in journal if it's enabled
+     */
+    void shutdown() {
+        executor.shutdownNow();
+        SocialMetrics.unregisterCache(finishedTasks);
+    }
+
+
+    private void schedule(final PublishTask task, long delay) {
+        executor.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                publish(task);
+            }
+
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+
+    private void publish(final PublishTask task) {
+        // Quota is exhausted. It's not counted as failed attempt, but message isn't postponed forever
+        try {
+            quotaManager.acquire(OAuthConstants.OAUTH_PROVIDER_KEY_FACEBOOK, task.username, QuotaManager.Priority.BACKGROUND);
+        } catch (ProviderUnavailableException pue) {
+            if (System.currentTimeMillis() - task.submitTime > maxAge) {
+                log.warn("Publishing of message of user " + task.username + " failed, because it was postponed for more than "
+                        + maxAge + " ms: " + pue.getMessage());
+                finish(task, PublishStatus.FAILED, "Rate limited. Message was not published in time");
+                return;
+            }
+            log.debug("Publishing of message of user " + task.username + " postponed: " + pue.getMessage());
+            schedule(task, initialBackoff);
+            return;
+        }
+
+        task.attempts++;
+        long startTime = System.nanoTime();
+        try {
+            final List<Parameter> params = new ArrayList<Parameter>();
+            for (Map.Entry<String, String> param : task.params.entrySet()) {
+                params.add(Parameter.with(param.getKey(), param.getValue()));
+            }
+
+            FacebookType response = new FacebookCall<FacebookType>(quotaManager, task.username) {
+
+                @Override
+                public FacebookType execute() {
+                    return facebookClientFactory.createClient(task.accessToken)
+                            .publish("me/feed", FacebookType.class, params.toArray(new Parameter[] {}));
+                }
+
+            }.call();
+            log.debug("Message published successfully to Facebook profile of user " + task.username + " with ID " + response.getId());
+            finish(task, PublishStatus.PUBLISHED, null);
+        } catch (FacebookException fe) {
+            SocialMetrics.recordError(OAuthConstants.OAUTH_PROVIDER_KEY_FACEBOOK, fe);
+            if (isTemporaryError(fe) && task.attempts < maxAttempts) {
+                long backoff = Math.min(initialBackoff << (task.attempts - 1), MAX_BACKOFF);
+                log.debug("Publishing of message of user " + task.username + " failed in attempt " + task.attempts +
+                        ". Retry in " + backoff + " ms. Error: " + fe.getMessage());
+                saveToJournal(task);
+                schedule(task, backoff);
+                return;
+            }
+
+            log.warn("Publishing of message of user " + task.username + " failed after " + task.attempts + " attempts: " + fe.getMessage());
+            task.oauthError = fe instanceof FacebookOAuthException;
+            finish(task, PublishStatus.FAILED, getErrorMessage(fe));
+        } catch (RuntimeException re) {
+            log.error("Unexpected error when publishing message of user " + task.username, re);
+            SocialMetrics.recordError(OAuthConstants.OAUTH_PROVIDER_KEY_FACEBOOK, re);
+            finish(task, PublishStatus.FAILED, re.getMessage());
+        } finally {
+            publishCalls.recordSince(startTime);
+        }
+    }
+
+
+    private void finish(PublishTask task, PublishStatus status, String errorMessage) {
+        task.errorMessage = errorMessage;
+        task.status = status;
+
+        finishedTasks.put(task.id, task);
+        pendingTasks.remove(task.id);
+        queuedCount.decrementAndGet();
+        removeFromJournal(task);
+    }
+
+
+    private boolean isTemporaryError(FacebookException fe) {
+        if (fe instanceof FacebookNetworkException) {
+            return true;
+        }
+
+        if (fe instanceof FacebookOAuthException) {
+            Integer errorCode = ((FacebookOAuthException)fe).getErrorCode();
+            if (errorCode != null) {
+                for (int temporaryCode : TEMPORARY_ERROR_CODES) {
+                    if (temporaryCode == errorCode) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        if (fe instanceof FacebookGraphException) {
+            Integer httpStatusCode = ((FacebookGraphException)fe).getHttpStatusCode();
+            return httpStatusCode != null && httpStatusCode >= 500;
+        }
+
+        return false;
+    }
+
+
+    private String getErrorMessage(FacebookException fe) {
+        if (fe instanceof FacebookOAuthException) {
+            FacebookOAuthException foe = (FacebookOAuthException)fe;
+            return foe.getErrorCode() + " - " + foe.getErrorType() + " - " + foe.getErrorMessage();
+        }
+        return fe.getMessage();
+    }
+
+
+    private void saveToJournal(PublishTask task) {
+        if (journalDir == null) {
+            return;
+        }
+
+        try {
+            File tmpFile = new File(journalDir, task.id + JOURNAL_SUFFIX + ".tmp");
+            FileOutputStream fileOut = new FileOutputStream(tmpFile);
+            try {
+                // File is restricted before access token is written to it
+                restrictToOwner(tmpFile);
+                ObjectOutputStream out = new ObjectOutputStream(fileOut);
+                out.writeObject(task);
+                out.close();
+            } finally {
+                fileOut.close();
+            }
+
+            File file = new File(journalDir, task.id + JOURNAL_SUFFIX);
+            if (!tmpFile.renameTo(file)) {
+                // Rename doesn't overwrite existing file on some platforms
+                file.delete();
+                tmpFile.renameTo(file);
+            }
+        } catch (IOException ioe) {
+            log.warn("Unable to save message of user " + task.username + " to journal " + journalDir, ioe);
+        }
+    }
+
+
+    private void removeFromJournal(PublishTask task) {
+        if (journalDir != null) {
+            new File(journalDir, task.id + JOURNAL_SUFFIX).delete();
+        }
+    }
+
+
+    private static boolean createJournalDir(File journalDir) {
+        if (!journalDir.isDirectory() && !journalDir.mkdirs()) {
+            log.warn("Journal directory " + journalDir + " can't be created. Journal is disabled");
+            return false;
+        }
+
+        // Directory could be created by other account, which can't be trusted then
+        try {
+            restrictToOwner(journalDir);
+            return true;
+        } catch (IOException ioe) {
+            log.warn(ioe.getMessage() + ". Journal is disabled");
+            return false;
+        }
+    }
+
+
+    // Permissions can't be restricted this way on Windows, where directory inherits permissions of its parent
+    private static void restrictToOwner(File file) throws IOException {
+        if (File.separatorChar == '\\') {
+            return;
+        }
+
+        boolean restricted = file.setReadable(false, false) && file.setReadable(true, true)
+                && file.setWritable(false, false) && file.setWritable(true, true)
+                && file.setExecutable(false, false) && (!file.isDirectory() || file.setExecutable(true, true));
+        if (!restricted) {
+            throw new IOException("Unable to restrict permissions of " + file + " to its owner");
+        }
+    }
+
+
+    // Schedule messages, which were not published before last shutdown
+    private void recoverJournal() {
+        File[] files = journalDir.listFiles();
+        if (files == null) {
+            log.warn("Journal directory " + journalDir + " can't be read");
+            return;
+        }
+        for (File file : files) {
+            if (!file.getName().endsWith(JOURNAL_SUFFIX)) {
+                continue;
+            }
+
+            try {
+                ObjectInputStream in = new JournalInputStream(new FileInputStream(file));
+                try {
+                    PublishTask task = (PublishTask)in.readObject();
+                    task.status = PublishStatus.PENDING;
+                    if (task.submitTime == 0) {
+                        // Journal written before submit time was saved
+                        task.submitTime = System.currentTimeMillis();
+                    }
+                    queuedCount.incrementAndGet();
+                    pendingTasks.put(task.id, task);
+                    schedule(task, 0);
+                } finally {
+                    in.close();
+                }
+            } catch (Exception e) {
+                log.warn("Unable to recover message from journal file " + file + ". File will be removed", e);
+                file.delete();
+            }
+        }
+
+        if (pendingTasks.size() > 0) {
+            log.info("Recovered " + pendingTasks.size() + " messages for publishing to Facebook from journal " + journalDir);
+        }
+    }
+
+
+    // Journal could be modified by somebody else than portal, so only classes of tasks are deserialized
+    private static class JournalInputStream extends ObjectInputStream {
+
+        private JournalInputStream(InputStream input) throws IOException {
+            super(input);
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            if (!JOURNAL_CLASSES.contains(desc.getName())) {
+                throw new InvalidClassException(desc.getName(), "Class is not allowed in journal");
+            }
+            return super.resolveClass(desc);
+        }
+
+        @Override
+        protected Class<?> resolveProxyClass(String[] interfaces) throws IOException {
+            throw new InvalidClassException("Proxy classes are not allowed in journal");
+        }
+    }
+
+
+    enum PublishStatus {
+        PENDING,
+        PUBLISHED,
+        FAILED
+    }
+
+
+    /**
+     * Message waiting for publishing or already finished. Status fields are updated by publishing thread and read by
+     * render threads
+     */
+    static class PublishTask implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String id;
+        private final String username;
+        private final String accessToken;
+        private final LinkedHashMap<String, String> params;
+        // Wall-clock time, so it's meaningful after restart
+        private long submitTime;
+
+        private volatile int attempts;
+        private volatile PublishStatus status = PublishStatus.PENDING;
+        private volatile String errorMessage;
+        private volatile boolean oauthError;
+
+        private PublishTask(String id, String username, String accessToken, Map<String, String> params) {
+            this.id = id;
+            this.username = username;
+            this.accessToken = accessToken;
+            this.params = new LinkedHashMap<String, String>(params);
+            this.submitTime = System.currentTimeMillis();
+        }
+
+        String getUsername() {
+            return username;
+        }
+
+        PublishStatus getStatus() {
+            return status;
+        }
+
+        String getErrorMessage() {
+            return errorMessage;
+        }
+
+        boolean isOAuthError() {
+            return oauthError;
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.gatein.security.oauth.portlet.facebook;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.restfb.FacebookClient;
+import com.restfb.exception.FacebookGraphException;
+import com.restfb.types.NamedFacebookType;
+
+/**
+ * Synchronizes roster of single user with Facebook. Pages of previous roster are requested again with their ETags,
+ * so Facebook sends only pages, which were changed, and unchanged pages are copied from previous roster. When some page
+ * was changed so that its link to next page is different than before (for example because friend was added), remaining
+ * pages are obtained by following links to next pages like when there is no previous roster.
+ * <p>
+ * Calls for first pages are registered to batch of caller, so they could be sent together with other calls needed for
+ * render. Remaining pages are obtained in separate batches.
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+class RosterSync {
+
+    /**
+     * Sends batch to Facebook (usually with quota and guard of portlet)
+     */
+    interface BatchExecutor {
+
+        void execute(GraphBatch batch);
+    }
+
+    // Facebook accepts at most 50 calls in single batch. Some space is left for other calls of render
+    private static final int PAGES_PER_BATCH = 40;
+
+    // Links to next pages are followed at most until roster has this count of pages, so broken paging can't loop forever
+    private static final int MAX_PAGES = 100;
+
+    private final FacebookClient facebookClient;
+    private final BatchExecutor executor;
+    private final boolean withPictures;
+    private final Class<? extends NamedFacebookType> friendType;
+    private final String firstPageUrl;
+
+    // Null if roster is obtained from scratch
+    private FriendsRoster previousRoster;
+    private final List<GraphBatch.Result<? extends GraphBatch.Page<? extends NamedFacebookType>>> results =
+            new ArrayList<GraphBatch.Result<? extends GraphBatch.Page<? extends NamedFacebookType>>>();
+    private int changedPages;
+    private int unchangedPages;
+
+    /**
+     * @param facebookClient client with access token of user
+     * @param executor executor of batches, which are not sent by caller
+     * @param withPictures true if roster should contain pictures of friends
+     * @param pageSize count of friends on single page
+     */
+    RosterSync(FacebookClient facebookClient, BatchExecutor executor, boolean withPictures, int pageSize) {
+        this.facebookClient = facebookClient;
+        this.executor = executor;
+        this.withPictures = withPictures;
+        this.friendType = withPictures ? UserWithPicture.class : NamedFacebookType.class;
+        this.firstPageUrl = "me/friends?" + (withPictures ? "fields=id,name,picture&" : "") + "limit=" + pageSize;
+    }
+
+
+    /**
+     * Register calls for first pages of friends to given batch. It must be called before {@link #complete(UserWithPicture)}
+     *
+     * @param batch batch, which will be executed by caller
+     * @param previousRoster previous roster of user or null. It's ignored if it's not created with or without pictures
+     *                       like the new one
+     */
+    void register(GraphBatch batch, FriendsRoster previousRoster) {
+        if (previousRoster != null && previousRoster.getPageCount() > 0
+                && (previousRoster.size() == 0 || previousRoster.hasPictures() == withPictures)) {
+            this.previousRoster = previousRoster;
+            registerPreviousPages(batch);
+        } else {
+            results.add(batch.fetchPage("friends0", firstPageUrl, friendType, null));
+        }
+    }
+
+
+    /**
+     * Create new roster after batch given to {@link #register(GraphBatch, FriendsRoster)} was executed. Remaining pages
+     * are obtained from Facebook with executor.
+     *
+     * @param me user himself or null
+     * @return new roster
+     * @throws com.restfb.exception.FacebookException if some page can't be obtained or roster has more than
+     * {@link #MAX_PAGES} pages
+     */
+    FriendsRoster complete(UserWithPicture me) {
+        FriendsRoster.Builder builder = new FriendsRoster.Builder(withPictures);
+        String nextPageUrl;
+        if (previousRoster == null) {
+            nextPageUrl = addPage(builder, firstPageUrl, getPage(results.get(0)));
+        } else {
+            nextPageUrl = syncPreviousPages(builder);
+        }
+
+        // Follow links to next pages
+        while (nextPageUrl != null) {
+            if (changedPages + unchangedPages >= MAX_PAGES) {
+                throw new FacebookGraphException("RosterException", "Roster has more than " + MAX_PAGES + " pages", null);
+            }
+            GraphBatch batch = new GraphBatch(facebookClient);
+            GraphBatch.Result<? extends GraphBatch.Page<? extends NamedFacebookType>> result = batch.fetchPage("friends", nextPageUrl, friendType, null);
+            executor.execute(batch);
+            nextPageUrl = addPage(builder, nextPageUrl, getPage(result));
+        }
+        return builder.build(me, previousRoster);
+    }
+
+
+    /**
+     * @return count of pages, which were obtained from Facebook
+     */
+    int getChangedPages() {
+        return changedPages;
+    }
+
+    /**
+     * @return count of pages copied from previous roster, because they were not changed
+     */
+    int getUnchangedPages() {
+        return unchangedPages;
+    }
+
+
+    private void registerPreviousPages(GraphBatch batch) {
+        int end = Math.min(results.size() + PAGES_PER_BATCH, previousRoster.getPageCount());
+        for (int page=results.size() ; page<end ; page++) {
+            results.add(batch.fetchPage("friends" + page, previousRoster.getPageUrl(page), friendType, previousRoster.getPageETag(page)));
+        }
+    }
+
+
+    // Returns link to next page, from which pages must be obtained without previous roster, or null if all pages are synchronized
+    private String syncPreviousPages(FriendsRoster.Builder builder) {
+        int pageCount = previousRoster.getPageCount();
+        for (int page=0 ; page<pageCount ; page++) {
+            if (page == results.size()) {
+                GraphBatch batch = new GraphBatch(facebookClient);
+                registerPreviousPages(batch);
+                executor.execute(batch);
+            }
+
+            GraphBatch.Page<? extends NamedFacebookType> result = getPage(results.get(page));
+            String expectedNextPageUrl = page + 1 < pageCount ? previousRoster.getPageUrl(page + 1) : null;
+            if (result.isNotModified()) {
+                builder.copyPage(previousRoster, page);
+                unchangedPages++;
+                continue;
+            }
+
+            String nextPageUrl = addPage(builder, previousRoster.getPageUrl(page), result);
+            if (nextPageUrl == null ? expectedNextPageUrl != null : !nextPageUrl.equals(expectedNextPageUrl)) {
+                return nextPageUrl;
+            }
+        }
+        return null;
+    }
+
+
+    // Page is null when Facebook sent response without body
+    private static GraphBatch.Page<? extends NamedFacebookType> getPage(
+            GraphBatch.Result<? extends GraphBatch.Page<? extends NamedFacebookType>> result) {
+        GraphBatch.Page<? extends NamedFacebookType> page = result.get();
+        if (page == null) {
+            throw new FacebookGraphException("RosterException", "Empty response for page of friends", null);
+        }
+        return page;
+    }
+
+
+    private String addPage(FriendsRoster.Builder builder, String pageUrl, GraphBatch.Page<? extends NamedFacebookType> page) {
+        builder.addPage(pageUrl, page.getETag(), page.getData());
+        changedPages++;
+        return page.getNextPageUrl();
+    }
+}
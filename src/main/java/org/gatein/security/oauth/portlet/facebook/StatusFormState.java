@@ -0,0 +1,89 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.gatein.security.oauth.portlet.facebook;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+import org.gatein.security.oauth.portlet.state.PortletState;
+
+/**
+ * State of {@link FacebookStatusUpdatePortlet}. It contains last submitted values of all fields of the form, so they
+ * could be displayed again
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+public class StatusFormState extends PortletState {
+
+    // Order of fields is part of serialized form
+    static final String[] FIELDS = { "message", "link", "picture", "name", "caption", "description" };
+
+    private final String[] values = new String[FIELDS.length];
+
+    public StatusFormState() {
+    }
+
+    /**
+     * @return last submitted value of given field or null
+     */
+    public String getValue(String field) {
+        return values[indexOf(field)];
+    }
+
+    public void setValue(String field, String value) {
+        int index = indexOf(field);
+        if (!equal(values[index], value)) {
+            values[index] = value;
+            markDirty();
+        }
+    }
+
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        for (String value : values) {
+            writeString(out, value);
+        }
+    }
+
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        for (int i=0 ; i<values.length ; i++) {
+            values[i] = readString(in);
+        }
+    }
+
+
+    private static int indexOf(String field) {
+        for (int i=0 ; i<FIELDS.length ; i++) {
+            if (FIELDS[i].equals(field)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown field: " + field);
+    }
+}
@@ -24,6 +24,8 @@
 
 package org.gatein.security.oauth.portlet.facebook;
 
+import java.io.Serializable;
+
 import com.restfb.Facebook;
 import com.restfb.types.NamedFacebookType;
 
@@ -39,7 +41,14 @@ public class UserWithPicture extends NamedFacebookType {
         return picture;
     }
 
-    public static class Picture {
+    /**
+     * @return URL of picture or null if picture was not obtained
+     */
+    public String getPictureUrl() {
+        return picture == null || picture.getData() == null ? null : picture.getData().getUrl();
+    }
+
+    public static class Picture implements Serializable {
 
         @Facebook("data")
         private Data data;
@@ -49,7 +58,7 @@ public class UserWithPicture extends NamedFacebookType {
         }
     }
 
-    public static class Data {
+    public static class Data implements Serializable {
 
         @Facebook ("url")
         private String url;
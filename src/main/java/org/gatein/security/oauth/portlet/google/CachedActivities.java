@@ -0,0 +1,89 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.gatein.security.oauth.portlet.google;
+
+import java.io.IOException;
+import java.io.Serializable;
+
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson.JacksonFactory;
+import com.google.api.services.plus.model.ActivityFeed;
+import com.google.api.services.plus.model.CommentFeed;
+
+/**
+ * Activities of user together with comments of each activity. Google+ model classes are not serializable, so feeds are
+ * kept as JSON, which could be sent to other cluster nodes. Parsed feeds are kept only on the node, which uses them.
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+class CachedActivities implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final JsonFactory JSON_FACTORY = new JacksonFactory();
+
+    private final String activityFeed;
+    private final String[] commentFeeds;
+
+    private transient ActivityFeed parsedActivityFeed;
+    private transient CommentFeed[] parsedCommentFeeds;
+
+    /**
+     * @param activityFeed activities of user
+     * @param commentFeeds comments of each activity in same order as activities
+     */
+    CachedActivities(ActivityFeed activityFeed, CommentFeed[] commentFeeds) throws IOException {
+        this.activityFeed = JSON_FACTORY.toString(activityFeed);
+        this.commentFeeds = new String[commentFeeds.length];
+        for (int i=0 ; i<commentFeeds.length ; i++) {
+            this.commentFeeds[i] = JSON_FACTORY.toString(commentFeeds[i]);
+        }
+        this.parsedActivityFeed = activityFeed;
+        this.parsedCommentFeeds = commentFeeds.clone();
+    }
+
+
+    synchronized ActivityFeed getActivityFeed() throws IOException {
+        if (parsedActivityFeed == null) {
+            parsedActivityFeed = JSON_FACTORY.fromString(activityFeed, ActivityFeed.class);
+        }
+        return parsedActivityFeed;
+    }
+
+
+    /**
+     * @param index position of activity in activity feed
+     * @return comments of activity on given position
+     */
+    synchronized CommentFeed getCommentFeed(int index) throws IOException {
+        if (parsedCommentFeeds == null) {
+            parsedCommentFeeds = new CommentFeed[commentFeeds.length];
+        }
+        if (parsedCommentFeeds[index] == null) {
+            parsedCommentFeeds[index] = JSON_FACTORY.fromString(commentFeeds[index], CommentFeed.class);
+        }
+        return parsedCommentFeeds[index];
+    }
+}
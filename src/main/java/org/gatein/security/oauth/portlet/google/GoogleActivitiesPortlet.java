@@ -25,7 +25,11 @@ package org.gatein.security.oauth.portlet.google;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
 
+import javax.portlet.MimeResponse;
 import javax.portlet.PortletException;
 import javax.portlet.RenderRequest;
 import javax.portlet.RenderResponse;
@@ -41,6 +45,10 @@ import org.gatein.security.oauth.common.OAuthConstants;
 import org.gatein.security.oauth.common.OAuthProviderType;
 import org.gatein.security.oauth.google.GoogleProcessor;
 import org.gatein.security.oauth.portlet.AbstractSocialPortlet;
+import org.gatein.security.oauth.portlet.cache.SocialCache;
+import org.gatein.security.oauth.portlet.metrics.LatencyHistogram;
+import org.gatein.security.oauth.portlet.template.HtmlSanitizer;
+import org.gatein.security.oauth.portlet.template.Template;
 
 /**
  * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
@@ -48,11 +56,32 @@ import org.gatein.security.oauth.portlet.AbstractSocialPortlet;
 public class GoogleActivitiesPortlet extends AbstractSocialPortlet<GoogleTokenResponse> {
 
     private GoogleProcessor googleProcessor;
+    private LatencyHistogram activitiesCalls;
+    private LatencyHistogram commentsCalls;
+
+    // Max time in milliseconds for obtaining comments of all activities
+    private int commentsTimeout;
+
+    // Activities are cached only if comments of all of them were obtained
+    private SocialCache<CachedActivities> activitiesCache;
+
+    private Template activityTemplate;
+    private Template commentTemplate;
 
 
     @Override
     protected void afterInit(ExoContainer container) {
         this.googleProcessor = (GoogleProcessor)container.getComponentInstanceOfType(GoogleProcessor.class);
+        this.commentsTimeout = getIntInitParameter("commentsTimeout", 5000);
+        this.activityTemplate = getTemplate("activity", "title", "likesCount", "resharersCount", "url");
+        this.commentTemplate = getTemplate("comment", "number", "from", "content", "likesCount");
+        this.activitiesCalls = getProviderCallHistogram("activities.list");
+        this.commentsCalls = getProviderCallHistogram("comments.list");
+
+        int cacheSize = getIntInitParameter("activitiesCacheSize", 1000);
+        int cacheExpiration = getIntInitParameter("activitiesCacheExpiration", 120);
+        this.activitiesCache = createCache("googleActivities", cacheSize, cacheExpiration * 1000L);
+        enableBackgroundRefresh();
     }
 
 
@@ -66,52 +95,124 @@ public class GoogleActivitiesPortlet extends AbstractSocialPortlet<GoogleTokenRe
     @Override
     protected void handleRender(RenderRequest request, RenderResponse response, GoogleTokenResponse accessToken) throws PortletException, IOException {
         PrintWriter writer = response.getWriter();
+        String username = request.getRemoteUser();
+
+        CachedActivities cachedActivities = getFreshOrStale(activitiesCache, username, accessToken.getAccessToken());
+        if (cachedActivities != null) {
+            ActivityFeed activityFeed = cachedActivities.getActivityFeed();
+            writer.println("<h2>Your last google+ activities</h2>");
+            for (int i=0 ; i<activityFeed.getItems().size() ; i++) {
+                renderActivity(writer, activityFeed.getItems().get(i), cachedActivities.getCommentFeed(i));
+            }
+            return;
+        }
+
+        Plus service = googleProcessor.getPlusService(accessToken);
+        ActivityFeed activityFeed = createActivitiesRequest(response, username, service)
+                .sendRequest(getRequestMemo(), "activities.list?userId=me&collection=public&maxResults=10");
+
+        if (activityFeed != null) {
+            List<Activity> activities = activityFeed.getItems();
+
+            // Obtain comments of all activities in parallel
+            long commentsDeadline = System.currentTimeMillis() + commentsTimeout;
+            List<GoogleRequest<CommentFeed>> commentRequests = new ArrayList<GoogleRequest<CommentFeed>>();
+            List<Future<CommentFeed>> commentFutures = new ArrayList<Future<CommentFeed>>();
+            for (Activity activity : activities) {
+                GoogleRequest<CommentFeed> commentRequest = createCommentsRequest(response, username, service, activity);
+                commentRequests.add(commentRequest);
+                commentFutures.add(commentRequest.submit(getProviderExecutor()));
+            }
 
-        final Plus service = googleProcessor.getPlusService(accessToken);
+            // Activity, whose comments were not obtained, is rendered without them
+            writer.println("<h2>Your last google+ activities</h2>");
+            CommentFeed[] commentFeeds = new CommentFeed[activities.size()];
+            boolean complete = true;
+            boolean timedOut = false;
+            for (int i=0 ; i<activities.size() ; i++) {
+                commentFeeds[i] = commentRequests.get(i).awaitResult(commentFutures.get(i), commentsDeadline);
+                complete &= commentFeeds[i] != null;
+                timedOut |= commentFeeds[i] == null && System.currentTimeMillis() >= commentsDeadline;
+                renderActivity(writer, activities.get(i), commentFeeds[i]);
+            }
+
+            if (timedOut) {
+                writer.println("Comments of some activities were not obtained in time. Try to refresh the page later<br><br>");
+            }
+
+            if (complete) {
+                activitiesCache.put(username, accessToken.getAccessToken(), new CachedActivities(activityFeed, commentFeeds));
+            }
+        }
+    }
+
+
+    @Override
+    protected boolean isRefreshNeeded(String username, GoogleTokenResponse accessToken, long refreshAhead) {
+        return isExpiring(activitiesCache, username, accessToken.getAccessToken(), refreshAhead);
+    }
+
+
+    // Comments are obtained one after another, because nobody waits for them
+    @Override
+    protected void refreshData(String username, GoogleTokenResponse accessToken) throws IOException {
+        Plus service = googleProcessor.getPlusService(accessToken);
+        ActivityFeed activityFeed = createActivitiesRequest(null, username, service).sendInBackground();
+
+        List<Activity> activities = activityFeed.getItems();
+        CommentFeed[] commentFeeds = new CommentFeed[activities.size()];
+        for (int i=0 ; i<activities.size() ; i++) {
+            commentFeeds[i] = createCommentsRequest(null, username, service, activities.get(i)).sendInBackground();
+        }
+        activitiesCache.put(username, accessToken.getAccessToken(), new CachedActivities(activityFeed, commentFeeds));
+    }
+
+
+    private GoogleRequest<ActivityFeed> createActivitiesRequest(MimeResponse response, String username, Plus service) throws IOException {
         final Plus.Activities.List list  = service.activities().list("me", "public");
         list.setMaxResults(10L);
 
-        ActivityFeed activityFeed = new GoogleRequest<ActivityFeed>(response, "https://www.googleapis.com/auth/plus.login") {
+        return new GoogleRequest<ActivityFeed>(response, "https://www.googleapis.com/auth/plus.login", username,
+                getProviderGuard(), getQuotaManager(), activitiesCalls) {
 
             @Override
             ActivityFeed run() throws IOException {
                 return list.execute();
             }
 
-        }.sendRequest();
+        };
+    }
 
-        // TODO: jsp?
-        if (activityFeed != null) {
-            writer.println("<h2>Your last google+ activities</h2>");
-            for (final Activity activity : activityFeed.getItems()) {
-                Activity.PlusObject activityObject = activity.getObject();
-                writer.println("<h3>" + activity.getTitle() + "</h3>");
-                writer.println("Likes: <b>" + activityObject.getPlusoners().getTotalItems() + "</b>");
-                writer.println(", Resharers: <b>" + activityObject.getResharers().getTotalItems() + "</b>, ");
-                writer.println("<a href=\"" + activity.getUrl() + "\" style=\"color: blue;\">Activity details</a><br><br>");
-
-                CommentFeed comments = new GoogleRequest<CommentFeed>(response, "https://www.googleapis.com/auth/plus.login") {
-
-                    @Override
-                    CommentFeed run() throws IOException {
-                        return service.comments().list(activity.getId()).execute();
-                    }
-
-                }.sendRequest();
-
-                if (comments != null) {
-                    int counter = 1;
-                    for (Comment comment : comments.getItems()) {
-                        writer.println("<b>Comment " + counter + "</b><br>");
-                        writer.println("From: " + comment.getActor().getDisplayName() + "<br>");
-                        writer.println("Text: " + comment.getObject().getContent() + "<br>");
-                        writer.println("Likes: " + comment.getPlusoners().getTotalItems() + "<br><br>");
-                        counter++;
-                    }
-                }
-
-                writer.println("<hr>");
+
+    private GoogleRequest<CommentFeed> createCommentsRequest(MimeResponse response, String username, final Plus service,
+                                                             final Activity activity) {
+        return new GoogleRequest<CommentFeed>(response, "https://www.googleapis.com/auth/plus.login", username,
+                getProviderGuard(), getQuotaManager(), commentsCalls) {
+
+            @Override
+            CommentFeed run() throws IOException {
+                return service.comments().list(activity.getId()).execute();
+            }
+
+        };
+    }
+
+
+    private void renderActivity(PrintWriter writer, Activity activity, CommentFeed comments) throws IOException {
+        Activity.PlusObject activityObject = activity.getObject();
+        activityTemplate.render(writer, activity.getTitle(), activityObject.getPlusoners().getTotalItems(),
+                activityObject.getResharers().getTotalItems(), activity.getUrl());
+
+        if (comments != null) {
+            int counter = 1;
+            for (Comment comment : comments.getItems()) {
+                // Content of comment is HTML written by commenter, so only simple formatting and links are kept
+                commentTemplate.render(writer, counter, comment.getActor().getDisplayName(), HtmlSanitizer.sanitize(comment.getObject().getContent()),
+                        comment.getPlusoners().getTotalItems());
+                counter++;
             }
         }
+
+        writer.println("<hr>");
     }
 }
@@ -28,13 +28,18 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.List;
 
+import javax.portlet.MimeResponse;
 import javax.portlet.PortletException;
-import javax.portlet.PortletSession;
+import javax.portlet.PortletRequest;
 import javax.portlet.PortletURL;
 import javax.portlet.RenderRequest;
 import javax.portlet.RenderResponse;
+import javax.portlet.ResourceRequest;
+import javax.portlet.ResourceResponse;
+import javax.portlet.ResourceURL;
 
 import com.google.api.client.googleapis.auth.oauth2.GoogleTokenResponse;
+import com.google.api.client.http.HttpResponseException;
 import com.google.api.services.plus.Plus;
 import com.google.api.services.plus.model.ActivityFeed;
 import com.google.api.services.plus.model.PeopleFeed;
@@ -44,23 +49,41 @@ import org.gatein.security.oauth.common.OAuthConstants;
 import org.gatein.security.oauth.common.OAuthProviderType;
 import org.gatein.security.oauth.google.GoogleProcessor;
 import org.gatein.security.oauth.portlet.AbstractSocialPortlet;
+import org.gatein.security.oauth.portlet.avatar.AvatarProxy;
+import org.gatein.security.oauth.portlet.metrics.LatencyHistogram;
+import org.gatein.security.oauth.portlet.template.Template;
 
 /**
  * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
  */
 public class GoogleFriendsPortlet extends AbstractSocialPortlet<GoogleTokenResponse> {
 
-    private static final String ATTR_PAGINATION_CONTEXT = "paginationContext";
     private static final String PARAM_PAGE = "page";
     private static final String PREV = "prev";
     private static final String NEXT = "next";
 
     private GoogleProcessor googleProcessor;
+    private LatencyHistogram peopleCalls;
+    private long peopleMaxAge;
+    private int peopleMaxPages;
+
+    // Null if prefetching of next page is disabled
+    private PeoplePrefetcher prefetcher;
 
 
     @Override
     protected void afterInit(ExoContainer container) {
         this.googleProcessor = (GoogleProcessor)container.getComponentInstanceOfType(GoogleProcessor.class);
+        this.peopleCalls = getProviderCallHistogram("people.list");
+        this.peopleMaxAge = getIntInitParameter("peopleMaxAge", 3600) * 1000L;
+        this.peopleMaxPages = getIntInitParameter("peopleMaxPages", 20);
+        enableRosterStore(PeopleRoster.class, PeopleRoster.StoredPage.class);
+
+        int prefetchConcurrency = getIntInitParameter("prefetchConcurrency", 5);
+        if (prefetchConcurrency > 0) {
+            int prefetchExpiration = getIntInitParameter("prefetchExpiration", 60);
+            this.prefetcher = new PeoplePrefetcher(prefetchConcurrency, prefetchExpiration * 1000L, getProviderGuard(), getQuotaManager(), peopleCalls);
+        }
     }
 
 
@@ -73,18 +96,45 @@ public class GoogleFriendsPortlet extends AbstractSocialPortlet<GoogleTokenRespo
     // See https://developers.google.com/+/api/latest/people/list for details
     @Override
     protected void handleRender(RenderRequest request, RenderResponse response, GoogleTokenResponse accessToken) throws PortletException, IOException {
+        PrintWriter writer = response.getWriter();
+        String namespace = response.getNamespace();
+
+        writer.println("<h2>Your google+ friends</h2>");
+        writer.println("<div id=\"" + namespace + "people\">");
+        renderPeople(request, response, accessToken);
+        writer.println("</div>");
+
+        // Replace content of people div with fragment obtained from serveResource. Fallback to render URL if it fails
+        writer.println("<script type=\"text/javascript\">");
+        writer.println("function " + namespace + "loadPage(resourceURL, renderURL) {");
+        writer.println("  var xhr = window.XMLHttpRequest ? new XMLHttpRequest() : new ActiveXObject(\"Microsoft.XMLHTTP\");");
+        writer.println("  xhr.onreadystatechange = function() {");
+        writer.println("    if (xhr.readyState != 4) return;");
+        writer.println("    if (xhr.status == 200) document.getElementById(\"" + namespace + "people\").innerHTML = xhr.responseText;");
+        writer.println("    else window.location = renderURL;");
+        writer.println("  };");
+        writer.println("  xhr.open(\"GET\", resourceURL, true);");
+        writer.println("  xhr.send(null);");
+        writer.println("  return false;");
+        writer.println("}");
+        writer.println("</script>");
+    }
+
+
+    // Returns only markup with people of requested page, which is used to replace the previous page
+    @Override
+    protected void handleResource(ResourceRequest request, ResourceResponse response, GoogleTokenResponse accessToken) throws PortletException, IOException {
+        response.setContentType("text/html");
+        renderPeople(request, response, accessToken);
+    }
+
+
+    private void renderPeople(PortletRequest request, MimeResponse response, GoogleTokenResponse accessToken) throws PortletException, IOException {
         Plus service = googleProcessor.getPlusService(accessToken);
-        final Plus.People.List list = service.people().list("me", "visible");
-        // Possible values are "alphabetical", "best"
-        list.setOrderBy("alphabetical");
-        list.setMaxResults(10L);
+        final Plus.People.List list = createPeopleRequest(service);
 
         // Try to obtain last pagination token
-        PortletSession session = request.getPortletSession();
-        PaginationState pgState = (PaginationState)session.getAttribute(ATTR_PAGINATION_CONTEXT);
-        if (pgState == null) {
-            pgState = new PaginationState();
-        }
+        PaginationState pgState = getPortletState(request, PaginationState.class);
 
         // Try to update pgState with number of current page
         String pageParam = request.getParameter(PARAM_PAGE);
@@ -98,54 +148,133 @@ public class GoogleFriendsPortlet extends AbstractSocialPortlet<GoogleTokenRespo
             }
         }
 
-        list.setPageToken(pgState.getTokenOfCurrentPage());
+        String pageToken = pgState.getTokenOfCurrentPage();
+        list.setPageToken(pageToken);
 
-        PeopleFeed peopleFeed = new GoogleRequest<PeopleFeed>(response, "https://www.googleapis.com/auth/plus.login") {
+        // Pages displayed before are saved on disk, so they are available even after restart
+        String username = request.getRemoteUser();
+        PeopleRoster roster = loadRoster(username, accessToken.getAccessToken());
+        if (roster == null) {
+            roster = new PeopleRoster();
+        }
 
-            @Override
-            PeopleFeed run() throws IOException {
-                return list.execute();
+        PeoplePrefetcher.PrefetchBuffer prefetchBuffer = null;
+        PeopleFeed peopleFeed = null;
+        if (prefetcher != null) {
+            prefetchBuffer = pgState.getPrefetchBuffer();
+            if (pageToken != null) {
+                peopleFeed = prefetchBuffer.take(pageToken);
+            }
+        }
+
+        final PeopleRoster.StoredPage storedPage = roster.getPage(pageToken);
+        if (peopleFeed != null) {
+            if (log.isTraceEnabled()) {
+                log.trace("Page " + pgState.getCurrentPage() + " obtained from prefetch buffer");
+            }
+            savePage(username, accessToken, roster, pageToken, new PeopleRoster.StoredPage(peopleFeed));
+        } else if (isFresh(storedPage)) {
+            peopleFeed = storedPage.getFeed();
+        } else {
+            // Expired page is obtained again only if it was changed
+            if (storedPage != null && storedPage.getETag() != null) {
+                list.getRequestHeaders().setIfNoneMatch(storedPage.getETag());
             }
+            PeopleRoster.StoredPage page = new GoogleRequest<PeopleRoster.StoredPage>(response, "https://www.googleapis.com/auth/plus.login", username,
+                    getProviderGuard(), getQuotaManager(), peopleCalls) {
 
-        }.sendRequest();
+                @Override
+                PeopleRoster.StoredPage run() throws IOException {
+                    try {
+                        return new PeopleRoster.StoredPage(list.execute());
+                    } catch (HttpResponseException hre) {
+                        if (hre.getStatusCode() == 304 && storedPage != null) {
+                            return storedPage.revalidate();
+                        }
+                        throw hre;
+                    }
+                }
+
+            }.sendRequest(getRequestMemo(), "people.list?userId=me&collection=visible&orderBy=alphabetical&maxResults=10&pageToken=" + pageToken);
+
+            if (page != null) {
+                savePage(username, accessToken, roster, pageToken, page);
+                peopleFeed = page.getFeed();
+            }
+        }
 
         if (peopleFeed != null) {
             List<Person> people = peopleFeed.getItems();
 
             PrintWriter writer = response.getWriter();
-            writer.println("<h2>Your google+ friends</h2>");
             writer.println("Total number of friends: " + peopleFeed.getTotalItems() + "<br>");
 
             for (Person person : people) {
-                String displayName = person.getDisplayName();
-                String imageURL = person.getImage().getUrl();
-                String personUrl = person.getUrl();
+                String displayName = Template.escape(person.getDisplayName());
+                String imageURL = Template.escape(getAvatarUrl(request, person.getImage().getUrl(), AvatarProxy.SIZE_SMALL));
+                String personUrl = Template.escape(person.getUrl());
 
                 writer.println("<a href=\"" + personUrl + "\"><img src=\"" + imageURL + "\" title=\"" + displayName + "\" /></a>");
             }
 
-            // Obtain next token to session if it's available
+            // Save next token to pagination state if it's available
             String nextPageToken = peopleFeed.getNextPageToken();
             int currentPage = pgState.getCurrentPage();
 
             writer.println("<br>Current page: " + currentPage + "<br>");
             // Show link for previous page
             if (currentPage > 1) {
-                // TODO: ajax...
-                PortletURL portletURL = response.createRenderURL();
-                portletURL.setParameter(PARAM_PAGE, PREV);
-                writer.println("<a href=\"" + portletURL + "\" style=\"color: blue; \">Previous</a> ");
+                writer.println(createPageLink(response, PREV, "Previous") + " ");
             }
             // Show link for next page
             if (nextPageToken != null) {
-                // TODO: ajax...
                 pgState.setTokenForPage(pgState.getCurrentPage() + 1, nextPageToken);
-                PortletURL portletURL = response.createRenderURL();
-                portletURL.setParameter(PARAM_PAGE, NEXT);
-                writer.println("<a href=\"" + portletURL + "\" style=\"color: blue; \">Next</a>");
+                writer.println(createPageLink(response, NEXT, "Next"));
+            }
+
+            // Start loading of next page now, so that it's ready when user clicks to "Next"
+            if (nextPageToken != null && prefetcher != null && !isFresh(roster.getPage(nextPageToken))) {
+                Plus.People.List nextPageRequest = createPeopleRequest(service);
+                nextPageRequest.setPageToken(nextPageToken);
+                prefetcher.prefetch(request.getRemoteUser(), prefetchBuffer, nextPageToken, nextPageRequest, getProviderExecutor());
             }
+        }
+    }
+
+
+    private boolean isFresh(PeopleRoster.StoredPage page) {
+        return page != null && System.currentTimeMillis() - page.getSyncTime() < peopleMaxAge;
+    }
 
-            session.setAttribute(ATTR_PAGINATION_CONTEXT, pgState);
+
+    // Concurrent renders of same user could replace pages saved by each other, but the page is just obtained again then
+    private void savePage(String username, GoogleTokenResponse accessToken, PeopleRoster roster, String pageToken,
+                          PeopleRoster.StoredPage page) {
+        PeopleRoster newRoster = roster.withPage(pageToken, page, peopleMaxPages);
+        saveRoster(username, accessToken.getAccessToken(), newRoster);
+        if (log.isTraceEnabled()) {
+            log.trace("Saved page with token " + pageToken + " of user " + username + ". Saved pages: " + newRoster.size());
         }
     }
+
+
+    private Plus.People.List createPeopleRequest(Plus service) throws IOException {
+        Plus.People.List list = service.people().list("me", "visible");
+        // Possible values are "alphabetical", "best"
+        list.setOrderBy("alphabetical");
+        list.setMaxResults(10L);
+        return list;
+    }
+
+
+    // Link loads page through AJAX. Render URL is used if javascript is disabled or if AJAX request fails
+    private String createPageLink(MimeResponse response, String page, String label) {
+        PortletURL renderURL = response.createRenderURL();
+        renderURL.setParameter(PARAM_PAGE, page);
+        ResourceURL resourceURL = response.createResourceURL();
+        resourceURL.setParameter(PARAM_PAGE, page);
+
+        return "<a href=\"" + renderURL + "\" onclick=\"return " + response.getNamespace() + "loadPage('" + resourceURL +
+                "', '" + renderURL + "');\" style=\"color: blue; \">" + label + "</a>";
+    }
 }
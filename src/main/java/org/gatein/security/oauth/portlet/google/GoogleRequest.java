@@ -26,22 +26,58 @@ package org.gatein.security.oauth.portlet.google;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
-import javax.portlet.RenderResponse;
+import javax.portlet.MimeResponse;
 
+import com.google.api.client.googleapis.json.GoogleJsonError;
 import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import org.gatein.security.oauth.common.OAuthConstants;
+import org.gatein.security.oauth.portlet.concurrent.ProviderCall;
+import org.gatein.security.oauth.portlet.concurrent.ProviderGuard;
+import org.gatein.security.oauth.portlet.concurrent.ProviderUnavailableException;
+import org.gatein.security.oauth.portlet.concurrent.RequestMemo;
+import org.gatein.security.oauth.portlet.concurrent.SingleFlight;
+import org.gatein.security.oauth.portlet.metrics.LatencyHistogram;
+import org.gatein.security.oauth.portlet.metrics.SocialMetrics;
+import org.gatein.security.oauth.portlet.quota.QuotaManager;
 
 /**
  * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
  */
 abstract class GoogleRequest<T> {
 
-    private final RenderResponse response;
+    // Google doesn't report when limit will be reset
+    private static final int RATE_LIMIT_BACKOFF = 60;
+
+    private final MimeResponse response;
     private final String requiredScope;
+    private final String username;
+    private final ProviderGuard guard;
+    private final QuotaManager quotaManager;
+    private final LatencyHistogram latencyHistogram;
 
-    GoogleRequest(RenderResponse response, String requiredScope) {
+    /**
+     * @param response response where errors are written. It could be null if request is sent only with {@link #sendInBackground()}
+     * @param requiredScope scope needed for this request
+     * @param username portal user on behalf of whom is request sent
+     * @param guard guard of Google provider, which executes the request
+     * @param quotaManager quota of Google calls
+     * @param latencyHistogram histogram for recording latency of this request
+     */
+    GoogleRequest(MimeResponse response, String requiredScope, String username, ProviderGuard guard, QuotaManager quotaManager,
+                  LatencyHistogram latencyHistogram) {
         this.response = response;
         this.requiredScope = requiredScope;
+        this.username = username;
+        this.guard = guard;
+        this.quotaManager = quotaManager;
+        this.latencyHistogram = latencyHistogram;
     }
 
 
@@ -50,21 +86,177 @@ abstract class GoogleRequest<T> {
 
     T sendRequest() throws IOException {
         try {
-            return run();
-        } catch (GoogleJsonResponseException googleEx) {
-            PrintWriter writer = response.getWriter();
+            return runAndRecord(QuotaManager.Priority.INTERACTIVE);
+        } catch (IOException ioe) {
+            return handleException(ioe);
+        }
+    }
+
+
+    /**
+     * Send request unless same request was already sent by other portlet during current portal request or same request
+     * of same user is just running in other thread (See {@link SingleFlight}). Errors are handled in same way like
+     * in {@link #sendRequest()}
+     *
+     * @param memo memo of current portal request or null
+     * @param operation identification of request including all its parameters, which affect result
+     */
+    T sendRequest(RequestMemo memo, final String operation) throws IOException {
+        try {
+            if (memo == null) {
+                return runOnce(operation);
+            }
+
+            return memo.call(OAuthConstants.OAUTH_PROVIDER_KEY_GOOGLE, username, operation, new ProviderCall<T, IOException>() {
+
+                @Override
+                public T call() throws IOException {
+                    return runOnce(operation);
+                }
+
+            });
+        } catch (IOException ioe) {
+            return handleException(ioe);
+        }
+    }
+
+
+    /**
+     * Send request with background priority from thread, which doesn't render anything. Errors are not written to response,
+     * but they are thrown to caller
+     */
+    T sendInBackground() throws IOException {
+        return runAndRecord(QuotaManager.Priority.BACKGROUND);
+    }
+
+
+    /**
+     * Send request asynchronously with usage of given executor. Result should be later obtained with {@link #awaitResult(java.util.concurrent.Future, long)}
+     */
+    Future<T> submit(ExecutorService executor) {
+        return executor.submit(new Callable<T>() {
+
+            @Override
+            public T call() throws Exception {
+                return runAndRecord(QuotaManager.Priority.INTERACTIVE);
+            }
+
+        });
+    }
+
+
+    /**
+     * Wait for result of request sent by {@link #submit(java.util.concurrent.ExecutorService)}. Errors are handled in same
+     * way like in {@link #sendRequest()}. Response is written from the calling thread, so this method shouldn't be called
+     * concurrently for same response. When this request was rejected by guard or quota, only this result is missing
+     * and other requests sent in parallel could be still rendered.
+     *
+     * @param future future obtained from {@link #submit(java.util.concurrent.ExecutorService)}
+     * @param deadline time in milliseconds, after which we won't wait for result anymore
+     * @return result or null if error occured or result was not available before deadline. Timeout is not reported to
+     * response, so caller could report it just once for all requests sent in parallel
+     */
+    T awaitResult(Future<T> future, long deadline) throws IOException {
+        try {
+            long timeout = Math.max(0, deadline - System.currentTimeMillis());
+            return future.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof IOException) {
+                return handleException((IOException)cause);
+            } else if (cause instanceof ProviderUnavailableException) {
+                SocialMetrics.recordError(OAuthConstants.OAUTH_PROVIDER_KEY_GOOGLE, cause);
+                return null;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            } else if (cause instanceof Error) {
+                throw (Error)cause;
+            } else {
+                throw new IOException(cause);
+            }
+        } catch (TimeoutException te) {
+            future.cancel(true);
+            return null;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            future.cancel(true);
+            return null;
+        }
+    }
+
+
+    private T runOnce(String operation) throws IOException {
+        return SingleFlight.getInstance().execute(latencyHistogram.getName(), username + ":" + operation, new ProviderCall<T, IOException>() {
+
+            @Override
+            public T call() throws IOException {
+                return runAndRecord(QuotaManager.Priority.INTERACTIVE);
+            }
+
+        });
+    }
+
+
+    private T runAndRecord(QuotaManager.Priority priority) throws IOException {
+        quotaManager.acquire(OAuthConstants.OAUTH_PROVIDER_KEY_GOOGLE, username, priority);
+        return guard.call(latencyHistogram, new ProviderCall<T, IOException>() {
+
+            @Override
+            public T call() throws IOException {
+                try {
+                    return run();
+                } catch (GoogleJsonResponseException gjre) {
+                    checkRateLimit(quotaManager, username, gjre);
+                    throw gjre;
+                }
+            }
+
+            @Override
+            public boolean isUserError(Exception error) {
+                return isInvalidToken(error);
+            }
+
+        });
+    }
+
+
+    // Invalid token or insufficient scope
+    static boolean isInvalidToken(Exception error) {
+        return error instanceof GoogleJsonResponseException && ((GoogleJsonResponseException)error).getStatusCode() == 401;
+    }
+
+
+    /**
+     * Block quota of user or whole application if Google refused request because of exceeded request limit
+     */
+    static void checkRateLimit(QuotaManager quotaManager, String username, GoogleJsonResponseException gjre) {
+        GoogleJsonError details = gjre.getDetails();
+        if (gjre.getStatusCode() != 403 || details == null || details.getErrors() == null || details.getErrors().isEmpty()) {
+            return;
+        }
+
+        String reason = details.getErrors().get(0).getReason();
+        if ("userRateLimitExceeded".equals(reason)) {
+            quotaManager.onRateLimited(OAuthConstants.OAUTH_PROVIDER_KEY_GOOGLE, username, RATE_LIMIT_BACKOFF);
+        } else if ("rateLimitExceeded".equals(reason) || "dailyLimitExceeded".equals(reason)) {
+            quotaManager.onRateLimited(OAuthConstants.OAUTH_PROVIDER_KEY_GOOGLE, null, RATE_LIMIT_BACKOFF);
+        }
+    }
+
+
+    private T handleException(IOException ioe) throws IOException {
+        SocialMetrics.recordError(OAuthConstants.OAUTH_PROVIDER_KEY_GOOGLE, ioe);
+        PrintWriter writer = response.getWriter();
+        if (ioe instanceof GoogleJsonResponseException) {
+            GoogleJsonResponseException googleEx = (GoogleJsonResponseException)ioe;
             writer.println("Error occured. Your accessToken is invalid or scope is insufficient. You will need scope: " + requiredScope + "<br><br>");
             writer.println("Error details: " + googleEx.getDetails() + "<br><br>");
-            writer.println("See server log for more info<br><br>");
-            googleEx.printStackTrace();
-            return null;
-        } catch (IOException ioe) {
-            PrintWriter writer = response.getWriter();
+        } else {
             writer.println("I/O error occured. Error details: " + ioe.getMessage() + "<br><br>");
-            writer.println("See server log for more info<br><br>");
-            ioe.printStackTrace();
-            return null;
         }
+        writer.println("See server log for more info<br><br>");
+        ioe.printStackTrace();
+        return null;
     }
 
 }
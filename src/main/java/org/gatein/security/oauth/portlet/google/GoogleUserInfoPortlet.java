@@ -31,6 +31,8 @@ import javax.portlet.RenderRequest;
 import javax.portlet.RenderResponse;
 
 import com.google.api.client.googleapis.auth.oauth2.GoogleTokenResponse;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson.JacksonFactory;
 import com.google.api.services.oauth2.Oauth2;
 import com.google.api.services.oauth2.model.Userinfo;
 import org.exoplatform.container.ExoContainer;
@@ -38,17 +40,31 @@ import org.gatein.security.oauth.common.OAuthConstants;
 import org.gatein.security.oauth.common.OAuthProviderType;
 import org.gatein.security.oauth.google.GoogleProcessor;
 import org.gatein.security.oauth.portlet.AbstractSocialPortlet;
+import org.gatein.security.oauth.portlet.avatar.AvatarProxy;
+import org.gatein.security.oauth.portlet.cache.SocialCache;
+import org.gatein.security.oauth.portlet.metrics.LatencyHistogram;
 
 /**
  * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
  */
 public class GoogleUserInfoPortlet extends AbstractSocialPortlet<GoogleTokenResponse> {
 
+    private static final JsonFactory JSON_FACTORY = new JacksonFactory();
+
     private GoogleProcessor googleProcessor;
+    private LatencyHistogram userinfoCalls;
+
+    // User info is cached as JSON, because Userinfo is not serializable
+    private SocialCache<String> userinfoCache;
 
     @Override
     protected void afterInit(ExoContainer container) {
         this.googleProcessor = (GoogleProcessor)container.getComponentInstanceOfType(GoogleProcessor.class);
+        this.userinfoCalls = getProviderCallHistogram("userinfo.get");
+
+        int cacheSize = getIntInitParameter("userinfoCacheSize", 1000);
+        int cacheExpiration = getIntInitParameter("userinfoCacheExpiration", 900);
+        this.userinfoCache = createCache("googleUserinfo", cacheSize, cacheExpiration * 1000L);
     }
 
     @Override
@@ -58,16 +74,28 @@ public class GoogleUserInfoPortlet extends AbstractSocialPortlet<GoogleTokenResp
 
     @Override
     protected void handleRender(RenderRequest request, RenderResponse response, GoogleTokenResponse accessToken) throws PortletException, IOException {
-        final Oauth2 oauth2 = googleProcessor.getOAuth2Instance(accessToken);
+        String username = request.getRemoteUser();
+        Userinfo uinfo;
+        String cachedUserinfo = userinfoCache.get(username, accessToken.getAccessToken());
+        if (cachedUserinfo != null) {
+            uinfo = JSON_FACTORY.fromString(cachedUserinfo, Userinfo.class);
+        } else {
+            final Oauth2 oauth2 = googleProcessor.getOAuth2Instance(accessToken);
 
-        Userinfo uinfo = new GoogleRequest<Userinfo>(response, "https://www.googleapis.com/auth/userinfo.email https://www.googleapis.com/auth/userinfo.profile") {
+            uinfo = new GoogleRequest<Userinfo>(response, "https://www.googleapis.com/auth/userinfo.email https://www.googleapis.com/auth/userinfo.profile",
+                    username, getProviderGuard(), getQuotaManager(), userinfoCalls) {
 
-            @Override
-            Userinfo run() throws IOException {
-                return oauth2.userinfo().v2().me().get().execute();
-            }
+                @Override
+                Userinfo run() throws IOException {
+                    return oauth2.userinfo().v2().me().get().execute();
+                }
 
-        }.sendRequest();
+            }.sendRequest(getRequestMemo(), "userinfo.v2.me");
+
+            if (uinfo != null) {
+                userinfoCache.put(username, accessToken.getAccessToken(), JSON_FACTORY.toString(uinfo));
+            }
+        }
 
         if (uinfo != null) {
             StringBuilder builder = new StringBuilder("Given name: " + uinfo.getGivenName())
@@ -76,7 +104,8 @@ public class GoogleUserInfoPortlet extends AbstractSocialPortlet<GoogleTokenResp
                     .append("<br>Birthday: " + uinfo.getBirthday())
                     .append("<br>Gender: " + uinfo.getGender())
                     .append("<br>Locale: " + uinfo.getLocale())
-                    .append("<br><img src=\"" + uinfo.getPicture() + "?size=100\" title=\"" + uinfo.getName() + "\" />");
+                    .append("<br><img src=\"" + getAvatarUrl(request, uinfo.getPicture() + "?size=100", AvatarProxy.SIZE_LARGE) +
+                            "\" title=\"" + uinfo.getName() + "\" />");
             writeAndFinishResponse(builder.toString(), response);
         }
     }
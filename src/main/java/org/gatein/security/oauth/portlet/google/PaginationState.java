@@ -24,17 +24,35 @@
 
 package org.gatein.security.oauth.portlet.google;
 
-import java.io.Serializable;
-import java.util.HashMap;
-import java.util.Map;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+import org.gatein.security.oauth.portlet.state.PortletState;
 
 /**
+ * State of {@link GoogleFriendsPortlet}. Google+ returns only token of next page, so tokens of visited pages are kept for
+ * going back. Only tokens of last few pages around current page are kept, so state doesn't grow with every visited page.
+ * If token of current page is not available anymore, pagination starts again from first page.
+ * <p>
+ * Prefetched pages are part of state, but they are not replicated.
+ *
  * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
  */
-class PaginationState implements Serializable {
+public class PaginationState extends PortletState {
+
+    private static final int TOKEN_WINDOW = 10;
 
     private int currentPage = 1;
-    private Map<Integer, String> paginationMapping = new HashMap<Integer, String>();
+
+    // Token of page is on index (page % TOKEN_WINDOW), so tokens of older pages are overwritten by tokens of new pages
+    private final int[] pages = new int[TOKEN_WINDOW];
+    private final String[] tokens = new String[TOKEN_WINDOW];
+
+    private transient PeoplePrefetcher.PrefetchBuffer prefetchBuffer;
+
+    public PaginationState() {
+    }
 
     public int getCurrentPage() {
         return currentPage;
@@ -42,17 +60,81 @@ class PaginationState implements Serializable {
 
     public void increaseCurrentPage() {
         currentPage++;
+        markDirty();
     }
 
     public void decreaseCurrentPage() {
-        currentPage--;
+        if (currentPage > 1) {
+            currentPage--;
+            markDirty();
+        }
     }
 
     public void setTokenForPage(int page, String token) {
-        paginationMapping.put(page, token);
+        int index = page % TOKEN_WINDOW;
+        if (pages[index] != page || !equal(tokens[index], token)) {
+            pages[index] = page;
+            tokens[index] = token;
+            markDirty();
+        }
     }
 
+    /**
+     * @return token of current page or null for first page. Current page is reset to first page if its token is not
+     * available anymore
+     */
     public String getTokenOfCurrentPage() {
-        return paginationMapping.get(currentPage);
+        if (currentPage == 1) {
+            return null;
+        }
+
+        int index = currentPage % TOKEN_WINDOW;
+        if (pages[index] != currentPage || tokens[index] == null) {
+            currentPage = 1;
+            markDirty();
+            return null;
+        }
+        return tokens[index];
+    }
+
+    synchronized PeoplePrefetcher.PrefetchBuffer getPrefetchBuffer() {
+        if (prefetchBuffer == null) {
+            prefetchBuffer = new PeoplePrefetcher.PrefetchBuffer();
+        }
+        return prefetchBuffer;
+    }
+
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        out.writeInt(currentPage);
+
+        int count = 0;
+        for (String token : tokens) {
+            if (token != null) {
+                count++;
+            }
+        }
+        out.writeByte(count);
+        for (int i=0 ; i<TOKEN_WINDOW ; i++) {
+            if (tokens[i] != null) {
+                out.writeInt(pages[i]);
+                writeString(out, tokens[i]);
+            }
+        }
+    }
+
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        currentPage = in.readInt();
+
+        int count = in.readByte();
+        for (int i=0 ; i<count ; i++) {
+            int page = in.readInt();
+            String token = readString(in);
+            pages[page % TOKEN_WINDOW] = page;
+            tokens[page % TOKEN_WINDOW] = token;
+        }
     }
 }
@@ -0,0 +1,235 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.gatein.security.oauth.portlet.google;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.services.plus.Plus;
+import com.google.api.services.plus.model.PeopleFeed;
+import org.gatein.common.logging.Logger;
+import org.gatein.common.logging.LoggerFactory;
+import org.gatein.security.oauth.common.OAuthConstants;
+import org.gatein.security.oauth.portlet.concurrent.ProviderCall;
+import org.gatein.security.oauth.portlet.concurrent.ProviderGuard;
+import org.gatein.security.oauth.portlet.concurrent.ProviderUnavailableException;
+import org.gatein.security.oauth.portlet.metrics.LatencyHistogram;
+import org.gatein.security.oauth.portlet.metrics.SocialMetrics;
+import org.gatein.security.oauth.portlet.quota.QuotaManager;
+
+/**
+ * Fetch next page of Google+ people in background, so it's available immediately when user clicks to "Next". Count of
+ * concurrently running prefetches is limited on whole cluster node, so prefetching can't take all threads needed for rendering.
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+class PeoplePrefetcher {
+
+    private static final Logger log = LoggerFactory.getLogger(PeoplePrefetcher.class);
+
+    private final Semaphore budget;
+    private final long expiration;
+    private final ProviderGuard guard;
+    private final QuotaManager quotaManager;
+    private final LatencyHistogram peopleCalls;
+
+    /**
+     * @param maxConcurrentPrefetches max count of prefetches running concurrently
+     * @param expiration time in milliseconds for which prefetched page is valid
+     * @param guard guard of Google provider, which executes prefetch requests
+     * @param quotaManager quota of Google calls. Prefetch requests have background priority
+     * @param peopleCalls histogram for recording latency of prefetch requests
+     */
+    PeoplePrefetcher(int maxConcurrentPrefetches, long expiration, ProviderGuard guard, QuotaManager quotaManager, LatencyHistogram peopleCalls) {
+        this.budget = new Semaphore(maxConcurrentPrefetches);
+        this.expiration = expiration;
+        this.guard = guard;
+        this.quotaManager = quotaManager;
+        this.peopleCalls = peopleCalls;
+    }
+
+
+    /**
+     * Start prefetching of page with given token unless it's already prefetched or budget is exhausted
+     *
+     * @param username current portal user
+     * @param buffer buffer of current user where prefetched page will be saved
+     * @param pageToken token of page to prefetch
+     * @param request request for obtaining the page
+     * @param executor executor used to send the request
+     */
+    void prefetch(final String username, final PrefetchBuffer buffer, final String pageToken, final Plus.People.List request,
+                  ExecutorService executor) {
+        // Don't add more load to provider, which is failing
+        if (guard.isCircuitOpen() || !buffer.startPrefetch(pageToken)) {
+            return;
+        }
+        if (!budget.tryAcquire()) {
+            buffer.cancelPrefetch(pageToken);
+            log.trace("Budget for prefetching is exhausted. Skip prefetching of page " + pageToken);
+            return;
+        }
+
+        final Thread callerThread = Thread.currentThread();
+        Runnable prefetchTask = new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    // Pool is saturated and task is executed by render thread. Prefetch is not worth of delaying render
+                    if (Thread.currentThread() == callerThread) {
+                        buffer.cancelPrefetch(pageToken);
+                        return;
+                    }
+
+                    quotaManager.acquire(OAuthConstants.OAUTH_PROVIDER_KEY_GOOGLE, username, QuotaManager.Priority.BACKGROUND);
+                    PeopleFeed feed = guard.call(peopleCalls, new ProviderCall<PeopleFeed, IOException>() {
+
+                        @Override
+                        public PeopleFeed call() throws IOException {
+                            try {
+                                return request.execute();
+                            } catch (GoogleJsonResponseException gjre) {
+                                GoogleRequest.checkRateLimit(quotaManager, username, gjre);
+                                throw gjre;
+                            }
+                        }
+
+                        @Override
+                        public boolean isUserError(Exception error) {
+                            return GoogleRequest.isInvalidToken(error);
+                        }
+
+                    });
+                    buffer.put(pageToken, feed, System.currentTimeMillis() + expiration);
+                } catch (ProviderUnavailableException pue) {
+                    buffer.cancelPrefetch(pageToken);
+                    log.trace("Prefetching of page " + pageToken + " skipped: " + pue.getMessage());
+                } catch (IOException ioe) {
+                    buffer.cancelPrefetch(pageToken);
+                    SocialMetrics.recordError(OAuthConstants.OAUTH_PROVIDER_KEY_GOOGLE, ioe);
+                    log.debug("Prefetching of page " + pageToken + " failed: " + ioe.getMessage());
+                } finally {
+                    budget.release();
+                }
+            }
+
+        };
+
+        try {
+            executor.execute(prefetchTask);
+        } catch (RejectedExecutionException ree) {
+            buffer.cancelPrefetch(pageToken);
+            budget.release();
+        }
+    }
+
+
+    /**
+     * Prefetched pages of single user. Instance is part of {@link PaginationState}, but it's not replicated.
+     */
+    static class PrefetchBuffer {
+
+        private static final int MAX_SIZE = 3;
+
+        private Map<String, PrefetchedPage> pages;
+
+        private synchronized Map<String, PrefetchedPage> getPages() {
+            if (pages == null) {
+                pages = new ConcurrentHashMap<String, PrefetchedPage>();
+            }
+            return pages;
+        }
+
+
+        /**
+         * @return prefetched page or null if page is not prefetched, it's expired or it's prefetching is still in progress
+         */
+        PeopleFeed take(String pageToken) {
+            PrefetchedPage page = getPages().get(pageToken);
+            if (page == null || page.feed == null) {
+                return null;
+            }
+
+            getPages().remove(pageToken);
+            return page.isExpired() ? null : page.feed;
+        }
+
+
+        private boolean startPrefetch(String pageToken) {
+            Map<String, PrefetchedPage> pages = getPages();
+            synchronized (this) {
+                removeExpired();
+                if (pages.containsKey(pageToken) || pages.size() >= MAX_SIZE) {
+                    return false;
+                }
+                // Placeholder without feed marks prefetch in progress
+                pages.put(pageToken, new PrefetchedPage(null, Long.MAX_VALUE));
+                return true;
+            }
+        }
+
+
+        private void cancelPrefetch(String pageToken) {
+            getPages().remove(pageToken);
+        }
+
+
+        private void put(String pageToken, PeopleFeed feed, long expirationTime) {
+            getPages().put(pageToken, new PrefetchedPage(feed, expirationTime));
+        }
+
+
+        private void removeExpired() {
+            for (Iterator<PrefetchedPage> it = getPages().values().iterator(); it.hasNext(); ) {
+                if (it.next().isExpired()) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+
+    private static class PrefetchedPage {
+
+        private final PeopleFeed feed;
+        private final long expirationTime;
+
+        private PrefetchedPage(PeopleFeed feed, long expirationTime) {
+            this.feed = feed;
+            this.expirationTime = expirationTime;
+        }
+
+        private boolean isExpired() {
+            return System.currentTimeMillis() > expirationTime;
+        }
+    }
+}
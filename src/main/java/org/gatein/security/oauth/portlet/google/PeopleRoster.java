@@ -0,0 +1,157 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.gatein.security.oauth.portlet.google;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson.JacksonFactory;
+import com.google.api.services.plus.model.PeopleFeed;
+
+/**
+ * Pages of people visible to single Google+ user, which were displayed to him. It's saved to disk with
+ * {@link org.gatein.security.oauth.portlet.cache.RosterStore}, so pages could be displayed after restart without request
+ * to Google and expired page could be validated with its ETag instead of obtaining it again. Roster is immutable, so it
+ * could be shared by concurrent renders.
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+class PeopleRoster implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final JsonFactory JSON_FACTORY = new JacksonFactory();
+
+    // First page doesn't have token
+    private static final String FIRST_PAGE = "";
+
+    // Pages by their tokens in order in which they were saved
+    private final LinkedHashMap<String, StoredPage> pages;
+
+    PeopleRoster() {
+        this.pages = new LinkedHashMap<String, StoredPage>();
+    }
+
+    private PeopleRoster(LinkedHashMap<String, StoredPage> pages) {
+        this.pages = pages;
+    }
+
+
+    /**
+     * @param pageToken token of page or null for first page
+     * @return saved page or null if page was not saved
+     */
+    StoredPage getPage(String pageToken) {
+        return pages.get(pageToken != null ? pageToken : FIRST_PAGE);
+    }
+
+
+    /**
+     * @param pageToken token of page or null for first page
+     * @param page page to save. It replaces previous page with same token
+     * @param maxPages max count of pages in roster. Pages saved before others are removed when roster has more pages
+     * @return new roster with given page
+     */
+    PeopleRoster withPage(String pageToken, StoredPage page, int maxPages) {
+        LinkedHashMap<String, StoredPage> newPages = new LinkedHashMap<String, StoredPage>(pages);
+        String key = pageToken != null ? pageToken : FIRST_PAGE;
+        newPages.remove(key);
+        newPages.put(key, page);
+        for (Iterator<Map.Entry<String, StoredPage>> it = newPages.entrySet().iterator(); newPages.size() > maxPages; ) {
+            it.next();
+            it.remove();
+        }
+        return new PeopleRoster(newPages);
+    }
+
+
+    int size() {
+        return pages.size();
+    }
+
+
+    /**
+     * Single page of people kept as JSON, because Google+ model classes are not serializable
+     */
+    static class StoredPage implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String json;
+        private final String etag;
+        private final long syncTime;
+
+        private transient PeopleFeed parsedFeed;
+
+        StoredPage(PeopleFeed feed) throws IOException {
+            this(JSON_FACTORY.toString(feed), feed.getEtag(), System.currentTimeMillis());
+            this.parsedFeed = feed;
+        }
+
+        private StoredPage(String json, String etag, long syncTime) {
+            this.json = json;
+            this.etag = etag;
+            this.syncTime = syncTime;
+        }
+
+
+        synchronized PeopleFeed getFeed() throws IOException {
+            if (parsedFeed == null) {
+                parsedFeed = JSON_FACTORY.fromString(json, PeopleFeed.class);
+            }
+            return parsedFeed;
+        }
+
+
+        /**
+         * @return ETag of page or null if Google didn't send it
+         */
+        String getETag() {
+            return etag;
+        }
+
+
+        /**
+         * @return time in milliseconds when page was obtained from Google or validated with Google
+         */
+        long getSyncTime() {
+            return syncTime;
+        }
+
+
+        /**
+         * @return copy of this page, which was just validated with Google
+         */
+        synchronized StoredPage revalidate() {
+            StoredPage page = new StoredPage(json, etag, System.currentTimeMillis());
+            page.parsedFeed = parsedFeed;
+            return page;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.gatein.security.oauth.portlet.metrics;
+
+/**
+ * Immutable copy of {@link LatencyHistogram}. All values are in nanoseconds
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+public class HistogramSnapshot {
+
+    private final long[] counts;
+    private final long count;
+    private final long totalDuration;
+    private final long maxDuration;
+
+    HistogramSnapshot(long[] counts, long totalDuration, long maxDuration) {
+        long count = 0;
+        for (long bucketCount : counts) {
+            count += bucketCount;
+        }
+
+        this.counts = counts;
+        this.count = count;
+        this.totalDuration = totalDuration;
+        this.maxDuration = maxDuration;
+    }
+
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getMax() {
+        return maxDuration;
+    }
+
+    public double getMean() {
+        return count == 0 ? 0 : (double)totalDuration / count;
+    }
+
+
+    /**
+     * @param percentile percentile between 0 and 100
+     * @return highest value, which is equivalent (in precision of histogram) to value at given percentile. Returns 0 if
+     * histogram is empty
+     */
+    public long getPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+
+        long requiredCount = Math.max((long)Math.ceil(percentile / 100 * count), 1);
+        long cumulativeCount = 0;
+        for (int i=0 ; i<counts.length ; i++) {
+            cumulativeCount += counts[i];
+            if (cumulativeCount >= requiredCount) {
+                long upperBound = i + 1 < counts.length ? LatencyHistogram.getBucketLowerBound(i + 1) - 1 : Long.MAX_VALUE;
+                return Math.min(upperBound, maxDuration);
+            }
+        }
+        return maxDuration;
+    }
+
+
+    @Override
+    public String toString() {
+        return new StringBuilder("count=" + count)
+                .append(", mean=" + format(getMean()))
+                .append(", p50=" + format(getPercentile(50)))
+                .append(", p95=" + format(getPercentile(95)))
+                .append(", p99=" + format(getPercentile(99)))
+                .append(", max=" + format(maxDuration)).toString();
+    }
+
+
+    private static String format(double nanos) {
+        return String.format("%.2fms", nanos / 1000000.0);
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.gatein.security.oauth.portlet.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies with lock-free recording, which is cheap enough to be used for every call to OAuth provider
+ * and every render of portlet.
+ * <p>
+ * Like in HdrHistogram, values are grouped into buckets with exponentially growing width. Each power of two is divided
+ * into 16 buckets, so relative error of reported percentiles is at most 1/16 regardless of the magnitude of value.
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+public class LatencyHistogram implements LatencyHistogramMXBean {
+
+    static final int SUB_BUCKET_BITS = 4;
+    static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    static final int BUCKET_COUNT = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+    private static final double NANOS_PER_MILLI = 1000000.0;
+
+    private final String name;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong totalDuration = new AtomicLong();
+    private final AtomicLong maxDuration = new AtomicLong();
+
+    /**
+     * @param name name of histogram, which is also used in name of its MBean
+     */
+    public LatencyHistogram(String name) {
+        this.name = name;
+    }
+
+
+    /**
+     * Record single duration. It doesn't block and it doesn't allocate any objects
+     *
+     * @param duration duration in nanoseconds
+     */
+    public void record(long duration) {
+        if (duration < 0) {
+            duration = 0;
+        }
+
+        counts.incrementAndGet(getBucketIndex(duration));
+        totalDuration.addAndGet(duration);
+
+        long max = maxDuration.get();
+        while (duration > max && !maxDuration.compareAndSet(max, duration)) {
+            max = maxDuration.get();
+        }
+    }
+
+
+    /**
+     * Record duration of operation started at given time
+     *
+     * @param startTime start of operation obtained from {@link System#nanoTime()}
+     */
+    public void recordSince(long startTime) {
+        record(System.nanoTime() - startTime);
+    }
+
+
+    /**
+     * Values recorded concurrently with this call may or may not be included in snapshot
+     *
+     * @return copy of current state of histogram
+     */
+    public HistogramSnapshot getSnapshot() {
+        long[] snapshotCounts = new long[BUCKET_COUNT];
+        for (int i=0 ; i<BUCKET_COUNT ; i++) {
+            snapshotCounts[i] = counts.get(i);
+        }
+        return new HistogramSnapshot(snapshotCounts, totalDuration.get(), maxDuration.get());
+    }
+
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public long getCount() {
+        return getSnapshot().getCount();
+    }
+
+    @Override
+    public double getMean() {
+        return getSnapshot().getMean() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getMax() {
+        return maxDuration.get() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double get50thPercentile() {
+        return getSnapshot().getPercentile(50) / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double get95thPercentile() {
+        return getSnapshot().getPercentile(95) / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double get99thPercentile() {
+        return getSnapshot().getPercentile(99) / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double get999thPercentile() {
+        return getSnapshot().getPercentile(99.9) / NANOS_PER_MILLI;
+    }
+
+
+    /**
+     * Remove all recorded values. Values recorded concurrently with reset may be partially kept
+     */
+    @Override
+    public void reset() {
+        for (int i=0 ; i<BUCKET_COUNT ; i++) {
+            counts.set(i, 0);
+        }
+        totalDuration.set(0);
+        maxDuration.set(0);
+    }
+
+
+    @Override
+    public String toString() {
+        return "LatencyHistogram [ name=" + name + ", " + getSnapshot() + " ]";
+    }
+
+
+    static int getBucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int)value;
+        }
+
+        // Position of highest bit decides the power of two and next bits decide the bucket inside it
+        int shift = Long.SIZE - 1 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int subBucket = (int)(value >>> shift) & (SUB_BUCKET_COUNT - 1);
+        return (shift + 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+
+    // Lowest value, which falls into bucket with given index
+    static long getBucketLowerBound(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+
+        int shift = index / SUB_BUCKET_COUNT - 1;
+        long subBucket = index % SUB_BUCKET_COUNT;
+        return (SUB_BUCKET_COUNT + subBucket) << shift;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.gatein.security.oauth.portlet.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Immutable copy of all metrics of social portlets on this cluster node (See {@link SocialMetrics#getSnapshot()})
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+public class MetricsSnapshot {
+
+    private final long timestamp;
+    private final Map<String, HistogramSnapshot> providerCalls;
+    private final Map<String, HistogramSnapshot> renders;
+    private final Map<String, Long> errors;
+    private final Map<String, Long> coalescedCalls;
+    private final Map<String, Double> cacheHitRatios;
+
+    MetricsSnapshot(long timestamp, Map<String, HistogramSnapshot> providerCalls, Map<String, HistogramSnapshot> renders,
+                    Map<String, Long> errors, Map<String, Long> coalescedCalls, Map<String, Double> cacheHitRatios) {
+        this.timestamp = timestamp;
+        this.providerCalls = Collections.unmodifiableMap(providerCalls);
+        this.renders = Collections.unmodifiableMap(renders);
+        this.errors = Collections.unmodifiableMap(errors);
+        this.coalescedCalls = Collections.unmodifiableMap(coalescedCalls);
+        this.cacheHitRatios = Collections.unmodifiableMap(cacheHitRatios);
+    }
+
+
+    /**
+     * @return time in milliseconds when snapshot was taken
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return latencies of calls to OAuth providers. Key is "providerKey.operation" (For example "GOOGLE.people.list")
+     */
+    public Map<String, HistogramSnapshot> getProviderCalls() {
+        return providerCalls;
+    }
+
+    /**
+     * @return latencies of renders. Key is name of portlet
+     */
+    public Map<String, HistogramSnapshot> getRenders() {
+        return renders;
+    }
+
+    /**
+     * @return count of errors. Key is "providerKey:errorType"
+     */
+    public Map<String, Long> getErrors() {
+        return errors;
+    }
+
+    /**
+     * @return count of calls, which were not executed because same call was running concurrently. Key is type of loaded
+     * data (For example "FACEBOOK.pictures")
+     */
+    public Map<String, Long> getCoalescedCalls() {
+        return coalescedCalls;
+    }
+
+    /**
+     * @return hit ratios of caches. Key is name of cache
+     */
+    public Map<String, Double> getCacheHitRatios() {
+        return cacheHitRatios;
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder("MetricsSnapshot [ providerCalls=" + providerCalls)
+                .append(", renders=" + renders)
+                .append(", errors=" + errors)
+                .append(", coalescedCalls=" + coalescedCalls)
+                .append(", cacheHitRatios=" + cacheHitRatios)
+                .append(" ]").toString();
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.gatein.security.oauth.portlet.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of loads coalesced by {@link org.gatein.security.oauth.portlet.concurrent.SingleFlight}
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+public class SingleFlightCounters implements SingleFlightCountersMXBean {
+
+    private final ConcurrentMap<String, AtomicLong> executed = new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentMap<String, AtomicLong> coalesced = new ConcurrentHashMap<String, AtomicLong>();
+
+    /**
+     * @param name type of loaded data
+     * @param wasCoalesced true if caller obtained result of call executed by other thread
+     */
+    public void increment(String name, boolean wasCoalesced) {
+        ConcurrentMap<String, AtomicLong> counters = wasCoalesced ? coalesced : executed;
+        AtomicLong counter = counters.get(name);
+        if (counter == null) {
+            AtomicLong newCounter = new AtomicLong();
+            counter = counters.putIfAbsent(name, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+        counter.incrementAndGet();
+    }
+
+
+    @Override
+    public Map<String, Long> getExecutedCounts() {
+        return copy(executed);
+    }
+
+    @Override
+    public Map<String, Long> getCoalescedCounts() {
+        return copy(coalesced);
+    }
+
+    @Override
+    public long getTotalCoalescedCount() {
+        long total = 0;
+        for (AtomicLong counter : coalesced.values()) {
+            total += counter.get();
+        }
+        return total;
+    }
+
+    @Override
+    public void reset() {
+        executed.clear();
+        coalesced.clear();
+    }
+
+
+    private static Map<String, Long> copy(Map<String, AtomicLong> counters) {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> counter : counters.entrySet()) {
+            result.put(counter.getKey(), counter.getValue().get());
+        }
+        return result;
+    }
+}
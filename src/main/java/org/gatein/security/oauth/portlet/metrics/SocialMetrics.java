@@ -0,0 +1,232 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.gatein.security.oauth.portlet.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.gatein.common.logging.Logger;
+import org.gatein.common.logging.LoggerFactory;
+import org.gatein.security.oauth.portlet.cache.MonitoredCache;
+
+/**
+ * Registry of metrics of social portlets on this cluster node. It contains latency histograms of calls to OAuth providers
+ * for each provider and operation, latency histograms of renders for each portlet, counters of errors, counters of coalesced
+ * loads and statistics of caches.
+ * <p>
+ * All metrics are registered as MXBeans in platform MBean server under domain "gatein.social" and they are also available
+ * through {@link #getSnapshot()}. Like in {@link org.gatein.security.oauth.portlet.concurrent.ProviderExecutors}, every
+ * portlet should call {@link #acquire()} during init and {@link #release()} during destroy. MBeans are unregistered
+ * when last portlet is destroyed, so they don't keep classes of undeployed application.
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+public class SocialMetrics {
+
+    private static final Logger log = LoggerFactory.getLogger(SocialMetrics.class);
+
+    private static final String DOMAIN = "gatein.social";
+
+    private static final ConcurrentMap<String, LatencyHistogram> providerCalls = new ConcurrentHashMap<String, LatencyHistogram>();
+    private static final ConcurrentMap<String, LatencyHistogram> renders = new ConcurrentHashMap<String, LatencyHistogram>();
+    private static final ConcurrentMap<String, CacheStatistics> caches = new ConcurrentHashMap<String, CacheStatistics>();
+    private static final ErrorCounters errors = new ErrorCounters();
+    private static final SingleFlightCounters singleFlights = new SingleFlightCounters();
+
+    private static final Set<ObjectName> registeredNames = new HashSet<ObjectName>();
+    private static int referenceCount;
+
+    private SocialMetrics() {}
+
+
+    public static synchronized void acquire() {
+        if (referenceCount++ == 0) {
+            register(DOMAIN + ":type=Errors", errors);
+            register(DOMAIN + ":type=SingleFlight", singleFlights);
+        }
+    }
+
+
+    public static synchronized void release() {
+        if (referenceCount == 0 || --referenceCount > 0) {
+            return;
+        }
+
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName name : registeredNames) {
+            try {
+                mbeanServer.unregisterMBean(name);
+            } catch (JMException jme) {
+                log.debug("Unable to unregister MBean " + name + ": " + jme.getMessage());
+            }
+        }
+        registeredNames.clear();
+        providerCalls.clear();
+        renders.clear();
+        caches.clear();
+        errors.reset();
+        singleFlights.reset();
+    }
+
+
+    /**
+     * Intended to be obtained once and then used for recording of each call
+     *
+     * @param providerKey key of OAuth provider
+     * @param operation name of operation of provider API like "people.list"
+     * @return histogram of latencies of given operation
+     */
+    public static LatencyHistogram getProviderCallHistogram(String providerKey, String operation) {
+        String name = providerKey + "." + operation;
+        LatencyHistogram histogram = providerCalls.get(name);
+        if (histogram == null) {
+            synchronized (SocialMetrics.class) {
+                histogram = providerCalls.get(name);
+                if (histogram == null) {
+                    histogram = new LatencyHistogram(name);
+                    providerCalls.put(name, histogram);
+                    register(DOMAIN + ":type=ProviderCalls,provider=" + providerKey + ",operation=" + operation, histogram);
+                }
+            }
+        }
+        return histogram;
+    }
+
+
+    /**
+     * @param portletName name of portlet from portlet.xml
+     * @return histogram of latencies of renders of given portlet
+     */
+    public static LatencyHistogram getRenderHistogram(String portletName) {
+        LatencyHistogram histogram = renders.get(portletName);
+        if (histogram == null) {
+            synchronized (SocialMetrics.class) {
+                histogram = renders.get(portletName);
+                if (histogram == null) {
+                    histogram = new LatencyHistogram(portletName);
+                    renders.put(portletName, histogram);
+                    register(DOMAIN + ":type=Renders,portlet=" + portletName, histogram);
+                }
+            }
+        }
+        return histogram;
+    }
+
+
+    /**
+     * @param providerKey key of OAuth provider
+     * @param error error thrown by OAuth provider or portlet
+     */
+    public static void recordError(String providerKey, Throwable error) {
+        errors.increment(providerKey, error);
+    }
+
+
+    /**
+     * @param name type of data loaded with {@link org.gatein.security.oauth.portlet.concurrent.SingleFlight}
+     * @param coalesced true if caller obtained result of call executed by other thread
+     */
+    public static void recordSingleFlight(String name, boolean coalesced) {
+        singleFlights.increment(name, coalesced);
+    }
+
+
+    /**
+     * Expose statistics of given cache. Cache replaces previously registered cache with same name
+     */
+    public static synchronized void registerCache(MonitoredCache cache) {
+        CacheStatistics statistics = new CacheStatistics(cache);
+        caches.put(cache.getName(), statistics);
+        register(DOMAIN + ":type=Caches,name=" + cache.getName(), statistics);
+    }
+
+
+    public static synchronized void unregisterCache(MonitoredCache cache) {
+        CacheStatistics statistics = caches.get(cache.getName());
+        if (statistics == null || statistics.getCache() != cache) {
+            return;
+        }
+
+        caches.remove(cache.getName());
+        try {
+            ObjectName name = new ObjectName(DOMAIN + ":type=Caches,name=" + cache.getName());
+            registeredNames.remove(name);
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException jme) {
+            log.debug("Unable to unregister MBean of cache " + cache.getName() + ": " + jme.getMessage());
+        }
+    }
+
+
+    /**
+     * @return copy of all metrics. Histograms are copied one by one, so they could be slightly inconsistent with each other
+     */
+    public static MetricsSnapshot getSnapshot() {
+        Map<String, HistogramSnapshot> providerCallSnapshots = new TreeMap<String, HistogramSnapshot>();
+        for (LatencyHistogram histogram : providerCalls.values()) {
+            providerCallSnapshots.put(histogram.getName(), histogram.getSnapshot());
+        }
+
+        Map<String, HistogramSnapshot> renderSnapshots = new TreeMap<String, HistogramSnapshot>();
+        for (LatencyHistogram histogram : renders.values()) {
+            renderSnapshots.put(histogram.getName(), histogram.getSnapshot());
+        }
+
+        Map<String, Double> cacheHitRatios = new TreeMap<String, Double>();
+        for (CacheStatistics statistics : caches.values()) {
+            cacheHitRatios.put(statistics.getName(), statistics.getHitRatio());
+        }
+
+        return new MetricsSnapshot(System.currentTimeMillis(), providerCallSnapshots, renderSnapshots, errors.getErrorCounts(),
+                singleFlights.getCoalescedCounts(), cacheHitRatios);
+    }
+
+
+    // Metrics are still recorded if registration fails, so failure is not fatal
+    private static synchronized void register(String name, Object mbean) {
+        try {
+            ObjectName objectName = new ObjectName(name);
+            MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+
+            // MBean could be left by previous deployment or replaced cache
+            if (mbeanServer.isRegistered(objectName)) {
+                mbeanServer.unregisterMBean(objectName);
+            }
+            mbeanServer.registerMBean(mbean, objectName);
+            registeredNames.add(objectName);
+        } catch (JMException jme) {
+            log.warn("Unable to register MBean " + name + ": " + jme.getMessage());
+        }
+    }
+}
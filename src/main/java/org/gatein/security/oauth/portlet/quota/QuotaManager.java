@@ -0,0 +1,302 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.gatein.security.oauth.portlet.quota;
+
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.exoplatform.container.ExoContainer;
+import org.gatein.common.logging.Logger;
+import org.gatein.common.logging.LoggerFactory;
+import org.gatein.security.oauth.portlet.concurrent.ProviderUnavailableException;
+
+/**
+ * Quota of calls to OAuth providers shared by all social portlets. Each provider has token bucket for whole application
+ * and token bucket for each portal user. Calls of user must obtain token from both of them before they are sent.
+ * <p>
+ * Limits could be configured with system properties "gatein.oauth.portlet.{providerKey}.appRateLimit" and
+ * "gatein.oauth.portlet.{providerKey}.userRateLimit" (count of calls per period) and
+ * "gatein.oauth.portlet.{providerKey}.rateLimitPeriod" (seconds). Limits reported by provider in its responses are
+ * applied automatically, so buckets are created even for providers without configured limits.
+ * <p>
+ * Interactive calls could wait for token for limited time. Background calls never wait and they can't take last tokens
+ * of the bucket, which are reserved for interactive calls. It could be configured with system properties
+ * "gatein.oauth.portlet.quota.maxWait" (milliseconds) and "gatein.oauth.portlet.quota.backgroundReserve" (percentage of bucket)
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+public class QuotaManager {
+
+    private static final Logger log = LoggerFactory.getLogger(QuotaManager.class);
+
+    private static final int DEFAULT_RATE_LIMIT_PERIOD = 900;
+    private static final int MAX_USER_BUCKETS = 10000;
+
+    private static final QuotaManager DEFAULT_INSTANCE = new QuotaManager(Long.getLong("gatein.oauth.portlet.quota.maxWait", 2000),
+            Integer.getInteger("gatein.oauth.portlet.quota.backgroundReserve", 20));
+
+    public enum Priority {
+        // Call needed for render of page, which user is waiting for
+        INTERACTIVE,
+        // Prefetching, refresh of cached data etc.
+        BACKGROUND
+    }
+
+    private final long maxWait;
+    private final int backgroundReserve;
+
+    private final ConcurrentMap<String, TokenBucket> appBuckets = new ConcurrentHashMap<String, TokenBucket>();
+    private final ConcurrentMap<String, TokenBucket> userBuckets = new ConcurrentHashMap<String, TokenBucket>();
+    private final ConcurrentMap<String, ProviderLimits> limits = new ConcurrentHashMap<String, ProviderLimits>();
+
+    private final AtomicLong delayedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    /**
+     * @param maxWait max time in milliseconds for which interactive call waits for token
+     * @param backgroundReserve percentage of each bucket, which could be used only by interactive calls
+     */
+    public QuotaManager(long maxWait, int backgroundReserve) {
+        this.maxWait = maxWait;
+        this.backgroundReserve = backgroundReserve;
+    }
+
+
+    /**
+     * @return quota manager shared on this cluster node
+     */
+    public static QuotaManager getInstance() {
+        return DEFAULT_INSTANCE;
+    }
+
+
+    /**
+     * @param container portal container
+     * @return quota manager registered as component in given container or quota manager shared on this cluster node
+     * if container doesn't contain any
+     */
+    public static QuotaManager getInstance(ExoContainer container) {
+        QuotaManager quotaManager = (QuotaManager)container.getComponentInstanceOfType(QuotaManager.class);
+        return quotaManager != null ? quotaManager : DEFAULT_INSTANCE;
+    }
+
+
+    /**
+     * Obtain permission for single call to provider. Interactive call could block until tokens are available.
+     *
+     * @param providerKey key of OAuth provider
+     * @param username portal user on behalf of whom is call sent or null if call is not sent on behalf of any user
+     * @param priority priority of call
+     * @throws ProviderUnavailableException if quota of application or user is exhausted
+     */
+    public void acquire(String providerKey, String username, Priority priority) {
+        long callerMaxWait = priority == Priority.INTERACTIVE ? TimeUnit.MILLISECONDS.toNanos(maxWait) : 0;
+
+        TokenBucket appBucket = getAppBucket(providerKey);
+        long wait = acquire(appBucket, priority, callerMaxWait);
+        if (wait >= 0 && username != null) {
+            long userWait = acquire(getUserBucket(providerKey, username), priority, callerMaxWait - wait);
+            if (userWait < 0) {
+                // Call won't be sent, so token of application is left for other users
+                if (appBucket != null) {
+                    appBucket.release();
+                }
+                wait = -1;
+            } else {
+                wait += userWait;
+            }
+        }
+
+        if (wait < 0) {
+            rejectedCount.incrementAndGet();
+            throw new ProviderUnavailableException(providerKey, ProviderUnavailableException.Reason.QUOTA_EXCEEDED);
+        }
+
+        if (wait > 0) {
+            delayedCount.incrementAndGet();
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new ProviderUnavailableException(providerKey, ProviderUnavailableException.Reason.INTERRUPTED);
+            }
+        }
+    }
+
+
+    /**
+     * Apply limit reported by provider in its response
+     *
+     * @param providerKey key of OAuth provider
+     * @param username portal user or null if limit is for whole application
+     * @param limit count of calls allowed in rate limit period
+     * @param remaining count of calls remaining in current period
+     * @param secondsUntilReset time in seconds until current period ends
+     */
+    public void updateLimit(String providerKey, String username, int limit, int remaining, int secondsUntilReset) {
+        TokenBucket bucket = getOrCreateBucket(providerKey, username);
+        bucket.update(limit, getLimits(providerKey).period, remaining, Math.max(0, secondsUntilReset) * 1000L);
+    }
+
+
+    /**
+     * Stop sending calls to provider after provider refused call because of exceeded request limit
+     *
+     * @param providerKey key of OAuth provider
+     * @param username portal user or null if limit of whole application was exceeded
+     * @param secondsUntilReset time in seconds for which calls shouldn't be sent
+     */
+    public void onRateLimited(String providerKey, String username, int secondsUntilReset) {
+        getOrCreateBucket(providerKey, username).block(Math.max(1, secondsUntilReset) * 1000L);
+        log.debug("Request limit of provider " + providerKey + (username != null ? " for user " + username : "") +
+                " exceeded. Calls are blocked for " + secondsUntilReset + " seconds");
+    }
+
+
+    /**
+     * @return count of calls, which had to wait for token
+     */
+    public long getDelayedCount() {
+        return delayedCount.get();
+    }
+
+    /**
+     * @return count of calls rejected because of exhausted quota
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder("QuotaManager [ appBuckets=" + appBuckets)
+                .append(", userBuckets=" + userBuckets.size())
+                .append(", delayed=" + getDelayedCount())
+                .append(", rejected=" + getRejectedCount())
+                .append(" ]").toString();
+    }
+
+
+    private long acquire(TokenBucket bucket, Priority priority, long maxWait) {
+        if (bucket == null) {
+            return 0;
+        }
+
+        int reservedTokens = priority == Priority.BACKGROUND ? (int)Math.ceil(bucket.getCapacity() * backgroundReserve / 100.0) : 0;
+        return bucket.tryAcquire(reservedTokens, maxWait);
+    }
+
+
+    private TokenBucket getAppBucket(String providerKey) {
+        TokenBucket bucket = appBuckets.get(providerKey);
+        if (bucket == null) {
+            ProviderLimits providerLimits = getLimits(providerKey);
+            if (providerLimits.appRateLimit > 0) {
+                bucket = putIfAbsent(appBuckets, providerKey, new TokenBucket(providerLimits.appRateLimit, providerLimits.period));
+            }
+        }
+        return bucket;
+    }
+
+
+    private TokenBucket getUserBucket(String providerKey, String username) {
+        String key = providerKey + ":" + username;
+        TokenBucket bucket = userBuckets.get(key);
+        if (bucket == null) {
+            ProviderLimits providerLimits = getLimits(providerKey);
+            if (providerLimits.userRateLimit > 0) {
+                bucket = putUserBucket(key, new TokenBucket(providerLimits.userRateLimit, providerLimits.period));
+            }
+        }
+        return bucket;
+    }
+
+
+    private TokenBucket getOrCreateBucket(String providerKey, String username) {
+        TokenBucket bucket = username == null ? getAppBucket(providerKey) : getUserBucket(providerKey, username);
+        if (bucket != null) {
+            return bucket;
+        }
+
+        // Unlimited bucket, which will get its limit from provider
+        if (username == null) {
+            return putIfAbsent(appBuckets, providerKey, new TokenBucket(0, 0));
+        } else {
+            return putUserBucket(providerKey + ":" + username, new TokenBucket(0, 0));
+        }
+    }
+
+
+    private TokenBucket putUserBucket(String key, TokenBucket bucket) {
+        // Buckets of inactive users are full, so they could be removed and created again when needed
+        if (userBuckets.size() >= MAX_USER_BUCKETS) {
+            for (Iterator<TokenBucket> it = userBuckets.values().iterator(); it.hasNext(); ) {
+                if (it.next().isIdle()) {
+                    it.remove();
+                }
+            }
+        }
+        return putIfAbsent(userBuckets, key, bucket);
+    }
+
+
+    private static TokenBucket putIfAbsent(ConcurrentMap<String, TokenBucket> buckets, String key, TokenBucket bucket) {
+        TokenBucket existing = buckets.putIfAbsent(key, bucket);
+        return existing != null ? existing : bucket;
+    }
+
+
+    // Configuration is read only once for each provider
+    private ProviderLimits getLimits(String providerKey) {
+        ProviderLimits providerLimits = limits.get(providerKey);
+        if (providerLimits == null) {
+            String propertyPrefix = "gatein.oauth.portlet." + providerKey.toLowerCase(Locale.ENGLISH);
+            providerLimits = new ProviderLimits(Integer.getInteger(propertyPrefix + ".appRateLimit", 0),
+                    Integer.getInteger(propertyPrefix + ".userRateLimit", 0),
+                    Integer.getInteger(propertyPrefix + ".rateLimitPeriod", DEFAULT_RATE_LIMIT_PERIOD) * 1000L);
+            limits.putIfAbsent(providerKey, providerLimits);
+        }
+        return providerLimits;
+    }
+
+
+    private static class ProviderLimits {
+
+        private final int appRateLimit;
+        private final int userRateLimit;
+        // Period in milliseconds
+        private final long period;
+
+        private ProviderLimits(int appRateLimit, int userRateLimit, long period) {
+            this.appRateLimit = appRateLimit;
+            this.userRateLimit = userRateLimit;
+            this.period = period;
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.gatein.security.oauth.portlet.quota;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket implemented as generic cell rate algorithm. Bucket holds only single value (time when it will be
+ * full again), which is updated with compare-and-set, so it could be used by many threads without contention.
+ * <p>
+ * Token could be reserved in advance, so caller, which is allowed to wait, just sleeps until its token is available.
+ * Bucket without limit never runs out of tokens, but it could be blocked for some time (for example after provider
+ * refused request because of request limit).
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+public class TokenBucket {
+
+    // Time in nanoseconds when bucket will be full again
+    private final AtomicLong theoreticalArrivalTime = new AtomicLong(System.nanoTime());
+
+    private volatile Limit limit;
+    private volatile long blockedUntil;
+    private volatile boolean blocked;
+
+    /**
+     * @param capacity max count of calls in given period. Bucket is unlimited if capacity is 0 or less
+     * @param period period in milliseconds
+     */
+    public TokenBucket(int capacity, long period) {
+        this.limit = capacity > 0 ? new Limit(capacity, period) : null;
+    }
+
+
+    /**
+     * Reserve single token
+     *
+     * @param reservedTokens count of tokens, which must stay in bucket after this call. They are left for more important callers
+     * @param maxWait max time in nanoseconds, which caller is able to wait for token
+     * @return time in nanoseconds, which caller needs to wait before using token or -1 if token can't be obtained in time
+     */
+    public long tryAcquire(int reservedTokens, long maxWait) {
+        long now = System.nanoTime();
+        long blockedWait = blocked ? Math.max(0, blockedUntil - now) : 0;
+        Limit limit = this.limit;
+        if (limit == null) {
+            return blockedWait > maxWait ? -1 : blockedWait;
+        }
+
+        long burst = (long)Math.max(0, limit.capacity - reservedTokens) * limit.interval;
+        while (true) {
+            long tat = theoreticalArrivalTime.get();
+            long newTat = (tat - now > 0 ? tat : now) + limit.interval;
+            long wait = Math.max(newTat - now - burst, blockedWait);
+            if (wait > maxWait) {
+                return -1;
+            }
+            if (theoreticalArrivalTime.compareAndSet(tat, newTat)) {
+                return wait;
+            }
+        }
+    }
+
+
+    /**
+     * Give back token obtained by {@link #tryAcquire(int, long)}, which won't be used because call was not sent
+     */
+    public void release() {
+        Limit limit = this.limit;
+        if (limit == null) {
+            return;
+        }
+
+        while (true) {
+            long now = System.nanoTime();
+            long tat = theoreticalArrivalTime.get();
+            if (tat - now <= 0) {
+                // Bucket is already full again
+                return;
+            }
+            long newTat = tat - limit.interval;
+            if (theoreticalArrivalTime.compareAndSet(tat, newTat - now > 0 ? newTat : now)) {
+                return;
+            }
+        }
+    }
+
+
+    /**
+     * Update limit and count of available tokens according to information reported by provider
+     *
+     * @param capacity max count of calls in given period
+     * @param period period in milliseconds
+     * @param remaining count of calls, which could be still sent to provider
+     * @param untilReset time in milliseconds after which provider resets its counter of calls
+     */
+    public void update(int capacity, long period, int remaining, long untilReset) {
+        if (capacity <= 0) {
+            return;
+        }
+
+        Limit limit = this.limit;
+        if (limit == null || limit.capacity != capacity || limit.period != period) {
+            limit = new Limit(capacity, period);
+            this.limit = limit;
+        }
+
+        if (remaining <= 0) {
+            block(untilReset);
+            return;
+        }
+
+        // Tokens could be only taken. Calls sent concurrently with this update are not yet counted by provider
+        long usedTat = System.nanoTime() + (long)Math.max(0, capacity - remaining) * limit.interval;
+        while (true) {
+            long tat = theoreticalArrivalTime.get();
+            if (tat - usedTat >= 0 || theoreticalArrivalTime.compareAndSet(tat, usedTat)) {
+                return;
+            }
+        }
+    }
+
+
+    /**
+     * Don't give any tokens for given time
+     *
+     * @param time time in milliseconds
+     */
+    public synchronized void block(long time) {
+        long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(time);
+        if (!blocked || until - blockedUntil > 0) {
+            blockedUntil = until;
+            blocked = true;
+        }
+    }
+
+
+    /**
+     * @return true if bucket is full and not blocked, so it could be discarded without losing any information about
+     * used tokens
+     */
+    public boolean isIdle() {
+        long now = System.nanoTime();
+        return theoreticalArrivalTime.get() - now <= 0 && (!blocked || blockedUntil - now <= 0);
+    }
+
+
+    /**
+     * @return max count of tokens in bucket or 0 if bucket is unlimited
+     */
+    public int getCapacity() {
+        Limit limit = this.limit;
+        return limit == null ? 0 : limit.capacity;
+    }
+
+
+    /**
+     * @return count of tokens available now or -1 if bucket is unlimited
+     */
+    public int getAvailableTokens() {
+        Limit limit = this.limit;
+        if (limit == null) {
+            return -1;
+        }
+        long used = Math.max(0, theoreticalArrivalTime.get() - System.nanoTime());
+        return (int)Math.max(0, limit.capacity - (used + limit.interval - 1) / limit.interval);
+    }
+
+
+    @Override
+    public String toString() {
+        Limit limit = this.limit;
+        return new StringBuilder("TokenBucket [ capacity=" + (limit == null ? "unlimited" : String.valueOf(limit.capacity)))
+                .append(", period=" + (limit == null ? 0 : limit.period))
+                .append(", available=" + getAvailableTokens())
+                .append(" ]").toString();
+    }
+
+
+    private static class Limit {
+
+        private final int capacity;
+        private final long period;
+        // Time in nanoseconds needed for adding single token to bucket
+        private final long interval;
+
+        private Limit(int capacity, long period) {
+            this.capacity = capacity;
+            this.period = period;
+            this.interval = Math.max(1, TimeUnit.MILLISECONDS.toNanos(period) / capacity);
+        }
+    }
+}
@@ -0,0 +1,435 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.gatein.security.oauth.portlet.search;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+/**
+ * In-memory index of person names, which allows to search for persons by substring or prefix of their name without scanning
+ * all of them. Names are normalized (lower-cased, accents stripped) and split into n-grams of length 1 to 3, so query
+ * "mar" finds "Marek" as well as "Simarova" written with accents. Results are ranked (whole name first, then prefix of name, then prefix
+ * of any word, then substring) and if no name contains the query, names with single typo are returned.
+ * <p>
+ * Index is thread-safe and could be updated incrementally when list of persons changes.
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+public class NameIndex {
+
+    private static final Pattern DIACRITICS = Pattern.compile("\\p{InCombiningDiacriticalMarks}+");
+    private static final Pattern WHITESPACES = Pattern.compile("\\s+");
+
+    private static final int MAX_GRAM_LENGTH = 3;
+    private static final String WORD_START_PREFIX = "^";
+
+    private static final int RANK_WHOLE_NAME = 0;
+    private static final int RANK_NAME_PREFIX = 1;
+    private static final int RANK_WORD_PREFIX = 2;
+    private static final int RANK_SUBSTRING = 3;
+    private static final int RANK_TYPO = 4;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // Documents are identified by their position in these lists. Positions of removed documents are reused
+    private final List<String> ids = new ArrayList<String>();
+    private final List<String> names = new ArrayList<String>();
+    private final List<String> normalizedNames = new ArrayList<String>();
+    private final LinkedList<Integer> freePositions = new LinkedList<Integer>();
+
+    private final Map<String, Integer> positionsById = new HashMap<String, Integer>();
+    private final Map<String, BitSet> postings = new HashMap<String, BitSet>();
+
+
+    public NameIndex() {
+    }
+
+
+    /**
+     * Create copy of given index, which could be updated without affecting the original
+     */
+    public NameIndex(NameIndex other) {
+        other.lock.readLock().lock();
+        try {
+            ids.addAll(other.ids);
+            names.addAll(other.names);
+            normalizedNames.addAll(other.normalizedNames);
+            freePositions.addAll(other.freePositions);
+            positionsById.putAll(other.positionsById);
+            for (Map.Entry<String, BitSet> entry : other.postings.entrySet()) {
+                postings.put(entry.getKey(), (BitSet)entry.getValue().clone());
+            }
+        } finally {
+            other.lock.readLock().unlock();
+        }
+    }
+
+
+    /**
+     * Add person to index or update his name if he is already indexed
+     */
+    public void put(String id, String name) {
+        lock.writeLock().lock();
+        try {
+            Integer position = positionsById.get(id);
+            if (position != null) {
+                String indexedName = names.get(position);
+                if (indexedName == null ? name == null : indexedName.equals(name)) {
+                    return;
+                }
+                removeAtPosition(position);
+            }
+            addDocument(id, name);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    public void remove(String id) {
+        lock.writeLock().lock();
+        try {
+            Integer position = positionsById.get(id);
+            if (position != null) {
+                removeAtPosition(position);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * Update index, so it contains exactly persons from given map. Only changed persons are re-indexed
+     *
+     * @param namesById mapping from ID of person to his name
+     */
+    public void sync(Map<String, String> namesById) {
+        lock.writeLock().lock();
+        try {
+            for (String id : new ArrayList<String>(positionsById.keySet())) {
+                if (!namesById.containsKey(id)) {
+                    removeAtPosition(positionsById.get(id));
+                }
+            }
+            for (Map.Entry<String, String> entry : namesById.entrySet()) {
+                put(entry.getKey(), entry.getValue());
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return positionsById.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+
+    /**
+     * Search for persons whose name contains given query. If there is no such person, persons whose name contains
+     * query with single typo are returned
+     *
+     * @param query text to search
+     * @param maxResults max count of returned ids
+     * @return ids of found persons ordered by relevance
+     */
+    public List<String> search(String query, int maxResults) {
+        String normalizedQuery = normalize(query);
+        if (normalizedQuery.length() == 0) {
+            return Collections.emptyList();
+        }
+
+        lock.readLock().lock();
+        try {
+            List<Match> matches = findExactMatches(normalizedQuery);
+            if (matches.isEmpty()) {
+                matches = findMatchesWithTypo(normalizedQuery);
+            }
+
+            Collections.sort(matches, matchComparator);
+            int resultSize = Math.min(maxResults, matches.size());
+            List<String> result = new ArrayList<String>(resultSize);
+            for (int i=0 ; i<resultSize ; i++) {
+                result.add(ids.get(matches.get(i).position));
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+
+    /**
+     * @return name converted to lower case with stripped accents and collapsed whitespaces
+     */
+    public static String normalize(String name) {
+        if (name == null) {
+            return "";
+        }
+        String result = Normalizer.normalize(name, Normalizer.Form.NFD);
+        result = DIACRITICS.matcher(result).replaceAll("");
+        result = WHITESPACES.matcher(result).replaceAll(" ");
+        return result.trim().toLowerCase(Locale.ENGLISH);
+    }
+
+
+    private List<Match> findExactMatches(String normalizedQuery) {
+        BitSet candidates;
+        if (normalizedQuery.length() <= MAX_GRAM_LENGTH) {
+            // Query is gram itself, so all candidates really contain it
+            candidates = postings.get(normalizedQuery);
+        } else {
+            // Intersection of postings of all trigrams. Candidates need to be verified afterwards
+            candidates = null;
+            for (String gram : getGrams(normalizedQuery, MAX_GRAM_LENGTH)) {
+                BitSet current = postings.get(gram);
+                if (current == null) {
+                    return new ArrayList<Match>();
+                }
+                if (candidates == null) {
+                    candidates = (BitSet)current.clone();
+                } else {
+                    candidates.and(current);
+                }
+            }
+        }
+
+        List<Match> result = new ArrayList<Match>();
+        if (candidates == null) {
+            return result;
+        }
+        for (int position = candidates.nextSetBit(0); position >= 0; position = candidates.nextSetBit(position + 1)) {
+            String normalizedName = normalizedNames.get(position);
+            int rank = getRank(normalizedName, normalizedQuery);
+            if (rank != -1) {
+                result.add(new Match(position, rank));
+            }
+        }
+        return result;
+    }
+
+
+    private List<Match> findMatchesWithTypo(String normalizedQuery) {
+        List<Match> result = new ArrayList<Match>();
+
+        // Typo in first character of query is not supported to avoid full scan
+        BitSet candidates = postings.get(WORD_START_PREFIX + normalizedQuery.charAt(0));
+        if (candidates == null || normalizedQuery.length() < 3) {
+            return result;
+        }
+
+        String[] queryWords = normalizedQuery.split(" ");
+        for (int position = candidates.nextSetBit(0); position >= 0; position = candidates.nextSetBit(position + 1)) {
+            String[] nameWords = normalizedNames.get(position).split(" ");
+            boolean allWordsMatch = true;
+            for (String queryWord : queryWords) {
+                if (!matchesAnyWordWithTypo(queryWord, nameWords)) {
+                    allWordsMatch = false;
+                    break;
+                }
+            }
+            if (allWordsMatch) {
+                result.add(new Match(position, RANK_TYPO));
+            }
+        }
+        return result;
+    }
+
+
+    private boolean matchesAnyWordWithTypo(String queryWord, String[] nameWords) {
+        for (String nameWord : nameWords) {
+            // Compare with prefixes of name word, which have similar length as query word
+            for (int length = queryWord.length() - 1 ; length <= queryWord.length() + 1 ; length++) {
+                if (length > 0 && length <= nameWord.length() &&
+                        isAtMostOneEditAway(queryWord, nameWord.substring(0, length))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+
+    // Single insertion, deletion, substitution or transposition of adjacent characters is allowed
+    private static boolean isAtMostOneEditAway(String first, String second) {
+        int lengthDiff = first.length() - second.length();
+        if (Math.abs(lengthDiff) > 1) {
+            return false;
+        }
+
+        int i = 0;
+        while (i < first.length() && i < second.length() && first.charAt(i) == second.charAt(i)) {
+            i++;
+        }
+        if (lengthDiff == 0) {
+            if (i == first.length()) {
+                return true;
+            }
+            // Transposition
+            if (i + 1 < first.length() && first.charAt(i) == second.charAt(i + 1) && first.charAt(i + 1) == second.charAt(i) &&
+                    first.substring(i + 2).equals(second.substring(i + 2))) {
+                return true;
+            }
+            // Substitution
+            return first.substring(i + 1).equals(second.substring(i + 1));
+        } else if (lengthDiff > 0) {
+            // Deletion from first
+            return first.substring(i + 1).equals(second.substring(i));
+        } else {
+            // Insertion to first
+            return first.substring(i).equals(second.substring(i + 1));
+        }
+    }
+
+
+    private static int getRank(String normalizedName, String normalizedQuery) {
+        int index = normalizedName.indexOf(normalizedQuery);
+        if (index == -1) {
+            return -1;
+        } else if (normalizedName.length() == normalizedQuery.length()) {
+            return RANK_WHOLE_NAME;
+        } else if (index == 0) {
+            return RANK_NAME_PREFIX;
+        } else if (normalizedName.contains(" " + normalizedQuery)) {
+            return RANK_WORD_PREFIX;
+        } else {
+            return RANK_SUBSTRING;
+        }
+    }
+
+
+    private void addDocument(String id, String name) {
+        String normalizedName = normalize(name);
+        int position;
+        if (freePositions.isEmpty()) {
+            position = ids.size();
+            ids.add(id);
+            names.add(name);
+            normalizedNames.add(normalizedName);
+        } else {
+            position = freePositions.removeFirst();
+            ids.set(position, id);
+            names.set(position, name);
+            normalizedNames.set(position, normalizedName);
+        }
+        positionsById.put(id, position);
+
+        for (String key : getIndexKeys(normalizedName)) {
+            BitSet bitSet = postings.get(key);
+            if (bitSet == null) {
+                bitSet = new BitSet();
+                postings.put(key, bitSet);
+            }
+            bitSet.set(position);
+        }
+    }
+
+
+    private void removeAtPosition(int position) {
+        for (String key : getIndexKeys(normalizedNames.get(position))) {
+            BitSet bitSet = postings.get(key);
+            if (bitSet != null) {
+                bitSet.clear(position);
+                if (bitSet.isEmpty()) {
+                    postings.remove(key);
+                }
+            }
+        }
+
+        positionsById.remove(ids.get(position));
+        ids.set(position, null);
+        names.set(position, null);
+        normalizedNames.set(position, null);
+        freePositions.add(position);
+    }
+
+
+    // All grams of length 1..3 and first characters of all words
+    private static Set<String> getIndexKeys(String normalizedName) {
+        Set<String> keys = new HashSet<String>();
+        for (int length = 1 ; length <= MAX_GRAM_LENGTH ; length++) {
+            keys.addAll(getGrams(normalizedName, length));
+        }
+        for (String word : normalizedName.split(" ")) {
+            if (word.length() > 0) {
+                keys.add(WORD_START_PREFIX + word.charAt(0));
+            }
+        }
+        return keys;
+    }
+
+
+    private static Set<String> getGrams(String text, int length) {
+        Set<String> grams = new HashSet<String>();
+        for (int i=0 ; i + length <= text.length() ; i++) {
+            grams.add(text.substring(i, i + length));
+        }
+        return grams;
+    }
+
+
+    private final Comparator<Match> matchComparator = new Comparator<Match>() {
+
+        @Override
+        public int compare(Match m1, Match m2) {
+            if (m1.rank != m2.rank) {
+                return m1.rank - m2.rank;
+            }
+            return normalizedNames.get(m1.position).compareTo(normalizedNames.get(m2.position));
+        }
+
+    };
+
+
+    private static class Match {
+
+        private final int position;
+        private final int rank;
+
+        private Match(int position, int rank) {
+            this.position = position;
+            this.rank = rank;
+        }
+    }
+}
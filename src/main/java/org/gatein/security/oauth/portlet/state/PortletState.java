@@ -0,0 +1,107 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.gatein.security.oauth.portlet.state;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+/**
+ * State of single portlet window, which is saved in portlet session as single attribute. Subclasses write their fields
+ * in compact form with {@link Externalizable}, so replication of session doesn't need to send class descriptors and
+ * field names of all fields.
+ * <p>
+ * Subclass must call {@link #markDirty()} whenever its state is changed. State is saved to session only at the end of
+ * request in which it was changed, so unchanged state is not replicated again. Subclass must have public constructor
+ * without arguments.
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+public abstract class PortletState implements Externalizable {
+
+    // writeUTF is limited to 65535 bytes and single char takes up to 3 bytes
+    private static final int MAX_UTF_LENGTH = 65535 / 3;
+
+    private static final byte NULL_STRING = 0;
+    private static final byte UTF_STRING = 1;
+    private static final byte LONG_STRING = 2;
+
+    private transient boolean dirty;
+
+    protected final void markDirty() {
+        dirty = true;
+    }
+
+    /**
+     * @return true if state was changed after it was saved to session last time
+     */
+    public final boolean isDirty() {
+        return dirty;
+    }
+
+    public final void clearDirty() {
+        dirty = false;
+    }
+
+
+    // Helper methods for subclasses. Strings could be null and they could be longer than limit of writeUTF
+    protected static void writeString(ObjectOutput out, String value) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL_STRING);
+        } else if (value.length() <= MAX_UTF_LENGTH) {
+            out.writeByte(UTF_STRING);
+            out.writeUTF(value);
+        } else {
+            out.writeByte(LONG_STRING);
+            out.writeObject(value);
+        }
+    }
+
+
+    protected static String readString(ObjectInput in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case NULL_STRING:
+                return null;
+            case UTF_STRING:
+                return in.readUTF();
+            case LONG_STRING:
+                try {
+                    return (String)in.readObject();
+                } catch (ClassNotFoundException cnfe) {
+                    throw new IOException(cnfe);
+                }
+            default:
+                throw new IOException("Unknown type of string: " + type);
+        }
+    }
+
+
+    // Values equal, including null
+    protected static boolean equal(Object value1, Object value2) {
+        return value1 == null ? value2 == null : value1.equals(value2);
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.gatein.security.oauth.portlet.template;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Sanitizer of HTML written by users of social networks (for example content of Google+ comments). Only simple
+ * formatting tags and links with http or https URL are kept. Attributes of tags are removed, other tags are dropped
+ * without their text being dropped and remaining text is HTML escaped. Tags left open are closed at the end, so content
+ * doesn't break markup around it.
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+public class HtmlSanitizer {
+
+    private static final Set<String> FORMATTING_TAGS = new HashSet<String>(Arrays.asList("b", "i", "u", "s", "em", "strong"));
+
+    private static final Pattern TAG = Pattern.compile("<(/?)([a-zA-Z][a-zA-Z0-9]*)([^>]*)>");
+    private static final Pattern HREF = Pattern.compile("\\bhref\\s*=\\s*(?:\"([^\"]*)\"|'([^']*)')", Pattern.CASE_INSENSITIVE);
+    private static final Pattern ENTITY = Pattern.compile("&(?:#[0-9]{1,7}|#[xX][0-9a-fA-F]{1,6}|[a-zA-Z][a-zA-Z0-9]{1,31});");
+
+    private HtmlSanitizer() {
+    }
+
+
+    /**
+     * @param html untrusted HTML
+     * @return HTML, which could be written to page without escaping, or null if given HTML is null
+     */
+    public static String sanitize(String html) {
+        if (html == null) {
+            return null;
+        }
+
+        StringBuilder result = new StringBuilder(html.length() + 16);
+        LinkedList<String> openTags = new LinkedList<String>();
+        Matcher tag = TAG.matcher(html);
+        int position = 0;
+        while (tag.find()) {
+            appendText(result, html, position, tag.start());
+            position = tag.end();
+
+            String name = tag.group(2).toLowerCase(Locale.ENGLISH);
+            boolean closing = tag.group(1).length() > 0;
+            if (name.equals("br")) {
+                if (!closing) {
+                    result.append("<br>");
+                }
+            } else if (!FORMATTING_TAGS.contains(name) && !name.equals("a")) {
+                // Tag is dropped, but its text is kept
+            } else if (closing) {
+                if (openTags.contains(name)) {
+                    String openTag;
+                    do {
+                        openTag = openTags.pop();
+                        result.append("</").append(openTag).append('>');
+                    } while (!openTag.equals(name));
+                }
+            } else if (name.equals("a")) {
+                String href = getHref(tag.group(3));
+                if (href != null) {
+                    result.append("<a href=\"").append(Template.escape(href)).append("\" rel=\"nofollow\">");
+                    openTags.push(name);
+                }
+            } else {
+                result.append('<').append(name).append('>');
+                openTags.push(name);
+            }
+        }
+        appendText(result, html, position, html.length());
+
+        while (!openTags.isEmpty()) {
+            result.append("</").append(openTags.pop()).append('>');
+        }
+        return result.toString();
+    }
+
+
+    // Text is escaped, but valid entities are kept as they are
+    private static void appendText(StringBuilder result, String html, int start, int end) {
+        Matcher entity = ENTITY.matcher(html);
+        for (int i=start ; i<end ; i++) {
+            char c = html.charAt(i);
+            switch (c) {
+                case '&':
+                    entity.region(i, end);
+                    if (entity.lookingAt()) {
+                        result.append(html, i, entity.end());
+                        i = entity.end() - 1;
+                    } else {
+                        result.append("&amp;");
+                    }
+                    break;
+                case '<': result.append("&lt;"); break;
+                case '>': result.append("&gt;"); break;
+                case '"': result.append("&quot;"); break;
+                case '\'': result.append("&#39;"); break;
+                default: result.append(c);
+            }
+        }
+    }
+
+
+    // Only absolute http and https links are allowed, so link can't execute script
+    private static String getHref(String attributes) {
+        Matcher href = HREF.matcher(attributes);
+        if (!href.find()) {
+            return null;
+        }
+
+        String url = (href.group(1) != null ? href.group(1) : href.group(2)).trim().replace("&amp;", "&");
+        String lowerCaseUrl = url.toLowerCase(Locale.ENGLISH);
+        return lowerCaseUrl.startsWith("http://") || lowerCaseUrl.startsWith("https://") ? url : null;
+    }
+}
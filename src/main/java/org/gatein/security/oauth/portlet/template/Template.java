@@ -0,0 +1,250 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.gatein.security.oauth.portlet.template;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.portlet.BaseURL;
+
+/**
+ * Precompiled HTML template. Template is parsed only once into static fragments of markup and slots, so rendering just
+ * writes fragments and values directly to the writer without creating any temporary strings.
+ * <p>
+ * Slot "{{name}}" is HTML escaped. Slot "{{{name}}}" is written as it is, so it could be used only for trusted markup or
+ * for markup sanitized with {@link HtmlSanitizer}.
+ * Values are written according to their type:
+ * <ul>
+ * <li>null is written as empty string</li>
+ * <li>{@link BaseURL} is written with XML escaping by {@link BaseURL#write(Writer, boolean)}</li>
+ * <li>{@link Number} and {@link Boolean} are written without escaping</li>
+ * <li>Other values are written as result of {@link Object#toString()}</li>
+ * </ul>
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+public class Template {
+
+    private static final String SLOT_START = "{{";
+    private static final String SLOT_END = "}}";
+
+    private final String name;
+    private final String[] slotNames;
+
+    // Slot i is written between fragments i and i+1
+    private final char[][] fragments;
+    private final int[] slotValueIndexes;
+    private final boolean[] rawSlots;
+
+    private Template(String name, String[] slotNames, char[][] fragments, int[] slotValueIndexes, boolean[] rawSlots) {
+        this.name = name;
+        this.slotNames = slotNames;
+        this.fragments = fragments;
+        this.slotValueIndexes = slotValueIndexes;
+        this.rawSlots = rawSlots;
+    }
+
+
+    /**
+     * Parse template from given source
+     *
+     * @param name name of template used in error messages
+     * @param source markup with slots
+     * @return compiled template
+     * @throws IllegalArgumentException if template has some unclosed slot
+     */
+    public static Template compile(String name, String source) {
+        List<String> slotNames = new ArrayList<String>();
+        List<char[]> fragments = new ArrayList<char[]>();
+        List<Integer> slotValueIndexes = new ArrayList<Integer>();
+        List<Boolean> rawSlots = new ArrayList<Boolean>();
+
+        int position = 0;
+        int slotStart;
+        while ((slotStart = source.indexOf(SLOT_START, position)) != -1) {
+            boolean raw = source.startsWith("{", slotStart + SLOT_START.length());
+            int nameStart = slotStart + SLOT_START.length() + (raw ? 1 : 0);
+            int nameEnd = source.indexOf(SLOT_END, nameStart);
+            if (nameEnd == -1) {
+                throw new IllegalArgumentException("Unclosed slot in template " + name + " on position " + slotStart);
+            }
+            int slotEnd = nameEnd + SLOT_END.length();
+            if (raw) {
+                if (!source.startsWith("}", slotEnd)) {
+                    throw new IllegalArgumentException("Unclosed raw slot in template " + name + " on position " + slotStart);
+                }
+                slotEnd++;
+            }
+
+            // Same name could be used for more slots, which are then filled by same value
+            String slotName = source.substring(nameStart, nameEnd).trim();
+            int valueIndex = slotNames.indexOf(slotName);
+            if (valueIndex == -1) {
+                valueIndex = slotNames.size();
+                slotNames.add(slotName);
+            }
+
+            fragments.add(source.substring(position, slotStart).toCharArray());
+            slotValueIndexes.add(valueIndex);
+            rawSlots.add(raw);
+            position = slotEnd;
+        }
+        fragments.add(source.substring(position).toCharArray());
+
+        int[] slotValueIndexesArray = new int[slotValueIndexes.size()];
+        boolean[] rawSlotsArray = new boolean[rawSlots.size()];
+        for (int i=0 ; i<slotValueIndexesArray.length ; i++) {
+            slotValueIndexesArray[i] = slotValueIndexes.get(i);
+            rawSlotsArray[i] = rawSlots.get(i);
+        }
+
+        return new Template(name, slotNames.toArray(new String[slotNames.size()]), fragments.toArray(new char[fragments.size()][]),
+                slotValueIndexesArray, rawSlotsArray);
+    }
+
+
+    /**
+     * Render template to given writer
+     *
+     * @param out writer where markup will be written
+     * @param values values of slots in order in which slots appear in template for the first time (See {@link #getSlotNames()})
+     * @throws IOException if writing fails
+     * @throws IllegalArgumentException if count of values doesn't match count of slots
+     */
+    public void render(Writer out, Object... values) throws IOException {
+        if (values.length != slotNames.length) {
+            throw new IllegalArgumentException("Template " + name + " expects " + slotNames.length + " values, but " +
+                    values.length + " values were passed");
+        }
+
+        for (int i=0 ; i<slotValueIndexes.length ; i++) {
+            char[] fragment = fragments[i];
+            out.write(fragment, 0, fragment.length);
+            writeValue(out, values[slotValueIndexes[i]], rawSlots[i]);
+        }
+        char[] lastFragment = fragments[fragments.length - 1];
+        out.write(lastFragment, 0, lastFragment.length);
+    }
+
+
+    public String getName() {
+        return name;
+    }
+
+
+    /**
+     * Check that template has exactly given slots, so values passed to {@link #render(Writer, Object...)} can't be
+     * swapped between slots when template file is edited
+     *
+     * @param expectedSlotNames names of slots in order in which caller passes their values
+     * @throws IllegalArgumentException if slots of template are different
+     */
+    public void checkSlotNames(String... expectedSlotNames) {
+        if (!Arrays.equals(slotNames, expectedSlotNames)) {
+            throw new IllegalArgumentException("Template " + name + " has slots " + Arrays.toString(slotNames) +
+                    ", but slots " + Arrays.toString(expectedSlotNames) + " were expected");
+        }
+    }
+
+
+    /**
+     * @return names of slots in order in which they appear in template for the first time
+     */
+    public String[] getSlotNames() {
+        return slotNames.clone();
+    }
+
+
+    /**
+     * Write text with HTML escaping of characters &amp;, &lt;, &gt;, &quot; and &#39;
+     */
+    public static void escape(Writer out, String text) throws IOException {
+        int length = text.length();
+        int runStart = 0;
+        for (int i=0 ; i<length ; i++) {
+            String replacement;
+            switch (text.charAt(i)) {
+                case '&': replacement = "&amp;"; break;
+                case '<': replacement = "&lt;"; break;
+                case '>': replacement = "&gt;"; break;
+                case '"': replacement = "&quot;"; break;
+                case '\'': replacement = "&#39;"; break;
+                default: continue;
+            }
+
+            // Write the run of characters without escaping at once
+            if (i > runStart) {
+                out.write(text, runStart, i - runStart);
+            }
+            out.write(replacement);
+            runStart = i + 1;
+        }
+
+        if (runStart < length) {
+            out.write(text, runStart, length - runStart);
+        }
+    }
+
+
+    /**
+     * @return text with HTML escaping like in {@link #escape(Writer, String)} or empty string if text is null. It's
+     * intended for markup, which is not rendered from template
+     */
+    public static String escape(String text) {
+        if (text == null) {
+            return "";
+        }
+
+        StringWriter out = new StringWriter(text.length() + 16);
+        try {
+            escape(out, text);
+        } catch (IOException ioe) {
+            // StringWriter doesn't throw it
+            throw new IllegalStateException(ioe);
+        }
+        return out.toString();
+    }
+
+
+    private void writeValue(Writer out, Object value, boolean raw) throws IOException {
+        if (value == null) {
+            return;
+        }
+
+        if (value instanceof BaseURL) {
+            ((BaseURL)value).write(out, !raw);
+        } else if (value instanceof Number || value instanceof Boolean) {
+            out.write(value.toString());
+        } else if (raw) {
+            out.write(value.toString());
+        } else {
+            escape(out, value.toString());
+        }
+    }
+}
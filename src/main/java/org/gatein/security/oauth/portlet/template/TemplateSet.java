@@ -0,0 +1,134 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.gatein.security.oauth.portlet.template;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Set of templates loaded from single file. Each template in file starts with line "&lt;!-- template: name --&gt;" and
+ * ends with start of next template or with end of file. Leading and trailing line breaks of each template are ignored.
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+public class TemplateSet {
+
+    private static final String TEMPLATE_START = "<!-- template:";
+    private static final String TEMPLATE_START_END = "-->";
+    private static final String ENCODING = "UTF-8";
+
+    private final Map<String, Template> templates;
+
+    private TemplateSet(Map<String, Template> templates) {
+        this.templates = templates;
+    }
+
+
+    /**
+     * Load templates of given class from file with simple name of class and suffix ".html" in same package as class.
+     * For example templates of class "org.example.MyPortlet" are loaded from classpath resource "org/example/MyPortlet.html"
+     *
+     * @param clazz class whose templates will be loaded
+     * @return loaded templates or empty set if class doesn't have any templates
+     * @throws IOException if loading of templates failed
+     */
+    public static TemplateSet load(Class<?> clazz) throws IOException {
+        InputStream input = clazz.getResourceAsStream(clazz.getSimpleName() + ".html");
+        if (input == null) {
+            return new TemplateSet(Collections.<String, Template>emptyMap());
+        }
+
+        try {
+            StringBuilder source = new StringBuilder();
+            Reader reader = new InputStreamReader(input, ENCODING);
+            char[] buffer = new char[4096];
+            int count;
+            while ((count = reader.read(buffer)) != -1) {
+                source.append(buffer, 0, count);
+            }
+            return parse(source.toString());
+        } finally {
+            input.close();
+        }
+    }
+
+
+    /**
+     * Parse templates from given source
+     */
+    public static TemplateSet parse(String source) {
+        Map<String, Template> templates = new HashMap<String, Template>();
+
+        int templateStart = source.indexOf(TEMPLATE_START);
+        while (templateStart != -1) {
+            int nameEnd = source.indexOf(TEMPLATE_START_END, templateStart);
+            if (nameEnd == -1) {
+                throw new IllegalArgumentException("Unclosed start of template on position " + templateStart);
+            }
+            String name = source.substring(templateStart + TEMPLATE_START.length(), nameEnd).trim();
+
+            int bodyStart = nameEnd + TEMPLATE_START_END.length();
+            int nextTemplateStart = source.indexOf(TEMPLATE_START, bodyStart);
+            int bodyEnd = nextTemplateStart == -1 ? source.length() : nextTemplateStart;
+
+            templates.put(name, Template.compile(name, trimLineBreaks(source.substring(bodyStart, bodyEnd))));
+            templateStart = nextTemplateStart;
+        }
+
+        return new TemplateSet(templates);
+    }
+
+
+    /**
+     * @param name name of template
+     * @return template with given name
+     * @throws IllegalArgumentException if template doesn't exist
+     */
+    public Template get(String name) {
+        Template template = templates.get(name);
+        if (template == null) {
+            throw new IllegalArgumentException("Template " + name + " not found. Available templates: " + templates.keySet());
+        }
+        return template;
+    }
+
+
+    private static String trimLineBreaks(String str) {
+        int start = 0;
+        int end = str.length();
+        while (start < end && (str.charAt(start) == '\n' || str.charAt(start) == '\r')) {
+            start++;
+        }
+        while (end > start && (str.charAt(end - 1) == '\n' || str.charAt(end - 1) == '\r')) {
+            end--;
+        }
+        return str.substring(start, end);
+    }
+}
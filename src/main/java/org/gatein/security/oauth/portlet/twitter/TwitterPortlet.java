@@ -31,11 +31,21 @@ import javax.portlet.RenderRequest;
 import javax.portlet.RenderResponse;
 
 import org.exoplatform.container.ExoContainer;
+import org.gatein.common.logging.Logger;
+import org.gatein.common.logging.LoggerFactory;
 import org.gatein.security.oauth.common.OAuthConstants;
 import org.gatein.security.oauth.common.OAuthProviderType;
 import org.gatein.security.oauth.portlet.AbstractSocialPortlet;
+import org.gatein.security.oauth.portlet.avatar.AvatarProxy;
+import org.gatein.security.oauth.portlet.cache.SocialCache;
+import org.gatein.security.oauth.portlet.concurrent.ProviderCall;
+import org.gatein.security.oauth.portlet.concurrent.ProviderUnavailableException;
+import org.gatein.security.oauth.portlet.metrics.LatencyHistogram;
+import org.gatein.security.oauth.portlet.quota.QuotaManager;
+import org.gatein.security.oauth.portlet.template.Template;
 import org.gatein.security.oauth.twitter.TwitterAccessTokenContext;
 import org.gatein.security.oauth.twitter.TwitterProcessor;
+import twitter4j.RateLimitStatus;
 import twitter4j.Twitter;
 import twitter4j.TwitterException;
 import twitter4j.User;
@@ -45,11 +55,34 @@ import twitter4j.User;
  */
 public class TwitterPortlet extends AbstractSocialPortlet<TwitterAccessTokenContext> {
 
+    private static final Logger log = LoggerFactory.getLogger(TwitterPortlet.class);
+
     private TwitterProcessor gtnTwitterProcessor;
+    private LatencyHistogram verifyCredentialsCalls;
+    private TwitterProfileCache profileCache;
 
     @Override
     protected void afterInit(ExoContainer container) {
         this.gtnTwitterProcessor = (TwitterProcessor) container.getComponentInstanceOfType(TwitterProcessor.class);
+        this.verifyCredentialsCalls = getProviderCallHistogram("verifyCredentials");
+
+        int cacheSize = getIntInitParameter("profileCacheSize", 1000);
+        int minExpiration = getIntInitParameter("profileMinExpiration", 60);
+        int maxStaleness = getIntInitParameter("profileMaxStaleness", 3600);
+        int reservedCalls = getIntInitParameter("rateLimitReserve", 2);
+        SocialCache<TwitterProfileCache.CachedProfile> profiles = createCache("twitterProfiles", cacheSize, minExpiration * 1000L);
+        this.profileCache = new TwitterProfileCache(profiles, profiles.getTimeToLive(), maxStaleness * 1000L, reservedCalls);
+        log.debug("Initialized cache of twitter profiles " + profiles + " with max staleness " + maxStaleness + " seconds");
+        enableBackgroundRefresh();
+    }
+
+    /**
+     * Remove cached Twitter profile of given portal user, so it will be obtained again from Twitter during next render
+     *
+     * @param username portal user
+     */
+    public void invalidateProfile(String username) {
+        profileCache.invalidate(username);
     }
 
     @Override
@@ -59,22 +92,116 @@ public class TwitterPortlet extends AbstractSocialPortlet<TwitterAccessTokenCont
 
     @Override
     protected void handleRender(RenderRequest request, RenderResponse response, TwitterAccessTokenContext accessToken) throws PortletException, IOException {
-        Twitter twitter = gtnTwitterProcessor.getAuthorizedTwitterInstance(accessToken);
+        User twitterUser = getProfile(request.getRemoteUser(), accessToken);
+
+        StringBuilder htmlResponse = new StringBuilder("Twitter username: " + Template.escape(twitterUser.getScreenName()) + "<br>");
+        htmlResponse.append("Twitter name: " + Template.escape(twitterUser.getName()) + "<br>");
+        htmlResponse.append("Tweets: " + twitterUser.getStatusesCount() + ", Friends: " + twitterUser.getFriendsCount() +
+                ", Followers: " + twitterUser.getFollowersCount() + "<br>");
+        htmlResponse.append("Last tweet: " + Template.escape(twitterUser.getStatus().getText()) + "<br>");
+        htmlResponse.append("<img src=\"" + Template.escape(getAvatarUrl(request, twitterUser.getProfileImageURL(), AvatarProxy.SIZE_SMALL)) + "\" alt=\"Your picture\" /><br>");
+
+        writeAndFinishResponse(htmlResponse.toString(), response);
+    }
+
+
+    // Cached profile is served immediately. Expired profile is refreshed in background, so render doesn't wait for Twitter
+    private User getProfile(String username, TwitterAccessTokenContext accessToken) throws PortletException {
+        TwitterProfileCache.CachedProfile profile = profileCache.getFresh(username, accessToken.getAccessToken());
+        if (profile != null) {
+            return profile.getUser();
+        }
+
+        profile = profileCache.getServable(username, accessToken.getAccessToken());
+        if (profile != null) {
+            requestRefresh(username);
+            return profile.getUser();
+        }
 
-        User twitterUser;
         try {
-            twitterUser = twitter.verifyCredentials();
+            User user = verifyCredentials(username, accessToken, QuotaManager.Priority.INTERACTIVE);
+            return profileCache.put(username, accessToken.getAccessToken(), user).getUser();
         } catch (TwitterException te) {
+            // Old profile is better than error if we exceeded quota
+            profile = profileCache.getStale(username, accessToken.getAccessToken());
+            if (te.exceededRateLimitation() && profile != null) {
+                profileCache.backOff(username, accessToken.getAccessToken(), profile, te.getRateLimitStatus());
+                return profile.getUser();
+            }
             throw new PortletException(te);
+        } catch (ProviderUnavailableException pue) {
+            profile = profileCache.getStale(username, accessToken.getAccessToken());
+            if (profile != null) {
+                return profile.getUser();
+            }
+            throw pue;
         }
+    }
 
-        StringBuilder htmlResponse = new StringBuilder("Twitter username: " + twitterUser.getScreenName() + "<br>");
-        htmlResponse.append("Twitter name: " + twitterUser.getName() + "<br>");
-        htmlResponse.append("Tweets: " + twitterUser.getStatusesCount() + ", Friends: " + twitterUser.getFriendsCount() +
-                ", Followers: " + twitterUser.getFollowersCount() + "<br>");
-        htmlResponse.append("Last tweet: " + twitterUser.getStatus().getText() + "<br>");
-        htmlResponse.append("<img src=\"" + twitterUser.getProfileImageURL() + "\" alt=\"Your picture\" /><br>");
 
-        writeAndFinishResponse(htmlResponse.toString(), response);
+    @Override
+    protected boolean isRefreshNeeded(String username, TwitterAccessTokenContext accessToken, long refreshAhead) {
+        return isExpiring(profileCache.getProfiles(), username, accessToken.getAccessToken(), refreshAhead);
+    }
+
+
+    // Failed refresh is not repeated until rate limit window is reset or at least for min expiration of profile
+    @Override
+    protected void refreshData(String username, TwitterAccessTokenContext accessToken) throws TwitterException {
+        TwitterProfileCache.CachedProfile profile = profileCache.getStale(username, accessToken.getAccessToken());
+        try {
+            profileCache.put(username, accessToken.getAccessToken(),
+                    verifyCredentials(username, accessToken, QuotaManager.Priority.BACKGROUND));
+        } catch (TwitterException te) {
+            if (profile != null) {
+                profileCache.backOff(username, accessToken.getAccessToken(), profile, te.getRateLimitStatus());
+            }
+            throw te;
+        } catch (ProviderUnavailableException pue) {
+            if (profile != null) {
+                profileCache.backOff(username, accessToken.getAccessToken(), profile, null);
+            }
+            throw pue;
+        }
+    }
+
+
+    // Limits reported by Twitter are applied to quota of user
+    private User verifyCredentials(final String username, TwitterAccessTokenContext accessToken, QuotaManager.Priority priority) throws TwitterException {
+        final Twitter twitter = gtnTwitterProcessor.getAuthorizedTwitterInstance(accessToken);
+        ProviderCall<User, TwitterException> call = new ProviderCall<User, TwitterException>() {
+
+            @Override
+            public User call() throws TwitterException {
+                try {
+                    User user = twitter.verifyCredentials();
+                    RateLimitStatus rateLimitStatus = user.getRateLimitStatus();
+                    if (rateLimitStatus != null) {
+                        getQuotaManager().updateLimit(OAuthConstants.OAUTH_PROVIDER_KEY_TWITTER, username, rateLimitStatus.getLimit(),
+                                rateLimitStatus.getRemaining(), rateLimitStatus.getSecondsUntilReset());
+                    }
+                    return user;
+                } catch (TwitterException te) {
+                    if (te.exceededRateLimitation()) {
+                        RateLimitStatus rateLimitStatus = te.getRateLimitStatus();
+                        getQuotaManager().onRateLimited(OAuthConstants.OAUTH_PROVIDER_KEY_TWITTER, username,
+                                rateLimitStatus != null ? rateLimitStatus.getSecondsUntilReset() : 60);
+                    }
+                    throw te;
+                }
+            }
+
+            // Token was revoked by user
+            @Override
+            public boolean isUserError(Exception error) {
+                return error instanceof TwitterException && ((TwitterException)error).getStatusCode() == 401;
+            }
+
+        };
+
+        // Other Twitter portlets on same page use same profile
+        return priority == QuotaManager.Priority.INTERACTIVE
+                ? callProviderOnce(username, "verifyCredentials", verifyCredentialsCalls, call)
+                : callProvider(username, priority, verifyCredentialsCalls, call);
     }
 }
@@ -0,0 +1,160 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.gatein.security.oauth.portlet.twitter;
+
+import java.io.Serializable;
+
+import org.gatein.security.oauth.portlet.cache.SocialCache;
+import twitter4j.RateLimitStatus;
+import twitter4j.User;
+
+/**
+ * Cache of Twitter profiles of portal users. Time-to-live of each profile is computed from remaining quota of Twitter API
+ * reported with the profile, so remaining calls are spread over the rest of rate limit window. When quota is nearly
+ * exhausted, profile is not refreshed until the window is reset.
+ *
+ * Expired profiles are still served (with refresh running in background) until they are older than max staleness.
+ *
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+class TwitterProfileCache {
+
+    private final SocialCache<CachedProfile> profiles;
+    private final long minTimeToLive;
+    private final long maxStaleness;
+    private final int reservedCalls;
+
+    /**
+     * @param profiles cache of profiles with default time-to-live equal to min time-to-live
+     * @param minTimeToLive min time in milliseconds for which profile is fresh
+     * @param maxStaleness max age of profile in milliseconds, after which profile can't be served anymore
+     * @param reservedCalls count of calls, which are left in quota of each user. Profile is refreshed only when there are
+     *                      more remaining calls
+     */
+    TwitterProfileCache(SocialCache<CachedProfile> profiles, long minTimeToLive, long maxStaleness, int reservedCalls) {
+        this.profiles = profiles;
+        this.minTimeToLive = minTimeToLive;
+        this.maxStaleness = maxStaleness;
+        this.reservedCalls = reservedCalls;
+    }
+
+
+    /**
+     * @param username portal user
+     * @param accessToken current access token of user. Profiles obtained with different token are ignored
+     * @return profile, which doesn't need to be refreshed yet, or null
+     */
+    CachedProfile getFresh(String username, String accessToken) {
+        return profiles.get(username, accessToken);
+    }
+
+
+    /**
+     * @return expired profile, which is not older than max staleness, or null
+     */
+    CachedProfile getServable(String username, String accessToken) {
+        CachedProfile profile = getStale(username, accessToken);
+        return profile != null && System.currentTimeMillis() - profile.loadTime <= maxStaleness ? profile : null;
+    }
+
+
+    /**
+     * @return profile of given user even if it's older than max staleness. It could be used if Twitter refuses requests
+     */
+    CachedProfile getStale(String username, String accessToken) {
+        return profiles.getStale(username, accessToken);
+    }
+
+
+    /**
+     * Save profile just obtained from Twitter
+     */
+    CachedProfile put(String username, String accessToken, User user) {
+        CachedProfile profile = new CachedProfile(user, System.currentTimeMillis());
+        profiles.put(username, accessToken, profile, computeTimeToLive(user.getRateLimitStatus()));
+        return profile;
+    }
+
+
+    /**
+     * Keep serving of current profile, but don't refresh it until rate limit window is reset or at least for min
+     * time-to-live. It should be called when refresh of profile failed.
+     *
+     * @param rateLimitStatus status reported with failure or null if it's not known
+     */
+    void backOff(String username, String accessToken, CachedProfile profile, RateLimitStatus rateLimitStatus) {
+        long timeToLive = minTimeToLive;
+        if (rateLimitStatus != null) {
+            timeToLive = Math.max(timeToLive, rateLimitStatus.getSecondsUntilReset() * 1000L);
+        }
+        profiles.put(username, accessToken, profile, timeToLive);
+    }
+
+
+    void invalidate(String username) {
+        profiles.invalidate(username);
+    }
+
+
+    SocialCache<CachedProfile> getProfiles() {
+        return profiles;
+    }
+
+
+    private long computeTimeToLive(RateLimitStatus rateLimitStatus) {
+        if (rateLimitStatus == null) {
+            return minTimeToLive;
+        }
+
+        long untilReset = Math.max(0, rateLimitStatus.getSecondsUntilReset()) * 1000L;
+        int spareCalls = rateLimitStatus.getRemaining() - reservedCalls;
+        if (spareCalls <= 0) {
+            return Math.max(minTimeToLive, untilReset);
+        }
+        return Math.max(minTimeToLive, untilReset / spareCalls);
+    }
+
+
+    static class CachedProfile implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final User user;
+        private final long loadTime;
+
+        private CachedProfile(User user, long loadTime) {
+            this.user = user;
+            this.loadTime = loadTime;
+        }
+
+        User getUser() {
+            return user;
+        }
+
+        long getLoadTime() {
+            return loadTime;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.security.oauth.portlet.template;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+public class HtmlSanitizerTest {
+
+    @Test
+    public void testFormattingTagsKept() {
+        assertEquals("<b>bold</b> <em>text</em><br>", HtmlSanitizer.sanitize("<B>bold</B> <em class=\"x\">text</em><br/>"));
+        assertNull(HtmlSanitizer.sanitize(null));
+    }
+
+
+    @Test
+    public void testOtherTagsDroppedWithTextKept() {
+        assertEquals("alert(1)text", HtmlSanitizer.sanitize("<script>alert(1)</script><div>text</div>"));
+        assertEquals("", HtmlSanitizer.sanitize("<img src=\"http://example.com/x.png\" onerror=\"alert(1)\">"));
+    }
+
+
+    @Test
+    public void testHttpLink() {
+        assertEquals("<a href=\"https://example.com/?a=1&amp;b=2\" rel=\"nofollow\">link</a>",
+                HtmlSanitizer.sanitize("<a href='https://example.com/?a=1&amp;b=2'>link</a>"));
+    }
+
+
+    @Test
+    public void testScriptLinks() {
+        assertEquals("link", HtmlSanitizer.sanitize("<a href=\"javascript:alert(1)\">link</a>"));
+        assertEquals("link", HtmlSanitizer.sanitize("<a href=\" JavaScript:alert(1)\">link</a>"));
+        assertEquals("link", HtmlSanitizer.sanitize("<a href=\"&#106;avascript:alert(1)\">link</a>"));
+        assertEquals("link", HtmlSanitizer.sanitize("<a href=\"&#x6A;avascript:alert(1)\">link</a>"));
+        assertEquals("link", HtmlSanitizer.sanitize("<a href=\"data:text/html,x\">link</a>"));
+        assertEquals("link", HtmlSanitizer.sanitize("<a href=\"//example.com\">link</a>"));
+        assertEquals("link", HtmlSanitizer.sanitize("<a>link</a>"));
+    }
+
+
+    @Test
+    public void testAttributeInjection() {
+        assertEquals("<a href=\"http://example.com\" rel=\"nofollow\">link</a>",
+                HtmlSanitizer.sanitize("<a href=\"http://example.com\" onclick=\"alert(1)\" style=\"x\">link</a>"));
+        assertEquals("<a href=\"http://example.com/&quot;onmouseover=&quot;alert(1)\" rel=\"nofollow\">link</a>",
+                HtmlSanitizer.sanitize("<a href='http://example.com/\"onmouseover=\"alert(1)'>link</a>"));
+        assertEquals("<b>text</b>", HtmlSanitizer.sanitize("<b onmouseover=\"alert(1)\">text</b>"));
+    }
+
+
+    @Test
+    public void testMismatchedTags() {
+        assertEquals("<b><i>text</i></b> rest", HtmlSanitizer.sanitize("<b><i>text</b> rest</i>"));
+        assertEquals("text", HtmlSanitizer.sanitize("text</b></a>"));
+    }
+
+
+    @Test
+    public void testUnclosedTags() {
+        assertEquals("<b><a href=\"http://example.com\" rel=\"nofollow\">text</a></b>",
+                HtmlSanitizer.sanitize("<b><a href=\"http://example.com\">text"));
+        assertEquals("a &lt; b &lt;b", HtmlSanitizer.sanitize("a < b <b"));
+    }
+
+
+    @Test
+    public void testEntities() {
+        assertEquals("&lt;tag&gt; &amp; &#233; &#xE9; &eacute; &amp;unknown &amp;#xZZ;",
+                HtmlSanitizer.sanitize("&lt;tag&gt; & &#233; &#xE9; &eacute; &unknown &#xZZ;"));
+        assertEquals("&quot;quoted&quot; &#39;quoted&#39;", HtmlSanitizer.sanitize("\"quoted\" 'quoted'"));
+    }
+}
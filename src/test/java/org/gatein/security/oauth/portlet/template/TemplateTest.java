@@ -0,0 +1,127 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.security.oauth.portlet.template;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
+ */
+public class TemplateTest {
+
+    @Test
+    public void testEscapedAndRawSlots() throws IOException {
+        Template template = Template.compile("test", "<p title=\"{{ title }}\">{{{content}}}</p>");
+        assertArrayEquals(new String[] {"title", "content"}, template.getSlotNames());
+        assertEquals("<p title=\"&quot;a&quot; &amp; &#39;b&#39; &lt;c&gt;\"><b>text</b></p>",
+                render(template, "\"a\" & 'b' <c>", "<b>text</b>"));
+    }
+
+
+    @Test
+    public void testSameSlotUsedTwice() throws IOException {
+        Template template = Template.compile("test", "{{name}} {{{name}}} {{count}}");
+        assertArrayEquals(new String[] {"name", "count"}, template.getSlotNames());
+        assertEquals("&lt;i&gt; <i> 5", render(template, "<i>", 5));
+        assertEquals("  ", render(template, null, null));
+    }
+
+
+    @Test
+    public void testTemplateWithoutSlots() throws IOException {
+        Template template = Template.compile("test", "<p>{ text }</p>");
+        assertEquals(0, template.getSlotNames().length);
+        assertEquals("<p>{ text }</p>", render(template));
+    }
+
+
+    @Test
+    public void testUnclosedSlot() {
+        assertCompileFails("<p>{{title</p>");
+        assertCompileFails("<p>{{{content}}</p>");
+    }
+
+
+    @Test
+    public void testWrongCountOfValues() throws IOException {
+        Template template = Template.compile("test", "{{a}}{{b}}");
+        try {
+            render(template, "a");
+            fail("Rendering with missing value should fail");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+
+    @Test
+    public void testCheckSlotNames() {
+        Template template = Template.compile("test", "{{title}} {{{content}}} {{title}}");
+        template.checkSlotNames("title", "content");
+
+        assertCheckSlotNamesFails(template, "content", "title");
+        assertCheckSlotNamesFails(template, "title");
+        assertCheckSlotNamesFails(template, "title", "content", "url");
+        assertCheckSlotNamesFails(template, "title", "Content");
+    }
+
+
+    @Test
+    public void testEscape() {
+        assertEquals("", Template.escape(null));
+        assertEquals("plain", Template.escape("plain"));
+        assertEquals("&lt;a href=&quot;x&quot;&gt;&amp;&#39;", Template.escape("<a href=\"x\">&'"));
+    }
+
+
+    private static String render(Template template, Object... values) throws IOException {
+        StringWriter out = new StringWriter();
+        template.render(out, values);
+        return out.toString();
+    }
+
+
+    private static void assertCompileFails(String source) {
+        try {
+            Template.compile("test", source);
+            fail("Compilation of " + source + " should fail");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+
+    private static void assertCheckSlotNamesFails(Template template, String... slotNames) {
+        try {
+            template.checkSlotNames(slotNames);
+            fail("Check of slots should fail");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}